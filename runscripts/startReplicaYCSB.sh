@@ -15,5 +15,7 @@
 #/bin/bash
 
 REPLICA_INDEX=$1
+# Optional: number of threads executing non-conflicting requests in parallel (default is 1)
+EXECUTION_THREADS=${2:-1}
 
-java -Dlogback.configurationFile="./config/logback.xml" -cp bin/:lib/* bftsmart.demo.ycsb.YCSBServer $REPLICA_INDEX
+java -Dlogback.configurationFile="./config/logback.xml" -cp bin/:lib/* bftsmart.demo.ycsb.YCSBServer $REPLICA_INDEX $EXECUTION_THREADS
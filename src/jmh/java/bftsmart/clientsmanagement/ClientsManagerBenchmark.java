@@ -0,0 +1,94 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.clientsmanagement;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+
+/**
+ * Measures the time taken by the leader to select the requests of the next
+ * batch (ClientsManager.getPendingRequests) for different numbers of
+ * connected clients, each one with one outstanding request. The proposed
+ * requests are ordered and replaced by new ones before each invocation, so
+ * that the number of pending requests stays constant.
+ *
+ * Uses the configuration in the config directory (maxbatchsize, etc).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ClientsManagerBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int clients;
+
+    private ClientsManager clientsManager;
+    private RequestList lastBatch;
+    private int[] sequences;
+    private byte[] payload = new byte[64];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ServerViewController controller = new ServerViewController(0, "", null);
+        clientsManager = new ClientsManager(controller, null, request -> true, null);
+        sequences = new int[clients];
+        for (int i = 0; i < clients; i++) {
+            submit(i);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void replaceProposed() {
+        if (lastBatch != null) {
+            clientsManager.requestsOrdered(lastBatch.toArray(new TOMMessage[0]));
+            for (TOMMessage request : lastBatch) {
+                submit(request.getSender() - 1000);
+            }
+        }
+    }
+
+    private void submit(int client) {
+        TOMMessage request = new TOMMessage(1000 + client, 0, sequences[client]++, 0, payload, 0,
+                TOMMessageType.ORDERED_REQUEST);
+        request.serializedMessage = TOMMessage.messageToBytes(request);
+        clientsManager.requestReceived(request, true);
+    }
+
+    @Benchmark
+    public RequestList getPendingRequests() {
+        lastBatch = clientsManager.getPendingRequests();
+        return lastBatch;
+    }
+}
@@ -0,0 +1,146 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.tom.core.messages.ForwardedMessage;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.leaderchange.LCMessage;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Compares the binary codec of {@link SystemMessageCodec} with the
+ * Externalizable/ObjectOutputStream path previously used between replicas.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SystemMessageCodecBenchmark {
+
+    @Param({"PROPOSE", "WRITE", "ACCEPT", "FWD_DECISION", "STOP", "FORWARDED"})
+    public String message;
+
+    @Param({"1024", "102400"})
+    public int batchSize;
+
+    private SystemMessage sm;
+    private byte[] javaEncoded;
+    private byte[] codecEncoded;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        byte[] batch = new byte[batchSize];
+        random.nextBytes(batch);
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        byte[] signature = new byte[72];
+        random.nextBytes(signature);
+
+        switch (message) {
+            case "PROPOSE":
+                sm = new ConsensusMessage(MessageFactory.PROPOSE, 1000, 0, 0, batch);
+                break;
+            case "WRITE":
+                sm = new ConsensusMessage(MessageFactory.WRITE, 1000, 0, 0, hash);
+                break;
+            case "ACCEPT": {
+                ConsensusMessage cm = new ConsensusMessage(MessageFactory.ACCEPT, 1000, 0, 0, hash);
+                cm.setProof(signature);
+                sm = cm;
+                break;
+            }
+            case "FWD_DECISION": {
+                HashSet<ConsensusMessage> proof = new HashSet<>();
+                for (int i = 0; i < 3; i++) {
+                    ConsensusMessage accept = new ConsensusMessage(MessageFactory.ACCEPT, 1000, 0, i, hash);
+                    accept.setProof(signature);
+                    proof.add(accept);
+                }
+                ConsensusMessage cm = new ConsensusMessage(MessageFactory.FWD_DECISION, 1000, 0, 0, batch);
+                cm.setProof(proof);
+                sm = cm;
+                break;
+            }
+            case "STOP":
+                sm = new LCMessage(0, TOMUtil.STOP, 1, batch);
+                break;
+            case "FORWARDED": {
+                TOMMessage request = new TOMMessage(1001, 0, 0, 0, batch, 0, TOMMessageType.ORDERED_REQUEST);
+                request.serializedMessage = TOMMessage.messageToBytes(request);
+                sm = new ForwardedMessage(0, request);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown message " + message);
+        }
+
+        javaEncoded = javaEncode(sm);
+        codecEncoded = SystemMessageCodec.encode(sm);
+    }
+
+    @Benchmark
+    public byte[] externalizableEncode() throws IOException {
+        return javaEncode(sm);
+    }
+
+    @Benchmark
+    public Object externalizableDecode() throws IOException, ClassNotFoundException {
+        return new ObjectInputStream(new ByteArrayInputStream(javaEncoded)).readObject();
+    }
+
+    @Benchmark
+    public byte[] codecEncode() throws IOException {
+        return SystemMessageCodec.encode(sm);
+    }
+
+    @Benchmark
+    public SystemMessage codecDecode() throws IOException, ClassNotFoundException {
+        return SystemMessageCodec.decode(codecEncoded);
+    }
+
+    private static byte[] javaEncode(SystemMessage sm) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        new ObjectOutputStream(bOut).writeObject(sm);
+        return bOut.toByteArray();
+    }
+}
@@ -0,0 +1,79 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core.messages;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the serialization of client requests (TOMMessage.wExternal and
+ * rExternal), used by the clients, by the batches and by the leader change.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TOMMessageBenchmark {
+
+    @Param({"0", "1024", "102400"})
+    public int contentSize;
+
+    private TOMMessage request;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() {
+        byte[] content = new byte[contentSize];
+        new Random(42).nextBytes(content);
+        request = new TOMMessage(1001, 0, 0, 0, content, 0, TOMMessageType.ORDERED_REQUEST);
+        serialized = TOMMessage.messageToBytes(request);
+    }
+
+    @Benchmark
+    public byte[] wExternal() throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(serialized.length);
+        DataOutputStream out = new DataOutputStream(bOut);
+        request.wExternal(out);
+        out.flush();
+        return bOut.toByteArray();
+    }
+
+    @Benchmark
+    public TOMMessage rExternal() throws IOException, ClassNotFoundException {
+        TOMMessage m = new TOMMessage();
+        m.rExternal(new DataInputStream(new ByteArrayInputStream(serialized)));
+        return m;
+    }
+}
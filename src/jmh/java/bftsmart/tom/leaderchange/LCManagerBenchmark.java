@@ -0,0 +1,108 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.leaderchange;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bftsmart.consensus.TimestampValuePair;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Measures the predicates evaluated by the new leader over the collected
+ * contexts during a leader change (LCManager.sound and binds). In the
+ * "bound" scenario every collect reports the same value, written in the
+ * last of its writeSetSize timestamps; in the "unbound" scenario no value
+ * was written before the regency change.
+ *
+ * Uses the configuration in the config directory (n, f, etc).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LCManagerBenchmark {
+
+    @Param({"bound", "unbound"})
+    public String scenario;
+
+    @Param({"1", "10"})
+    public int writeSetSize;
+
+    private LCManager lcManager;
+    private HashSet<CollectData> collects;
+    private int timestamp;
+    private byte[] hash;
+
+    @Setup
+    public void setup() throws NoSuchAlgorithmException {
+        ServerViewController controller = new ServerViewController(0, "", null);
+        lcManager = new LCManager(null, controller, TOMUtil.getHashEngine());
+
+        Random random = new Random(42);
+        byte[] value = new byte[1024];
+        random.nextBytes(value);
+        hash = TOMUtil.computeHash(value);
+        timestamp = writeSetSize - 1;
+
+        int quorum = controller.getCurrentViewN() - controller.getCurrentViewF();
+        collects = new HashSet<>();
+        for (int pid = 0; pid < quorum; pid++) {
+            HashSet<TimestampValuePair> writeSet = new HashSet<>();
+            TimestampValuePair quorumWrites;
+            if ("bound".equals(scenario)) {
+                for (int ts = 0; ts < writeSetSize; ts++) {
+                    byte[] written = ts == timestamp ? value : new byte[1024];
+                    if (ts != timestamp) random.nextBytes(written);
+                    TimestampValuePair pair = new TimestampValuePair(ts, written);
+                    pair.setHashedValue(TOMUtil.computeHash(written));
+                    writeSet.add(pair);
+                }
+                quorumWrites = new TimestampValuePair(timestamp, hash);
+            } else {
+                quorumWrites = new TimestampValuePair(0, new byte[0]);
+            }
+            collects.add(new CollectData(pid, 0, 0, quorumWrites, writeSet));
+        }
+    }
+
+    @Benchmark
+    public boolean sound() {
+        return lcManager.sound(collects);
+    }
+
+    @Benchmark
+    public boolean binds() {
+        return lcManager.binds(timestamp, hash, collects);
+    }
+}
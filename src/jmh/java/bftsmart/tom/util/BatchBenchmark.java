@@ -0,0 +1,92 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+
+/**
+ * Measures how long the leader takes to serialize a batch of requests into a
+ * PROPOSE value (BatchBuilder.makeBatch) and how long the other replicas take
+ * to read it back (BatchReader.deserialiseRequests).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+
+    @Param({"1", "100", "1024"})
+    public int requests;
+
+    @Param({"0", "1024", "4096"})
+    public int requestSize;
+
+    @Param({"false", "true"})
+    public boolean useSignatures;
+
+    private BatchBuilder builder;
+    private List<TOMMessage> batch;
+    private byte[] serializedBatch;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        builder = new BatchBuilder(42);
+        batch = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++) {
+            byte[] content = new byte[requestSize];
+            random.nextBytes(content);
+            TOMMessage request = new TOMMessage(1000 + i, 0, 0, 0, content, 0, TOMMessageType.ORDERED_REQUEST);
+            request.serializedMessage = TOMMessage.messageToBytes(request);
+            if (useSignatures) {
+                request.serializedMessageSignature = new byte[72];
+                random.nextBytes(request.serializedMessageSignature);
+            }
+            batch.add(request);
+        }
+        serializedBatch = builder.makeBatch(batch, 0, System.currentTimeMillis(), useSignatures);
+    }
+
+    @Benchmark
+    public byte[] makeBatch() {
+        return builder.makeBatch(batch, 0, System.currentTimeMillis(), useSignatures);
+    }
+
+    @Benchmark
+    public TOMMessage[] deserialiseRequests() {
+        return new BatchReader(serializedBatch, useSignatures).deserialiseRequests(null);
+    }
+}
@@ -0,0 +1,82 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+
+/**
+ * Measures the hashing helpers of TOMUtil: computeHash over a single value
+ * (as done for every WRITE/ACCEPT and reply hash) and computeHashOfCollection
+ * over a set of requests (as done for the leader change messages).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TOMUtilHashBenchmark {
+
+    @Param({"32", "1024", "102400"})
+    public int size;
+
+    @Param({"1", "100"})
+    public int requests;
+
+    private byte[] data;
+    private List<TOMMessage> messages;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        data = new byte[size];
+        random.nextBytes(data);
+        messages = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++) {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            messages.add(new TOMMessage(1000 + i, 0, 0, 0, content, 0, TOMMessageType.ORDERED_REQUEST));
+        }
+    }
+
+    @Benchmark
+    public byte[] computeHash() {
+        return TOMUtil.computeHash(data);
+    }
+
+    @Benchmark
+    public byte[] computeHashOfCollection() {
+        return TOMUtil.computeHashOfCollection(messages);
+    }
+}
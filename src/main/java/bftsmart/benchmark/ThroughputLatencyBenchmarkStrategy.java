@@ -25,6 +25,7 @@ public class ThroughputLatencyBenchmarkStrategy implements IBenchmarkStrategy, I
 	private final Logger logger = LoggerFactory.getLogger("benchmarking");
 	private final Lock lock;
 	private final Condition sleepCondition;
+	private final String initialCommand;
 	private final String serverCommand;
 	private final String clientCommand;
 	private final String sarCommand;
@@ -39,6 +40,7 @@ public class ThroughputLatencyBenchmarkStrategy implements IBenchmarkStrategy, I
 	private int dataSize;
 	private boolean isWrite;
 	private ArrayList<Integer> numMaxRealClients;
+	private ArrayList<Integer> pipelineWindows;
 	private ArrayList<Double> avgLatency;
 	private ArrayList<Double> latencyDev;
 	private ArrayList<Double> avgThroughput;
@@ -49,11 +51,12 @@ public class ThroughputLatencyBenchmarkStrategy implements IBenchmarkStrategy, I
 	private String storageFileNamePrefix;
 	private int f;
 	private boolean useHashedResponse;
+	private int pipelineWindow;
 
 	public ThroughputLatencyBenchmarkStrategy() {
 		this.lock = new ReentrantLock(true);
 		this.sleepCondition = lock.newCondition();
-		String initialCommand = "java -Xmx28g -Djava.security.properties=./config/java" +
+		this.initialCommand = "java -Xmx28g -Djava.security.properties=./config/java" +
 				".security -Dlogback.configurationFile=./config/logback.xml -cp lib/* ";
 		this.serverCommand = initialCommand + "bftsmart.benchmark.ThroughputLatencyServer ";
 		this.clientCommand = initialCommand + "bftsmart.benchmark.ThroughputLatencyClient ";
@@ -83,8 +86,20 @@ public class ThroughputLatencyBenchmarkStrategy implements IBenchmarkStrategy, I
 		for (int i = 0; i < tokens.length; i++) {
 			clientsPerRound[i] = Integer.parseInt(tokens[i]);
 		}
-		int nRounds = clientsPerRound.length;
+		//Optional list of pipeline windows to evaluate. Each window is measured with every number of clients.
+		//If absent, the pipeline window defined in system.config is used
+		int[] windowsPerRound = {-1};
+		String windows = benchmarkParameters.getProperty("experiment.pipeline_windows");
+		if (windows != null && !windows.trim().isEmpty()) {
+			tokens = windows.trim().split(" ");
+			windowsPerRound = new int[tokens.length];
+			for (int i = 0; i < tokens.length; i++) {
+				windowsPerRound[i] = Integer.parseInt(tokens[i]);
+			}
+		}
+		int nRounds = clientsPerRound.length * windowsPerRound.length;
 		numMaxRealClients = new ArrayList<>(nRounds);
+		pipelineWindows = new ArrayList<>(nRounds);
 		avgLatency = new ArrayList<>(nRounds);
 		latencyDev = new ArrayList<>(nRounds);
 		avgThroughput = new ArrayList<>(nRounds);
@@ -119,10 +134,16 @@ public class ThroughputLatencyBenchmarkStrategy implements IBenchmarkStrategy, I
 			try {
 				lock.lock();
 				logger.info("============ Round {} out of {} ============", round, nRounds);
-				int nClients = clientsPerRound[round - 1];
+				int nClients = clientsPerRound[(round - 1) % clientsPerRound.length];
+				pipelineWindow = windowsPerRound[(round - 1) / clientsPerRound.length];
+				pipelineWindows.add(pipelineWindow);
 				measurementWorkers.clear();
 				storageFileNamePrefix = String.format("f_%d_%d_bytes_%s_round_%d_", f, dataSize,
 						isWrite ? "write" : "read", nClients);
+				if (pipelineWindow > 0) {
+					logger.info("Pipeline window: {}", pipelineWindow);
+					storageFileNamePrefix += String.format("window_%d_", pipelineWindow);
+				}
 
 				//Distribute clients per workers
 				int[] clientsPerWorker = distributeClientsPerWorkers(nClientWorkers, nClients, maxClientsPerProcess);
@@ -149,7 +170,7 @@ public class ThroughputLatencyBenchmarkStrategy implements IBenchmarkStrategy, I
 
 				round++;
 				if (round > nRounds) {
-					storeResumedMeasurements(numMaxRealClients, avgLatency, latencyDev, avgThroughput,
+					storeResumedMeasurements(numMaxRealClients, pipelineWindows, avgLatency, latencyDev, avgThroughput,
 							throughputDev, maxLatency, maxThroughput);
 					break;
 				}
@@ -272,8 +293,13 @@ public class ThroughputLatencyBenchmarkStrategy implements IBenchmarkStrategy, I
 		measurementWorkers.put(serverWorkers[0].getWorkerId(), serverWorkers[0]);
 		if (measureResources)
 			measurementWorkers.put(serverWorkers[1].getWorkerId(), serverWorkers[1]);
+		String roundServerCommand = serverCommand;
+		if (pipelineWindow > 0) {
+			roundServerCommand = initialCommand + "-Dsystem.totalordermulticast.pipeline_window=" + pipelineWindow
+					+ " bftsmart.benchmark.ThroughputLatencyServer ";
+		}
 		for (int i = 0; i < serverWorkers.length; i++) {
-			String command = serverCommand + i + " " + dataSize;
+			String command = roundServerCommand + i + " " + dataSize;
 			int nCommands = measureResources && i < 2 ? 2 : 1;
 			ProcessInformation[] commands = new ProcessInformation[nCommands];
 			commands[0] = new ProcessInformation(command, ".");
@@ -392,23 +418,25 @@ public class ThroughputLatencyBenchmarkStrategy implements IBenchmarkStrategy, I
 		}
 	}
 
-	private void storeResumedMeasurements(ArrayList<Integer> numMaxRealClients, ArrayList<Double> avgLatency, ArrayList<Double> latencyDev,
+	private void storeResumedMeasurements(ArrayList<Integer> numMaxRealClients, ArrayList<Integer> pipelineWindows,
+										  ArrayList<Double> avgLatency, ArrayList<Double> latencyDev,
 										  ArrayList<Double> avgThroughput, ArrayList<Double> throughputDev, ArrayList<Double> maxLatency,
 										  ArrayList<Double> maxThroughput) {
 		String fileName = "measurements_f_" + f + "_"  + dataSize + "_bytes_" + (isWrite ? "write" : "read") +".csv";
 		try (BufferedWriter resultFile = new BufferedWriter(new OutputStreamWriter(
 				Files.newOutputStream(Paths.get(fileName))))) {
-			resultFile.write("clients(#),avgLatency(ns),latencyDev(ns),avgThroughput(ops/s)," +
+			resultFile.write("clients(#),pipelineWindow(#),avgLatency(ns),latencyDev(ns),avgThroughput(ops/s)," +
 					"throughputDev(ops/s),maxLatency(ns),maxThroughput(ops/s)\n");
 			for (int i = 0; i < numMaxRealClients.size(); i++) {
 				int clients = numMaxRealClients.get(i);
+				int window = pipelineWindows.get(i);
 				double aLat = avgLatency.get(i);
 				double dLat = latencyDev.get(i);
 				double aThr = avgThroughput.get(i);
 				double dThr = throughputDev.get(i);
 				double mLat = maxLatency.get(i);
 				double mThr = maxThroughput.get(i);
-				resultFile.write(String.format("%d,%f,%f,%f,%f,%f,%f\n", clients, aLat, dLat, aThr, dThr, mLat, mThr));
+				resultFile.write(String.format("%d,%d,%f,%f,%f,%f,%f,%f\n", clients, window, aLat, dLat, aThr, dThr, mLat, mThr));
 			}
 			resultFile.flush();
 		} catch (IOException e) {
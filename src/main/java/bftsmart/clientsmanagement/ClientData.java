@@ -18,6 +18,7 @@ package bftsmart.clientsmanagement;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -46,6 +47,16 @@ public class ClientData {
     private int lastMessageDelivered = -1;
 
     private RequestList pendingRequests = new RequestList();
+    //pending requests that were not proposed yet by this replica, in arrival order
+    private ArrayDeque<TOMMessage> unproposedRequests = new ArrayDeque<>();
+    //total serialized size of the unproposed requests
+    private long unproposedBytes = 0;
+    //true while this client is in the ready queue of the ClientsManager (guarded by clientLock)
+    boolean ready = false;
+    //sizes of the request lists last added to the counters of the ClientsManager (guarded by clientLock)
+    int accountedPending = 0;
+    int accountedUnproposed = 0;
+    long accountedBytes = 0;
     //anb: new code to deal with client requests that arrive after their execution
     private RequestList orderedRequests = new RequestList(MAX_SIZE_ORDERED_REQUESTS);
     private RequestList replyStore = new RequestList(MAX_SIZE_ORDERED_REQUESTS);
@@ -88,6 +99,79 @@ public class ClientData {
         return pendingRequests;
     }
 
+    /**
+     * Pending requests of this client that were not proposed yet. Must be
+     * accessed while holding clientLock, and only modified through the
+     * methods of this class, which keep track of their size.
+     *
+     * @return the queue of unproposed requests
+     */
+    public ArrayDeque<TOMMessage> getUnproposedRequests() {
+        return unproposedRequests;
+    }
+
+    /**
+     * @return the total serialized size of the requests not proposed yet
+     */
+    public long getUnproposedBytes() {
+        return unproposedBytes;
+    }
+
+    /**
+     * Adds a request to the end of the unproposed requests. Must be called
+     * while holding clientLock.
+     *
+     * @param request the request to propose
+     */
+    public void addUnproposedRequest(TOMMessage request) {
+        unproposedRequests.addLast(request);
+        unproposedBytes += sizeOf(request);
+    }
+
+    /**
+     * Removes the oldest request of this client that was not proposed yet.
+     * Must be called while holding clientLock.
+     *
+     * @return the removed request, or null if there is none
+     */
+    public TOMMessage pollUnproposedRequest() {
+        TOMMessage request = unproposedRequests.pollFirst();
+        if (request != null) {
+            unproposedBytes -= sizeOf(request);
+        }
+        return request;
+    }
+
+    public void clearUnproposedRequests() {
+        unproposedRequests.clear();
+        unproposedBytes = 0;
+    }
+
+    private void removeUnproposedRequest(TOMMessage request) {
+        if (unproposedRequests.remove(request)) {
+            unproposedBytes -= sizeOf(request);
+        }
+    }
+
+    private static int sizeOf(TOMMessage request) {
+        return request.serializedMessage != null ? request.serializedMessage.length : 0;
+    }
+
+    /**
+     * Retrieves (without removing it) the oldest request of this client that
+     * was not proposed yet. Must be called while holding clientLock.
+     *
+     * @return the next request to propose, or null if there is none
+     */
+    public TOMMessage peekUnproposedRequest() {
+        TOMMessage request = unproposedRequests.peekFirst();
+        while (request != null && request.alreadyProposed) {
+            pollUnproposedRequest();
+            request = unproposedRequests.peekFirst();
+        }
+        return request;
+    }
+
     public RequestList getOrderedRequests() {
         return orderedRequests;
     }
@@ -129,6 +213,7 @@ public class ClientData {
 
     public boolean removeOrderedRequest(TOMMessage request) {
         if(pendingRequests.remove(request)) {
+            removeUnproposedRequest(request);
             //anb: new code to deal with client requests that arrive after their execution
             orderedRequests.addLast(request);
             return true;
@@ -139,10 +224,18 @@ public class ClientData {
     public boolean removeRequest(TOMMessage request) {
 	    lastMessageDelivered = request.getSequence();
 	    boolean result = pendingRequests.remove(request);
+	    removeUnproposedRequest(request);
         //anb: new code to deal with client requests that arrive after their execution
         orderedRequests.addLast(request);
 
         pendingRequests.removeIf(msg -> msg.getSequence() < request.getSequence());
+        for (Iterator<TOMMessage> it = unproposedRequests.iterator(); it.hasNext(); ) {
+            TOMMessage msg = it.next();
+            if (msg.getSequence() < request.getSequence()) {
+                it.remove();
+                unproposedBytes -= sizeOf(msg);
+            }
+        }
     	return result;
     }
 
@@ -15,11 +15,13 @@ limitations under the License.
 */
 package bftsmart.clientsmanagement;
 
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import bftsmart.communication.ServerCommunicationSystem;
+import bftsmart.metrics.Metrics;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.leaderchange.RequestsTimer;
@@ -28,10 +30,8 @@ import bftsmart.tom.util.TOMUtil;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Signature;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,7 +45,7 @@ public class ClientsManager {
 
     private ServerViewController controller;
     private RequestsTimer timer;
-    private HashMap<Integer, ClientData> clientsData = new HashMap<Integer, ClientData>();
+    private ClientsTable clientsData = new ClientsTable();
     private RequestVerifier verifier;
     private ServerCommunicationSystem cs;
     
@@ -54,9 +54,24 @@ public class ClientsManager {
     private byte[] benchMsg = null;
     private byte[] benchSig = null;
     private HashMap<String,Signature> benchEngines = new HashMap<>();
+
+    //requests whose signature was already verified (only used if useSignatures == 1)
+    private VerifiedSignatureCache signatureCache = null;
     
+    //only serializes the operations over all clients (clear and reply store transfer); the
+    //clients table and the data of each client have their own locks
     private ReentrantLock clientsLock = new ReentrantLock();
 
+    //clients that (may) have requests not proposed yet, served in round-robin
+    //when assembling batches. A client is in this queue iff its 'ready' flag is set
+    private ConcurrentLinkedDeque<ClientData> readyClients = new ConcurrentLinkedDeque<>();
+
+    //number of pending requests, and number and size of the ones not proposed yet, over all
+    //clients. Kept up to date as requests come and go, so they are read without visiting the clients
+    private AtomicInteger pendingCount = new AtomicInteger();
+    private AtomicInteger unproposedCount = new AtomicInteger();
+    private AtomicLong unproposedBytes = new AtomicLong();
+
     private long startTime = -1;
 
     public ClientsManager(ServerViewController controller, RequestsTimer timer, RequestVerifier verifier, ServerCommunicationSystem cs) {
@@ -69,188 +84,173 @@ public class ClientsManager {
             benchMsg = new byte []{3,5,6,7,4,3,5,6,4,7,4,1,7,7,5,4,3,1,4,85,7,5,7,3};
             benchSig = TOMUtil.signMessage(controller.getStaticConf().getPrivateKey(), benchMsg);            
         }
+        if (controller.getStaticConf().getUseSignatures() == 1) {
+            signatureCache = new VerifiedSignatureCache(controller.getStaticConf().getVerifiedSignaturesCacheSize());
+        }
         startTime = System.currentTimeMillis() / 1000L ;
+
+        Metrics.registerGauge("pendingRequests", pendingCount::get);
+        Metrics.registerGauge("unproposedRequests", unproposedCount::get);
     }
 
     /**
-     * We are assuming that no more than one thread will access
-     * the same clientData during creation.
-     *
+     * Gets the data of a client, creating it on its first request. Known
+     * clients are looked up without any lock, and new clients only lock the
+     * shard of the clients table they fall in, so the requests of different
+     * clients are admitted in parallel.
      *
      * @param clientId
      * @return the ClientData stored on the manager
      */
     public ClientData getClientData(int clientId) {
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/
-        ClientData clientData = clientsData.get(clientId);
-
-        if (clientData == null) {
-            logger.debug("Creating new client data, client id=" + clientId);
-
-            //******* EDUARDO BEGIN **************//
-            clientData = new ClientData(clientId,
-                    (controller.getStaticConf().getUseSignatures() == 1)
-                    ? controller.getStaticConf().getPublicKey(clientId)
-                    : null);
-            //******* EDUARDO END **************//
-            clientsData.put(clientId, clientData);
-        }
+        return clientsData.getOrCreate(clientId, this::newClientData);
+    }
 
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
+    private ClientData newClientData(int clientId) {
+        logger.debug("Creating new client data, client id=" + clientId);
+
+        //******* EDUARDO BEGIN **************//
+        return new ClientData(clientId,
+                (controller.getStaticConf().getUseSignatures() == 1)
+                ? controller.getStaticConf().getPublicKey(clientId)
+                : null);
+        //******* EDUARDO END **************//
+    }
 
-        return clientData;
+    /**
+     * Adds to the global counters the change in the requests of a client
+     * since they were last accounted.
+     * Caller must call lock() and unlock() on clientData.clientLock
+     *
+     * @param clientData the clientData associated with the client
+     */
+    private void updateCounters(ClientData clientData) {
+        int pending = clientData.getPendingRequests().size();
+        int unproposed = clientData.getUnproposedRequests().size();
+        long bytes = clientData.getUnproposedBytes();
+
+        if (pending != clientData.accountedPending) {
+            pendingCount.addAndGet(pending - clientData.accountedPending);
+            clientData.accountedPending = pending;
+        }
+        if (unproposed != clientData.accountedUnproposed) {
+            unproposedCount.addAndGet(unproposed - clientData.accountedUnproposed);
+            clientData.accountedUnproposed = unproposed;
+        }
+        if (bytes != clientData.accountedBytes) {
+            unproposedBytes.addAndGet(bytes - clientData.accountedBytes);
+            clientData.accountedBytes = bytes;
+        }
     }
 
     /**
      * Get pending requests in a fair way (one request from each client
-     * queue until the max number of requests is obtained).
+     * queue until the max number of requests is obtained). Clients with
+     * requests not proposed yet are kept in a ready queue that is served
+     * in round-robin, so the cost of this method is proportional to the
+     * size of the batch and not to the number of clients. The global
+     * clients lock is not used.
      *
      * @return the set of all pending requests of this system
      */
     public RequestList getPendingRequests() {
         RequestList allReq = new RequestList();
         long allReqSizeInBytes = 0;
-        boolean allReqSizeInBytesExceeded = false;
-        
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/
-        
-        List<Entry<Integer, ClientData>> clientsEntryList = new ArrayList<>(clientsData.entrySet().size());
-        clientsEntryList.addAll(clientsData.entrySet());
-        
-        if (controller.getStaticConf().getFairBatch()) // ensure fairness
-            Collections.shuffle(clientsEntryList);
+        int maxBatchSize = controller.getStaticConf().getMaxBatchSize();
+        int maxBatchSizeInBytes = controller.getStaticConf().getMaxBatchSizeInBytes();
 
-        logger.debug("Number of active clients: {}", clientsEntryList.size());
-        
-        for (int i = 0; true; i++) {
-                        
-            Iterator<Entry<Integer, ClientData>> it = clientsEntryList.iterator();
-            int noMoreMessages = 0;
-            
-            logger.debug("Fetching requests with internal index {}", i);
-            
-            while (it.hasNext()
-                    && allReq.size() < controller.getStaticConf().getMaxBatchSize()
-                    && noMoreMessages < clientsEntryList.size()) {
+        while (allReq.size() < maxBatchSize) {
 
-                ClientData clientData = it.next().getValue();
-                RequestList clientPendingRequests = clientData.getPendingRequests();
+            ClientData clientData = readyClients.pollFirst();
 
-                clientData.clientLock.lock();
+            if (clientData == null) {
+                //no more clients with requests to propose
+                break;
+            }
 
-                logger.debug("Number of pending requests for client {}: {}.", clientData.getClientId(), clientPendingRequests.size());
+            boolean allReqSizeInBytesExceeded = false;
 
-                /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
-                TOMMessage request = (clientPendingRequests.size() > i) ? clientPendingRequests.get(i) : null;
+            clientData.clientLock.lock();
+            /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+            TOMMessage request = clientData.peekUnproposedRequest();
 
-                /******* END CLIENTDATA CRITICAL SECTION ******/
-                clientData.clientLock.unlock();
+            if (request != null) {
+                if (allReqSizeInBytes + request.serializedMessage.length <= maxBatchSizeInBytes) {
 
-                if (request != null) {
-                    if(!request.alreadyProposed) {
-                        if(allReqSizeInBytes + request.serializedMessage.length <= controller.getStaticConf().getMaxBatchSizeInBytes()) {
+                    logger.debug("Selected request with sequence number {} from client {}", request.getSequence(), request.getSender());
 
-                            logger.debug("Selected request with sequence number {} from client {}", request.getSequence(), request.getSender());
+                    clientData.pollUnproposedRequest();
+                    request.alreadyProposed = true;
+                    allReq.addLast(request);
+                    allReqSizeInBytes += request.serializedMessage.length;
+                } else {
+                    allReqSizeInBytesExceeded = true;
+                }
+            }
 
-                            //this client have pending message
-                            request.alreadyProposed = true;
-                            allReq.addLast(request);
-                            allReqSizeInBytes += request.serializedMessage.length;
-                        } else {
-                            allReqSizeInBytesExceeded = true;
-                        }
-                    }
+            boolean hasMore = !clientData.getUnproposedRequests().isEmpty();
+            if (!hasMore) {
+                clientData.ready = false;
+            }
+            updateCounters(clientData);
+            /******* END CLIENTDATA CRITICAL SECTION ******/
+            clientData.clientLock.unlock();
+
+            if (hasMore) {
+                //the client is served again after all other ready clients (or first
+                //in the next batch, if its request did not fit in this one)
+                if (allReqSizeInBytesExceeded) {
+                    readyClients.offerFirst(clientData);
                 } else {
-                    //this client don't have more pending requests
-                    noMoreMessages++;
+                    readyClients.offerLast(clientData);
                 }
             }
-            
-            if(allReq.size() == controller.getStaticConf().getMaxBatchSize() ||
-                    noMoreMessages == clientsEntryList.size() ||
-                    allReqSizeInBytesExceeded) {
-                
+
+            if (allReqSizeInBytesExceeded) {
                 break;
             }
         }
-        
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
+
+        logger.debug("Selected {} requests for the next batch", allReq.size());
+
         return allReq;
     }
 
     /**
-     * We've implemented some protection for individual client
-     * data, but the clients table can change during the operation.
+     * Adds a request to the unproposed requests of the client and puts the
+     * client in the ready queue, if it is not already there.
+     * Caller must call lock() and unlock() on clientData.clientLock
      *
-     * @return true if there are some pending requests and false otherwise
+     * @param clientData the clientData associated with the client
+     * @param request the request to propose
      */
-    public boolean havePendingRequests() {
-        boolean havePending = false;
-
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/        
-        
-        Iterator<Entry<Integer, ClientData>> it = clientsData.entrySet().iterator();
-
-        while (it.hasNext() && !havePending) {
-            ClientData clientData = it.next().getValue();
-            
-            clientData.clientLock.lock();
-            RequestList reqs = clientData.getPendingRequests();
-            if (!reqs.isEmpty()) {
-                for(TOMMessage msg:reqs) {
-                    if(!msg.alreadyProposed) {
-                        havePending = true;
-                        break;
-                    }
-                }
-            }
-            clientData.clientLock.unlock();
+    private void addUnproposedRequest(ClientData clientData, TOMMessage request) {
+        clientData.addUnproposedRequest(request);
+        if (!clientData.ready) {
+            clientData.ready = true;
+            readyClients.offerLast(clientData);
         }
+    }
 
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        return havePending;
+    /**
+     * Checks if there are requests not proposed yet. The answer comes from
+     * counters kept up to date as requests arrive, are proposed and are
+     * ordered, so no client is visited and no lock is taken.
+     *
+     * @return true if there are some pending requests and false otherwise
+     */
+    public boolean havePendingRequests() {
+        return unproposedCount.get() > 0;
     }
-    
+
     /**
-     * Retrieves the number of pending requests and their sizes
-     * and checks if there are enough to fill the next batch completely.
+     * Checks if there are enough requests not proposed yet to fill the
+     * next batch completely, in number or in size.
      * @return true if there are enough requests and false otherwise
      */
     public boolean isNextBatchReady() {
-        int count = 0;
-        long size = 0;
-
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/        
-        
-        Iterator<Entry<Integer, ClientData>> it = clientsData.entrySet().iterator();
-
-        while (it.hasNext()) {
-            ClientData clientData = it.next().getValue();
-            
-            clientData.clientLock.lock();
-            RequestList reqs = clientData.getPendingRequests();
-            if (!reqs.isEmpty()) {
-                for(TOMMessage msg:reqs) {
-                    if(!msg.alreadyProposed) {
-                        count++;
-                        size += msg.serializedMessage.length;
-                    }
-                }
-            }
-            clientData.clientLock.unlock();
-        }
-
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        return count >= controller.getStaticConf().getMaxBatchSize()
-                || size >= controller.getStaticConf().getMaxBatchSizeInBytes();
+        return unproposedCount.get() >= controller.getStaticConf().getMaxBatchSize()
+                || unproposedBytes.get() >= controller.getStaticConf().getMaxBatchSizeInBytes();
     }
 
     /**
@@ -282,6 +282,29 @@ public class ClientsManager {
         return pendingMessage;
     }
 
+    /**
+     * Get a pending request of a client, provided that its serialized
+     * form has the given digest.
+     *
+     * @param clientId the client
+     * @param sequence the sequence number of the request
+     * @param digest the digest of the serialized request
+     * @return the pending request, or null
+     */
+    public TOMMessage getPending(int clientId, int sequence, byte[] digest) {
+        ClientData clientData = getClientData(clientId);
+
+        clientData.clientLock.lock();
+        /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+        TOMMessage pendingMessage = clientData.getPendingRequests().getBySequence(sequence);
+
+        /******* END CLIENTDATA CRITICAL SECTION ******/
+        clientData.clientLock.unlock();
+
+        return pendingMessage != null && Arrays.equals(TOMUtil.computeRequestDigest(pendingMessage), digest)
+                ? pendingMessage : null;
+    }
+
     public boolean requestReceived(TOMMessage request, boolean fromClient) {
         return requestReceived(request, fromClient, null);
     }
@@ -392,8 +415,8 @@ public class ClientsManager {
             //it is a valid new message and I have to verify it's signature
             if (isValid &&
                     ((engine != null && benchMsg != null && benchSig != null && TOMUtil.verifySigForBenchmark(engine, benchMsg, benchSig)) 
-                            || (((!request.signed) || clientData.verifySignature(request.serializedMessage, request.serializedMessageSignature)) // message is either not signed or if it is signed the signature is valid
-                                    && (controller.getStaticConf().getUseSignatures() != 1 || request.signed || !fromClient)))) { // additionally, unsigned messages from the client are not allowed when useSignatures == 1. Forwarded and proposed requests do not have 'signed' set to true.
+                            || (((!request.signed) || verifySignature(clientData, request)) // message is either not signed or if it is signed the signature is valid
+                                    && (controller.getStaticConf().getUseSignatures() != 1 || request.signed || !fromClient)))) { // additionally, unsigned messages from the client are not allowed when useSignatures == 1. Forwarded requests do not have 'signed' set to true; proposed requests have it set by the BatchReader when they carry a signature, which is then verified above.
 
                 logger.debug("Message from client {} is valid", clientData.getClientId());
 
@@ -402,6 +425,7 @@ public class ClientsManager {
 
                 request.recvFromClient = fromClient;
                 clientData.getPendingRequests().add(request); 
+                addUnproposedRequest(clientData, request);
                 clientData.setLastMessageReceived(request.getSequence());
                 clientData.setLastMessageReceivedTime(request.receptionTime);
 
@@ -446,13 +470,47 @@ public class ClientsManager {
             }
         }
 
+        updateCounters(clientData);
+
         /******* END CLIENTDATA CRITICAL SECTION ******/
         
         clientData.clientLock.unlock();
 
+        Metrics.recordSince(Metrics.Stage.RECEIVE, receptionTime);
+
         return accounted;
     }
 
+    /**
+     * Verifies the signature of a request, unless it was already verified (e.g., by the
+     * RequestVerificationStage, or when the same request was received from the client).
+     * Caller must call lock() and unlock() on clientData.clientLock
+     */
+    private boolean verifySignature(ClientData clientData, TOMMessage request) {
+        if (signatureCache == null) {
+            return clientData.verifySignature(request.serializedMessage, request.serializedMessageSignature);
+        }
+        byte[] digest = signatureCache.digest(request);
+        if (signatureCache.contains(digest)) {
+            return true;
+        }
+        long start = System.nanoTime();
+        boolean valid = clientData.verifySignature(request.serializedMessage, request.serializedMessageSignature);
+        Metrics.recordSince(Metrics.Stage.VERIFY, start);
+        if (valid) {
+            signatureCache.add(digest);
+        }
+        return valid;
+    }
+
+    /**
+     * @return the digests of the requests whose signature was verified, or null if
+     * requests are not signed
+     */
+    public VerifiedSignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
     /**
      * Caller must call lock() and unlock() on clientData.clientLock
      * @param clientData the clientData associated with the client
@@ -466,6 +524,7 @@ public class ClientsManager {
 	        }
 	    }
         clientData.getPendingRequests().clear();
+        clientData.clearUnproposedRequests();
 	}
 
     /**
@@ -474,13 +533,11 @@ public class ClientsManager {
      * @param requests the array of requests to account as ordered
      */
     public void requestsOrdered(TOMMessage[] requests) {
-        clientsLock.lock();
         logger.debug("Updating client manager");
         for (TOMMessage request : requests) {
             requestOrdered(request);
         }
         logger.debug("Finished updating client manager");
-        clientsLock.unlock();
     }
 
     /**
@@ -490,12 +547,10 @@ public class ClientsManager {
      */
     public void requestsExecuted(TOMMessage[] requests) {
         logger.debug("Requests executed()");
-        clientsLock.lock();
         for (TOMMessage request : requests) {
             requestExecuted(request);
         }
         logger.debug("Finished updating client manager");
-        clientsLock.unlock();
     }
 
     /**
@@ -538,6 +593,7 @@ public class ClientsManager {
             //-> only set the number if it is the same session
             clientData.setLastMessageDelivered(request.getSequence());
         }
+        updateCounters(clientData);
 
         /******* END CLIENTDATA CRITICAL SECTION ******/
         clientData.clientLock.unlock();
@@ -550,6 +606,10 @@ public class ClientsManager {
     public void clear() {
         clientsLock.lock();
         clientsData.clear();
+        readyClients.clear();
+        pendingCount.set(0);
+        unproposedCount.set(0);
+        unproposedBytes.set(0);
         clientsLock.unlock();
         logger.info("ClientsManager cleared.");
 
@@ -571,16 +631,13 @@ public class ClientsManager {
         this.clientsLock.lock();
         TreeMap<Integer, TOMMessage> lastReplies = new TreeMap<>();
         if (controller.getStaticConf().useReadOnlyRequests()) {
-            for (Integer client : this.clientsData.keySet()) {
-                ClientData clientData = this.clientsData.get(client);
-                if (clientData != null) {
-                    clientData.clientLock.lock();
-                    if (clientData.getLastReply() != null) {
-                        lastReplies.put(client, clientData.getLastReply());
-                    }
-                    clientData.clientLock.unlock();
+            clientsData.forEach(clientData -> {
+                clientData.clientLock.lock();
+                if (clientData.getLastReply() != null) {
+                    lastReplies.put(clientData.getClientId(), clientData.getLastReply());
                 }
-            }
+                clientData.clientLock.unlock();
+            });
         }
         this.clientsLock.unlock();
         logger.debug("getLastReplyOfEachClient() SIZE " + lastReplies.size());
@@ -627,14 +684,13 @@ public class ClientsManager {
     public TreeMap<Integer, RequestList> getLastRepliesOfEachClient() {
         this.clientsLock.lock();
         TreeMap<Integer, RequestList> lastReplies = new TreeMap<>();
-        for (Integer client: this.clientsData.keySet()) {
-            ClientData clientData = this.clientsData.get(client);
-            if (clientData != null && clientData.getReplyStore() != null) {
+        clientsData.forEach(clientData -> {
+            if (clientData.getReplyStore() != null) {
                 clientData.clientLock.lock();
-                lastReplies.put(client, clientData.getReplyStore());
+                lastReplies.put(clientData.getClientId(), clientData.getReplyStore());
                 clientData.clientLock.unlock();
             }
-        }
+        });
         this.clientsLock.unlock();
 
         return lastReplies;
@@ -0,0 +1,167 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Table of the ClientData of each client, keyed by the (primitive) client id.
+ * The table is split in shards, each one an open-addressing hash table with
+ * its own lock. Lookups do not take any lock, so the requests of different
+ * clients never contend on the table; the lock of a shard is only taken to
+ * add a client to it. Clients are never removed individually (only by
+ * {@link #clear()}), which keeps linear probing lock-free for readers.
+ */
+final class ClientsTable {
+
+    private static final int SHARD_BITS = 6;
+    private static final int SHARDS = 1 << SHARD_BITS;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+        //replaced (never modified in place) when resized, so readers probe a consistent table
+        volatile AtomicReferenceArray<ClientData> table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        volatile int size = 0;
+    }
+
+    private final Shard[] shards = new Shard[SHARDS];
+
+    ClientsTable() {
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    private static int hash(int clientId) {
+        return clientId * 0x9E3779B9;
+    }
+
+    private Shard shardFor(int hash) {
+        return shards[hash >>> (32 - SHARD_BITS)];
+    }
+
+    private static ClientData find(AtomicReferenceArray<ClientData> table, int hash, int clientId) {
+        int mask = table.length() - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            ClientData clientData = table.get(i);
+            if (clientData == null || clientData.getClientId() == clientId) {
+                return clientData;
+            }
+        }
+    }
+
+    private static void insert(AtomicReferenceArray<ClientData> table, ClientData clientData) {
+        int mask = table.length() - 1;
+        int i = hash(clientData.getClientId()) & mask;
+        while (table.get(i) != null) {
+            i = (i + 1) & mask;
+        }
+        table.set(i, clientData);
+    }
+
+    /**
+     * @param clientId the client id
+     * @return the data of the client, or null if it is not in the table
+     */
+    ClientData get(int clientId) {
+        int hash = hash(clientId);
+        return find(shardFor(hash).table, hash, clientId);
+    }
+
+    /**
+     * Gets the data of a client, adding the one built by the factory if the
+     * client is not in the table yet. The factory is called at most once per
+     * client.
+     *
+     * @param clientId the client id
+     * @param factory creates the data of a new client
+     * @return the data of the client
+     */
+    ClientData getOrCreate(int clientId, IntFunction<ClientData> factory) {
+        int hash = hash(clientId);
+        Shard shard = shardFor(hash);
+        ClientData clientData = find(shard.table, hash, clientId);
+        if (clientData != null) {
+            return clientData;
+        }
+
+        shard.lock.lock();
+        try {
+            AtomicReferenceArray<ClientData> table = shard.table;
+            clientData = find(table, hash, clientId);
+            if (clientData == null) {
+                clientData = factory.apply(clientId);
+                //keep the load factor under 1/2, so probe sequences stay short
+                if ((shard.size + 1) * 2 > table.length()) {
+                    AtomicReferenceArray<ClientData> resized = new AtomicReferenceArray<>(table.length() * 2);
+                    for (int i = 0; i < table.length(); i++) {
+                        ClientData other = table.get(i);
+                        if (other != null) {
+                            insert(resized, other);
+                        }
+                    }
+                    insert(resized, clientData);
+                    shard.table = resized;
+                } else {
+                    insert(table, clientData);
+                }
+                shard.size++;
+            }
+            return clientData;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Applies an action to the data of every client in the table. Clients
+     * added concurrently may or may not be visited.
+     *
+     * @param action the action to apply
+     */
+    void forEach(Consumer<ClientData> action) {
+        for (Shard shard : shards) {
+            AtomicReferenceArray<ClientData> table = shard.table;
+            for (int i = 0; i < table.length(); i++) {
+                ClientData clientData = table.get(i);
+                if (clientData != null) {
+                    action.accept(clientData);
+                }
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size;
+        }
+        return size;
+    }
+
+    void clear() {
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            shard.table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+            shard.size = 0;
+            shard.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.clientsmanagement;
+
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.communication.client.RequestReceiver;
+import bftsmart.metrics.Metrics;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Verifies the signatures of client requests in a pool of threads before handing the
+ * requests to the next receiver (i.e., the TOMLayer), so that the I/O threads and the
+ * ClientsManager do not spend their time in signature verification.
+ *
+ * Requests from the same client are always verified by the same thread, in order to be
+ * delivered in the order they were received (the ClientsManager only accepts requests from
+ * a client in sequence). Each thread has its own Signature engines. Requests with valid
+ * signatures are recorded in the VerifiedSignatureCache, which the ClientsManager checks
+ * before verifying a signature again. Requests with invalid signatures are discarded.
+ *
+ * With system.communication.requestPipeline, all client requests go through this stage,
+ * signed or not. The Netty event loops then only decode the requests, while the admission
+ * of each request in the ClientsManager and its enqueueing for the next batch run on the
+ * thread of its client, so the clients are spread over the cores.
+ */
+public class RequestVerificationStage implements RequestReceiver {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ServerViewController controller;
+    private final RequestReceiver receiver;
+    private final VerifiedSignatureCache cache;
+    private final Verifier[] verifiers;
+
+    /**
+     * Constructor
+     *
+     * @param controller the replica's view controller
+     * @param receiver where to deliver the verified requests
+     * @param cache where to record the verified requests, or null if signatures are not used
+     */
+    public RequestVerificationStage(ServerViewController controller, RequestReceiver receiver,
+                                    VerifiedSignatureCache cache) {
+        this.controller = controller;
+        this.receiver = receiver;
+        this.cache = cache;
+
+        int numVerifiers = controller.getStaticConf().getNumSignatureVerifiers();
+        numVerifiers = numVerifiers > 0 ? numVerifiers : Runtime.getRuntime().availableProcessors();
+        int queueSize = Math.max(1, controller.getStaticConf().getInQueueSize() / numVerifiers);
+
+        this.verifiers = new Verifier[numVerifiers];
+        for (int i = 0; i < numVerifiers; i++) {
+            verifiers[i] = new Verifier(i, queueSize);
+            verifiers[i].start();
+        }
+        logger.info("Processing client requests with {} threads", numVerifiers);
+    }
+
+    @Override
+    public void requestReceived(TOMMessage msg, boolean fromClient) {
+        if (!fromClient) {
+            receiver.requestReceived(msg, fromClient);
+            return;
+        }
+        try {
+            // blocks the I/O thread when the verifiers are behind
+            verifiers[Math.floorMod(msg.getSender(), verifiers.length)].queue.put(msg);
+        } catch (InterruptedException ex) {
+            logger.error("Interrupted while queueing request for verification", ex);
+        }
+    }
+
+    /**
+     * Stops the verifier threads.
+     */
+    public void shutdown() {
+        for (Verifier verifier : verifiers) {
+            verifier.interrupt();
+        }
+    }
+
+    private class Verifier extends Thread {
+
+        private final BlockingQueue<TOMMessage> queue;
+        private final HashMap<Integer, Signature> engines = new HashMap<>(); // by client id
+
+        Verifier(int id, int queueSize) {
+            super("Request Verifier " + id);
+            setDaemon(true);
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                TOMMessage msg;
+                try {
+                    msg = queue.take();
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                try {
+                    if (!msg.signed || verify(msg)) {
+                        receiver.requestReceived(msg, true);
+                    } else {
+                        logger.warn("Discarding request {} from client {} with an invalid signature",
+                                msg.getSequence(), msg.getSender());
+                    }
+                } catch (Exception ex) {
+                    logger.error("Failed to process request from client " + msg.getSender(), ex);
+                }
+            }
+            logger.debug("Request verifier stopped");
+        }
+
+        private boolean verify(TOMMessage msg) throws Exception {
+            byte[] digest = cache != null ? cache.digest(msg) : null;
+            if (digest != null && cache.contains(digest)) {
+                return true; // e.g., a retransmission
+            }
+
+            Signature engine = engines.get(msg.getSender());
+            if (engine == null) {
+                PublicKey key = controller.getStaticConf().getPublicKey(msg.getSender());
+                if (key == null) {
+                    return false;
+                }
+                engine = TOMUtil.getSigEngine();
+                engine.initVerify(key);
+                engines.put(msg.getSender(), engine);
+            }
+
+            long start = System.nanoTime();
+            try {
+                if (TOMUtil.verifySignature(engine, msg.serializedMessage, msg.serializedMessageSignature)) {
+                    if (digest != null) {
+                        cache.add(digest);
+                    }
+                    return true;
+                }
+            } catch (SignatureException ex) {
+                logger.debug("Malformed signature from client " + msg.getSender(), ex);
+            } finally {
+                Metrics.recordSince(Metrics.Stage.VERIFY, start);
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.clientsmanagement;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Remembers the digests of client requests whose signature was already verified, so
+ * that the same request is not verified again when it is received in a PROPOSE or
+ * forwarded by another replica.
+ *
+ * The cache has a fixed number of slots and a digest can only be stored in the slot
+ * given by its first bytes, replacing the previous one. A request that was evicted
+ * is simply verified again.
+ */
+public class VerifiedSignatureCache {
+
+    private final AtomicReferenceArray<byte[]> digests;
+    private final int mask;
+
+    /**
+     * Constructor
+     *
+     * @param size Number of digests kept (rounded up to a power of two)
+     */
+    public VerifiedSignatureCache(int size) {
+        int slots = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.digests = new AtomicReferenceArray<>(slots);
+        this.mask = slots - 1;
+    }
+
+    /**
+     * Computes the key of a request in this cache. The signature of a request covers
+     * its serialized form, hence the digest of the serialized form identifies it.
+     *
+     * @param request the request
+     * @return the digest of the request
+     */
+    public byte[] digest(TOMMessage request) {
+        return TOMUtil.computeRequestDigest(request);
+    }
+
+    /**
+     * @param digest digest of a request (see digest())
+     * @return true if the signature of the request was verified
+     */
+    public boolean contains(byte[] digest) {
+        return digest != null && Arrays.equals(digests.get(slot(digest)), digest);
+    }
+
+    /**
+     * Records that the signature of a request is valid.
+     *
+     * @param digest digest of the request (see digest())
+     */
+    public void add(byte[] digest) {
+        if (digest != null) {
+            digests.set(slot(digest), digest);
+        }
+    }
+
+    private int slot(byte[] digest) {
+        int h = 0;
+        for (int i = 0; i < Math.min(4, digest.length); i++) {
+            h = (h << 8) | (digest[i] & 0xFF);
+        }
+        return h & mask;
+    }
+}
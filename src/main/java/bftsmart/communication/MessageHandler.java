@@ -23,8 +23,10 @@ import bftsmart.consensus.roles.Acceptor;
 import bftsmart.statemanagement.SMMessage;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.ForwardedMessage;
+import bftsmart.tom.core.messages.RequestFetchMessage;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.leaderchange.LCMessage;
+import bftsmart.tom.leaderchange.LeaseMessage;
 import bftsmart.tom.util.TOMUtil;
 
 /**
@@ -101,6 +103,12 @@ public class MessageHandler {
 					TOMMessage request = ((ForwardedMessage) sm).getRequest();
 					tomLayer.requestReceived(request, false);//false -> message was received from a replica -> do not drop it
 
+				} else if (sm instanceof RequestFetchMessage) {
+					tomLayer.getRequestFetcher().deliver((RequestFetchMessage) sm);
+
+				} else if (sm instanceof LeaseMessage) {
+					tomLayer.getLeaseManager().deliver((LeaseMessage) sm);
+
 					/** This is Joao's code, to handle state transfer */
 				} else if (sm instanceof SMMessage) {
 					SMMessage smsg = (SMMessage) sm;
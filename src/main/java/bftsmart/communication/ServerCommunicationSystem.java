@@ -23,8 +23,10 @@ import javax.crypto.SecretKey;
 import bftsmart.communication.client.CommunicationSystemServerSide;
 import bftsmart.communication.client.CommunicationSystemServerSideFactory;
 import bftsmart.communication.client.RequestReceiver;
-import bftsmart.communication.server.ServersCommunicationLayer;
+import bftsmart.communication.server.CommunicationSystemServerToServer;
+import bftsmart.communication.server.CommunicationSystemServerToServerFactory;
 import bftsmart.consensus.roles.Acceptor;
+import bftsmart.metrics.Metrics;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.core.TOMLayer;
@@ -46,7 +48,7 @@ public class ServerCommunicationSystem extends Thread {
     private LinkedBlockingQueue<SystemMessage> inQueue = null;//new LinkedBlockingQueue<SystemMessage>(IN_QUEUE_SIZE);
     protected MessageHandler messageHandler;
     
-    private ServersCommunicationLayer serversConn;
+    private CommunicationSystemServerToServer serversConn;
     private CommunicationSystemServerSide clientsConn;
     private ServerViewController controller;
 
@@ -62,7 +64,10 @@ public class ServerCommunicationSystem extends Thread {
 
         inQueue = new LinkedBlockingQueue<SystemMessage>(controller.getStaticConf().getInQueueSize());
 
-        serversConn = new ServersCommunicationLayer(controller, inQueue, replica);
+        serversConn = CommunicationSystemServerToServerFactory.getCommunicationSystemServerToServer(controller, inQueue, replica);
+
+        Metrics.registerGauge("inQueue", inQueue::size);
+        Metrics.registerGauge("outQueue", serversConn::getOutQueueSize);
 
         //******* EDUARDO BEGIN **************//
             clientsConn = CommunicationSystemServerSideFactory.getCommunicationSystemServerSide(controller);
@@ -146,7 +151,7 @@ public class ServerCommunicationSystem extends Thread {
         }
     }
 
-    public ServersCommunicationLayer getServersConn() {
+    public CommunicationSystemServerToServer getServersConn() {
         return serversConn;
     }
     
@@ -0,0 +1,504 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.reconfiguration.ReconfigureReply;
+import bftsmart.reconfiguration.VMMessage;
+import bftsmart.reconfiguration.views.View;
+import bftsmart.statemanagement.ApplicationState;
+import bftsmart.statemanagement.durability.CSTRequestF1;
+import bftsmart.statemanagement.durability.CSTSMMessage;
+import bftsmart.statemanagement.standard.StandardSMMessage;
+import bftsmart.statemanagement.standard.StateManifest;
+import bftsmart.tom.core.messages.ForwardedMessage;
+import bftsmart.tom.core.messages.RequestFetchMessage;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.leaderchange.LCMessage;
+import bftsmart.tom.leaderchange.LeaseMessage;
+
+/**
+ * Binary codec for the messages exchanged between replicas. Every encoded
+ * message starts with a version byte and a type tag, followed by the fields of
+ * the message written by hand (no class descriptors). The messages exchanged in
+ * the normal case (consensus, leader change and forwarded requests) are fully
+ * encoded by this class; objects supplied by other layers (application states,
+ * views, reconfiguration replies) are still carried as Java-serialized blobs.
+ * Unknown message types fall back to Java serialization of the whole message.
+ *
+ * Frames written by the old ObjectOutputStream path are still accepted by
+ * {@link #decode(ByteBuffer)}, so replicas running different versions can talk
+ * to each other while they are upgraded.
+ */
+public final class SystemMessageCodec {
+
+    /** Version of the wire format produced by this codec */
+    public static final byte VERSION = 1;
+
+    // Type tags
+    public static final byte JAVA = 0;
+    public static final byte CONSENSUS = 1;
+    public static final byte LEADER_CHANGE = 2;
+    public static final byte FORWARDED = 3;
+    public static final byte STANDARD_SM = 4;
+    public static final byte CST_SM = 5;
+    public static final byte VIEW_MANAGER = 6;
+    public static final byte REQUEST_FETCH = 7;
+    public static final byte LEASE = 8;
+
+    // Proof encodings of consensus messages
+    private static final byte PROOF_NONE = 0;
+    private static final byte PROOF_SIGNATURE = 1;
+    private static final byte PROOF_MESSAGES = 2;
+    private static final byte PROOF_OBJECT = 3;
+
+    // First two bytes of a Java serialization stream
+    private static final byte STREAM_MAGIC_0 = (byte) 0xAC;
+    private static final byte STREAM_MAGIC_1 = (byte) 0xED;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    // Scratch buffers that grew beyond this size are not kept between invocations
+    private static final int MAX_CACHED_BUFFER_SIZE = 64 * 1024;
+
+    // Scratch buffer reused by each thread that calls encode(SystemMessage)
+    private static final ThreadLocal<ScratchStream> buffers = new ThreadLocal<ScratchStream>() {
+        @Override
+        protected ScratchStream initialValue() {
+            return new ScratchStream(INITIAL_BUFFER_SIZE);
+        }
+    };
+
+    private SystemMessageCodec() {
+    }
+
+    /**
+     * Encodes a message into a new byte array, using a per-thread scratch buffer
+     * that is kept between invocations (unless it had to grow past a few tens of KB).
+     *
+     * @param sm Message to encode
+     * @return The encoded message
+     * @throws IOException If some object carried by the message cannot be serialized
+     */
+    public static byte[] encode(SystemMessage sm) throws IOException {
+        ScratchStream buffer = buffers.get();
+        buffer.reset();
+        try {
+            encode(sm, buffer);
+            return buffer.toByteArray();
+        } finally {
+            if (buffer.capacity() > MAX_CACHED_BUFFER_SIZE) {
+                buffers.remove();
+            }
+        }
+    }
+
+    /**
+     * Encodes a message into the given stream. Every field is written exactly once,
+     * so the stream should be able to grow (e.g., a ByteArrayOutputStream or a
+     * Netty ByteBufOutputStream).
+     *
+     * @param sm Message to encode
+     * @param os Stream into which the message is written
+     * @throws IOException If some object carried by the message cannot be serialized,
+     * or if the stream cannot be written
+     */
+    public static void encode(SystemMessage sm, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        writeMessage(sm, out);
+        out.flush();
+    }
+
+    private static void writeMessage(SystemMessage sm, DataOutputStream out) throws IOException {
+        out.writeByte(VERSION);
+
+        if (sm instanceof ConsensusMessage) {
+            out.writeByte(CONSENSUS);
+            writeConsensus((ConsensusMessage) sm, out);
+
+        } else if (sm instanceof LCMessage) {
+            LCMessage lc = (LCMessage) sm;
+            out.writeByte(LEADER_CHANGE);
+            out.writeInt(lc.getSender());
+            out.writeInt(lc.getType());
+            out.writeInt(lc.getReg());
+            writeBytes(lc.getPayload(), out);
+
+        } else if (sm instanceof ForwardedMessage) {
+            TOMMessage request = ((ForwardedMessage) sm).getRequest();
+            out.writeByte(FORWARDED);
+            out.writeInt(sm.getSender());
+            writeBytes(request.serializedMessage, out);
+            writeBytes(request.signed ? request.serializedMessageSignature : null, out);
+
+        } else if (sm instanceof RequestFetchMessage) {
+            RequestFetchMessage fetch = (RequestFetchMessage) sm;
+            out.writeByte(REQUEST_FETCH);
+            out.writeInt(fetch.getSender());
+            out.writeInt(fetch.getType());
+            out.writeInt(fetch.getCID());
+            out.writeInt(fetch.getEpoch());
+            if (fetch.getType() == RequestFetchMessage.QUERY) {
+                out.writeInt(fetch.getSenders().length);
+                for (int i = 0; i < fetch.getSenders().length; i++) {
+                    out.writeInt(fetch.getSenders()[i]);
+                    out.writeInt(fetch.getSequences()[i]);
+                    writeBytes(fetch.getDigests()[i], out);
+                }
+            } else {
+                out.writeInt(fetch.getRequests().length);
+                for (TOMMessage request : fetch.getRequests()) {
+                    writeBytes(request.serializedMessage, out);
+                    writeBytes(request.serializedMessageSignature, out);
+                }
+            }
+
+        } else if (sm instanceof LeaseMessage) {
+            LeaseMessage lease = (LeaseMessage) sm;
+            out.writeByte(LEASE);
+            out.writeInt(lease.getSender());
+            out.writeInt(lease.getType());
+            out.writeInt(lease.getRegency());
+            out.writeInt(lease.getRound());
+            out.writeInt(lease.getCID());
+
+        } else if (sm instanceof StandardSMMessage) {
+            StandardSMMessage smsg = (StandardSMMessage) sm;
+            out.writeByte(STANDARD_SM);
+            writeSM(smsg.getSender(), smsg.getCID(), smsg.getType(), smsg.getRegency(), smsg.getLeader(), out);
+            out.writeInt(smsg.getReplica());
+            writeObject(smsg.getState(), out);
+            writeObject(smsg.getView(), out);
+            writeObject(smsg.getManifest(), out);
+            out.writeBoolean(smsg.isWholeState());
+
+        } else if (sm instanceof CSTSMMessage) {
+            CSTSMMessage smsg = (CSTSMMessage) sm;
+            out.writeByte(CST_SM);
+            writeSM(smsg.getSender(), smsg.getCID(), smsg.getType(), smsg.getRegency(), smsg.getLeader(), out);
+            writeObject(smsg.getCstConfig(), out);
+            writeObject(smsg.getState(), out);
+            writeObject(smsg.getView(), out);
+
+        } else if (sm instanceof VMMessage) {
+            out.writeByte(VIEW_MANAGER);
+            out.writeInt(sm.getSender());
+            writeObject(((VMMessage) sm).getReply(), out);
+
+        } else {
+            out.writeByte(JAVA);
+            writeObject(sm, out);
+        }
+    }
+
+    /**
+     * Decodes a message previously produced by {@link #encode(SystemMessage)}.
+     *
+     * @param data Encoded message
+     * @return The decoded message
+     * @throws IOException If the data is malformed
+     * @throws ClassNotFoundException If some object carried by the message is of an unknown class
+     */
+    public static SystemMessage decode(byte[] data) throws IOException, ClassNotFoundException {
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Decodes a message from the remaining bytes of the given buffer. Messages
+     * serialized with ObjectOutputStream by older replicas are also accepted.
+     *
+     * @param in Buffer holding the encoded message
+     * @return The decoded message
+     * @throws IOException If the data is malformed
+     * @throws ClassNotFoundException If some object carried by the message is of an unknown class
+     */
+    public static SystemMessage decode(ByteBuffer in) throws IOException, ClassNotFoundException {
+        try {
+            if (in.remaining() > 1 && in.get(in.position()) == STREAM_MAGIC_0
+                    && in.get(in.position() + 1) == STREAM_MAGIC_1) {
+                byte[] data = new byte[in.remaining()];
+                in.get(data);
+                return (SystemMessage) deserialize(data);
+            }
+
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported message version " + version);
+            }
+
+            byte tag = in.get();
+            switch (tag) {
+                case CONSENSUS:
+                    return readConsensus(in, 0);
+
+                case LEADER_CHANGE:
+                    return new LCMessage(in.getInt(), in.getInt(), in.getInt(), readBytes(in));
+
+                case FORWARDED: {
+                    int sender = in.getInt();
+                    byte[] serReq = readBytes(in);
+                    byte[] serReqSign = readBytes(in);
+
+                    TOMMessage request = TOMMessage.bytesToMessage(serReq);
+                    if (request == null) {
+                        throw new IOException("Invalid forwarded request");
+                    }
+                    request.serializedMessage = serReq;
+                    request.serializedMessageSignature = serReqSign;
+                    return new ForwardedMessage(sender, request);
+                }
+
+                case REQUEST_FETCH: {
+                    int sender = in.getInt();
+                    int type = in.getInt();
+                    int cid = in.getInt();
+                    int epoch = in.getInt();
+                    int size = in.getInt();
+                    if (size < 0 || size > in.remaining()) {
+                        throw new IOException("Invalid number of requests " + size);
+                    }
+                    if (type == RequestFetchMessage.QUERY) {
+                        int[] senders = new int[size];
+                        int[] sequences = new int[size];
+                        byte[][] digests = new byte[size][];
+                        for (int i = 0; i < size; i++) {
+                            senders[i] = in.getInt();
+                            sequences[i] = in.getInt();
+                            digests[i] = readBytes(in);
+                        }
+                        return new RequestFetchMessage(sender, cid, epoch, senders, sequences, digests);
+                    }
+                    TOMMessage[] requests = new TOMMessage[size];
+                    for (int i = 0; i < size; i++) {
+                        byte[] serReq = readBytes(in);
+                        byte[] serReqSign = readBytes(in);
+
+                        requests[i] = serReq == null ? null : TOMMessage.bytesToMessage(serReq);
+                        if (requests[i] == null) {
+                            throw new IOException("Invalid fetched request");
+                        }
+                        requests[i].serializedMessage = serReq;
+                        requests[i].serializedMessageSignature = serReqSign;
+                    }
+                    return new RequestFetchMessage(sender, cid, epoch, requests);
+                }
+
+                case LEASE:
+                    return new LeaseMessage(in.getInt(), in.getInt(), in.getInt(), in.getInt(), in.getInt());
+
+                case STANDARD_SM: {
+                    int sender = in.getInt();
+                    int cid = in.getInt();
+                    int type = in.getInt();
+                    int regency = in.getInt();
+                    int leader = in.getInt();
+                    int replica = in.getInt();
+                    ApplicationState state = (ApplicationState) readObject(in);
+                    View view = (View) readObject(in);
+                    StateManifest manifest = (StateManifest) readObject(in);
+                    boolean wholeState = in.get() != 0;
+                    return new StandardSMMessage(sender, cid, type, replica, state, view, regency, leader, manifest,
+                            wholeState);
+                }
+
+                case CST_SM: {
+                    int sender = in.getInt();
+                    int cid = in.getInt();
+                    int type = in.getInt();
+                    int regency = in.getInt();
+                    int leader = in.getInt();
+                    CSTRequestF1 cstConfig = (CSTRequestF1) readObject(in);
+                    ApplicationState state = (ApplicationState) readObject(in);
+                    View view = (View) readObject(in);
+                    return new CSTSMMessage(sender, cid, type, cstConfig, state, view, regency, leader);
+                }
+
+                case VIEW_MANAGER: {
+                    int sender = in.getInt();
+                    return new VMMessage(sender, (ReconfigureReply) readObject(in));
+                }
+
+                case JAVA:
+                    return (SystemMessage) readObject(in);
+
+                default:
+                    throw new IOException("Unknown message type " + tag);
+            }
+        } catch (BufferUnderflowException | ClassCastException ex) {
+            throw new IOException("Malformed message", ex);
+        }
+    }
+
+    private static void writeConsensus(ConsensusMessage cm, DataOutputStream out) throws IOException {
+        out.writeInt(cm.getSender());
+        out.writeInt(cm.getNumber());
+        out.writeInt(cm.getEpoch());
+        out.writeInt(cm.getType());
+        writeBytes(cm.getValue(), out);
+
+        Object proof = cm.getProof();
+        if (proof == null) {
+            out.writeByte(PROOF_NONE);
+        } else if (proof instanceof byte[]) {
+            out.writeByte(PROOF_SIGNATURE);
+            writeBytes((byte[]) proof, out);
+        } else if (proof instanceof HashSet && allConsensusMessages((Set<?>) proof)) {
+            Set<?> proofs = (Set<?>) proof;
+            out.writeByte(PROOF_MESSAGES);
+            out.writeInt(proofs.size());
+            for (Object o : proofs) {
+                writeConsensus((ConsensusMessage) o, out);
+            }
+        } else {
+            out.writeByte(PROOF_OBJECT);
+            writeObject(proof, out);
+        }
+    }
+
+    /**
+     * Reads a consensus message. Its proof may be a set of consensus messages (e.g., the
+     * ACCEPTs proving a forwarded decision), but those can only carry signatures, so the
+     * nesting depth of a message is bounded.
+     */
+    private static ConsensusMessage readConsensus(ByteBuffer in, int depth) throws IOException, ClassNotFoundException {
+        int sender = in.getInt();
+        int number = in.getInt();
+        int epoch = in.getInt();
+        int type = in.getInt();
+        byte[] value = readBytes(in);
+
+        ConsensusMessage cm = new ConsensusMessage(type, number, epoch, sender, value);
+
+        byte proofType = in.get();
+        switch (proofType) {
+            case PROOF_NONE:
+                break;
+            case PROOF_SIGNATURE:
+                cm.setProof(readBytes(in));
+                break;
+            case PROOF_MESSAGES: {
+                if (depth > 0) {
+                    throw new IOException("Nested consensus message proof");
+                }
+                int size = in.getInt();
+                if (size < 0 || size > in.remaining()) {
+                    throw new IOException("Invalid proof size " + size);
+                }
+                HashSet<ConsensusMessage> proofs = new HashSet<>();
+                for (int i = 0; i < size; i++) {
+                    proofs.add(readConsensus(in, depth + 1));
+                }
+                cm.setProof(proofs);
+                break;
+            }
+            case PROOF_OBJECT:
+                cm.setProof(readObject(in));
+                break;
+            default:
+                throw new IOException("Unknown proof type " + proofType);
+        }
+        return cm;
+    }
+
+    private static boolean allConsensusMessages(Set<?> set) {
+        for (Object o : set) {
+            if (!(o instanceof ConsensusMessage)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeSM(int sender, int cid, int type, int regency, int leader, DataOutputStream out) throws IOException {
+        out.writeInt(sender);
+        out.writeInt(cid);
+        out.writeInt(type);
+        out.writeInt(regency);
+        out.writeInt(leader);
+    }
+
+    private static void writeBytes(byte[] bytes, DataOutputStream out) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Invalid field length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static void writeObject(Object o, DataOutputStream out) throws IOException {
+        if (o == null) {
+            writeBytes(null, out);
+        } else {
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+            ObjectOutputStream oOut = new ObjectOutputStream(bOut);
+            oOut.writeObject(o);
+            oOut.flush();
+            out.writeInt(bOut.size());
+            bOut.writeTo(out);
+        }
+    }
+
+    private static Object readObject(ByteBuffer in) throws IOException, ClassNotFoundException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : deserialize(bytes);
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream oIn = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return oIn.readObject();
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream that exposes the size of its backing array.
+     */
+    private static final class ScratchStream extends ByteArrayOutputStream {
+
+        ScratchStream(int size) {
+            super(size);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
@@ -24,6 +24,16 @@ import bftsmart.tom.core.messages.TOMMessage;
  */
 public interface CommunicationSystemServerSide {   
    public void send(int[] targets, TOMMessage sm, boolean serializeClassHeaders);
+   /**
+    * Sends the message like send, but without flushing the connections of the
+    * targets, so that all the messages written to a client until the next
+    * flush reach it in a single write.
+    */
+   public void write(int[] targets, TOMMessage sm);
+   /**
+    * Flushes the messages written to the targets.
+    */
+   public void flush(int[] targets);
    public int[] getClients();
    public void setRequestReceiver(RequestReceiver requestReceiver);
    public void shutdown();
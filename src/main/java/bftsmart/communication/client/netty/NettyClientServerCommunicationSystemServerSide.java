@@ -19,8 +19,11 @@ import bftsmart.communication.client.CommunicationSystemServerSide;
 import bftsmart.communication.client.RequestReceiver;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
-import bftsmart.tom.util.TOMUtil;
+import bftsmart.tom.util.Scheduler;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
 import io.netty.channel.*;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -29,8 +32,6 @@ import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -280,70 +281,104 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 
 	@Override
 	public void send(int[] targets, TOMMessage sm, boolean serializeClassHeaders) {
+		send(targets, sm, serializeClassHeaders, true);
+	}
 
-		// serialize message
-		DataOutputStream dos = null;
+	@Override
+	public void write(int[] targets, TOMMessage sm) {
+		send(targets, sm, false, false);
+	}
 
-		byte[] data = null;
-		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			dos = new DataOutputStream(baos);
-			sm.wExternal(dos);
-			dos.flush();
-			data = baos.toByteArray();
-			sm.serializedMessage = data;
-		} catch (IOException ex) {
-			logger.error("Failed to serialize message.", ex);
+	@Override
+	public void flush(int[] targets) {
+		for (int target : targets) {
+			NettyClientServerSession session = sessionReplicaToClient.get(target);
+			if (session != null) {
+				session.getChannel().flush();
+			}
 		}
+	}
+
+	/**
+	 * Serializes the message once into a pooled buffer holding the whole frame
+	 * (see NettyTOMMessageEncoder), which is shared by the connections of all
+	 * the targets.
+	 */
+	private ByteBuf encode(TOMMessage sm) {
+		// sender, view, session, sequence, operation, reply server and content length, plus the type
+		int msgLength = 7 * Integer.BYTES + 1 + (sm.getContent() != null ? sm.getContent().length : 0);
 
 		// replies are not signed in the current JBP version
 		sm.signed = false;
-		// produce signature if necessary (never in the current version)
-		if (sm.signed) {
-			sm.serializedMessageSignature = TOMUtil.signMessage(privKey, data);
+
+		ByteBuf frame = ByteBufAllocator.DEFAULT.buffer(3 * Integer.BYTES + msgLength);
+		try {
+			frame.writeInt(2 * Integer.BYTES + msgLength);
+			frame.writeInt(msgLength);
+			sm.wExternal(new ByteBufOutputStream(frame));
+			frame.writeInt(0);
+		} catch (IOException ex) {
+			frame.release();
+			logger.error("Failed to serialize message.", ex);
+			return null;
 		}
+		return frame;
+	}
 
-		for (int target : targets) {
-			try {
-				sm = (TOMMessage) sm.clone();
-			} catch (CloneNotSupportedException ex) {
-				logger.error("Failed to clone TOMMessage", ex);
-				continue;
-			}
+	private void send(int[] targets, TOMMessage sm, boolean serializeClassHeaders, boolean flush) {
 
-			rl.readLock().lock();
-			if (sessionReplicaToClient.containsKey(target)) {
-				sm.destination = target;
-				sessionReplicaToClient.get(target).getChannel().writeAndFlush(sm);
-			} else {
-				logger.debug("Client not into sessionReplicaToClient({}):{}, waiting and retrying.", target,
-						sessionReplicaToClient.containsKey(target));
-				/*
-				 * ClientSession clientSession = new ClientSession(target, sm); new
-				 * Thread(clientSession).start();
-				 */
-				// should I wait for the client?
-				// cb: the below code fixes an issue that occurs if a replica tries to send a reply back to some client
-				// *before* the connection to that client is successfully established. The client may then fail to
-				// gather enough responses and run in a timeout. In this fix we periodically retry to send that response
-
-				if (sm.retry > 0) {
-					int retryAfterMillis = (int) (1000 * // Double retry-timeout every time while approaching client's invokeOrdered timeout
-							((double) controller.getStaticConf().getClientInvokeOrderedTimeout() * Math.pow(2, -1 * sm.retry)));
-					sm.retry = sm.retry - 1;
-					TOMMessage finalSm = sm;
-					TimerTask timertask = new TimerTask() {
-						@Override
-						public void run() {
-							retrySend(targets, finalSm, serializeClassHeaders);
+		// serialize message
+		ByteBuf frame = encode(sm);
+		if (frame == null) {
+			return;
+		}
+
+		try {
+			for (int target : targets) {
+
+				rl.readLock().lock();
+				NettyClientServerSession session = sessionReplicaToClient.get(target);
+				if (session != null) {
+					Channel channel = session.getChannel();
+					if (flush) {
+						channel.writeAndFlush(frame.retainedDuplicate(), channel.voidPromise());
+					} else {
+						channel.write(frame.retainedDuplicate(), channel.voidPromise());
+					}
+				} else {
+					logger.debug("Client not into sessionReplicaToClient({}):{}, waiting and retrying.", target,
+							sessionReplicaToClient.containsKey(target));
+					/*
+					 * ClientSession clientSession = new ClientSession(target, sm); new
+					 * Thread(clientSession).start();
+					 */
+					// should I wait for the client?
+					// cb: the below code fixes an issue that occurs if a replica tries to send a reply back to some client
+					// *before* the connection to that client is successfully established. The client may then fail to
+					// gather enough responses and run in a timeout. In this fix we periodically retry to send that response
+
+					if (sm.retry > 0) {
+						TOMMessage retrySm;
+						try {
+							retrySm = (TOMMessage) sm.clone();
+						} catch (CloneNotSupportedException ex) {
+							logger.error("Failed to clone TOMMessage", ex);
+							rl.readLock().unlock();
+							continue;
 						}
-					};
-					Timer timer = new Timer("retry");
-					timer.schedule(timertask, retryAfterMillis);
-				}
+						int retryAfterMillis = (int) (1000 * // Double retry-timeout every time while approaching client's invokeOrdered timeout
+								((double) controller.getStaticConf().getClientInvokeOrderedTimeout() * Math.pow(2, -1 * retrySm.retry)));
+						retrySm.retry = retrySm.retry - 1;
+						retrySm.destination = target;
+						int[] retryTargets = { target };
+						Scheduler.schedule(() -> retrySend(retryTargets, retrySm, serializeClassHeaders), retryAfterMillis);
+					}
 
+				}
+				rl.readLock().unlock();
 			}
-			rl.readLock().unlock();
+		} finally {
+			frame.release();
 		}
 	}
 
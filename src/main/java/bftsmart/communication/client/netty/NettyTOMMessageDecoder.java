@@ -15,8 +15,7 @@ limitations under the License.
 */
 package bftsmart.communication.client.netty;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -26,6 +25,7 @@ import org.slf4j.LoggerFactory;
 
 import bftsmart.reconfiguration.ViewController;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
@@ -119,36 +119,48 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
             }
         } while (true);
 
+        // The frame holds at least the lengths of the message and of the signature
+        if (dataLength < 2 * Integer.BYTES) {
+            logger.warn("Closing connection that sent a frame of " + dataLength + " bytes");
+            buffer.skipBytes(buffer.readableBytes());
+            context.close();
+            return;
+        }
+
         // Wait until the whole data is available.
         if (buffer.readableBytes() < dataLength + Integer.BYTES) {
             return;
         }
 
         // Skip the length field because we know it already.
+        int frameEnd = buffer.readerIndex() + Integer.BYTES + dataLength;
         buffer.skipBytes(Integer.BYTES);
 
-        int size = buffer.readInt();
-        byte[] data = new byte[size];
-        buffer.readBytes(data);
-
-        byte[] signature = null;
-        size = buffer.readInt();            
-            
-        if (size > 0) {
-            signature = new byte[size];
-            buffer.readBytes(signature);
-        }
-
-        DataInputStream dis = null;
         TOMMessage sm = null;
 
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(data);
-            dis = new DataInputStream(bais);
-            sm = new TOMMessage();
-            sm.rExternal(dis);
+            int size = buffer.readInt();
+            if (size < 0 || size > frameEnd - buffer.readerIndex() - Integer.BYTES) {
+                throw new IOException("Invalid message size " + size);
+            }
+
+            // the fields are read in place, only the serialized message (kept for signature
+            // verification and forwarding) and the content are copied out of the buffer
+            sm = readMessage(buffer, buffer.readerIndex(), size);
+            byte[] data = new byte[size];
+            buffer.readBytes(data);
             sm.serializedMessage = data;
 
+            byte[] signature = null;
+            size = buffer.readInt();
+            if (size > frameEnd - buffer.readerIndex()) {
+                throw new IOException("Invalid signature size " + size);
+            }
+            if (size > 0) {
+                signature = new byte[size];
+                buffer.readBytes(signature);
+            }
+
             if (signature != null) {
                 sm.serializedMessageSignature = signature;
                 sm.signed = true;
@@ -177,8 +189,50 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
         } catch (Exception ex) {
             
             logger.error("Failed to decode TOMMessage", ex);
+        } finally {
+            // a malformed frame must not desynchronize the following ones
+            buffer.readerIndex(frameEnd);
         }
         return;
     }
 
+    /**
+     * Reads a message written by TOMMessage.wExternal without moving the reader index
+     * of the buffer.
+     */
+    private static TOMMessage readMessage(ByteBuf buffer, int offset, int length) throws IOException {
+        // sender, view, type, session, sequence, operation id, reply server and content length
+        final int headerLength = 7 * Integer.BYTES + 1;
+        if (length < headerLength) {
+            throw new IOException("Truncated message with " + length + " bytes");
+        }
+
+        int sender = buffer.getInt(offset);
+        int viewID = buffer.getInt(offset + 4);
+        byte type = buffer.getByte(offset + 8);
+        int session = buffer.getInt(offset + 9);
+        int sequence = buffer.getInt(offset + 13);
+        int operationId = buffer.getInt(offset + 17);
+        int replyServer = buffer.getInt(offset + 21);
+        int contentLength = buffer.getInt(offset + 25);
+
+        if (type < 0 || type >= TOMMessageType.values.length) {
+            throw new IOException("Invalid message type " + type);
+        }
+
+        byte[] content = null;
+        if (contentLength != -1) {
+            if (contentLength < 0 || contentLength > length - headerLength) {
+                throw new IOException("Invalid content length " + contentLength);
+            }
+            content = new byte[contentLength];
+            buffer.getBytes(offset + headerLength, content);
+        }
+
+        TOMMessage sm = new TOMMessage(sender, session, sequence, operationId, content, viewID,
+                TOMMessageType.getMessageType(type));
+        sm.setReplyServer(replyServer);
+        return sm;
+    }
+
 }
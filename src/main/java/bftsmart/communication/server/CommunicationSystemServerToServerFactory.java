@@ -0,0 +1,38 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.communication.server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.communication.server.netty.NettyServersCommunicationLayer;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.ServiceReplica;
+
+/**
+ * Creates the server-to-server communication layer selected by the
+ * 'system.communication.replicaTransport' parameter.
+ */
+public class CommunicationSystemServerToServerFactory {
+
+    public static CommunicationSystemServerToServer getCommunicationSystemServerToServer(ServerViewController controller,
+            LinkedBlockingQueue<SystemMessage> inQueue, ServiceReplica replica) throws Exception {
+        if ("netty".equals(controller.getStaticConf().getReplicaTransport())) {
+            return new NettyServersCommunicationLayer(controller, inQueue, replica);
+        }
+        return new ServersCommunicationLayer(controller, inQueue, replica);
+    }
+}
@@ -16,6 +16,7 @@
 package bftsmart.communication.server;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageCodec;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.util.TOMUtil;
@@ -53,7 +54,7 @@ import java.util.concurrent.locks.ReentrantLock;
 //$keytool -importkeystore -srckeystore ./RSA_KeyPair_2048.pkcs12 -destkeystore ./RSA_KeyPair_2048.pkcs12 -deststoretype pkcs12
 
 
-public class ServersCommunicationLayer extends Thread {
+public class ServersCommunicationLayer extends Thread implements CommunicationSystemServerToServer {
 
 	private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
@@ -165,6 +166,7 @@ public class ServersCommunicationLayer extends Thread {
 		start();
 	}
 
+	@Override
 	public SecretKey getSecretKey(int id) {
 		if (id == controller.getStaticConf().getProcessId())
 			return selfPwd;
@@ -172,6 +174,7 @@ public class ServersCommunicationLayer extends Thread {
 	}
 
 	//******* EDUARDO BEGIN **************//
+	@Override
 	public void updateConnections() {
 		connectionsLock.lock();
 
@@ -205,6 +208,20 @@ public class ServersCommunicationLayer extends Thread {
 		connectionsLock.unlock();
 	}
 
+	@Override
+	public int getOutQueueSize() {
+		connectionsLock.lock();
+		try {
+			int size = 0;
+			for (ServerConnection c : this.connections.values()) {
+				size += c.getOutQueueSize();
+			}
+			return size;
+		} finally {
+			connectionsLock.unlock();
+		}
+	}
+
 	private ServerConnection getConnection(int remoteId) {
 		connectionsLock.lock();
 		ServerConnection ret = this.connections.get(remoteId);
@@ -219,16 +236,15 @@ public class ServersCommunicationLayer extends Thread {
 	//******* EDUARDO END **************//
 
 
+	@Override
 	public final void send(int[] targets, SystemMessage sm, boolean useMAC) {
-		ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+		byte[] data = null;
 		try {
-			new ObjectOutputStream(bOut).writeObject(sm);
+			data = SystemMessageCodec.encode(sm);
 		} catch (IOException ex) {
 			logger.error("Failed to serialize message", ex);
 		}
 
-		byte[] data = bOut.toByteArray();
-
 		// this shuffling is done to prevent the replica with the lowest ID/index  from being always
 		// the last one receiving the messages, which can result in that replica  to become consistently
 		// delayed in relation to the others.
@@ -242,7 +258,7 @@ public class ServersCommunicationLayer extends Thread {
 					sm.authenticated = true;
 					inQueue.put(sm);
 					logger.debug("Queueing (delivering) my own message, me:{}", target);
-				} else {
+				} else if (data != null) {
 					logger.debug("Sending message from:{} -> to:{}.", me,  target);
 					getConnection(target).send(data);
 				}
@@ -252,6 +268,7 @@ public class ServersCommunicationLayer extends Thread {
 		}
 	}
 
+	@Override
 	public void shutdown() {
 
 		logger.info("Shutting down replica sockets");
@@ -269,6 +286,7 @@ public class ServersCommunicationLayer extends Thread {
 	}
 
 	//******* EDUARDO BEGIN **************//
+	@Override
 	public void joinViewReceived() {
 		waitViewLock.lock();
 		for (PendingConnection pc : pendingConn) {
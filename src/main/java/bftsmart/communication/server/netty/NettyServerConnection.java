@@ -0,0 +1,123 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.communication.server.netty;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+
+/**
+ * Connection with another replica in the Netty transport. Unlike
+ * ServerConnection, it does not own any thread: frames are written to the
+ * channel from the caller thread and the writes/flushes are performed (and
+ * coalesced) by the event loop of the channel.
+ */
+public class NettyServerConnection {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final int remoteId;
+    private final int outQueueSize;
+    private volatile Channel channel;
+    private volatile boolean doWork = true;
+
+    // frames handed to the channel that were not written to the socket yet
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ChannelFutureListener written = future -> queued.decrementAndGet();
+
+    public NettyServerConnection(int remoteId, int outQueueSize) {
+        this.remoteId = remoteId;
+        this.outQueueSize = outQueueSize;
+    }
+
+    public int getRemoteId() {
+        return remoteId;
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public boolean isActive() {
+        return doWork;
+    }
+
+    /**
+     * Replaces the channel used to reach the remote replica, closing the previous one.
+     */
+    public void setChannel(Channel newChannel) {
+        Channel old = channel;
+        channel = newChannel;
+        if (old != null && old != newChannel) {
+            old.close();
+        }
+        if (!doWork) {
+            newChannel.close();
+        }
+    }
+
+    /**
+     * Forgets the given channel if it is still the one in use.
+     */
+    public void channelClosed(Channel closed) {
+        if (channel == closed) {
+            channel = null;
+        }
+    }
+
+    /**
+     * Sends a frame to the remote replica. The reference held by the frame is
+     * always released, even if the frame is discarded.
+     */
+    public void send(ByteBuf frame) {
+        Channel ch = channel;
+        if (ch == null || !ch.isActive()) {
+            frame.release();
+            logger.debug("Not connected to " + remoteId + " (message discarded).");
+            return;
+        }
+        if (queued.incrementAndGet() > outQueueSize) {
+            queued.decrementAndGet();
+            frame.release();
+            logger.debug("Out queue for " + remoteId + " full (message discarded).");
+            return;
+        }
+        ch.writeAndFlush(frame).addListener(written);
+    }
+
+    /**
+     * Number of frames waiting to be written to the socket.
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public void shutdown() {
+        logger.debug("SHUTDOWN for " + remoteId);
+
+        doWork = false;
+        Channel ch = channel;
+        channel = null;
+        if (ch != null) {
+            ch.close();
+        }
+    }
+}
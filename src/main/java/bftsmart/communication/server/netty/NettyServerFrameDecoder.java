@@ -0,0 +1,83 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.communication.server.netty;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.communication.SystemMessageCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * Decodes the frames exchanged between replicas. The frame format is the same
+ * used by ServerConnection: a 4-byte length, the message encoded by
+ * SystemMessageCodec and a 1-byte MAC flag (always 0, since the channel is
+ * protected by TLS). Messages are decoded directly from the channel buffer.
+ *
+ * On accepted connections, the first 4 bytes carry the id of the remote
+ * process; it is passed up the pipeline as an Integer.
+ */
+public class NettyServerFrameDecoder extends ByteToMessageDecoder {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private boolean expectRemoteId;
+
+    public NettyServerFrameDecoder(boolean expectRemoteId) {
+        this.expectRemoteId = expectRemoteId;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        if (expectRemoteId) {
+            if (in.readableBytes() < 4) {
+                return;
+            }
+            out.add(in.readInt());
+            expectRemoteId = false;
+            return;
+        }
+
+        if (in.readableBytes() < 4) {
+            return;
+        }
+
+        int dataLength = in.getInt(in.readerIndex());
+        if (dataLength < 0) {
+            throw new CorruptedFrameException("Invalid frame length " + dataLength);
+        }
+
+        // length + data + MAC flag
+        if (in.readableBytes() < dataLength + 5) {
+            return;
+        }
+
+        int start = in.readerIndex() + 4;
+        in.skipBytes(dataLength + 5);
+
+        try {
+            out.add(SystemMessageCodec.decode(in.nioBuffer(start, dataLength)));
+        } catch (IOException | ClassNotFoundException ex) {
+            logger.info("Invalid message received. Ignoring!", ex);
+        }
+    }
+}
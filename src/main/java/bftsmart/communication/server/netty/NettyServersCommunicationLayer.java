@@ -0,0 +1,577 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.communication.server.netty;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageCodec;
+import bftsmart.communication.server.CommunicationSystemServerToServer;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.reconfiguration.VMMessage;
+import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.util.TOMUtil;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AttributeKey;
+
+/**
+ * Alternative to ServersCommunicationLayer that runs all the connections with
+ * the other replicas on a small set of Netty event loops, instead of one sender
+ * and one receiver thread per connection. Messages are encoded once into a
+ * pooled direct buffer that is shared by all the targets, flushes are coalesced
+ * by the event loops and TLS is provided by SslHandler. Received messages are
+ * placed in the same in-queue consumed by the MessageHandler.
+ *
+ * The wire format (including the initial exchange of process ids) is the same
+ * used by ServersCommunicationLayer, hence replicas using either transport can
+ * be part of the same group.
+ */
+public class NettyServersCommunicationLayer implements CommunicationSystemServerToServer {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String SECRET = "MySeCreT_2hMOygBwY";
+    private static final long POOL_TIME = 5000;
+    private static final int connectionBacklog = 100;
+    private static final int connectionTimeoutMsec = 40000;
+    private static final int explicitFlushAfterFlushes = 256;
+    private static final int frameOverhead = 5; // length + MAC flag
+    private static final int initialFrameSize = 1024;
+
+    private static final AttributeKey<Integer> REMOTE_ID = AttributeKey.valueOf("bftsmart.remoteId");
+
+    private final ServerViewController controller;
+    private final LinkedBlockingQueue<SystemMessage> inQueue;
+    private final HashMap<Integer, NettyServerConnection> connections = new HashMap<>();
+    private final int me;
+    private volatile boolean doWork = true;
+    private final Lock connectionsLock = new ReentrantLock();
+    private final ReentrantLock waitViewLock = new ReentrantLock();
+    private final List<PendingChannel> pendingConn = new LinkedList<>();
+    private final ServiceReplica replica;
+
+    private final SSLContext sslContext;
+    private final SecretKey selfPwd;
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final Bootstrap clientBootstrap;
+    private final Channel serverChannel;
+    private final InboundHandler inboundHandler = new InboundHandler();
+
+    public NettyServersCommunicationLayer(ServerViewController controller,
+            LinkedBlockingQueue<SystemMessage> inQueue,
+            ServiceReplica replica) throws Exception {
+
+        this.controller = controller;
+        this.inQueue = inQueue;
+        this.me = controller.getStaticConf().getProcessId();
+        this.replica = replica;
+
+        String myAddress;
+        String confAddress = "";
+        try {
+            confAddress = controller.getStaticConf().getRemoteAddress(me).getAddress().getHostAddress();
+        } catch (Exception e) {
+            logger.debug("my Id is " + me + " my remote Address is  "
+                    + controller.getStaticConf().getRemoteAddress(me));
+        }
+
+        if (InetAddress.getLoopbackAddress().getHostAddress().equals(confAddress)) {
+            myAddress = InetAddress.getLoopbackAddress().getHostAddress();
+        } else if (controller.getStaticConf().getBindAddress().isEmpty()) {
+            myAddress = InetAddress.getLocalHost().getHostAddress();
+            //If the replica binds to the loopback address, other replicas will not be able to connect to it.
+            //To solve that issue, we bind to the address supplied in config/hosts.config instead.
+            if (InetAddress.getByName(myAddress).isLoopbackAddress() && !myAddress.equals(confAddress)) {
+                myAddress = confAddress;
+            }
+        } else {
+            myAddress = controller.getStaticConf().getBindAddress();
+        }
+
+        int myPort = controller.getStaticConf().getServerToServerPort(me);
+
+        KeyStore ks;
+        try (FileInputStream fis = new FileInputStream("config/keysSSL_TLS/" + controller.getStaticConf().getSSLTLSKeyStore())) {
+            ks = KeyStore.getInstance(KeyStore.getDefaultType());
+            ks.load(fis, SECRET.toCharArray());
+        }
+
+        String algorithm = Security.getProperty("ssl.KeyManagerFactory.algorithm");
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(algorithm);
+        kmf.init(ks, SECRET.toCharArray());
+
+        TrustManagerFactory trustMgrFactory = TrustManagerFactory.getInstance(algorithm);
+        trustMgrFactory.init(ks);
+
+        sslContext = SSLContext.getInstance(controller.getStaticConf().getSSLTLSProtocolVersion());
+        sslContext.init(kmf.getKeyManagers(), trustMgrFactory.getTrustManagers(), new SecureRandom());
+
+        SecretKeyFactory fac = TOMUtil.getSecretFactory();
+        PBEKeySpec spec = TOMUtil.generateKeySpec(SECRET.toCharArray());
+        selfPwd = fac.generateSecret(spec);
+
+        int workers = controller.getStaticConf().getNumNettyWorkers();
+        bossGroup = new NioEventLoopGroup(1);
+        workerGroup = new NioEventLoopGroup(workers > 0 ? workers : Runtime.getRuntime().availableProcessors());
+
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .option(ChannelOption.SO_BACKLOG, connectionBacklog)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.ALLOCATOR, allocator)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(new SslHandler(createSSLEngine(false)));
+                        ch.pipeline().addLast(new FlushConsolidationHandler(explicitFlushAfterFlushes, true));
+                        ch.pipeline().addLast(new NettyServerFrameDecoder(true));
+                        ch.pipeline().addLast(inboundHandler);
+                    }
+                });
+
+        clientBootstrap = new Bootstrap();
+        clientBootstrap.group(workerGroup).channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionTimeoutMsec);
+
+        serverChannel = b.bind(new InetSocketAddress(myAddress, myPort)).sync().channel();
+
+        logger.info("Netty replica transport bound to {}:{}, SSL/TLS protocol version: {}", myAddress, myPort,
+                controller.getStaticConf().getSSLTLSProtocolVersion());
+
+        //Try connecting if a member of the current view. Otherwise, wait until the Join has been processed!
+        if (controller.isInCurrentView()) {
+            int[] initialV = controller.getCurrentViewAcceptors();
+            for (int j : initialV) {
+                if (j != me) {
+                    getConnection(j);
+                }
+            }
+        }
+    }
+
+    private SSLEngine createSSLEngine(boolean client) {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(client);
+        if (!client) {
+            engine.setNeedClientAuth(true);
+        }
+        engine.setEnabledCipherSuites(controller.getStaticConf().getEnabledCiphers());
+        return engine;
+    }
+
+    @Override
+    public SecretKey getSecretKey(int id) {
+        // the same key is used for every replica (see ServerConnection)
+        return selfPwd;
+    }
+
+    //return true of a process shall connect to the remote process, false otherwise
+    private boolean isToConnect(int remoteId) {
+        if (controller.getStaticConf().getTTPId() == remoteId) {
+            //Need to wait for the connection request from the TTP, do not try to connect to it
+            return false;
+        } else if (controller.getStaticConf().getTTPId() == me) {
+            //If this is a TTP, one must connect to the remote process
+            return true;
+        }
+        //in this case, the node with higher ID starts the connection
+        return controller.isInCurrentView() && me > remoteId;
+    }
+
+    @Override
+    public void updateConnections() {
+        connectionsLock.lock();
+
+        if (this.controller.isInCurrentView()) {
+
+            Iterator<Integer> it = this.connections.keySet().iterator();
+            List<Integer> toRemove = new LinkedList<>();
+            while (it.hasNext()) {
+                int rm = it.next();
+                if (!this.controller.isCurrentViewMember(rm)) {
+                    toRemove.add(rm);
+                }
+            }
+            for (Integer integer : toRemove) {
+                this.connections.remove(integer).shutdown();
+            }
+
+            int[] newV = controller.getCurrentViewAcceptors();
+            for (int j : newV) {
+                if (j != me) {
+                    getConnection(j);
+                }
+            }
+        } else {
+
+            for (NettyServerConnection c : this.connections.values()) {
+                c.shutdown();
+            }
+        }
+
+        connectionsLock.unlock();
+    }
+
+    @Override
+    public int getOutQueueSize() {
+        connectionsLock.lock();
+        try {
+            int size = 0;
+            for (NettyServerConnection c : this.connections.values()) {
+                size += c.getQueued();
+            }
+            return size;
+        } finally {
+            connectionsLock.unlock();
+        }
+    }
+
+    private NettyServerConnection getConnection(int remoteId) {
+        connectionsLock.lock();
+        NettyServerConnection ret = this.connections.get(remoteId);
+        if (ret == null) {
+            ret = new NettyServerConnection(remoteId, controller.getStaticConf().getOutQueueSize());
+            this.connections.put(remoteId, ret);
+            if (isToConnect(remoteId)) {
+                connect(ret);
+            }
+        }
+        connectionsLock.unlock();
+        return ret;
+    }
+
+    /**
+     * Opens a connection to the remote replica. Once the TLS handshake is done,
+     * the id of this process is sent and the channel starts being used.
+     * Failures and disconnections are retried every POOL_TIME milliseconds.
+     */
+    private void connect(NettyServerConnection conn) {
+        if (!doWork || !conn.isActive()) {
+            return;
+        }
+
+        int remoteId = conn.getRemoteId();
+        Bootstrap b = clientBootstrap.clone().handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            public void initChannel(SocketChannel ch) throws Exception {
+                ch.attr(REMOTE_ID).set(remoteId);
+                ch.pipeline().addLast(new SslHandler(createSSLEngine(true)));
+                ch.pipeline().addLast(new FlushConsolidationHandler(explicitFlushAfterFlushes, true));
+                ch.pipeline().addLast(new NettyServerFrameDecoder(false));
+                ch.pipeline().addLast(inboundHandler);
+            }
+        });
+
+        b.connect(controller.getStaticConf().getHost(remoteId), controller.getStaticConf().getServerToServerPort(remoteId))
+                .addListener((ChannelFuture cf) -> {
+                    if (!cf.isSuccess()) {
+                        logger.debug("Connection to " + remoteId + " failed, retrying", cf.cause());
+                        scheduleReconnect(conn);
+                        return;
+                    }
+
+                    Channel ch = cf.channel();
+                    ch.pipeline().get(SslHandler.class).handshakeFuture().addListener(hf -> {
+                        if (!hf.isSuccess()) {
+                            logger.error("SSL handshake failed", hf.cause());
+                            ch.close();
+                            return;
+                        }
+                        logger.info("SSL/TLS handshake complete!, Id:{}  ## CipherSuite: {}.", remoteId,
+                                ch.pipeline().get(SslHandler.class).engine().getSession().getCipherSuite());
+
+                        ch.writeAndFlush(ch.alloc().buffer(4).writeInt(me));
+                        conn.setChannel(ch);
+                    });
+
+                    ch.closeFuture().addListener(f -> {
+                        conn.channelClosed(ch);
+                        scheduleReconnect(conn);
+                    });
+                });
+    }
+
+    private void scheduleReconnect(NettyServerConnection conn) {
+        if (doWork && conn.isActive()) {
+            workerGroup.schedule(() -> connect(conn), POOL_TIME, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Encodes a message in a single pooled direct buffer, already framed as
+     * expected by the remote replicas. The buffer grows while the message is
+     * written, so each field is serialized only once.
+     */
+    private ByteBuf encode(SystemMessage sm) throws IOException {
+        int capacity = initialFrameSize + frameOverhead;
+        if (sm instanceof ConsensusMessage && ((ConsensusMessage) sm).getValue() != null) {
+            capacity += ((ConsensusMessage) sm).getValue().length;
+        }
+
+        ByteBuf frame = allocator.directBuffer(capacity);
+        try {
+            frame.writeInt(0); // length, set below
+            SystemMessageCodec.encode(sm, new ByteBufOutputStream(frame));
+            frame.setInt(0, frame.writerIndex() - 4);
+            frame.writeByte(0); // no MAC
+            return frame;
+        } catch (IOException | RuntimeException ex) {
+            frame.release();
+            throw ex;
+        }
+    }
+
+    @Override
+    public final void send(int[] targets, SystemMessage sm, boolean useMAC) {
+        ByteBuf frame = null;
+        try {
+            frame = encode(sm);
+        } catch (IOException ex) {
+            logger.error("Failed to serialize message", ex);
+        }
+
+        // this shuffling is done to prevent the replica with the lowest ID/index  from being always
+        // the last one receiving the messages, which can result in that replica  to become consistently
+        // delayed in relation to the others.
+        Integer[] targetsShuffled = Arrays.stream(targets).boxed().toArray(Integer[]::new);
+        Collections.shuffle(Arrays.asList(targetsShuffled), new Random(System.nanoTime()));
+
+        try {
+            for (int target : targetsShuffled) {
+                try {
+                    if (target == me) {
+                        sm.authenticated = true;
+                        inQueue.put(sm);
+                        logger.debug("Queueing (delivering) my own message, me:{}", target);
+                    } else if (frame != null) {
+                        logger.debug("Sending message from:{} -> to:{}.", me, target);
+                        getConnection(target).send(frame.retainedDuplicate());
+                    }
+                } catch (InterruptedException ex) {
+                    logger.error("Interruption while inserting message into inqueue", ex);
+                }
+            }
+        } finally {
+            if (frame != null) {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * Called when the id of the process that opened an accepted channel is known.
+     */
+    private void channelIdentified(Channel ch, int remoteId) {
+        if (!this.controller.isInCurrentView() && (this.controller.getStaticConf().getTTPId() != remoteId)) {
+            // stop reading until the view is known (see joinViewReceived)
+            ch.config().setAutoRead(false);
+            waitViewLock.lock();
+            pendingConn.add(new PendingChannel(ch, remoteId));
+            waitViewLock.unlock();
+        } else {
+            logger.debug("Trying establish connection with Replica: {}", remoteId);
+            establishConnection(ch, remoteId);
+        }
+    }
+
+    private void establishConnection(Channel ch, int remoteId) {
+        if ((this.controller.getStaticConf().getTTPId() == remoteId) || this.controller.isCurrentViewMember(remoteId)) {
+            connectionsLock.lock();
+            NettyServerConnection conn = this.connections.get(remoteId);
+            if (conn == null) {
+                conn = new NettyServerConnection(remoteId, controller.getStaticConf().getOutQueueSize());
+                this.connections.put(remoteId, conn);
+            } else {
+                logger.debug("ReConnecting with replica: {}", remoteId);
+            }
+            ch.attr(REMOTE_ID).set(remoteId);
+            conn.setChannel(ch);
+            final NettyServerConnection c = conn;
+            ch.closeFuture().addListener(f -> c.channelClosed(ch));
+            connectionsLock.unlock();
+
+            ch.config().setAutoRead(true);
+        } else {
+            logger.debug("Closing connection with replica: {}", remoteId);
+            ch.close();
+        }
+    }
+
+    private void messageReceived(int remoteId, SystemMessage sm) {
+        //The verification it is done for the SSL/TLS protocol.
+        sm.authenticated = true;
+
+        if (sm.getSender() != remoteId || this.controller.getStaticConf().isTheTTP()) {
+            return;
+        }
+
+        if (this.controller.getStaticConf().getTTPId() == remoteId) {
+            if (sm instanceof VMMessage) {
+                // processing the join may take a while, so it is not done by the event loop
+                new Thread(() -> replica.joinMsgReceived((VMMessage) sm), "TTPReceiver for " + remoteId).start();
+            }
+        } else if (!inQueue.offer(sm)) {
+            logger.warn("Inqueue full (message from " + remoteId + " discarded).");
+        }
+    }
+
+    @Override
+    public void joinViewReceived() {
+        waitViewLock.lock();
+        for (PendingChannel pc : pendingConn) {
+            establishConnection(pc.channel, pc.remoteId);
+        }
+
+        pendingConn.clear();
+
+        waitViewLock.unlock();
+    }
+
+    @Override
+    public void shutdown() {
+
+        logger.info("Shutting down replica channels");
+
+        doWork = false;
+
+        connectionsLock.lock();
+        for (NettyServerConnection c : connections.values()) {
+            c.shutdown();
+        }
+        connectionsLock.unlock();
+
+        serverChannel.close();
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        workerGroup.terminationFuture().await();
+        bossGroup.terminationFuture().await();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder("inQueue=" + inQueue.toString());
+        int[] activeServers = controller.getCurrentViewAcceptors();
+        for (int activeServer : activeServers) {
+            if (me != activeServer) {
+                str.append(", connections[").append(activeServer).append("]: queued=").append(getConnection(activeServer).getQueued());
+            }
+        }
+        return str.toString();
+    }
+
+    /**
+     * Handler shared by all channels: identifies accepted channels and
+     * delivers the received messages.
+     */
+    @Sharable
+    private class InboundHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            Channel ch = ctx.channel();
+            if (msg instanceof Integer) {
+                channelIdentified(ch, (Integer) msg);
+            } else if (msg instanceof SystemMessage) {
+                Integer remoteId = ch.attr(REMOTE_ID).get();
+                if (remoteId != null) {
+                    messageReceived(remoteId, (SystemMessage) msg);
+                } else {
+                    logger.debug("Message received before the connection was established. Ignoring!");
+                }
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            if (doWork) {
+                logger.debug("Closing channel with " + ctx.channel().attr(REMOTE_ID).get(), cause);
+            }
+            ctx.close();
+        }
+    }
+
+    // Entry that stores pending channels, as a server may accept connections only after
+    // learning the current view, i.e., after receiving the response to the join
+    private static class PendingChannel {
+
+        private final Channel channel;
+        private final int remoteId;
+
+        private PendingChannel(Channel channel, int remoteId) {
+            this.channel = channel;
+            this.remoteId = remoteId;
+        }
+    }
+}
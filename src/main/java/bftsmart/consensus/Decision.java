@@ -126,10 +126,12 @@ public class Decision {
     }
 
     private void waitForPropose() {
+        if (decisionEpoch == null || decisionEpoch.deserializedPropValue == null) {
+            LoggerFactory.getLogger(this.getClass()).debug("waiting for propose for consensus " + cid);
+        }
         while (decisionEpoch == null ||
                 decisionEpoch.deserializedPropValue == null) {
             try {
-                LoggerFactory.getLogger(this.getClass()).info("waiting for propose for consensus " + cid);
                 Thread.sleep(1);
             } catch (InterruptedException ie) {
                 
@@ -0,0 +1,247 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.communication.SystemMessageCodec;
+import bftsmart.consensus.messages.ConsensusMessage;
+
+/**
+ * Bounded history of the decisions whose consensus instances were already
+ * removed from the execution manager. The decided value and the proof of each
+ * instance are written to a ring of direct (off-heap) memory, so they do not
+ * weigh on the garbage collector; when the ring is full the oldest decisions
+ * are overwritten. Decisions are indexed by CID, and only the most recent
+ * instances (as many as the index has slots) can be looked up.
+ */
+public class DecisionHistory {
+
+    private static final int HEADER = 8; // CID and length of the record body
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final int[] slotCid; // CID stored in each slot of the index
+    private final int[] slotPos; // position in the ring of the record of that CID
+
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER + 8);
+    private int head = 0; // position where the next record is written
+    private int tail = 0; // position of the oldest record still in the ring
+    private int used = 0;
+
+    /**
+     * @param capacity Size (in bytes) of the ring, or 0 to keep no history
+     * @param instances Number of most recent decisions that can be looked up
+     */
+    public DecisionHistory(int capacity, int instances) {
+        this.capacity = Math.max(0, capacity);
+        this.ring = this.capacity > 0 ? ByteBuffer.allocateDirect(this.capacity) : null;
+        this.slotCid = new int[Math.max(1, instances)];
+        this.slotPos = new int[slotCid.length];
+        Arrays.fill(slotCid, -1);
+    }
+
+    /**
+     * Stores the decision of a consensus instance, evicting the oldest
+     * decisions until there is room for it
+     *
+     * @param cid ID of the consensus
+     * @param epoch Epoch in which the value was decided
+     * @param value Decided value
+     * @param proof Proof of the decision
+     */
+    public void add(int cid, int epoch, byte[] value, Set<ConsensusMessage> proof) {
+        if (ring == null || cid < 0 || value == null) return;
+
+        byte[] proofs;
+        try {
+            proofs = encodeProof(proof);
+        } catch (IOException ex) {
+            logger.warn("Could not encode the proof of consensus " + cid + ", it will not be kept", ex);
+            return;
+        }
+
+        int body = 8 + value.length + proofs.length;
+        int size = HEADER + body;
+        if (size > capacity) {
+            logger.debug("Decision of consensus " + cid + " (" + size + " bytes) does not fit in the history");
+            return;
+        }
+
+        synchronized (this) {
+            while (capacity - used < size) {
+                evictOldest();
+            }
+
+            int slot = cid % slotCid.length;
+            slotCid[slot] = cid;
+            slotPos[slot] = head;
+
+            header.clear();
+            header.putInt(cid).putInt(body).putInt(epoch).putInt(value.length);
+            int pos = write(head, header.array(), header.position());
+            pos = write(pos, value, value.length);
+            head = write(pos, proofs, proofs.length);
+            used += size;
+        }
+    }
+
+    /**
+     * Looks up the decision of a consensus instance
+     *
+     * @param cid ID of the consensus
+     * @return The decision, or null if it is no longer (or was never) in the history
+     */
+    public Entry get(int cid) {
+        if (ring == null || cid < 0) return null;
+
+        byte[] body;
+        synchronized (this) {
+            int slot = cid % slotCid.length;
+            if (slotCid[slot] != cid) return null;
+
+            int pos = slotPos[slot];
+            body = new byte[readInt(pos + 4)];
+            read(pos + HEADER, body);
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(body);
+        int epoch = in.getInt();
+        byte[] value = new byte[in.getInt()];
+        in.get(value);
+
+        HashSet<ConsensusMessage> proof = new HashSet<>();
+        try {
+            for (int i = in.getInt(); i > 0; i--) {
+                byte[] msg = new byte[in.getInt()];
+                in.get(msg);
+                proof.add((ConsensusMessage) SystemMessageCodec.decode(msg));
+            }
+        } catch (IOException | ClassNotFoundException ex) {
+            logger.warn("Could not decode the proof of consensus " + cid, ex);
+            return null;
+        }
+
+        return new Entry(cid, epoch, value, proof);
+    }
+
+    private void evictOldest() {
+        int cid = readInt(tail);
+        int size = HEADER + readInt(tail + 4);
+
+        int slot = cid % slotCid.length;
+        if (slotCid[slot] == cid && slotPos[slot] == tail) {
+            slotCid[slot] = -1;
+        }
+
+        tail = (tail + size) % capacity;
+        used -= size;
+    }
+
+    private static byte[] encodeProof(Set<ConsensusMessage> proof) throws IOException {
+        if (proof == null || proof.isEmpty()) return new byte[4];
+
+        byte[][] msgs = new byte[proof.size()][];
+        int size = 4;
+        int i = 0;
+        for (ConsensusMessage cm : proof) {
+            msgs[i] = SystemMessageCodec.encode(cm);
+            size += 4 + msgs[i++].length;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(msgs.length);
+        for (byte[] msg : msgs) {
+            out.putInt(msg.length).put(msg);
+        }
+        return out.array();
+    }
+
+    // the ring wraps around, so records may be split between its end and its beginning
+
+    private int write(int pos, byte[] src, int length) {
+        int first = Math.min(length, capacity - pos);
+        ring.position(pos);
+        ring.put(src, 0, first);
+        if (first < length) {
+            ring.position(0);
+            ring.put(src, first, length - first);
+        }
+        return (pos + length) % capacity;
+    }
+
+    private void read(int pos, byte[] dst) {
+        pos %= capacity;
+        int first = Math.min(dst.length, capacity - pos);
+        ring.position(pos);
+        ring.get(dst, 0, first);
+        if (first < dst.length) {
+            ring.position(0);
+            ring.get(dst, first, dst.length - first);
+        }
+    }
+
+    private int readInt(int pos) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (ring.get((pos + i) % capacity) & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Decision read back from the history
+     */
+    public static class Entry {
+
+        private final int cid;
+        private final int epoch;
+        private final byte[] value;
+        private final HashSet<ConsensusMessage> proof;
+
+        Entry(int cid, int epoch, byte[] value, HashSet<ConsensusMessage> proof) {
+            this.cid = cid;
+            this.epoch = epoch;
+            this.value = value;
+            this.proof = proof;
+        }
+
+        public int getCID() {
+            return cid;
+        }
+
+        public int getEpoch() {
+            return epoch;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+
+        public HashSet<ConsensusMessage> getProof() {
+            return proof;
+        }
+    }
+}
@@ -52,7 +52,7 @@ public class Epoch implements Serializable {
     private boolean alreadyRemoved = false; // indicates if this epoch was removed from its consensus
 
     public byte[] propValue = null; // proposed value
-    public TOMMessage[] deserializedPropValue = null; //utility var
+    public volatile TOMMessage[] deserializedPropValue = null; //utility var, waited for by the delivery thread
     public byte[] propValueHash = null; // proposed value hash
     public HashSet<ConsensusMessage> proof; // proof from other processes
 
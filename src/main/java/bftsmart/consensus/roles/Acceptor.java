@@ -27,6 +27,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import bftsmart.consensus.Decision;
+import bftsmart.consensus.DecisionHistory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,6 +36,7 @@ import bftsmart.consensus.Consensus;
 import bftsmart.consensus.Epoch;
 import bftsmart.consensus.messages.ConsensusMessage;
 import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.metrics.Metrics;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.ExecutionManager;
 import bftsmart.tom.core.TOMLayer;
@@ -188,6 +190,11 @@ public final class Acceptor {
 		logger.debug("PROPOSE received from:{}, for consensus cId:{}, I am:{}", msg.getSender(), cid, me);
 		if (msg.getSender() == executionManager.getCurrentLeader() // Is the replica the leader?
 				&& epoch.getTimestamp() == 0 && ts == ets && ets == 0) { // Is all this in epoch 0?
+			if (epoch.propValue == null && controller.getStaticConf().useDigestProposals()
+					&& !tomLayer.getRequestFetcher().resolve(msg)) {
+				logger.debug("PROPOSE for consensus " + cid + " waits for requests this replica does not have");
+				return;
+			}
 			executePropose(epoch, msg.getValue());
 		} else {
 			logger.debug("Propose received is not from the expected leader");
@@ -216,10 +223,9 @@ public final class Acceptor {
 					+ cid + " with timestamp " + epoch.getConsensus().getEts());
 			/*****************************************/
 
-			// start this consensus if it is not already running
-			if (cid == tomLayer.getLastExec() + 1) {
-				tomLayer.setInExec(cid);
-			}
+			// start this consensus if it is not already running (when pipelining, instances
+			// after the next one are only registered as started)
+			tomLayer.consensusStarted(cid);
 			epoch.deserializedPropValue = tomLayer.checkProposedValue(value, true);
 
 			if (epoch.deserializedPropValue != null && !epoch.isWriteSent()) {
@@ -231,6 +237,8 @@ public final class Acceptor {
 
 				}
 				epoch.getConsensus().getDecision().firstMessageProposed.proposeReceivedTime = System.nanoTime();
+				Metrics.recordSince(Metrics.Stage.PROPOSE,
+						epoch.getConsensus().getDecision().firstMessageProposed.consensusStartTime);
 
 				if (controller.getStaticConf().isBFT()) {
 					logger.debug("Sending WRITE for " + cid);
@@ -274,6 +282,22 @@ public final class Acceptor {
 		}
 	}
 
+	/**
+	 * Called once this replica writes a value installed in an epoch by the
+	 * synchronization phase of a leader change after fetching the requests it
+	 * lacked. The WRITE and ACCEPT messages received for the value in the
+	 * meantime are taken into account.
+	 *
+	 * @param epoch The epoch in which the value was installed
+	 */
+	public void installedValueWritten(Epoch epoch) {
+		int cid = epoch.getConsensus().getId();
+		if (controller.getStaticConf().isBFT()) {
+			computeWrite(cid, epoch, epoch.propValueHash);
+		}
+		computeAccept(cid, epoch, epoch.propValueHash);
+	}
+
 	/**
 	 * Called when a WRITE message is received
 	 *
@@ -319,6 +343,8 @@ public final class Acceptor {
 				if (epoch.getConsensus().getDecision().firstMessageProposed != null) {
 
 					epoch.getConsensus().getDecision().firstMessageProposed.acceptSentTime = System.nanoTime();
+					Metrics.recordSince(Metrics.Stage.WRITE_QUORUM,
+							epoch.getConsensus().getDecision().firstMessageProposed.writeSentTime);
 				}
 
 				ConsensusMessage cm = epoch.fetchAccept();
@@ -476,8 +502,11 @@ public final class Acceptor {
 	 * @param epoch Epoch at which the decision is made
 	 */
 	private void decide(Epoch epoch) {
-		if (epoch.getConsensus().getDecision().firstMessageProposed != null)
+		if (epoch.getConsensus().getDecision().firstMessageProposed != null) {
 			epoch.getConsensus().getDecision().firstMessageProposed.decisionTime = System.nanoTime();
+			Metrics.recordSince(Metrics.Stage.ACCEPT_QUORUM,
+					epoch.getConsensus().getDecision().firstMessageProposed.acceptSentTime);
+		}
 
 		epoch.getConsensus().decided(epoch, true);
 	}
@@ -543,8 +572,16 @@ public final class Acceptor {
 				executionManager.addForwarded(msg.getNumber(), msg.getSender());
 			}
 		} else {
-			boolean consensusIsDecidedButForgotten = msg.getNumber() <= tomLayer.getLastExec() - controller.getStaticConf().getCheckpointPeriod();
-			if (consensusIsDecidedButForgotten) {
+			boolean consensusIsDecidedButForgotten = msg.getNumber() <= tomLayer.getLastExec();
+			DecisionHistory.Entry pastDecision = consensusIsDecidedButForgotten ? executionManager.getPastDecision(cid) : null;
+			if (pastDecision != null) {
+				// the consensus was removed from the consensuses map, but its decision is still in the history
+				logger.debug(">>> >> >> >> > Send FWD_DECISION for past consensus " + cid + " to replica " + msg.getSender());
+
+				ConsensusMessage forwardDecision = factory.createForwardDecision(cid, pastDecision.getEpoch(), pastDecision.getValue());
+				forwardDecision.setProof(pastDecision.getProof());
+				communication.send(new int[] { msg.getSender() }, forwardDecision);
+			} else if (consensusIsDecidedButForgotten) {
 				// we will also arrive here if a replica forgets about past consensues, because the are removed from the consensuses map
 				// this means the requester is left far behind and needs to perform a state transfer to catch up
 
@@ -576,6 +613,11 @@ public final class Acceptor {
 		// Still undecided and decision is valid and can be accepted, then
 		if (!epoch.getConsensus().isDecided() && decisionIsValid) {
 
+			if (controller.getStaticConf().useDigestProposals() && !tomLayer.getRequestFetcher().resolve(msg)) {
+				logger.debug("FWD_DECISION for consensus " + cid + " waits for requests this replica does not have");
+				return;
+			}
+
 			logger.debug("Deciding consensus " + cid + " using the forwarded decision!");
 			// If decision is valid, set deserializedPropValue in epoch
 			epoch.deserializedPropValue = tomLayer.checkProposedValue(msg.getValue(), true);
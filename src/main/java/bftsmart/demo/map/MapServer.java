@@ -8,35 +8,69 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.ServiceReplica;
-import bftsmart.tom.server.defaultservices.DefaultSingleRecoverable;
+import bftsmart.tom.server.defaultservices.DefaultRecoverable;
+import bftsmart.tom.server.parallel.ParallelExecutor;
 
-public class MapServer<K, V> extends DefaultSingleRecoverable {
+public class MapServer<K, V> extends DefaultRecoverable {
 
 	private Map<K, V> replicaMap;
 	private Logger logger;
+	private ParallelExecutor parallelExecutor;
 
 	public MapServer(int id) {
-		replicaMap = new TreeMap<>();
+		this(id, 1);
+	}
+
+	public MapServer(int id, int executionThreads) {
+		replicaMap = new ConcurrentSkipListMap<>();
 		logger = Logger.getLogger(MapServer.class.getName());
+		if (executionThreads > 1) {
+			// operations on different keys can run at the same time, SIZE and KEYSET see the whole map
+			parallelExecutor = new ParallelExecutor(executionThreads, (command, msgCtx) -> {
+				try {
+					MapMessage<K,V> request = MapMessage.fromBytes(command);
+					if (request.getType() == MapRequestType.SIZE || request.getType() == MapRequestType.KEYSET) {
+						return null;
+					}
+					return new int[]{Objects.hashCode(request.getKey())};
+				} catch (IOException | ClassNotFoundException ex) {
+					return new int[0]; // not executed anyway
+				}
+			});
+		}
 		new ServiceReplica(id, this, this);
 	}
 
 	public static void main(String[] args) {
 		if (args.length < 1) {
-			System.out.println("Usage: demo.map.MapServer <server id>");
+			System.out.println("Usage: demo.map.MapServer <server id> [<execution threads>]");
 			System.exit(-1);
 		}
-		new MapServer<String, String>(Integer.parseInt(args[0]));
+		int executionThreads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		new MapServer<String, String>(Integer.parseInt(args[0]), executionThreads);
 	}
 
 	@Override
-	public byte[] appExecuteOrdered(byte[] command, MessageContext msgCtx) {
+	public byte[][] appExecuteBatch(byte[][] commands, MessageContext[] msgCtxs, boolean fromConsensus) {
+		if (parallelExecutor != null) {
+			return parallelExecutor.executeBatch(commands, msgCtxs, this::executeOrdered);
+		}
+
+		byte[][] replies = new byte[commands.length][];
+		for (int i = 0; i < commands.length; i++) {
+			replies[i] = executeOrdered(commands[i], msgCtxs != null ? msgCtxs[i] : null);
+		}
+		return replies;
+	}
+
+	private byte[] executeOrdered(byte[] command, MessageContext msgCtx) {
 		try {
 			MapMessage<K,V> response = new MapMessage<>();
 			MapMessage<K,V> request = MapMessage.fromBytes(command);
@@ -131,7 +165,7 @@ public class MapServer<K, V> extends DefaultSingleRecoverable {
 	public void installSnapshot(byte[] state) {
 		try (ByteArrayInputStream byteIn = new ByteArrayInputStream(state);
 				ObjectInput objIn = new ObjectInputStream(byteIn)) {
-			replicaMap = (Map<K, V>)objIn.readObject();
+			replicaMap = new ConcurrentSkipListMap<>((Map<K, V>) objIn.readObject());
 		} catch (IOException | ClassNotFoundException e) {
 			logger.log(Level.SEVERE, "Error while installing snapshot", e);
 		}
@@ -22,11 +22,13 @@ import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
-import java.util.TreeMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.server.defaultservices.DefaultRecoverable;
+import bftsmart.tom.server.parallel.ParallelExecutor;
 
 /**
  *
@@ -36,84 +38,98 @@ import bftsmart.tom.server.defaultservices.DefaultRecoverable;
 public class YCSBServer extends DefaultRecoverable {
 
     private static final boolean _debug = false;
-    private TreeMap<String, YCSBTable> mTables;
+    private ConcurrentSkipListMap<String, YCSBTable> mTables;
+    private ParallelExecutor parallelExecutor;
 
     private boolean logPrinted = false;
 
     public static void main(String[] args) throws Exception {
         if (args.length == 1) {
-            new YCSBServer(Integer.parseInt(args[0]));
+            new YCSBServer(Integer.parseInt(args[0]), 1);
+        } else if (args.length == 2) {
+            new YCSBServer(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
         } else {
-            System.out.println("Usage: java ... YCSBServer <replica_id>");
+            System.out.println("Usage: java ... YCSBServer <replica_id> [<execution_threads>]");
         }
     }
 
-    private YCSBServer(int id) {
-        this.mTables = new TreeMap<>();
+    private YCSBServer(int id, int executionThreads) {
+        this.mTables = new ConcurrentSkipListMap<>();
+        if (executionThreads > 1) {
+            // records of different keys can be created/updated at the same time
+            this.parallelExecutor = new ParallelExecutor(executionThreads, (command, msgCtx) -> {
+                YCSBMessage aRequest = YCSBMessage.getObject(command);
+                return aRequest == null ? new int[0]
+                        : new int[]{Objects.hash(aRequest.getTable(), aRequest.getKey())};
+            });
+        }
         new ServiceReplica(id, this, this);
     }
 
     @Override
     public byte[][] appExecuteBatch(byte[][] commands, MessageContext[] msgCtx, boolean fromConsensus) {
-        byte[][] replies = new byte[commands.length][];
-        int index = 0;
-        for (byte[] command : commands) {
+        for (int index = 0; index < commands.length; index++) {
             if (msgCtx != null && msgCtx[index] != null && msgCtx[index].getConsensusId() % 1000 == 0 && !logPrinted) {
                 System.out.println("YCSBServer executing CID: " + msgCtx[index].getConsensusId());
                 logPrinted = true;
             } else {
                 logPrinted = false;
             }
+        }
 
-            YCSBMessage aRequest = YCSBMessage.getObject(command);
-            YCSBMessage reply = YCSBMessage.newErrorMessage("");
-            if (aRequest == null) {
-                replies[index] = reply.getBytes();
-                continue;
-            }
-            if (_debug) {
-                System.out.println("[INFO] Processing an ordered request");
-            }
-            switch (aRequest.getType()) {
-                case CREATE: { // ##### operation: create #####
-                    switch (aRequest.getEntity()) {
-                        case RECORD: // ##### entity: record #####
-                            if (!mTables.containsKey(aRequest.getTable())) {
-                                mTables.put((String) aRequest.getTable(), new YCSBTable());
-                            }
-                            if (!mTables.get(aRequest.getTable()).containsKey(aRequest.getKey())) {
-                                mTables.get(aRequest.getTable()).put(aRequest.getKey(), aRequest.getValues());
-                                reply = YCSBMessage.newInsertResponse(0);
-                            }
-                            break;
-                        default: // Only create records
-                            break;
-                    }
-                    break;
-                }
+        if (parallelExecutor != null) {
+            return parallelExecutor.executeBatch(commands, msgCtx, (command, ctx) -> executeOrdered(command));
+        }
 
-                case UPDATE: { // ##### operation: update #####
-                    switch (aRequest.getEntity()) {
-                        case RECORD: // ##### entity: record #####
-                            if (!mTables.containsKey(aRequest.getTable())) {
-                                mTables.put((String) aRequest.getTable(), new YCSBTable());
-                            }
-                            mTables.get(aRequest.getTable()).put(aRequest.getKey(), aRequest.getValues());
-                            reply = YCSBMessage.newUpdateResponse(1);
-                            break;
-                        default: // Only update records
-                            break;
-                    }
-                    break;
+        byte[][] replies = new byte[commands.length][];
+        for (int index = 0; index < commands.length; index++) {
+            replies[index] = executeOrdered(commands[index]);
+        }
+//		System.out.println("RETURNING REPLY");
+        return replies;
+    }
+
+    private byte[] executeOrdered(byte[] command) {
+        YCSBMessage aRequest = YCSBMessage.getObject(command);
+        YCSBMessage reply = YCSBMessage.newErrorMessage("");
+        if (aRequest == null) {
+            return reply.getBytes();
+        }
+        if (_debug) {
+            System.out.println("[INFO] Processing an ordered request");
+        }
+        switch (aRequest.getType()) {
+            case CREATE: { // ##### operation: create #####
+                switch (aRequest.getEntity()) {
+                    case RECORD: // ##### entity: record #####
+                        YCSBTable table = mTables.computeIfAbsent(aRequest.getTable(), t -> new YCSBTable());
+                        if (table.putIfAbsent(aRequest.getKey(), aRequest.getValues()) == null) {
+                            reply = YCSBMessage.newInsertResponse(0);
+                        }
+                        break;
+                    default: // Only create records
+                        break;
                 }
+                break;
             }
-            if (_debug) {
-                System.out.println("[INFO] Sending reply");
+
+            case UPDATE: { // ##### operation: update #####
+                switch (aRequest.getEntity()) {
+                    case RECORD: // ##### entity: record #####
+                        mTables.computeIfAbsent(aRequest.getTable(), t -> new YCSBTable())
+                                .put(aRequest.getKey(), aRequest.getValues());
+                        reply = YCSBMessage.newUpdateResponse(1);
+                        break;
+                    default: // Only update records
+                        break;
+                }
+                break;
             }
-            replies[index++] = reply.getBytes();
         }
-//		System.out.println("RETURNING REPLY");
-        return replies;
+        if (_debug) {
+            System.out.println("[INFO] Sending reply");
+        }
+        return reply.getBytes();
     }
 
     @Override
@@ -157,7 +173,7 @@ public class YCSBServer extends DefaultRecoverable {
         try {
             ByteArrayInputStream bis = new ByteArrayInputStream(state);
             ObjectInput in = new ObjectInputStream(bis);
-            mTables = (TreeMap<String, YCSBTable>) in.readObject();
+            mTables = (ConcurrentSkipListMap<String, YCSBTable>) in.readObject();
             in.close();
             bis.close();
         } catch (IOException | ClassNotFoundException e) {
@@ -0,0 +1,278 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.metrics;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+
+/**
+ * Latency histograms for the stages a request goes through in a replica, and gauges
+ * for the size of its queues. Metrics are only collected after start() is invoked with
+ * system.metrics.enabled set, and are then written periodically to a file and/or
+ * published through JMX (as attributes of bftsmart:type=Metrics,replica=id). Each
+ * period reports the latencies recorded since the previous one.
+ *
+ * The metrics are kept per JVM, so replicas running in the same JVM share them.
+ */
+public final class Metrics {
+
+    /**
+     * Stages for which latencies are recorded.
+     */
+    public enum Stage {
+        /** time spent by the ClientsManager accepting a request (includes verification) */
+        RECEIVE,
+        /** time to verify the signature of a request */
+        VERIFY,
+        /** time a request waits until it is included in a proposal (leader only) */
+        BATCH,
+        /** time from the start of a consensus until its proposal is validated */
+        PROPOSE,
+        /** time from sending WRITE until a quorum of WRITEs is received */
+        WRITE_QUORUM,
+        /** time from sending ACCEPT until the value is decided */
+        ACCEPT_QUORUM,
+        /** time from the decision until it is delivered to the application */
+        DELIVER,
+        /** time spent by the application executing the requests of a delivery */
+        EXECUTE,
+        /** time from the end of the execution until the reply is sent */
+        REPLY
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+
+    private static volatile boolean enabled = false;
+
+    private static final LatencyRecorder[] recorders = new LatencyRecorder[Stage.values().length];
+    private static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private static final Map<String, Number> lastValues = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService reporter;
+    private static PrintWriter out;
+
+    static {
+        for (int i = 0; i < recorders.length; i++) {
+            recorders[i] = new LatencyRecorder();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @return true if metrics are being collected
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records the latency of a stage.
+     *
+     * @param stage the stage
+     * @param nanos the latency, in nanoseconds
+     */
+    public static void record(Stage stage, long nanos) {
+        if (enabled) {
+            recorders[stage.ordinal()].record(nanos);
+        }
+    }
+
+    /**
+     * Records the time elapsed since a given instant of System.nanoTime(). Does nothing
+     * if the instant is not set (i.e., is 0).
+     *
+     * @param stage the stage
+     * @param startNanos when the stage started
+     */
+    public static void recordSince(Stage stage, long startNanos) {
+        if (enabled && startNanos != 0) {
+            recorders[stage.ordinal()].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Registers a gauge, which is sampled at each period. A gauge registered with the
+     * name of an existing one replaces it.
+     *
+     * @param name name of the gauge
+     * @param gauge provides the current value
+     */
+    public static void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Starts collecting and reporting metrics, if enabled in the configuration.
+     *
+     * @param conf the configuration of the replica
+     */
+    public static synchronized void start(TOMConfiguration conf) {
+        if (!conf.isMetricsEnabled() || reporter != null) {
+            return;
+        }
+
+        if (conf.getMetricsFile() != null) {
+            try {
+                out = new PrintWriter(new FileWriter(conf.getMetricsFile(), true), true);
+            } catch (IOException ex) {
+                logger.error("Could not open metrics file " + conf.getMetricsFile(), ex);
+            }
+        }
+        if (conf.isMetricsJMX()) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+                        new ObjectName("bftsmart:type=Metrics,replica=" + conf.getProcessId()));
+            } catch (Exception ex) {
+                logger.error("Could not register metrics in JMX", ex);
+            }
+        }
+
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Metrics Reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(Metrics::report, conf.getMetricsPeriod(), conf.getMetricsPeriod(),
+                TimeUnit.MILLISECONDS);
+        enabled = true;
+
+        logger.info("Reporting metrics every {} ms", conf.getMetricsPeriod());
+    }
+
+    /**
+     * Stops collecting and reporting metrics.
+     */
+    public static synchronized void stop() {
+        enabled = false;
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private static void report() {
+        try {
+            long now = System.currentTimeMillis();
+            StringBuilder sb = new StringBuilder();
+
+            for (Stage stage : Stage.values()) {
+                LatencyRecorder.Snapshot s = recorders[stage.ordinal()].snapshotAndReset();
+                String name = stage.name().toLowerCase(Locale.ROOT);
+                lastValues.put(name + ".count", s.getCount());
+                lastValues.put(name + ".mean_us", s.getMean() / 1000.0);
+                lastValues.put(name + ".p50_us", s.getPercentile(50) / 1000.0);
+                lastValues.put(name + ".p90_us", s.getPercentile(90) / 1000.0);
+                lastValues.put(name + ".p99_us", s.getPercentile(99) / 1000.0);
+                lastValues.put(name + ".p999_us", s.getPercentile(99.9) / 1000.0);
+                lastValues.put(name + ".max_us", s.getMax() / 1000.0);
+
+                sb.append(String.format(Locale.ROOT,
+                        "%d stage=%s count=%d mean_us=%.1f p50_us=%.1f p90_us=%.1f p99_us=%.1f p999_us=%.1f max_us=%.1f%n",
+                        now, name, s.getCount(), s.getMean() / 1000.0, s.getPercentile(50) / 1000.0,
+                        s.getPercentile(90) / 1000.0, s.getPercentile(99) / 1000.0,
+                        s.getPercentile(99.9) / 1000.0, s.getMax() / 1000.0));
+            }
+
+            for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+                long value = gauge.getValue().getAsLong();
+                lastValues.put(gauge.getKey(), value);
+                sb.append(now).append(" gauge=").append(gauge.getKey()).append(" value=").append(value)
+                        .append(System.lineSeparator());
+            }
+
+            if (out != null) {
+                out.print(sb);
+                out.flush();
+            } else {
+                logger.debug("Metrics:{}{}", System.lineSeparator(), sb);
+            }
+        } catch (Exception ex) {
+            logger.error("Failed to report metrics", ex);
+        }
+    }
+
+    /**
+     * Exposes the values of the last period as read-only JMX attributes.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) {
+            Number value = lastValues.get(attribute);
+            return value != null ? value.doubleValue() : null;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("No operations available");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = lastValues.keySet().stream().sorted()
+                    .map(name -> new MBeanAttributeInfo(name, "java.lang.Double", name, true, false, false))
+                    .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(Metrics.class.getName(), "BFT-SMaRt replica metrics", attributes, null, null, null);
+        }
+    }
+}
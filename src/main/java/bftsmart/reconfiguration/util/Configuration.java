@@ -350,6 +350,14 @@ public class Configuration {
 			}
 			fr.close();
 			rd.close();
+
+			// JVM properties (e.g., -Dsystem.totalordermulticast.pipeline_window=4) take
+			// precedence over the values read from system.config
+			for (String key : System.getProperties().stringPropertyNames()) {
+				if (key.startsWith("system.")) {
+					configs.put(key, System.getProperty(key).trim());
+				}
+			}
 		} catch (Exception e) {
 			LoggerFactory.getLogger(this.getClass()).error("Could not load configuration", e);
 		}
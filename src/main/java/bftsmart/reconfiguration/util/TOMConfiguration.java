@@ -38,15 +38,19 @@ public class TOMConfiguration extends Configuration {
     protected int replyVerificationTime;
     protected int maxBatchSize;
     protected int maxBatchSizeInBytes;
+    protected int pipelineWindow;
     protected int numberOfNonces;
     protected int inQueueSize;
     protected int outQueueSize;
     protected boolean shutdownHookEnabled;
     protected boolean useSenderThread;
+    protected String replicaTransport;
     private int numNIOThreads;
     private int useSignatures;
     private boolean stateTransferEnabled;
     private int checkpointPeriod;
+    private int consensusWindow;
+    private int decisionHistorySize;
     private int globalCheckpointPeriod;
     private int useControlFlow;
     private int maxRequestSize;
@@ -54,17 +58,36 @@ public class TOMConfiguration extends Configuration {
     private int ttpId;
     private boolean isToLog;
     private boolean syncLog;
+    private long logSegmentSize;
     private boolean parallelLog;
     private boolean logToDisk;
     private boolean isToWriteCkpsToDisk;
     private boolean syncCkp;
+    private boolean asyncCheckpoint;
+    private int stateChunkSize;
+    private long stateTransferBandwidth;
     private boolean isBFT;
     private int numRepliers;
+    private int numReadOnlyThreads;
+    private int readOnlyQueueSize;
+    private int leaderLease;
+    private int leaseClockDrift;
     private int numNettyWorkers;
+    private int numSignatureVerifiers;
+    private boolean requestPipeline;
+    private int verifiedSignaturesCacheSize;
+    private boolean metricsEnabled;
+    private int metricsPeriod;
+    private String metricsFile;
+    private boolean metricsJMX;
     private boolean sameBatchSize;
     private boolean fairbatch;
+    private boolean digestProposals;
     private String bindAddress;
     private int clientInvokeOrderedTimeout;
+    private int clientInvokeLeaseReadTimeout;
+    private boolean clientMultiplexRequests;
+    private int clientAsyncWindow;
 
     /* Tulio Ribeiro*/
     //private Boolean ssltls=true;
@@ -173,6 +196,16 @@ public class TOMConfiguration extends Configuration {
                 }
             }
 
+            s = (String) configs.remove("system.totalordermulticast.pipeline_window");
+            if (s == null) {
+                pipelineWindow = 1;
+            } else {
+                pipelineWindow = Integer.parseInt(s);
+                if (pipelineWindow < 1) {
+                    pipelineWindow = 1;
+                }
+            }
+
             s = (String) configs.remove("system.totalordermulticast.replayVerificationTime");
             if (s == null) {
                 replyVerificationTime = 0;
@@ -194,6 +227,13 @@ public class TOMConfiguration extends Configuration {
                 useSenderThread = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.communication.replicaTransport");
+            if (s == null || !s.equalsIgnoreCase("netty")) {
+                replicaTransport = "sockets";
+            } else {
+                replicaTransport = "netty";
+            }
+
             s = (String) configs.remove("system.communication.numNIOThreads");
             if (s == null) {
                 numNIOThreads = 2;
@@ -215,6 +255,26 @@ public class TOMConfiguration extends Configuration {
                 stateTransferEnabled = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.totalordermulticast.state_chunk_size");
+            if (s == null) {
+                stateChunkSize = 0;
+            } else {
+                stateChunkSize = Integer.parseInt(s);
+                if (stateChunkSize < 0) {
+                    stateChunkSize = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.state_transfer_bandwidth");
+            if (s == null) {
+                stateTransferBandwidth = 0;
+            } else {
+                stateTransferBandwidth = Long.parseLong(s);
+                if (stateTransferBandwidth < 0) {
+                    stateTransferBandwidth = 0;
+                }
+            }
+
             s = (String) configs.remove("system.totalordermulticast.checkpoint_period");
             if (s == null) {
                 checkpointPeriod = 1;
@@ -222,6 +282,26 @@ public class TOMConfiguration extends Configuration {
                 checkpointPeriod = Integer.parseInt(s);
             }
 
+            s = (String) configs.remove("system.totalordermulticast.consensus_window");
+            if (s == null) {
+                consensusWindow = 2;
+            } else {
+                consensusWindow = Integer.parseInt(s);
+                if (consensusWindow < 1) {
+                    consensusWindow = 1;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.decision_history_size");
+            if (s == null) {
+                decisionHistorySize = 67108864;
+            } else {
+                decisionHistorySize = Integer.parseInt(s);
+                if (decisionHistorySize < 0) {
+                    decisionHistorySize = 0;
+                }
+            }
+
             s = (String) configs.remove("system.communication.useControlFlow");
             if (s == null) {
                 useControlFlow = 0;
@@ -313,6 +393,17 @@ public class TOMConfiguration extends Configuration {
                     syncLog = false;
             }
 
+            s = (String) configs
+                            .remove("system.totalordermulticast.log_segment_size");
+            if (s == null) {
+                    logSegmentSize = 64 * 1024 * 1024;
+            } else {
+                    logSegmentSize = Long.parseLong(s);
+                    if (logSegmentSize < 0) {
+                            logSegmentSize = 64 * 1024 * 1024;
+                    }
+            }
+
             s = (String) configs
                             .remove("system.totalordermulticast.checkpoint_to_disk");
             if (s == null) {
@@ -329,6 +420,14 @@ public class TOMConfiguration extends Configuration {
                     syncCkp = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs
+                            .remove("system.totalordermulticast.async_checkpoint");
+            if (s == null) {
+                    asyncCheckpoint = false;
+            } else {
+                    asyncCheckpoint = Boolean.parseBoolean(s);
+            }
+
             s = (String) configs.remove("system.totalordermulticast.global_checkpoint_period");
             if (s == null) {
                 globalCheckpointPeriod = 1;
@@ -345,6 +444,42 @@ public class TOMConfiguration extends Configuration {
             } else {
                 numRepliers = Integer.parseInt(s);
             }
+
+            s = (String) configs.remove("system.optimizations.readonly_threads");
+            if (s == null) {
+                numReadOnlyThreads = 0;
+            } else {
+                numReadOnlyThreads = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.optimizations.readonly_queue_size");
+            if (s == null) {
+                readOnlyQueueSize = 1000;
+            } else {
+                readOnlyQueueSize = Integer.parseInt(s);
+                if (readOnlyQueueSize < 1) {
+                    readOnlyQueueSize = 1000;
+                }
+            }
+
+            s = (String) configs.remove("system.optimizations.leader_lease");
+            if (s == null) {
+                leaderLease = 0;
+            } else {
+                leaderLease = Integer.parseInt(s);
+                if (leaderLease > 0 && isBFT) {
+                    // the client trusts the reply of a single replica to a lease read
+                    logger.error("Leader leases cannot be used with system.bft = true, disabling them");
+                    leaderLease = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.optimizations.lease_clock_drift");
+            if (s == null) {
+                leaseClockDrift = 50;
+            } else {
+                leaseClockDrift = Integer.parseInt(s);
+            }
  
             s = (String) configs.remove("system.numnettyworkers");
             if (s == null) {
@@ -352,6 +487,58 @@ public class TOMConfiguration extends Configuration {
             } else {
                 numNettyWorkers = Integer.parseInt(s);
             }
+
+            s = (String) configs.remove("system.communication.signatureVerifiers");
+            if (s == null) {
+                numSignatureVerifiers = 0;
+            } else {
+                numSignatureVerifiers = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.communication.requestPipeline");
+            if (s == null) {
+                requestPipeline = false;
+            } else {
+                requestPipeline = Boolean.parseBoolean(s);
+            }
+
+            s = (String) configs.remove("system.communication.verifiedSignaturesCacheSize");
+            if (s == null) {
+                verifiedSignaturesCacheSize = 65536;
+            } else {
+                verifiedSignaturesCacheSize = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.metrics.enabled");
+            if (s == null) {
+                metricsEnabled = false;
+            } else {
+                metricsEnabled = Boolean.parseBoolean(s);
+            }
+
+            s = (String) configs.remove("system.metrics.period");
+            if (s == null) {
+                metricsPeriod = 10000;
+            } else {
+                metricsPeriod = Integer.parseInt(s);
+                if (metricsPeriod <= 0) {
+                    metricsPeriod = 10000;
+                }
+            }
+
+            s = (String) configs.remove("system.metrics.file");
+            if (s == null || s.trim().isEmpty()) {
+                metricsFile = null;
+            } else {
+                metricsFile = s.trim();
+            }
+
+            s = (String) configs.remove("system.metrics.jmx");
+            if (s == null) {
+                metricsJMX = false;
+            } else {
+                metricsJMX = Boolean.parseBoolean(s);
+            }
             
             s = (String) configs.remove("system.communication.bindaddress");
             
@@ -376,6 +563,13 @@ public class TOMConfiguration extends Configuration {
             } else {
                     fairbatch = false;
             }
+
+            s = (String) configs.remove("system.totalordermulticast.digest_proposals");
+            if (s != null) {
+                    digestProposals = Boolean.parseBoolean(s);
+            } else {
+                    digestProposals = false;
+            }
             
             /**
              * Tulio Ribeiro 
@@ -432,6 +626,30 @@ public class TOMConfiguration extends Configuration {
                 clientInvokeOrderedTimeout = Integer.parseInt(s);
             }
 
+            s = (String) configs.remove("system.client.invokeLeaseReadTimeout");
+            if (s == null) {
+                clientInvokeLeaseReadTimeout = 1;
+            } else {
+                clientInvokeLeaseReadTimeout = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.client.multiplexRequests");
+            if (s == null) {
+                clientMultiplexRequests = false;
+            } else {
+                clientMultiplexRequests = Boolean.parseBoolean(s);
+            }
+
+            s = (String) configs.remove("system.client.asyncWindow");
+            if (s == null) {
+                clientAsyncWindow = 1000;
+            } else {
+                clientAsyncWindow = Integer.parseInt(s);
+                if (clientAsyncWindow < 1) {
+                    clientAsyncWindow = 1;
+                }
+            }
+
         } catch (Exception e) {
             logger.error("Could not parse system configuration file",e);
         }
@@ -504,6 +722,14 @@ public class TOMConfiguration extends Configuration {
         return maxBatchSizeInBytes;
     }
 
+    /**
+     * The maximum number of consensus instances the leader may have in execution at the same
+     * time. A value of 1 means that a new instance is only started once the previous one is decided.
+     */
+    public int getPipelineWindow() {
+        return pipelineWindow;
+    }
+
     public boolean isShutdownHookEnabled() {
         return shutdownHookEnabled;
     }
@@ -512,6 +738,22 @@ public class TOMConfiguration extends Configuration {
         return stateTransferEnabled;
     }
 
+    /**
+     * Size of the chunks in which the state is transferred, or 0 if the
+     * state is sent whole in a single message
+     */
+    public int getStateChunkSize() {
+        return stateChunkSize;
+    }
+
+    /**
+     * Maximum rate, in bytes per second, at which a replica sends its state
+     * to the replicas that are recovering, or 0 if the rate is not limited
+     */
+    public long getStateTransferBandwidth() {
+        return stateTransferBandwidth;
+    }
+
     public int getInQueueSize() {
         return inQueueSize;
     }
@@ -524,6 +766,14 @@ public class TOMConfiguration extends Configuration {
         return useSenderThread;
     }
 
+    /**
+     * Transport used between replicas: "sockets" (one sender and one receiver thread
+     * per connection) or "netty" (event loops shared by all connections)
+     */
+    public String getReplicaTransport() {
+        return replicaTransport;
+    }
+
     /**
      *     *
      */
@@ -550,6 +800,22 @@ public class TOMConfiguration extends Configuration {
         return checkpointPeriod;
     }
 
+    /**
+     * Number of executed consensus instances kept in memory by the execution
+     * manager, besides the ones still running
+     */
+    public int getConsensusWindow() {
+        return consensusWindow;
+    }
+
+    /**
+     * Size (in bytes) of the off-heap history that keeps the decisions and
+     * proofs of older consensus instances, or 0 if they are discarded
+     */
+    public int getDecisionHistorySize() {
+        return decisionHistorySize;
+    }
+
 	public boolean isToWriteCkpsToDisk() {
 		return isToWriteCkpsToDisk;
 	}
@@ -558,6 +824,14 @@ public class TOMConfiguration extends Configuration {
 		return syncCkp;
 	}
 
+    /**
+     * Whether checkpoints are serialized and stored in the background,
+     * while the execution of the following batches continues
+     */
+	public boolean isAsyncCheckpoint() {
+		return asyncCheckpoint;
+	}
+
 	public boolean isToLog() {
 		return isToLog;
 	}
@@ -570,6 +844,13 @@ public class TOMConfiguration extends Configuration {
 		return logToDisk;
 	}
 
+    /**
+     * Size to which each segment of the disk log is preallocated
+     */
+	public long getLogSegmentSize() {
+		return logSegmentSize;
+	}
+
 	public boolean isToLogParallel() {
 		// TODO Auto-generated method stub
 		return parallelLog;
@@ -605,10 +886,76 @@ public class TOMConfiguration extends Configuration {
     public int getNumRepliers() {
         return numRepliers;
     }
+
+    public int getNumReadOnlyThreads() {
+        return numReadOnlyThreads;
+    }
+
+    public int getReadOnlyQueueSize() {
+        return readOnlyQueueSize;
+    }
+
+    /**
+     * Duration of the leases granted to the leader, in milliseconds (0 if leases are disabled).
+     */
+    public int getLeaderLease() {
+        return leaderLease;
+    }
+
+    /**
+     * Bound on the clock drift between replicas during a lease, in milliseconds.
+     */
+    public int getLeaseClockDrift() {
+        return leaseClockDrift;
+    }
     
     public int getNumNettyWorkers() {
         return numNettyWorkers;
     }
+
+    /**
+     * Number of threads verifying client signatures (0 means one per core).
+     */
+    public int getNumSignatureVerifiers() {
+        return numSignatureVerifiers;
+    }
+
+    /**
+     * Whether all client requests are verified and admitted by the threads of the
+     * RequestVerificationStage instead of the Netty event loops.
+     */
+    public boolean isRequestPipeline() {
+        return requestPipeline;
+    }
+
+    /**
+     * Number of verified requests remembered to avoid verifying their signatures again.
+     */
+    public int getVerifiedSignaturesCacheSize() {
+        return verifiedSignaturesCacheSize;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * Period (in milliseconds) at which metrics are reported.
+     */
+    public int getMetricsPeriod() {
+        return metricsPeriod;
+    }
+
+    /**
+     * File to which metrics are appended, or null if they are not written to a file.
+     */
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    public boolean isMetricsJMX() {
+        return metricsJMX;
+    }
     
     public boolean getSameBatchSize() {
         return sameBatchSize;
@@ -617,6 +964,14 @@ public class TOMConfiguration extends Configuration {
     public boolean getFairBatch() {
         return fairbatch;
     }
+
+    /**
+     * Indicates if the leader proposes the digests of the requests instead of
+     * the requests themselves
+     */
+    public boolean useDigestProposals() {
+        return digestProposals;
+    }
     
     public String getBindAddress() {
         return bindAddress;
@@ -626,6 +981,24 @@ public class TOMConfiguration extends Configuration {
         return clientInvokeOrderedTimeout;
     }
 
+    public int getClientInvokeLeaseReadTimeout() {
+        return clientInvokeLeaseReadTimeout;
+    }
+
+    /**
+     * Whether a ServiceProxy lets several threads have requests in flight at the same time.
+     */
+    public boolean isClientMultiplexRequests() {
+        return clientMultiplexRequests;
+    }
+
+    /**
+     * Maximum number of requests an AsynchServiceProxy has in flight through its futures API.
+     */
+    public int getClientAsyncWindow() {
+        return clientAsyncWindow;
+    }
+
     /**
      * Tulio Ribeiro ## SSL/TLS getters.
      * */
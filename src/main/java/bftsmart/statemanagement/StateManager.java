@@ -208,6 +208,22 @@ public abstract class StateManager {
         }
     }
 
+    /**
+     * Asks the other replicas for the state up to a consensus that is decided
+     * but that this replica cannot execute by itself, e.g., because it could
+     * not fetch the requests of the decided value.
+     *
+     * @param cid The consensus whose decision should be part of the state
+     */
+    public void requestDecidedState(int cid) {
+        if (waitingCID == -1) {
+            logger.info("Requesting the state up to CID " + cid + ", which this replica cannot execute");
+            lastCID = cid + 1;
+            waitingCID = cid;
+            requestState();
+        }
+    }
+
     public boolean isRetrievingState() {
         if (isInitializing) {
             return true;
@@ -172,4 +172,18 @@ public class CSTState implements ApplicationState {
     public byte[] getHashCheckpoint() {
         return hashCheckpoint;
     }
+
+    /**
+     * Creates a copy of this state with the given checkpoint and log portions,
+     * used to rebuild a state whose contents were sent apart from it
+     * (see CSTStateTransfer)
+     * @param state The checkpoint
+     * @param logLower The lower portion of the log
+     * @param logUpper The upper portion of the log
+     * @return The state with the given contents
+     */
+    public CSTState withContents(byte[] state, CommandsInfo[] logLower, CommandsInfo[] logUpper) {
+        return new CSTState(state, hashCheckpoint, logLower, hashLogLower, logUpper, hashLogUpper,
+                checkpointCID, lastCID, pid);
+    }
 }
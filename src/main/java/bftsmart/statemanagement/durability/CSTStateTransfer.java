@@ -0,0 +1,204 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.durability;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import bftsmart.tom.server.defaultservices.CommandsInfo;
+import bftsmart.tom.server.defaultservices.FileRecoverer;
+import bftsmart.tom.util.BandwidthLimiter;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * The part of the state that a replica sends in the collaborative state
+ * transfer, kept as regions of its checkpoint and log files. The regions are
+ * copied from the files to the socket with FileChannel.transferTo, so the
+ * checkpoint and the batches of the log are neither read into the heap nor
+ * deserialized by the sender.
+ *
+ * On the wire, the transfer is the serialized CSTState without the checkpoint
+ * and the log portions, followed by the checkpoint, the lower log and the
+ * upper log, each preceded by its length (-1 if absent). The log portions are
+ * sent in the format of the log file.
+ */
+public class CSTStateTransfer implements Closeable {
+
+    public static final int CHECKPOINT = 0;
+    public static final int LOG_LOWER = 1;
+    public static final int LOG_UPPER = 2;
+
+    private static final long SLICE = 65536;
+    private static final int MAX_METADATA = 16 * 1024 * 1024; // the metadata only has hashes and ids
+    private static final int MAX_SECTION = Integer.MAX_VALUE - 8; // largest array the JVM can allocate
+
+    private final CSTState metadata;
+    private final FileChannel[] channels = new FileChannel[3];
+    private final long[] positions = new long[3];
+    private final long[] lengths = { -1, -1, -1 };
+
+    /**
+     * @param metadata The state to send, without the checkpoint and the log
+     * portions
+     */
+    public CSTStateTransfer(CSTState metadata) {
+        this.metadata = metadata;
+    }
+
+    /**
+     * Sets the region of a file that holds one of the parts of the state
+     *
+     * @param section CHECKPOINT, LOG_LOWER or LOG_UPPER
+     * @param channel The file holding the part
+     * @param position Where the part starts in the file
+     * @param length Size of the part
+     */
+    public void setSection(int section, FileChannel channel, long position, long length) {
+        channels[section] = channel;
+        positions[section] = position;
+        lengths[section] = length;
+    }
+
+    /**
+     * Sends the state through the socket
+     *
+     * @param socket Blocking channel to the recovering replica
+     * @param limiter Bounds the rate at which the regions are sent
+     */
+    public void write(SocketChannel socket, BandwidthLimiter limiter) throws IOException, InterruptedException {
+        byte[] meta = TOMUtil.getBytes(metadata);
+        ByteBuffer header = ByteBuffer.allocate(4 + meta.length);
+        header.putInt(meta.length);
+        header.put(meta);
+        header.flip();
+        writeFully(socket, header);
+
+        ByteBuffer length = ByteBuffer.allocate(8);
+        for (int i = 0; i < channels.length; i++) {
+            length.clear();
+            length.putLong(lengths[i]);
+            length.flip();
+            writeFully(socket, length);
+
+            long sent = 0;
+            while (sent < lengths[i]) {
+                long slice = Math.min(SLICE, lengths[i] - sent);
+                limiter.acquire(slice);
+                long end = sent + slice;
+                while (sent < end) {
+                    long n = channels[i].transferTo(positions[i] + sent, end - sent, socket);
+                    if (n <= 0 && positions[i] + sent >= channels[i].size()) {
+                        throw new EOFException("File region is no longer available");
+                    }
+                    sent += n;
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives a state sent by write
+     *
+     * @param socket Blocking channel to the replica sending the state
+     * @return The state with its checkpoint and log portions
+     */
+    public static CSTState read(SocketChannel socket) throws IOException, ClassNotFoundException {
+        int metaLength = readFully(socket, ByteBuffer.allocate(4)).getInt();
+        if (metaLength <= 0 || metaLength > MAX_METADATA) {
+            throw new IOException("Invalid state metadata size: " + metaLength);
+        }
+        byte[] meta = new byte[metaLength];
+        readFully(socket, ByteBuffer.wrap(meta));
+        CSTState metadata = (CSTState) TOMUtil.getObject(meta);
+        if (metadata == null) {
+            throw new IOException("Could not deserialize state metadata");
+        }
+
+        byte[][] sections = new byte[3][];
+        ByteBuffer length = ByteBuffer.allocate(8);
+        for (int i = 0; i < sections.length; i++) {
+            length.clear();
+            long size = readFully(socket, length).getLong();
+            if (size < -1 || size > MAX_SECTION) {
+                throw new IOException("Invalid state section size: " + size);
+            }
+            if (size >= 0) {
+                sections[i] = readSection(socket, (int) size);
+            }
+        }
+
+        byte[] state = sections[CHECKPOINT] != null ? sections[CHECKPOINT] : metadata.getSerializedState();
+        CommandsInfo[] logLower = sections[LOG_LOWER] != null
+                ? FileRecoverer.readLogRecords(sections[LOG_LOWER]) : metadata.getLogLower();
+        CommandsInfo[] logUpper = sections[LOG_UPPER] != null
+                ? FileRecoverer.readLogRecords(sections[LOG_UPPER]) : metadata.getLogUpper();
+        return metadata.withContents(state, logLower, logUpper);
+    }
+
+    /**
+     * Closes the files of the regions
+     */
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] != null && channels[i].isOpen()) {
+                channels[i].close();
+            }
+        }
+    }
+
+    private static void writeFully(SocketChannel socket, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            socket.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a section of the given size. The buffer grows as the data
+     * arrives, so a bogus size sent by the peer does not make this replica
+     * allocate more than about twice what it actually received.
+     */
+    private static byte[] readSection(SocketChannel socket, int size) throws IOException {
+        byte[] data = new byte[(int) Math.min(size, SLICE)];
+        int received = 0;
+        while (received < size) {
+            if (received == data.length) {
+                data = Arrays.copyOf(data, (int) Math.min(2L * data.length, size));
+            }
+            int n = socket.read(ByteBuffer.wrap(data, received, data.length - received));
+            if (n < 0) {
+                throw new EOFException("Connection closed before the state was received");
+            }
+            received += n;
+        }
+        return data;
+    }
+
+    private static ByteBuffer readFully(SocketChannel socket, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (socket.read(buffer) < 0) {
+                throw new EOFException("Connection closed before the state was received");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
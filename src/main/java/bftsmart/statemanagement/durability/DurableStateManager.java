@@ -16,14 +16,12 @@
 package bftsmart.statemanagement.durability;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.consensus.messages.ConsensusMessage;
@@ -33,6 +31,8 @@ import bftsmart.statemanagement.SMMessage;
 import bftsmart.statemanagement.StateManager;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
 import bftsmart.tom.server.durability.DurabilityCoordinator;
+import bftsmart.tom.util.BandwidthLimiter;
+import bftsmart.tom.util.Scheduler;
 import bftsmart.tom.util.TOMUtil;
 
 import org.slf4j.Logger;
@@ -43,7 +43,7 @@ public class DurableStateManager extends StateManager {
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private ReentrantLock lockTimer = new ReentrantLock();
-    private Timer stateTimer = null;
+    private Scheduler.Timeout stateTimer = null;
     private final static long INIT_TIMEOUT = 40000;
     private long timeout = INIT_TIMEOUT;
 
@@ -53,7 +53,11 @@ public class DurableStateManager extends StateManager {
     private CSTState stateLower;
     private CSTState stateUpper;
     
-    private Thread stateThread = null;
+    private StateSenderServer stateServer = null;
+
+    private HashMap<Integer, CSTState> fetchedStates = new HashMap<>();
+    private HashSet<Integer> fetching = new HashSet<>();
+    private int fetchRound = 0;
     
     @Override
     protected void requestState() {
@@ -77,7 +81,7 @@ public class DurableStateManager extends StateManager {
         logger.info("I just sent a request to the other replicas for the state up to CID "
                 + waitingCID);
 
-        TimerTask stateTask = new TimerTask() {
+        Runnable stateTask = new Runnable() {
             public void run() {
                 
                 logger.info("Timeout to retrieve state");
@@ -88,9 +92,8 @@ public class DurableStateManager extends StateManager {
             }
         };
 
-        stateTimer = new Timer("state timer");
         timeout = timeout * 2;
-        stateTimer.schedule(stateTask, timeout);
+        stateTimer = Scheduler.schedule(stateTask, timeout);
     }
 
     @Override
@@ -138,17 +141,65 @@ public class DurableStateManager extends StateManager {
 
             tomLayer.getCommunication().send(targets, reply);
             
-            if (stateThread == null) {
+            if (stateServer == null) {
                 
-                StateSenderServer stateServer = new StateSenderServer(port);
+                stateServer = new StateSenderServer(port,
+                        new BandwidthLimiter(SVController.getStaticConf().getStateTransferBandwidth()));
                 stateServer.setRecoverable(dt.getRecoverer());
                 stateServer.setRequest(cstConfig);
-                stateThread = new Thread(stateServer);
+                Thread stateThread = new Thread(stateServer, "State sender server");
+                stateThread.setDaemon(true);
                 stateThread.start();
+            } else {
+                stateServer.setRequest(cstConfig);
             }
         }
     }
 
+    @Override
+    protected void reset() {
+        super.reset();
+        fetchedStates.clear();
+        fetching.clear();
+        fetchRound++;
+    }
+
+    /**
+     * Receives the part of the state sent by the replica of the reply in a
+     * separate thread, so that the checkpoint and the two log portions are
+     * received in parallel and the state messages are not held up while they
+     * arrive. Must be invoked with lockTimer held.
+     */
+    private void fetchState(final CSTSMMessage reply, final boolean isBFT) {
+        final InetSocketAddress address = reply.getCstConfig().getAddress();
+        final int round = fetchRound;
+
+        Thread receiver = new Thread(() -> {
+            CSTState received = null;
+            try (SocketChannel socket = SocketChannel.open(address)) {
+                received = CSTStateTransfer.read(socket);
+            } catch (IOException e) {
+                logger.error("Failed to receive the state from " + address, e);
+            } catch (ClassNotFoundException e) {
+                logger.error("Failed to deserialize application state object", e);
+            }
+
+            lockTimer.lock();
+            try {
+                if (round != fetchRound) return;
+                fetching.remove(reply.getSender());
+                if (received != null && waitingCID == reply.getCID()) {
+                    fetchedStates.put(reply.getSender(), received);
+                    SMReplyDeliver(reply, isBFT);
+                }
+            } finally {
+                lockTimer.unlock();
+            }
+        }, "State receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
     @Override
     public void SMReplyDeliver(SMMessage msg, boolean isBFT) {
         lockTimer.lock();
@@ -197,24 +248,12 @@ public class DurableStateManager extends StateManager {
 
                 logger.debug("The reply is for the CID that I want!");
 
-                InetSocketAddress address = reply.getCstConfig().getAddress();
-                Socket clientSocket;
-                ApplicationState stateReceived = null;
-                try {
-                    clientSocket = new Socket(address.getHostName(),
-                            address.getPort());
-                    ObjectInputStream in = new ObjectInputStream(
-                            clientSocket.getInputStream());
-                    stateReceived = (ApplicationState) in.readObject();
-                } catch (UnknownHostException e) {
-                    // TODO Auto-generated catch block
-                    logger.error("Failed to connect to address", e);
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    logger.error("Failed to connect to address", e);
-                } catch (ClassNotFoundException e) {
-                    // TODO Auto-generated catch block
-                    logger.error("Failed to deserialize application state object", e);
+                // the states are received in parallel by fetchState, which
+                // delivers the reply again once the state of its sender arrives
+                ApplicationState stateReceived = fetchedStates.remove(reply.getSender());
+                if (stateReceived == null && !senderStates.containsKey(reply.getSender())
+                        && fetching.add(reply.getSender())) {
+                    fetchState(reply, isBFT);
                 }
 
                 if (stateReceived instanceof CSTState) {
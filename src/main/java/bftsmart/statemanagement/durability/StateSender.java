@@ -16,11 +16,9 @@ limitations under the License.
 package bftsmart.statemanagement.durability;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
-import bftsmart.statemanagement.ApplicationState;
+import bftsmart.tom.util.BandwidthLimiter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,30 +27,33 @@ public class StateSender implements Runnable {
 
         private Logger logger = LoggerFactory.getLogger(this.getClass());
     
-	private final Socket socket;
-	private ApplicationState state;
+	private final SocketChannel socket;
+	private final CSTStateTransfer transfer;
+	private final BandwidthLimiter limiter;
 	
-	public StateSender(Socket socket) {
+	public StateSender(SocketChannel socket, CSTStateTransfer transfer, BandwidthLimiter limiter) {
 		this.socket = socket;
-	}
-	
-	public void setState(ApplicationState state) {
-		this.state = state;
+		this.transfer = transfer;
+		this.limiter = limiter;
 	}
 	
 	@Override
 	public void run() {
 		try {
-			OutputStream os = socket.getOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(os);
 			logger.debug("Sending state in different socket");
-			oos.writeObject(state);
+			transfer.write(socket, limiter);
 			logger.debug("Sent state in different socket");
-			oos.close();
-			socket.close();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			logger.error("Could not send state",e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				transfer.close();
+				socket.close();
+			} catch (IOException e) {
+				logger.error("Could not close state transfer",e);
+			}
 		}
 	}
 
@@ -16,29 +16,31 @@ limitations under the License.
 package bftsmart.statemanagement.durability;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
-import bftsmart.statemanagement.ApplicationState;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.durability.DurabilityCoordinator;
+import bftsmart.tom.util.BandwidthLimiter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Accepts the connections of recovering replicas and sends each of them its
+ * part of the state for the last request received, in a separate thread.
+ * All the transfers share the same bandwidth limiter.
+ */
 public class StateSenderServer implements Runnable {
     
      private Logger logger = LoggerFactory.getLogger(this.getClass());
 
-	private ServerSocket server;
-	private ApplicationState state;
+	private ServerSocketChannel server;
 	private Recoverable recoverable;
 	private DurabilityCoordinator coordinator;
-	private CSTRequest request;
-	
-	public void setState(ApplicationState state) {
-		this.state = state;
-	}
+	private volatile CSTRequest request;
+	private final BandwidthLimiter limiter;
 	
 	public void setRecoverable(Recoverable recoverable) {
 		this.recoverable = recoverable;
@@ -49,25 +51,38 @@ public class StateSenderServer implements Runnable {
 		this.request = request;
 	}
 
-	public StateSenderServer(int port) {
+	public StateSenderServer(int port, BandwidthLimiter limiter) {
+		this.limiter = limiter;
 		try {
-			server = new ServerSocket(port);
+			server = ServerSocketChannel.open();
+			server.socket().setReuseAddress(true);
+			server.bind(new InetSocketAddress(port));
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			logger.error("Could not open server socket",e);
 		}
 	}
 
 	@Override
 	public void run() {
-		try {
-			Socket socket = server.accept();
-			StateSender sender = new StateSender(socket);
-			state = coordinator.getState(request);
-			sender.setState(state);
-			new Thread(sender).start();
-		} catch (IOException e) {
-			logger.error("Problem executing StateSenderServer thread",e);
+		while (server != null && server.isOpen()) {
+			SocketChannel socket = null;
+			try {
+				socket = server.accept();
+				socket.socket().setTcpNoDelay(true);
+				CSTStateTransfer transfer = coordinator.getStateTransfer(request);
+				if (transfer == null) {
+					socket.close();
+					continue;
+				}
+				new Thread(new StateSender(socket, transfer, limiter), "State sender").start();
+			} catch (IOException e) {
+				logger.error("Problem executing StateSenderServer thread",e);
+				try {
+					if (socket != null) socket.close();
+				} catch (IOException ex) {
+					logger.error("Could not close socket",ex);
+				}
+			}
 		}
 	}
 
@@ -31,11 +31,23 @@ import bftsmart.statemanagement.SMMessage;
 public class StandardSMMessage extends SMMessage {
 
 	private int replica;
+	private StateManifest manifest;
+	private boolean wholeState;
 
     public StandardSMMessage(int sender, int cid, int type, int replica, ApplicationState state, View view, int regency, int leader) {
     	super(sender, cid, type, state, view, regency, leader);
     	this.replica = replica;
     }
+
+    public StandardSMMessage(int sender, int cid, int type, int replica, ApplicationState state, View view, int regency, int leader, StateManifest manifest) {
+    	this(sender, cid, type, replica, state, view, regency, leader);
+    	this.manifest = manifest;
+    }
+
+    public StandardSMMessage(int sender, int cid, int type, int replica, ApplicationState state, View view, int regency, int leader, StateManifest manifest, boolean wholeState) {
+    	this(sender, cid, type, replica, state, view, regency, leader, manifest);
+    	this.wholeState = wholeState;
+    }
 	
     public StandardSMMessage() {
     	super();
@@ -49,15 +61,36 @@ public class StandardSMMessage extends SMMessage {
         return replica;
     }
 
+    /**
+     * Retrieves the manifest of the state chunks offered by the sender
+     * @return The manifest of the state chunks, or null if the state is in the message
+     */
+    public StateManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Tells if the sender of a request wants the state in the reply itself,
+     * instead of in chunks
+     * @return True if the state should not be sent in chunks
+     */
+    public boolean isWholeState() {
+        return wholeState;
+    }
+
     @Override
     public void writeExternal(ObjectOutput out) throws IOException{
         super.writeExternal(out);
         out.writeInt(replica);
+        out.writeObject(manifest);
+        out.writeBoolean(wholeState);
     }
 
     @Override
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException{
         super.readExternal(in);
         replica = in.readInt();
+        manifest = (StateManifest) in.readObject();
+        wholeState = in.readBoolean();
     }
 }
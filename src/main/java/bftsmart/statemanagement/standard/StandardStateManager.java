@@ -16,12 +16,14 @@
 package bftsmart.statemanagement.standard;
 
 import bftsmart.statemanagement.StateManager;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.TreeMap;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.Random;
@@ -34,7 +36,9 @@ import bftsmart.statemanagement.SMMessage;
 import bftsmart.tom.core.DeliveryThread;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.server.BucketedState;
 import bftsmart.tom.server.defaultservices.DefaultApplicationState;
+import bftsmart.tom.util.Scheduler;
 import bftsmart.tom.util.TOMUtil;
 import bftsmart.consensus.Consensus;
 import bftsmart.consensus.Epoch;
@@ -54,10 +58,17 @@ public class StandardStateManager extends StateManager {
 
     private int replica;
     private ReentrantLock lockTimer = new ReentrantLock();
-    private Timer stateTimer = null;
+    private Scheduler.Timeout stateTimer = null;
     private final static long INIT_TIMEOUT = 40000;
     private long timeout = INIT_TIMEOUT;
 
+    private StateChunkServer chunkServer;
+    private boolean chunkServerFailed;
+    private HashMap<Integer, StateManifest> senderManifests = new HashMap<>();
+    private StateChunkFetcher fetcher; // kept until the state is installed, to resume the transfer
+    private boolean fetching;
+    private boolean chunksFailed; // ask for the whole state until it is installed
+
     @Override
     public void init(TOMLayer tomLayer, DeliveryThread dt) {
 
@@ -96,12 +107,12 @@ public class StandardStateManager extends StateManager {
         changeReplica(); // always ask the complete state to a different replica
 
         SMMessage smsg = new StandardSMMessage(SVController.getStaticConf().getProcessId(),
-                waitingCID, TOMUtil.SM_REQUEST, replica, null, null, -1, -1);
+                waitingCID, TOMUtil.SM_REQUEST, replica, null, null, -1, -1, null, chunksFailed);
         tomLayer.getCommunication().send(SVController.getCurrentViewOtherAcceptors(), smsg);
 
         logger.info("I just sent a request to the other replicas for the state up to CID " + waitingCID);
 
-        TimerTask stateTask = new TimerTask() {
+        Runnable stateTask = new Runnable() {
             public void run() {
                 logger.info("Timeout to retrieve state");
                 StandardSMMessage msg = new StandardSMMessage(-1, waitingCID, TOMUtil.TRIGGER_SM_LOCALLY, -1, null, null, -1, -1);
@@ -109,9 +120,8 @@ public class StandardStateManager extends StateManager {
             }
         };
 
-        stateTimer = new Timer("state timer");
         timeout = timeout * 2;
-        stateTimer.schedule(stateTask, timeout);
+        stateTimer = Scheduler.schedule(stateTask, timeout);
     }
 
     @Override
@@ -127,11 +137,19 @@ public class StandardStateManager extends StateManager {
         lockTimer.unlock();
     }
 
+    @Override
+    protected void reset() {
+        super.reset();
+        senderManifests.clear();
+    }
+
     @Override
     public void SMRequestDeliver(SMMessage msg, boolean isBFT) {
         if (SVController.getStaticConf().isStateTransferEnabled() && dt.getRecoverer() != null) {
             StandardSMMessage stdMsg = (StandardSMMessage) msg;
-            boolean sendState = stdMsg.getReplica() == SVController.getStaticConf().getProcessId();
+            // when the state is sent in chunks, all replicas offer it
+            boolean chunked = !stdMsg.isWholeState() && getChunkServer() != null;
+            boolean sendState = chunked || stdMsg.getReplica() == SVController.getStaticConf().getProcessId();
 
             ApplicationState thisState = dt.getRecoverer().getState(msg.getCID(), sendState);
             if (thisState == null) {
@@ -140,10 +158,22 @@ public class StandardStateManager extends StateManager {
                 thisState = dt.getRecoverer().getState(-1, sendState);
             }
 
+            StateManifest manifest = null;
+            if (chunked && thisState.getSerializedState() != null) {
+                byte[] serializedState = thisState.getSerializedState();
+                int[] buckets = null;
+                if (dt.getRecoverer() instanceof BucketedState) {
+                    buckets = ((BucketedState) dt.getRecoverer()).getBucketLimits(serializedState);
+                }
+                manifest = chunkServer.offer(serializedState, thisState.getStateHash(), buckets);
+                thisState.setSerializedState(null);
+            }
+
             int[] targets = {msg.getSender()};
             SMMessage smsg = new StandardSMMessage(SVController.getStaticConf().getProcessId(),
                     msg.getCID(), TOMUtil.SM_REPLY, -1, thisState, SVController.getCurrentView(),
-                    tomLayer.getSynchronizer().getLCManager().getLastReg(), tomLayer.execManager.getCurrentLeader());
+                    tomLayer.getSynchronizer().getLCManager().getLastReg(), tomLayer.execManager.getCurrentLeader(),
+                    manifest);
 
             logger.info("Sending state...");
             tomLayer.getCommunication().send(targets, smsg);
@@ -195,8 +225,18 @@ public class StandardStateManager extends StateManager {
 
                 senderStates.put(msg.getSender(), msg.getState());
 
+                StateManifest manifest = ((StandardSMMessage) msg).getManifest();
+                if (manifest != null && !chunksFailed) {
+                    senderManifests.put(msg.getSender(), manifest);
+                }
+                if (state == null && !fetching && !senderManifests.isEmpty()) {
+                    fetchState((StandardSMMessage) msg, isBFT);
+                }
+
                 logger.debug("Verifying more than F replies");
-                if (enoughReplies()) {
+                if (fetching) {
+                    logger.debug("Waiting for the state chunks");
+                } else if (enoughReplies()) {
                     logger.debug("More than F confirmed");
                     ApplicationState otherReplicaState = getOtherReplicaState();
                     int haveState = 0;
@@ -302,6 +342,8 @@ public class StandardStateManager extends StateManager {
                         dt.resumeDecisionDelivery();
 
                         reset();
+                        fetcher = null;
+                        chunksFailed = false;
 
                         logger.info("I updated the state!");
 
@@ -355,6 +397,126 @@ public class StandardStateManager extends StateManager {
         lockTimer.unlock();
     }
 
+    private StateChunkServer getChunkServer() {
+        int chunkSize = SVController.getStaticConf().getStateChunkSize();
+        if (chunkServer == null && chunkSize > 0 && !chunkServerFailed) {
+            int me = SVController.getStaticConf().getProcessId();
+            try {
+                chunkServer = new StateChunkServer(SVController.getStaticConf().getBindAddress(),
+                        SVController.getStaticConf().getRemoteAddress(me).getHostString(), chunkSize);
+            } catch (IOException e) {
+                logger.error("Failed to start the state chunk server, the state will be sent whole", e);
+                chunkServerFailed = true;
+            }
+        }
+        return chunkServer;
+    }
+
+    /**
+     * Starts fetching the state chunks once more than F replicas sent the
+     * same manifest. The chunks are fetched in parallel from all of those
+     * replicas, and this method is invoked again with the same reply once
+     * the state is complete. If the fetch fails, the state is requested
+     * again, to be sent whole in the replies of the replicas.
+     */
+    private void fetchState(StandardSMMessage msg, boolean isBFT) {
+
+        StateManifest agreed = null;
+        List<Integer> sources = new ArrayList<>();
+        for (StateManifest candidate : senderManifests.values()) {
+            sources.clear();
+            for (Map.Entry<Integer, StateManifest> entry : senderManifests.entrySet()) {
+                if (candidate.sameChunks(entry.getValue())) {
+                    sources.add(entry.getKey());
+                }
+            }
+            if (sources.size() > SVController.getCurrentViewF() && candidate.isValid()) {
+                agreed = candidate;
+                break;
+            }
+        }
+        if (agreed == null) {
+            return;
+        }
+
+        boolean newFetcher = fetcher == null || !fetcher.getManifest().sameChunks(agreed);
+        if (newFetcher) {
+            fetcher = new StateChunkFetcher(agreed);
+        } else {
+            logger.info("Resuming the transfer of the state chunks");
+        }
+        boolean reuseLocal = newFetcher && dt.getRecoverer() instanceof BucketedState;
+
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int sender : sources) {
+            addresses.add(senderManifests.get(sender).getAddress());
+        }
+        ApplicationState base = senderStates.get(sources.contains(replica) ? replica : sources.get(0));
+        StateChunkFetcher thisFetcher = fetcher;
+        int cid = waitingCID;
+
+        fetching = true;
+        Thread t = new Thread(() -> {
+            if (reuseLocal) {
+                reuseLocalBuckets(thisFetcher, (BucketedState) dt.getRecoverer());
+            }
+            byte[] serializedState = thisFetcher.fetch(addresses);
+            lockTimer.lock();
+            try {
+                fetching = false;
+                if (serializedState == null) {
+                    if (waitingCID == cid) {
+                        logger.warn("Could not fetch all the state chunks, asking for the whole state");
+                        chunksFailed = true;
+                        fetcher = null;
+                        if (stateTimer != null) {
+                            stateTimer.cancel();
+                        }
+                        reset();
+                        requestState();
+                    }
+                } else if (waitingCID == cid) {
+                    logger.info("Fetched all the state chunks");
+                    base.setSerializedState(serializedState);
+                    state = base;
+                    if (stateTimer != null) {
+                        stateTimer.cancel();
+                    }
+                    SMReplyDeliver(msg, isBFT);
+                }
+            } finally {
+                lockTimer.unlock();
+            }
+        }, "State transfer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Takes the buckets of the local state that did not change, so that
+     * only the divergent ones are fetched. The snapshot is taken with the
+     * delivery of decisions paused, so it is not taken while the
+     * application executes a batch
+     */
+    private void reuseLocalBuckets(StateChunkFetcher fetcher, BucketedState recoverer) {
+        try {
+            byte[] local;
+            dt.pauseDecisionDelivery();
+            try {
+                local = recoverer.getSnapshot();
+            } finally {
+                dt.resumeDecisionDelivery();
+            }
+            if (local != null) {
+                int reused = fetcher.reuse(local, recoverer.getBucketLimits(local));
+                logger.info("Found " + reused + " of " + fetcher.getManifest().getNumChunks()
+                        + " buckets in the local state");
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed to compare the local state buckets, fetching all of them", e);
+        }
+    }
+
     /**
      * Search in the received states table for a state that was not sent by the
      * expected replica. This is used to compare both states after received the
@@ -0,0 +1,213 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.standard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bftsmart.tom.util.MerkleTree;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches the chunks of a state described by a manifest from several
+ * replicas in parallel. The chunks are spread over the sources as they ask
+ * for more, so faster replicas send more of them, and the chunks of a source
+ * that fails or sends a chunk that does not match its hash are fetched from
+ * the others. The chunks already received are kept, so that a later fetch of
+ * the same state only asks for the missing ones. Chunks that the recovering
+ * replica already has in its own state can be taken from it with reuse().
+ */
+public class StateChunkFetcher {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final int WINDOW = 4; // chunks requested ahead on each connection
+    private static final int TIMEOUT = 10000;
+
+    private final StateManifest manifest;
+    private final byte[] state;
+    private final BitSet received;
+
+    /**
+     * Creates a fetcher for a state
+     * @param manifest The manifest of the state, agreed by enough replicas
+     */
+    public StateChunkFetcher(StateManifest manifest) {
+        this.manifest = manifest;
+        this.state = new byte[manifest.getLength()];
+        this.received = new BitSet(manifest.getNumChunks());
+    }
+
+    public StateManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Takes the missing chunks that are equal to some piece of a local state,
+     * so that they are not fetched
+     * @param local A serialized state, e.g., the current state of this replica
+     * @param limits The end offset of each piece of the local state
+     * @return The number of chunks taken from the local state
+     */
+    public synchronized int reuse(byte[] local, int[] limits) {
+
+        Map<ByteBuffer, int[]> pieces = new HashMap<>();
+        for (int i = 0; i < limits.length; i++) {
+            int offset = i == 0 ? 0 : limits[i - 1];
+            if (offset < 0 || limits[i] < offset || limits[i] > local.length) {
+                throw new IllegalArgumentException("Invalid bucket limits");
+            }
+            pieces.put(ByteBuffer.wrap(MerkleTree.leaf(local, offset, limits[i] - offset)),
+                    new int[] {offset, limits[i] - offset});
+        }
+
+        int reused = 0;
+        for (int i = received.nextClearBit(0); i < manifest.getNumChunks(); i = received.nextClearBit(i + 1)) {
+            int[] piece = pieces.get(ByteBuffer.wrap(manifest.getChunkHash(i)));
+            if (piece != null && piece[1] == manifest.getChunkLength(i)) {
+                System.arraycopy(local, piece[0], state, manifest.getChunkOffset(i), manifest.getChunkLength(i));
+                received.set(i);
+                reused++;
+            }
+        }
+        return reused;
+    }
+
+    /**
+     * Fetches the missing chunks from the given replicas. Blocks until all
+     * chunks are received or none of the replicas is able to send them.
+     * @param sources The addresses from which to fetch the chunks
+     * @return The serialized state, or null if some chunks are still missing
+     */
+    public byte[] fetch(Collection<InetSocketAddress> sources) {
+
+        Queue<Integer> pending = new ConcurrentLinkedQueue<>();
+        synchronized (this) {
+            for (int i = received.nextClearBit(0); i < manifest.getNumChunks(); i = received.nextClearBit(i + 1)) {
+                pending.add(i);
+            }
+        }
+        logger.info("Fetching " + pending.size() + " of " + manifest.getNumChunks() + " chunks from "
+                + sources.size() + " replicas");
+
+        AtomicInteger active = new AtomicInteger(sources.size());
+        List<Thread> threads = new ArrayList<>();
+        for (InetSocketAddress source : sources) {
+            Thread t = new Thread(() -> fetchFrom(source, pending, active), "State chunk fetcher");
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        return isComplete() ? state : null;
+    }
+
+    private void fetchFrom(InetSocketAddress source, Queue<Integer> pending, AtomicInteger active) {
+
+        ArrayDeque<Integer> inFlight = new ArrayDeque<>();
+
+        try (Socket socket = new Socket()) {
+            socket.connect(source, TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            out.writeInt(manifest.getRoot().length);
+            out.write(manifest.getRoot());
+
+            while (true) {
+                while (inFlight.size() < WINDOW) {
+                    Integer index = pending.poll();
+                    if (index == null) break;
+                    out.writeInt(index);
+                    inFlight.add(index);
+                }
+                out.flush();
+
+                if (inFlight.isEmpty()) {
+                    // chunks of a failed source may still come back to the queue
+                    if (isComplete() || active.get() == 1) break;
+                    Thread.sleep(10);
+                    continue;
+                }
+
+                int index = in.readInt();
+                int length = in.readInt();
+                if (length == -1) {
+                    throw new IOException("The state is no longer available");
+                }
+                if (index != inFlight.peek() || length != manifest.getChunkLength(index)) {
+                    throw new IOException("Unexpected chunk " + index + " with " + length + " bytes");
+                }
+                byte[] chunk = new byte[length];
+                in.readFully(chunk);
+                if (!manifest.verify(index, chunk)) {
+                    throw new IOException("Chunk " + index + " does not match its hash");
+                }
+                inFlight.poll();
+                store(index, chunk);
+            }
+
+            out.writeInt(-1);
+            out.flush();
+
+        } catch (IOException e) {
+            logger.warn("Failed to fetch state chunks from " + source, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pending.addAll(inFlight);
+            active.decrementAndGet();
+        }
+    }
+
+    private synchronized void store(int index, byte[] chunk) {
+        System.arraycopy(chunk, 0, state, manifest.getChunkOffset(index), chunk.length);
+        received.set(index);
+    }
+
+    private synchronized boolean isComplete() {
+        return received.cardinality() == manifest.getNumChunks();
+    }
+}
@@ -0,0 +1,254 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.standard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.tom.util.MerkleTree;
+
+/**
+ * Serves the chunks of the states offered by this replica, in a channel
+ * separated from the one used by the replicas to order requests. Each
+ * connection first names the state by its Merkle root, and then asks for
+ * chunks by their index, one integer per chunk and -1 to finish. The
+ * fetcher only has a few chunks requested at a time, so the speed of the
+ * transfer is driven by how fast it consumes them. At most MAX_SENDERS
+ * connections are served at a time, the others are closed at once. An
+ * offered state is released once a fetcher finished reading it and no
+ * other connection is using it, or after being idle for IDLE_TIMEOUT.
+ */
+public class StateChunkServer implements Runnable {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final int MAX_STATES = 2; // states kept for fetchers that are behind
+    private static final int IDLE_TIMEOUT = 60000;
+    private static final int MAX_SENDERS = 16;
+
+    private final ServerSocket server;
+    private final InetSocketAddress address;
+    private final int chunkSize;
+    private final int rootLength;
+    private final ThreadPoolExecutor senders;
+
+    private final LinkedList<Offer> offers = new LinkedList<>();
+
+    private static class Offer {
+        private final StateManifest manifest;
+        private final byte[] stateHash;
+        private final byte[] state;
+        private int connections;
+        private long lastUsed;
+
+        private Offer(StateManifest manifest, byte[] stateHash, byte[] state) {
+            this.manifest = manifest;
+            this.stateHash = stateHash;
+            this.state = state;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Opens the server socket in an ephemeral port and starts accepting
+     * connections
+     * @param bindAddress The address in which to listen, or null for all of them
+     * @param host The host name advertised in the manifests
+     * @param chunkSize The size of each chunk
+     * @throws IOException If the server socket cannot be opened
+     */
+    public StateChunkServer(String bindAddress, String host, int chunkSize) throws IOException {
+        this.server = new ServerSocket();
+        this.server.bind(bindAddress == null || bindAddress.isEmpty() ? new InetSocketAddress(0)
+                : new InetSocketAddress(bindAddress, 0));
+        this.server.setSoTimeout(IDLE_TIMEOUT); // to release the idle offers
+        this.address = new InetSocketAddress(host, server.getLocalPort());
+        this.chunkSize = chunkSize;
+        this.rootLength = MerkleTree.getHashLength();
+        this.senders = new ThreadPoolExecutor(0, MAX_SENDERS, IDLE_TIMEOUT, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>(), (r) -> {
+                    Thread t = new Thread(r, "State chunk sender");
+                    t.setDaemon(true);
+                    return t;
+                });
+
+        Thread acceptor = new Thread(this, "State chunk server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        logger.info("Serving state chunks at " + address);
+    }
+
+    /**
+     * Makes a state available to be fetched. The manifest of a state with the
+     * same hash as one already offered is reused.
+     * @param state The serialized state
+     * @param stateHash The hash of the state, or null if unknown
+     * @param limits The end offset of each chunk, or null to split the state
+     * in chunks of the configured size
+     * @return The manifest describing the chunks of the state
+     */
+    public synchronized StateManifest offer(byte[] state, byte[] stateHash, int[] limits) {
+        releaseIdle();
+        for (Iterator<Offer> it = offers.iterator(); it.hasNext();) {
+            Offer offer = it.next();
+            if (stateHash != null && Arrays.equals(stateHash, offer.stateHash)
+                    && offer.manifest.getLength() == state.length) {
+                it.remove();
+                offer.lastUsed = System.currentTimeMillis();
+                offers.addFirst(offer);
+                return offer.manifest;
+            }
+        }
+
+        StateManifest manifest = limits != null ? StateManifest.create(state, limits, address)
+                : StateManifest.create(state, chunkSize, address);
+        offers.addFirst(new Offer(manifest, stateHash, state));
+        if (offers.size() > MAX_STATES) {
+            offers.removeLast();
+        }
+        return manifest;
+    }
+
+    private synchronized Offer acquire(byte[] root) {
+        for (Offer offer : offers) {
+            if (Arrays.equals(root, offer.manifest.getRoot())) {
+                offer.connections++;
+                offer.lastUsed = System.currentTimeMillis();
+                return offer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called when a connection stops using an offer
+     * @param offer The offer used by the connection
+     * @param finished True if the fetcher has all the chunks it needed from this replica
+     */
+    private synchronized void release(Offer offer, boolean finished) {
+        offer.connections--;
+        offer.lastUsed = System.currentTimeMillis();
+        if (finished && offer.connections == 0) {
+            offers.remove(offer);
+        }
+    }
+
+    private synchronized void releaseIdle() {
+        long now = System.currentTimeMillis();
+        offers.removeIf(offer -> offer.connections == 0 && now - offer.lastUsed > IDLE_TIMEOUT);
+    }
+
+    @Override
+    public void run() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException e) {
+                    releaseIdle();
+                    continue;
+                }
+                try {
+                    senders.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    logger.warn("Too many state chunk connections, closing the one from "
+                            + socket.getRemoteSocketAddress());
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    logger.error("Failed to accept state chunk connection", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Offer offer = null;
+        boolean finished = false;
+        try (Socket s = socket) {
+            s.setSoTimeout(IDLE_TIMEOUT);
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+            int length = in.readInt();
+            if (length != rootLength) {
+                logger.warn("Invalid state root length " + length + " from " + socket.getRemoteSocketAddress());
+                return;
+            }
+            byte[] root = new byte[length];
+            in.readFully(root);
+            offer = acquire(root);
+
+            while (true) {
+                int index = in.readInt();
+                if (index < 0) {
+                    finished = true;
+                    break;
+                }
+
+                out.writeInt(index);
+                if (offer == null || index >= offer.manifest.getNumChunks()) {
+                    // the state was replaced in the meantime
+                    out.writeInt(-1);
+                    out.flush();
+                    break;
+                }
+                int chunkLength = offer.manifest.getChunkLength(index);
+                out.writeInt(chunkLength);
+                out.write(offer.state, offer.manifest.getChunkOffset(index), chunkLength);
+
+                // the chunks requested together are flushed together
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException e) {
+            logger.debug("State chunk connection closed by " + socket.getRemoteSocketAddress());
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to send state chunks to " + socket.getRemoteSocketAddress(), e);
+        } finally {
+            if (offer != null) {
+                release(offer, finished);
+            }
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+}
@@ -0,0 +1,170 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.standard;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import bftsmart.tom.util.MerkleTree;
+
+/**
+ * Describes a serialized application state offered in chunks by a replica.
+ * The state is split in chunks of a fixed size, or in the buckets defined by
+ * the application (see BucketedState), and the hashes of the chunks are the
+ * leaves of a Merkle tree. Replicas with the same state send the same
+ * root, so a recovering replica can trust the chunk hashes of a manifest
+ * once enough replicas agree on its root, and verify each chunk as it arrives.
+ */
+public class StateManifest implements Serializable {
+
+    private static final long serialVersionUID = -2216360468419934766L;
+
+    private final int[] limits; // end offset of each chunk
+    private final byte[][] chunkHashes;
+    private final byte[] root;
+    private final InetSocketAddress address; // where the chunks are served
+
+    private StateManifest(int[] limits, byte[][] chunkHashes, byte[] root, InetSocketAddress address) {
+        this.limits = limits;
+        this.chunkHashes = chunkHashes;
+        this.root = root;
+        this.address = address;
+    }
+
+    /**
+     * Creates the manifest of a serialized state
+     * @param state The serialized state
+     * @param chunkSize The size of each chunk, except possibly the last
+     * @param address The address from where the chunks can be fetched
+     * @return The manifest
+     */
+    public static StateManifest create(byte[] state, int chunkSize, InetSocketAddress address) {
+        int[] limits = new int[(state.length + chunkSize - 1) / chunkSize];
+        for (int i = 0; i < limits.length; i++) {
+            limits[i] = (int) Math.min((long) (i + 1) * chunkSize, state.length);
+        }
+        return create(state, limits, address);
+    }
+
+    /**
+     * Creates the manifest of a serialized state split in the given chunks
+     * @param state The serialized state
+     * @param limits The end offset of each chunk, in increasing order. The last
+     * one must be the size of the state
+     * @param address The address from which the chunks can be fetched
+     * @return The manifest
+     */
+    public static StateManifest create(byte[] state, int[] limits, InetSocketAddress address) {
+        if (!isValid(limits, state.length)) {
+            throw new IllegalArgumentException("Invalid chunk limits");
+        }
+        byte[][] hashes = new byte[limits.length][];
+        for (int i = 0; i < hashes.length; i++) {
+            int offset = i == 0 ? 0 : limits[i - 1];
+            hashes[i] = MerkleTree.leaf(state, offset, limits[i] - offset);
+        }
+        return new StateManifest(limits, hashes, MerkleTree.root(hashes), address);
+    }
+
+    private static boolean isValid(int[] limits, int length) {
+        if (limits == null || (limits.length == 0 ? length != 0 : limits[limits.length - 1] != length)) {
+            return false;
+        }
+        for (int i = 0; i < limits.length; i++) {
+            if (limits[i] <= (i == 0 ? 0 : limits[i - 1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the same manifest, but served from another address
+     * @param address The address from where the chunks can be fetched
+     * @return The manifest
+     */
+    public StateManifest at(InetSocketAddress address) {
+        return new StateManifest(limits, chunkHashes, root, address);
+    }
+
+    /**
+     * Checks that the chunk hashes match the root
+     * @return true if the chunk hashes match the root, false otherwise
+     */
+    public boolean isValid() {
+        return limits != null && isValid(limits, getLength()) && chunkHashes != null && chunkHashes.length == limits.length
+                && Arrays.equals(root, MerkleTree.root(chunkHashes));
+    }
+
+    /**
+     * Checks a chunk against its hash
+     * @param index The index of the chunk
+     * @param chunk The contents of the chunk
+     * @return true if the chunk has the expected size and hash, false otherwise
+     */
+    public boolean verify(int index, byte[] chunk) {
+        return index >= 0 && index < chunkHashes.length && chunk.length == getChunkLength(index)
+                && Arrays.equals(chunkHashes[index], MerkleTree.leaf(chunk, 0, chunk.length));
+    }
+
+    /**
+     * Retrieves the expected hash of a chunk
+     * @param index The index of the chunk
+     * @return The hash of the chunk
+     */
+    public byte[] getChunkHash(int index) {
+        return chunkHashes[index];
+    }
+
+    /**
+     * Checks if another manifest describes the same state, split in the
+     * same way
+     * @param other The other manifest
+     * @return true if both describe the same chunks
+     */
+    public boolean sameChunks(StateManifest other) {
+        return other != null && Arrays.equals(limits, other.limits) && Arrays.equals(root, other.root);
+    }
+
+    public int getNumChunks() {
+        return chunkHashes.length;
+    }
+
+    public int getChunkOffset(int index) {
+        return index == 0 ? 0 : limits[index - 1];
+    }
+
+    public int getChunkLength(int index) {
+        return limits[index] - getChunkOffset(index);
+    }
+
+    /**
+     * Retrieves the size of the serialized state
+     * @return The size of the serialized state
+     */
+    public int getLength() {
+        return limits.length == 0 ? 0 : limits[limits.length - 1];
+    }
+
+    public byte[] getRoot() {
+        return root;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+}
@@ -2,14 +2,21 @@ package bftsmart.tom;
 
 import bftsmart.communication.client.ReplyListener;
 import bftsmart.reconfiguration.views.View;
+import bftsmart.tom.client.AbstractRequestHandler;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.util.Extractor;
 import bftsmart.tom.util.KeyLoader;
+import bftsmart.tom.util.Scheduler;
 import bftsmart.tom.util.TOMUtil;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +25,14 @@ import org.slf4j.LoggerFactory;
  * This class is an extension of 'ServiceProxy' that can waits for replies
  * asynchronously.
  *
+ * Besides the ReplyListener based methods, it offers invokeOrderedAsync and
+ * invokeUnorderedAsync, which return a future completed with the reply voted by
+ * the proxy's comparator and extractor (the same rules used by invokeOrdered and
+ * invokeUnordered). At most system.client.asyncWindow of these requests are in
+ * flight at the same time; further invocations block until one of them completes.
+ * The futures are completed by the client's I/O and timer threads, so callbacks that block
+ * (including new invocations when the window may be full) should be registered
+ * with the *Async methods of CompletableFuture.
  */
 public class AsynchServiceProxy extends ServiceProxy {
     
@@ -27,6 +42,10 @@ public class AsynchServiceProxy extends ServiceProxy {
     private HashMap<Integer, TOMMessage[]> requestsReplies;
     private HashMap<Integer, Integer> requestsAlias;
 
+    // Requests issued through the futures API, by operation id
+    private final ConcurrentHashMap<Integer, AsyncRequest> asyncRequests = new ConcurrentHashMap<>();
+    private Semaphore asyncWindow;
+
 /**
      * Constructor
      *
@@ -79,6 +98,7 @@ public class AsynchServiceProxy extends ServiceProxy {
         requestsContext = new HashMap<>();
         requestsReplies = new HashMap<>();
         requestsAlias = new HashMap<>();
+        asyncWindow = new Semaphore(getViewManager().getStaticConf().getClientAsyncWindow());
     }
     
     private View newView(byte[] bytes) {
@@ -128,6 +148,175 @@ public class AsynchServiceProxy extends ServiceProxy {
 
     }
 
+    /**
+     * This method asynchronously sends an ordered request to the replicas. The returned future
+     * is completed with the reply once a quorum of matching replies is received. It completes
+     * exceptionally with a TimeoutException if the replicas take more than invokeTimeout seconds.
+     * Blocks while the maximum number of asynchronous requests are in flight.
+     *
+     * @param request to be sent
+     * @return A future for the reply from the replicas related to request
+     */
+    public CompletableFuture<byte[]> invokeOrderedAsync(byte[] request) {
+        return invokeAsync(request, TOMMessageType.ORDERED_REQUEST);
+    }
+
+    /**
+     * This method asynchronously sends an unordered request to the replicas. As in invokeUnordered,
+     * the request is re-issued as an ordered request if the replies do not match or time out.
+     * Blocks while the maximum number of asynchronous requests are in flight.
+     *
+     * @param request to be sent
+     * @return A future for the reply from the replicas related to request
+     */
+    public CompletableFuture<byte[]> invokeUnorderedAsync(byte[] request) {
+        return invokeAsync(request, TOMMessageType.UNORDERED_REQUEST);
+    }
+
+    private CompletableFuture<byte[]> invokeAsync(byte[] request, TOMMessageType reqType) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        asyncWindow.acquireUninterruptibly(); // released when the future is completed
+        try {
+            sendAsync(new AsyncRequest(request, reqType, future));
+        } catch (RuntimeException e) {
+            completeAsync(null, future, null, e);
+        }
+        return future;
+    }
+
+    /**
+     * Sends (or re-sends) an asynchronous request. The window permit of the request
+     * is kept until its future is completed.
+     */
+    private void sendAsync(AsyncRequest asyncRequest) {
+        AbstractRequestHandler handler;
+        canSendLock.lock();
+        try {
+            handler = createRequestHandler(asyncRequest.reqType);
+            synchronized (asyncRequest) {
+                asyncRequest.handler = handler;
+            }
+            asyncRequests.put(handler.getOperationId(), asyncRequest);
+
+            logger.debug("Asynchronously sending request ({}) with seqId = {}", asyncRequest.reqType,
+                    handler.getSequenceId());
+            try {
+                TOMulticast(handler.createRequest(asyncRequest.request));
+            } catch (RuntimeException e) {
+                asyncRequests.remove(handler.getOperationId(), asyncRequest);
+                throw e;
+            }
+        } finally {
+            canSendLock.unlock();
+        }
+
+        Scheduler.Timeout timeout = Scheduler.schedule(() -> asyncRequestTimeout(asyncRequest, handler),
+                TimeUnit.SECONDS.toMillis(getInvokeTimeout()));
+        synchronized (asyncRequest) {
+            if (asyncRequest.handler == handler && asyncRequests.get(handler.getOperationId()) == asyncRequest) {
+                asyncRequest.timeout = timeout;
+            } else { // already answered
+                timeout.cancel();
+            }
+        }
+    }
+
+    private void asyncReplyReceived(AsyncRequest asyncRequest, TOMMessage reply) {
+        AbstractRequestHandler handler;
+        synchronized (asyncRequest) {
+            handler = asyncRequest.handler;
+            if (reply.getOperationId() != handler.getOperationId()
+                    || asyncRequests.get(handler.getOperationId()) != asyncRequest) {
+                return; // already answered, timed out or re-issued
+            }
+            handler.processReply(reply);
+            if (!handler.isResponseReady()) {
+                return;
+            }
+            asyncRequests.remove(handler.getOperationId());
+            cancelTimeout(asyncRequest);
+        }
+
+        TOMMessage response = handler.getResponse();
+        TOMMessageType reqType = asyncRequest.reqType;
+        if (response == null) {
+            //the response can be null if n-f replies are received but there isn't
+            //a replyQuorumSize of matching replies
+            logger.debug("Received n-f replies and no response could be extracted.");
+            if (reqType == TOMMessageType.UNORDERED_REQUEST) {
+                resendOrdered(asyncRequest, null);
+            } else {
+                handler.printState();
+                completeAsync(asyncRequest, asyncRequest.future, null,
+                        new RuntimeException("Received n-f replies without f+1 of them matching."));
+            }
+        } else if (response.getViewID() == getViewManager().getCurrentViewId()) {// normal operation
+            completeAsync(asyncRequest, asyncRequest.future, response.getContent(), null);
+        } else if (response.getViewID() > getViewManager().getCurrentViewId()) {
+            // servers are in a later view: install it (replies to ordered requests carry it) and request again
+            resendOrdered(asyncRequest, reqType == TOMMessageType.ORDERED_REQUEST ? newView(response.getContent()) : null);
+        } else {
+            logger.error("My view is ahead of the servers' view. This should never happen!");
+            completeAsync(asyncRequest, asyncRequest.future, null, null);
+        }
+    }
+
+    private void asyncRequestTimeout(AsyncRequest asyncRequest, AbstractRequestHandler handler) {
+        synchronized (asyncRequest) {
+            if (asyncRequest.handler != handler || !asyncRequests.remove(handler.getOperationId(), asyncRequest)) {
+                return;
+            }
+            asyncRequest.timeout = null;
+        }
+        logger.info("###### TIMEOUT ({}s) OF ASYNCHRONOUS REQUEST {} | seqId: {} | replies received: {} ######",
+                getInvokeTimeout(), asyncRequest.reqType, handler.getSequenceId(),
+                handler.getNumberReceivedReplies());
+        if (asyncRequest.reqType == TOMMessageType.UNORDERED_REQUEST) {
+            resendOrdered(asyncRequest, null);
+        } else {
+            completeAsync(asyncRequest, asyncRequest.future, null, new TimeoutException(
+                    "No response to request " + handler.getSequenceId() + " after " + getInvokeTimeout() + "s"));
+        }
+    }
+
+    /**
+     * Re-issues an asynchronous request as an ordered request. This is done outside of
+     * the I/O and timer threads, since sending may block.
+     */
+    private void resendOrdered(AsyncRequest asyncRequest, View view) {
+        CompletableFuture.runAsync(() -> {
+            try {
+                if (view != null && view.getId() > getViewManager().getCurrentViewId()) {
+                    reconfigureTo(view);
+                }
+                asyncRequest.reqType = TOMMessageType.ORDERED_REQUEST;
+                sendAsync(asyncRequest);
+            } catch (RuntimeException e) {
+                completeAsync(asyncRequest, asyncRequest.future, null, e);
+            }
+        });
+    }
+
+    private void completeAsync(AsyncRequest asyncRequest, CompletableFuture<byte[]> future,
+                               byte[] result, Throwable error) {
+        if (asyncRequest != null && asyncRequest.handler != null) {
+            asyncRequests.remove(asyncRequest.handler.getOperationId(), asyncRequest);
+        }
+        asyncWindow.release();
+        if (error != null) {
+            future.completeExceptionally(error);
+        } else {
+            future.complete(result);
+        }
+    }
+
+    private static void cancelTimeout(AsyncRequest asyncRequest) {
+        if (asyncRequest.timeout != null) {
+            asyncRequest.timeout.cancel();
+            asyncRequest.timeout = null;
+        }
+    }
+
     /**
      * This is the method invoked by the client side communication system.
      *
@@ -137,6 +326,16 @@ public class AsynchServiceProxy extends ServiceProxy {
     public void replyReceived(TOMMessage reply) {
         logger.debug("Asynchronously received reply from " + reply.getSender() + " with sequence number " + reply.getSequence() + " and operation ID " + reply.getOperationId());
 
+        AsyncRequest asyncRequest = asyncRequests.get(reply.getOperationId());
+        if (asyncRequest != null) { // request issued through the futures API
+            try {
+                asyncReplyReceived(asyncRequest, reply);
+            } catch (Exception ex) {
+                logger.error("Error processing received reply", ex);
+            }
+            return;
+        }
+
         try {
             canReceiveLock.lock();
 
@@ -259,4 +458,22 @@ public class AsynchServiceProxy extends ServiceProxy {
         return false;
     }
 
+    /**
+     * State of a request issued through the futures API. The handler and the timeout
+     * change when the request is re-issued, and are guarded by the object's monitor.
+     */
+    private static class AsyncRequest {
+        private final byte[] request;
+        private final CompletableFuture<byte[]> future;
+        private TOMMessageType reqType;
+        private AbstractRequestHandler handler;
+        private Scheduler.Timeout timeout;
+
+        AsyncRequest(byte[] request, TOMMessageType reqType, CompletableFuture<byte[]> future) {
+            this.request = request;
+            this.reqType = reqType;
+            this.future = future;
+        }
+    }
+
 }
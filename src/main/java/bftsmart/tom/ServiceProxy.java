@@ -19,6 +19,7 @@ import bftsmart.reconfiguration.ReconfigureReply;
 import bftsmart.reconfiguration.views.View;
 import bftsmart.tom.client.AbstractRequestHandler;
 import bftsmart.tom.client.HashedRequestHandler;
+import bftsmart.tom.client.LeaseReadRequestHandler;
 import bftsmart.tom.client.NormalRequestHandler;
 import bftsmart.tom.core.TOMSender;
 import bftsmart.tom.core.messages.TOMMessage;
@@ -32,6 +33,7 @@ import org.slf4j.LoggerFactory;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -51,9 +53,15 @@ public class ServiceProxy extends TOMSender {
 	private final Extractor extractor;
 	private final Random rand = new Random(System.currentTimeMillis());
 	private int invokeUnorderedHashedTimeout = 10;
+	private int invokeLeaseReadTimeout;
+	private volatile int leaseHolder = -1; // replica believed to hold the leader lease
 
 	private AbstractRequestHandler requestHandler; //Active request context
 
+	// Active request contexts when multiple requests can be in flight (see system.client.multiplexRequests)
+	private final boolean multiplexRequests;
+	private final ConcurrentHashMap<Long, AbstractRequestHandler> requestHandlers = new ConcurrentHashMap<>();
+
 	/**
 	 * Constructor
 	 *
@@ -96,6 +104,8 @@ public class ServiceProxy extends TOMSender {
 						Comparator<byte[]> replyComparator, Extractor replyExtractor, KeyLoader loader) {
 		super(processId, configHome, loader);
 		this.invokeTimeout = getViewManager().getStaticConf().getClientInvokeOrderedTimeout();
+		this.invokeLeaseReadTimeout = getViewManager().getStaticConf().getClientInvokeLeaseReadTimeout();
+		this.multiplexRequests = getViewManager().getStaticConf().isClientMultiplexRequests();
 
 		comparator = (replyComparator != null) ? replyComparator
 				: (o1, o2) -> Arrays.equals(o1, o2) ? 0 : -1;
@@ -123,6 +133,16 @@ public class ServiceProxy extends TOMSender {
 		return invokeUnorderedHashedTimeout;
 	}
 
+	/**
+	 * Get the amount of time (in seconds) that this proxy will wait for
+	 * the reply of the leader to a lease read.
+	 *
+	 * @return the timeout value in seconds
+	 */
+	public int getInvokeLeaseReadTimeout() {
+		return invokeLeaseReadTimeout;
+	}
+
 	/**
 	 * Set the amount of time (in seconds) that this proxy will wait for
 	 * servers replies before returning null.
@@ -143,6 +163,16 @@ public class ServiceProxy extends TOMSender {
 		this.invokeUnorderedHashedTimeout = timeout;
 	}
 
+	/**
+	 * Set the amount of time (in seconds) that this proxy will wait for
+	 * the reply of the leader to a lease read.
+	 *
+	 * @param timeout the timeout value to set
+	 */
+	public void setInvokeLeaseReadTimeout(int timeout) {
+		this.invokeLeaseReadTimeout = timeout;
+	}
+
 	/**
 	 * This method sends an ordered request to the replicas, and returns the related reply.
 	 * If the servers take more than invokeTimeout seconds the method returns null.
@@ -185,10 +215,30 @@ public class ServiceProxy extends TOMSender {
 		return invoke(request, TOMMessageType.UNORDERED_HASHED_REQUEST);
 	}
 
+	/**
+	 * This method sends an unordered request only to the replica believed to be the leader,
+	 * which answers it alone if it holds a leader lease (see system.optimizations.leader_lease).
+	 * Otherwise, that replica tells which replica is the leader, the following lease reads are
+	 * sent to it and this request is sent with invokeUnordered(). If no reply arrives within
+	 * invokeLeaseReadTimeout seconds, the next replica of the view is tried in the following
+	 * lease reads instead.
+	 * The reply of a single replica cannot be checked against the others, so leases are
+	 * only enabled with system.bft = false.
+	 * This method is thread-safe.
+	 *
+	 * @param request to be sent
+	 * @return The reply from the leader related to request
+	 */
+	public byte[] invokeLeaseRead(byte[] request) {
+		return invoke(request, TOMMessageType.LEASE_READ);
+	}
+
 	/**
 	 * This method sends a request to the replicas, and returns the related reply.
 	 * If the servers take more than invokeTimeout seconds the method returns null.
-	 * This method is thread-safe.
+	 * This method is thread-safe. If system.client.multiplexRequests is enabled,
+	 * concurrent invocations from different threads are in flight at the same time,
+	 * otherwise they are executed one after the other.
 	 *
 	 * @param request Request to be sent
 	 * @param reqType ORDERED_REQUEST/ORDERED_HASHED_REQUEST/UNORDERED_REQUEST/UNORDERED_HASHED_REQUEST
@@ -197,6 +247,9 @@ public class ServiceProxy extends TOMSender {
 	 * @return The reply from the replicas related to request
 	 */
 	public byte[] invoke(byte[] request, TOMMessageType reqType) {
+		if (multiplexRequests) {
+			return invokeMultiplexed(request, reqType);
+		}
 		try {
 			canSendLock.lock();
 
@@ -205,7 +258,7 @@ public class ServiceProxy extends TOMSender {
 			TOMMessage requestMessage = requestHandler.createRequest(request);
 
 			logger.debug("Sending request ({}) with seqId = {}", reqType, requestHandler.getSequenceId());
-			TOMulticast(requestMessage);
+			send(requestHandler, requestMessage);
 
 			logger.debug("Expected number of matching replies: {}", requestHandler.getReplyQuorumSize());
 
@@ -214,77 +267,166 @@ public class ServiceProxy extends TOMSender {
 			// by the client side communication system
 			requestHandler.waitForResponse();
 
-			if (requestHandler.isRequestTimeout()) {
-				logger.info("###### TIMEOUT ({}s) OF REQUEST {} | seqId: {} | replies received: {} ######",
-						invokeTimeout, reqType, requestHandler.getSequenceId(),
-						requestHandler.getNumberReceivedReplies());
-				if (reqType == TOMMessageType.UNORDERED_HASHED_REQUEST || reqType == TOMMessageType.UNORDERED_REQUEST) {
-					return invoke(request, TOMMessageType.ORDERED_REQUEST);
-				} else {
-					return null;
-				}
-			}
+			return processResponse(requestHandler, request, reqType);
+		} catch (InterruptedException e) {
+			logger.error("Failed to wait for a response. Returning null as response.", e);
+			return null;
+		} finally {
+			canSendLock.unlock(); //always release lock
+		}
+	}
 
-			TOMMessage response = requestHandler.getResponse();
-			logger.debug("Response extracted: " + response);
+	/**
+	 * Sends a request while other threads may be waiting for their own replies. The send lock
+	 * is only held while the sequence number is generated and the request is sent, so that
+	 * the replicas receive the requests of this client in sequence order.
+	 */
+	private byte[] invokeMultiplexed(byte[] request, TOMMessageType reqType) {
+		AbstractRequestHandler handler;
+		long handlerKey;
+		try {
+			canSendLock.lock();
 
-			if (response == null) {
-				//the response can be null if n-f replies are received but there isn't
-				//a replyQuorumSize of matching replies
-				logger.debug("Received n-f replies and no response could be extracted.");
+			handler = createRequestHandler(reqType);
+			handlerKey = handlerKey(reqType, handler.getSequenceId());
+			requestHandlers.put(handlerKey, handler);
 
-				if (reqType == TOMMessageType.UNORDERED_REQUEST || reqType == TOMMessageType.UNORDERED_HASHED_REQUEST) {
-					//invoke the operation again, whitout the read-only flag
-					logger.debug("###################RETRY#######################");
-					return invokeOrdered(request);
-				} else {
-					requestHandler.printState();
-					throw new RuntimeException("Received n-f replies without f+1 of them matching.");
-				}
-			} else {
-				if (response.getViewID() == getViewManager().getCurrentViewId()) {// normal operation
-					return response.getContent();
-				} else if (response.getViewID() > getViewManager().getCurrentViewId()) {
-					if (reqType == TOMMessageType.ORDERED_REQUEST) {
-						reconfigureTo((View) TOMUtil.getObject(response.getContent()));
-						return invokeOrdered(request);
-					} else if (reqType == TOMMessageType.UNORDERED_REQUEST
-							|| reqType == TOMMessageType.UNORDERED_HASHED_REQUEST) {
-						// Ignore the response and request again because servers are in a later view
-						return invokeOrdered(request);
-					} else {// Reply to a reconfigure request!
-						logger.debug("Reconfiguration request' reply received!");
-						Object r = TOMUtil.getObject(response.getContent());
-						if (r instanceof View) { //did not execute the request because it is using an outdated view
-							reconfigureTo((View) r);
-							return invoke(request, reqType);
-						}  else if (r instanceof ReconfigureReply) { //reconfiguration executed!
-							reconfigureTo(((ReconfigureReply) r).getView());
-							return response.getContent();
-						} else{
-							logger.error("Unknown response type: {}", response.getReqType());
-						}
-					}
-				} else {
-					logger.error("My view is ahead of the servers' view. This should never happen!");
-				}
-				return null;
+			TOMMessage requestMessage = handler.createRequest(request);
+
+			logger.debug("Sending request ({}) with seqId = {}", reqType, handler.getSequenceId());
+			try {
+				send(handler, requestMessage);
+			} catch (RuntimeException e) {
+				requestHandlers.remove(handlerKey);
+				throw e;
 			}
+		} finally {
+			canSendLock.unlock();
+		}
+
+		try {
+			logger.debug("Expected number of matching replies: {}", handler.getReplyQuorumSize());
+			handler.waitForResponse();
 
+			return processResponse(handler, request, reqType);
 		} catch (InterruptedException e) {
 			logger.error("Failed to wait for a response. Returning null as response.", e);
 			return null;
 		} finally {
-			canSendLock.unlock(); //always release lock
+			requestHandlers.remove(handlerKey);
 		}
 	}
 
+	/**
+	 * Sends a lease read to the replica believed to be the leader and any other
+	 * request to all replicas
+	 */
+	private void send(AbstractRequestHandler handler, TOMMessage requestMessage) {
+		if (handler instanceof LeaseReadRequestHandler) {
+			sendMessageToTargets(requestMessage, new int[]{((LeaseReadRequestHandler) handler).getLeader()});
+		} else {
+			TOMulticast(requestMessage);
+		}
+	}
+
+	/**
+	 * Extracts the result of a request after its handler stopped waiting for replies,
+	 * retrying the request when needed.
+	 */
+	private byte[] processResponse(AbstractRequestHandler requestHandler, byte[] request,
+								   TOMMessageType reqType) {
+		if (requestHandler.isRequestTimeout() && reqType == TOMMessageType.LEASE_READ) {
+			int leader = ((LeaseReadRequestHandler) requestHandler).getLeader();
+			logger.debug("Replica {} did not answer the lease read with seqId {}, sending it to all replicas",
+					leader, requestHandler.getSequenceId());
+			nextLeaseHolder(leader);
+			return invokeUnordered(request);
+		}
+		if (reqType == TOMMessageType.LEASE_READ && requestHandler.getResponse() == null) {
+			int redirect = ((LeaseReadRequestHandler) requestHandler).getRedirect();
+			logger.debug("Replica {} does not hold the leader lease, the leader is {}",
+					((LeaseReadRequestHandler) requestHandler).getLeader(), redirect);
+			if (getViewManager().getCurrentView().isMember(redirect)) {
+				leaseHolder = redirect;
+			}
+			return invokeUnordered(request);
+		}
+		if (requestHandler.isRequestTimeout()) {
+			logger.info("###### TIMEOUT ({}s) OF REQUEST {} | seqId: {} | replies received: {} ######",
+					invokeTimeout, reqType, requestHandler.getSequenceId(),
+					requestHandler.getNumberReceivedReplies());
+			if (reqType == TOMMessageType.UNORDERED_HASHED_REQUEST || reqType == TOMMessageType.UNORDERED_REQUEST) {
+				return invoke(request, TOMMessageType.ORDERED_REQUEST);
+			} else {
+				return null;
+			}
+		}
+
+		TOMMessage response = requestHandler.getResponse();
+		logger.debug("Response extracted: " + response);
+
+		if (response == null) {
+			//the response can be null if n-f replies are received but there isn't
+			//a replyQuorumSize of matching replies
+			logger.debug("Received n-f replies and no response could be extracted.");
+
+			if (reqType == TOMMessageType.UNORDERED_REQUEST || reqType == TOMMessageType.UNORDERED_HASHED_REQUEST) {
+				//invoke the operation again, whitout the read-only flag
+				logger.debug("###################RETRY#######################");
+				return invokeOrdered(request);
+			} else {
+				requestHandler.printState();
+				throw new RuntimeException("Received n-f replies without f+1 of them matching.");
+			}
+		} else {
+			if (response.getViewID() == getViewManager().getCurrentViewId()) {// normal operation
+				return response.getContent();
+			} else if (response.getViewID() > getViewManager().getCurrentViewId()) {
+				if (reqType == TOMMessageType.ORDERED_REQUEST) {
+					reconfigureTo((View) TOMUtil.getObject(response.getContent()));
+					return invokeOrdered(request);
+				} else if (reqType == TOMMessageType.UNORDERED_REQUEST
+						|| reqType == TOMMessageType.UNORDERED_HASHED_REQUEST
+						|| reqType == TOMMessageType.LEASE_READ) {
+					// Ignore the response and request again because servers are in a later view
+					return invokeOrdered(request);
+				} else {// Reply to a reconfigure request!
+					logger.debug("Reconfiguration request' reply received!");
+					Object r = TOMUtil.getObject(response.getContent());
+					if (r instanceof View) { //did not execute the request because it is using an outdated view
+						reconfigureTo((View) r);
+						return invoke(request, reqType);
+					}  else if (r instanceof ReconfigureReply) { //reconfiguration executed!
+						reconfigureTo(((ReconfigureReply) r).getView());
+						return response.getContent();
+					} else{
+						logger.error("Unknown response type: {}", response.getReqType());
+					}
+				}
+			} else {
+				logger.error("My view is ahead of the servers' view. This should never happen!");
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Ordered and unordered requests are numbered by different counters (see
+	 * {@link TOMSender#generateRequestId(TOMMessageType)}), so the key of a request
+	 * context combines the sequence number with the counter it came from.
+	 */
+	private static long handlerKey(TOMMessageType reqType, int sequenceId) {
+		long ordered = (reqType == TOMMessageType.ORDERED_REQUEST
+				|| reqType == TOMMessageType.ORDERED_HASHED_REQUEST) ? 1L : 0L;
+		return (ordered << 32) | (sequenceId & 0xFFFFFFFFL);
+	}
+
 	/**
 	 * Creates a request handler based on the request type
 	 * @param requestType Request type
 	 * @return Request handler
 	 */
-	private AbstractRequestHandler createRequestHandler(TOMMessageType requestType) {
+	protected AbstractRequestHandler createRequestHandler(TOMMessageType requestType) {
 		AbstractRequestHandler requestHandler;
 		int replyQuorumSize = getReplyQuorum();// size of the reply quorum
 		int sequenceId = generateRequestId(requestType);
@@ -305,6 +447,16 @@ public class ServiceProxy extends TOMSender {
 					replyQuorumSize,
 					replyServer
 			);
+		} else if (requestType == TOMMessageType.LEASE_READ) {
+			requestHandler = new LeaseReadRequestHandler(
+					getProcessId(),
+					getSession(),
+					sequenceId,
+					operationId,
+					getViewManager().getCurrentViewId(),
+					invokeLeaseReadTimeout,
+					getLeaseHolder()
+			);
 		} else { // ORDERED_REQUEST or UNORDERED_REQUEST
 			requestHandler = new NormalRequestHandler(
 					getProcessId(),
@@ -325,7 +477,7 @@ public class ServiceProxy extends TOMSender {
 	}
 
 	//******* EDUARDO BEGIN **************//
-	protected void reconfigureTo(View v) {
+	protected synchronized void reconfigureTo(View v) {
 		logger.debug("Installing a most up-to-date view with id=" + v.getId());
 		getViewManager().reconfigureTo(v);
 		getViewManager().getViewStore().storeView(v);
@@ -342,6 +494,21 @@ public class ServiceProxy extends TOMSender {
 	public void replyReceived(TOMMessage reply) {
 		logger.debug("Synchronously received reply from {} with sequence number {}", reply.getSender(),
 				reply.getSequence());
+		if (multiplexRequests) {
+			AbstractRequestHandler handler = requestHandlers.get(handlerKey(reply.getReqType(), reply.getSequence()));
+			if (handler == null) {//no message being expected
+				logger.debug("throwing out request: sender = {} reqId = {}", reply.getSender(), reply.getSequence());
+				return;
+			}
+			try {
+				synchronized (handler) { // replies for the same request may arrive from several channels at once
+					handler.processReply(reply);
+				}
+			} catch (Exception ex) {
+				logger.error("Problem processing reply", ex);
+			}
+			return;
+		}
 		try {
 			canReceiveLock.lock();
 			if (requestHandler == null) {//no message being expected
@@ -356,6 +523,35 @@ public class ServiceProxy extends TOMSender {
 		}
 	}
 
+	/**
+	 * Gets the replica to which lease reads are sent. The leader of the first
+	 * regency is the first replica of the view.
+	 */
+	private int getLeaseHolder() {
+		int[] processes = getViewManager().getCurrentViewProcesses();
+		int holder = leaseHolder;
+		for (int p : processes) {
+			if (p == holder) {
+				return holder;
+			}
+		}
+		leaseHolder = processes[0];
+		return processes[0];
+	}
+
+	/**
+	 * Sends the next lease reads to the replica that follows the one that did not answer
+	 */
+	private void nextLeaseHolder(int leader) {
+		int[] processes = getViewManager().getCurrentViewProcesses();
+		for (int i = 0; i < processes.length; i++) {
+			if (processes[i] == leader) {
+				leaseHolder = processes[(i + 1) % processes.length];
+				return;
+			}
+		}
+	}
+
 	private int getRandomlyServerId(){
 		int numServers = super.getViewManager().getCurrentViewProcesses().length;
 		int pos = rand.nextInt(numServers);
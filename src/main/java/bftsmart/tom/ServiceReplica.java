@@ -21,14 +21,17 @@ import java.util.List;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+import bftsmart.clientsmanagement.RequestVerificationStage;
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.tom.core.ExecutionManager;
 import bftsmart.consensus.messages.MessageFactory;
 import bftsmart.consensus.roles.Acceptor;
 import bftsmart.consensus.roles.Proposer;
+import bftsmart.metrics.Metrics;
 import bftsmart.reconfiguration.ReconfigureReply;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.reconfiguration.VMMessage;
+import bftsmart.tom.core.ReadOnlyExecutionPool;
 import bftsmart.tom.core.ReplyManager;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
@@ -68,6 +71,7 @@ public class ServiceReplica {
     // Server side comunication system
     private ServerCommunicationSystem cs = null;
     private ReplyManager repMan = null;
+    private ReadOnlyExecutionPool readPool = null;
     private ServerViewController SVController;
     private ReentrantLock waitTTPJoinMsgLock = new ReentrantLock();
     private Condition canProceed = waitTTPJoinMsgLock.newCondition();
@@ -188,9 +192,26 @@ public class ServiceReplica {
     private void initReplica() {
         cs.start();
         repMan = new ReplyManager(SVController.getStaticConf().getNumRepliers(), cs);
+
+        int readThreads = SVController.getStaticConf().getNumReadOnlyThreads();
+        if (readThreads > 0) {
+            readPool = new ReadOnlyExecutionPool(executor.isUnorderedThreadSafe() ? readThreads : 1,
+                    SVController.getStaticConf().getReadOnlyQueueSize(),
+                    SVController.getStaticConf().getUseControlFlow(), this::executeReadonly);
+        }
     }
 
     public final void receiveReadonlyMessage(TOMMessage message, MessageContext msgCtx) {
+        ReadOnlyExecutionPool pool = readPool;
+
+        if (pool == null) {
+            executeReadonly(message, msgCtx);
+        } else if (!pool.execute(message, msgCtx)) {
+            logger.debug("Unordered request " + message + " was dropped, the read-only pool is full");
+        }
+    }
+
+    private void executeReadonly(TOMMessage message, MessageContext msgCtx) {
         TOMMessage response;
 
         // This is used to deliver the requests to the application and obtain a reply to deliver
@@ -224,6 +245,9 @@ public class ServiceReplica {
                 if (tomLayer != null) {   
                     tomLayer.shutdown();
                 }     
+                if (readPool != null) {
+                    readPool.shutdown();
+                }
             }
         };
         t.start();
@@ -240,6 +264,10 @@ public class ServiceReplica {
             public void run() {
                 if (tomLayer != null && cs != null) {   
                     tomLayer.shutdown();
+                    if (readPool != null) {
+                        readPool.shutdown();
+                        readPool = null;
+                    }
 
                     try {
                         cs.join();
@@ -326,13 +354,17 @@ public class ServiceReplica {
                                 //to the clients. The raw decision is passed to the application in the line above.
 								boolean isReplyHash = request.getReqType() == TOMMessageType.ORDERED_HASHED_REQUEST
 										&& request.getReplyServer() != this.id;
+                                long executionStart = System.nanoTime();
                                 TOMMessage response = ((SingleExecutable) executor).executeOrdered(id,
 										SVController.getCurrentViewId(), isReplyHash, request.getContent(), msgCtx);
+                                Metrics.recordSince(Metrics.Stage.EXECUTE, executionStart);
 
                                 if (response != null) {
                                     
                                     logger.debug("sending reply to " + response.getSender());
+                                    response.executedTime = System.nanoTime();
                                     replier.manageReply(response, msgCtx);
+                                    Metrics.recordSince(Metrics.Stage.REPLY, response.executedTime);
                                 }
                             } else { //this code should never be executed
                                 throw new UnsupportedOperationException("Non-existent interface");
@@ -418,20 +450,27 @@ public class ServiceReplica {
             msgContexts = msgCtxts.toArray(msgContexts);
             
             //Deliver the batch and wait for replies
+            long executionStart = System.nanoTime();
             TOMMessage[] replies = ((BatchExecutable) executor).executeBatch(id, SVController.getCurrentViewId(),
 					isReplyHashes, batch, msgContexts);
+            Metrics.recordSince(Metrics.Stage.EXECUTE, executionStart);
 
             //Send the replies back to the client
             if (replies != null) {
                 
+                long executedTime = System.nanoTime();
                 for (TOMMessage reply : replies) {
+                    reply.executedTime = executedTime;
+                }
 
-                    if (SVController.getStaticConf().getNumRepliers() > 0) {
-                        logger.debug("Sending reply to " + reply.getSender() + " with sequence number " + reply.getSequence() + " and operation ID " + reply.getOperationId() +" via ReplyManager");
-                        repMan.send(reply);
-                    } else {
+                if (SVController.getStaticConf().getNumRepliers() > 0) {
+                    logger.debug("Sending " + replies.length + " replies via ReplyManager");
+                    repMan.send(replies);
+                } else {
+                    for (TOMMessage reply : replies) {
                         logger.debug("Sending reply to " + reply.getSender() + " with sequence number " + reply.getSequence() + " and operation ID " + reply.getOperationId());
                         replier.manageReply(reply, null);
+                        Metrics.recordSince(Metrics.Stage.REPLY, reply.executedTime);
                         //cs.send(new int[]{request.getSender()}, request.reply);
                     }
                 }
@@ -468,6 +507,8 @@ public class ServiceReplica {
 
         acceptor.setExecutionManager(executionManager);
 
+        Metrics.start(SVController.getStaticConf());
+
         tomLayer = new TOMLayer(executionManager, this, recoverer, acceptor, cs, SVController, verifier);
 
         executionManager.setTOMLayer(tomLayer);
@@ -475,7 +516,13 @@ public class ServiceReplica {
         SVController.setTomLayer(tomLayer);
 
         cs.setTOMLayer(tomLayer);
-        cs.setRequestReceiver(tomLayer);
+        if (SVController.getStaticConf().getUseSignatures() == 1
+                || SVController.getStaticConf().isRequestPipeline()) {
+            cs.setRequestReceiver(new RequestVerificationStage(SVController, tomLayer,
+                    tomLayer.clientsManager.getSignatureCache()));
+        } else {
+            cs.setRequestReceiver(tomLayer);
+        }
 
         acceptor.setTOMLayer(tomLayer);
 
@@ -104,6 +104,19 @@ public abstract class AbstractRequestHandler {
 		return sequenceId;
 	}
 
+	public int getOperationId() {
+		return operationId;
+	}
+
+	/**
+	 * Non-blocking alternative to waitForResponse(): tells if a response was extracted
+	 * or all replicas already replied.
+	 * @return true if waitForResponse() would return immediately
+	 */
+	public boolean isResponseReady() {
+		return response != null || replySenders.size() == replicas.length;
+	}
+
 	public int getNumberReceivedReplies() {
 		return replySenders.size();
 	}
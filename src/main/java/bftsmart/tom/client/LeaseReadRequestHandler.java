@@ -0,0 +1,53 @@
+package bftsmart.tom.client;
+
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+
+/**
+ * Handles a LEASE_READ request, which is sent only to the replica believed to
+ * be the leader. That replica answers only while it holds the leader lease, so
+ * its reply is the response. Otherwise, it replies with the replica it believes
+ * to be the leader in the replyServer field, and there is no response.
+ */
+public class LeaseReadRequestHandler extends AbstractRequestHandler {
+	private final int leader;
+	private int redirect = -1;
+
+	public LeaseReadRequestHandler(int me, int session, int sequenceId, int operationId, int viewId,
+								   int timeout, int leader) {
+		super(me, session, sequenceId, operationId, viewId, TOMMessageType.LEASE_READ, timeout,
+				new int[]{leader}, 1);
+		this.leader = leader;
+	}
+
+	@Override
+	public TOMMessage createRequest(byte[] request) {
+		return new TOMMessage(me, session, sequenceId, operationId, request, viewId, requestType);
+	}
+
+	@Override
+	public TOMMessage processReply(TOMMessage reply, int lastSenderIndex) {
+		if (reply.getReplyServer() >= 0) {
+			redirect = reply.getReplyServer();
+			return null;
+		}
+		return reply;
+	}
+
+	public int getLeader() {
+		return leader;
+	}
+
+	/**
+	 * Call this method after calling waitForResponse().
+	 * @return The replica the lease read was redirected to, or -1 if it was not
+	 */
+	public int getRedirect() {
+		return redirect;
+	}
+
+	@Override
+	public void printState() {
+		logger.info("Lease read sent to replica {}", leader);
+	}
+}
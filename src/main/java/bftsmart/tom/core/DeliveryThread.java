@@ -16,6 +16,7 @@ limitations under the License.
 package bftsmart.tom.core;
 
 import bftsmart.consensus.Decision;
+import bftsmart.metrics.Metrics;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.statemanagement.ApplicationState;
 import bftsmart.tom.MessageContext;
@@ -29,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.TreeMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -46,10 +48,13 @@ public final class DeliveryThread extends Thread {
 	private boolean doWork = true;
 	private int lastReconfig = -2;
 	private final LinkedBlockingQueue<Decision> decided;
+	// decisions from consensus instances that finished before their predecessors (when pipelining)
+	private final TreeMap<Integer, Decision> outOfOrderDecisions = new TreeMap<>();
 	private final TOMLayer tomLayer; // TOM layer
 	private final ServiceReplica receiver; // Object that receives requests from clients
 	private final Recoverable recoverer; // Object that uses state transfer
 	private final ServerViewController controller;
+	private final int pipelineWindow;
 	private final Lock decidedLock = new ReentrantLock();
 	private final Condition notEmptyQueue = decidedLock.newCondition();
 
@@ -68,6 +73,7 @@ public final class DeliveryThread extends Thread {
 						  ServerViewController controller) {
 		super("Delivery Thread");
 		this.decided = new LinkedBlockingQueue<>();
+		Metrics.registerGauge("decided", decided::size);
 
 		this.tomLayer = tomLayer;
 		this.receiver = receiver;
@@ -75,6 +81,7 @@ public final class DeliveryThread extends Thread {
 		// ******* EDUARDO BEGIN **************//
 		this.controller = controller;
 		// ******* EDUARDO END **************//
+		this.pipelineWindow = controller.getStaticConf().getPipelineWindow();
 	}
 
 	public Recoverable getRecoverer() {
@@ -89,6 +96,42 @@ public final class DeliveryThread extends Thread {
 	public void delivery(Decision dec) {
 		decidedLock.lock();
 
+		if (pipelineWindow > 1 && (dec.getConsensusId() > tomLayer.getLastExec() + 1 || lastReconfig > -2)) {
+			// a pipelined consensus was decided before the previous ones, so it has to wait for them
+			logger.debug("Consensus " + dec.getConsensusId() + " finished out of order, holding it back");
+			outOfOrderDecisions.put(dec.getConsensusId(), dec);
+			decidedLock.unlock();
+			return;
+		}
+
+		deliverInOrder(dec);
+
+		Decision next;
+		while (lastReconfig == -2
+				&& (next = outOfOrderDecisions.remove(tomLayer.getLastExec() + 1)) != null) {
+			deliverInOrder(next);
+		}
+
+		notEmptyQueue.signalAll();
+		decidedLock.unlock();
+	}
+
+	/**
+	 * Checks if a decision containing a reconfiguration is waiting to be processed
+	 *
+	 * @return true if the last executed consensus was not yet set after a reconfiguration
+	 */
+	public boolean isReconfigurationPending() {
+		return lastReconfig > -2;
+	}
+
+	/**
+	 * Puts a decision in the decided queue. The caller must hold decidedLock and
+	 * make sure the decision follows the last executed consensus.
+	 *
+	 * @param dec Decision established from the consensus
+	 */
+	private void deliverInOrder(Decision dec) {
 		try {
 			decided.put(dec);
 
@@ -105,16 +148,13 @@ public final class DeliveryThread extends Thread {
 			// set this decision as the last one from this replica
 			tomLayer.setLastExec(dec.getConsensusId());
 			// define that end of this execution
-			tomLayer.setInExec(-1);
+			tomLayer.advanceInExec();
 		} // else if (tomLayer.controller.getStaticConf().getProcessId() == 0)
 		// System.exit(0);
 		else {
 			logger.debug("Decision from consensus " + dec.getConsensusId() + " has reconfiguration");
 			lastReconfig = dec.getConsensusId();
 		}
-
-		notEmptyQueue.signalAll();
-		decidedLock.unlock();
 	}
 
 	private boolean containsReconfig(Decision dec) {
@@ -209,6 +249,9 @@ public final class DeliveryThread extends Thread {
 
 		logger.info("Current decided size: " + decided.size());
 		decided.clear();
+		decidedLock.lock();
+		outOfOrderDecisions.headMap(lastCID + 1).clear();
+		decidedLock.unlock();
 
 		logger.info("All finished up to " + lastCID);
 	}
@@ -288,6 +331,9 @@ public final class DeliveryThread extends Thread {
 							d.firstMessageProposed.seed = requests[count][0].seed;
 							d.firstMessageProposed.numOfNonces = requests[count][0].numOfNonces;
 						}
+						if (d.firstMessageProposed != null) {
+							Metrics.recordSince(Metrics.Stage.DELIVER, d.firstMessageProposed.decisionTime);
+						}
 
 						count++;
 					}
@@ -295,6 +341,7 @@ public final class DeliveryThread extends Thread {
 					Decision lastDecision = decisions.get(decisions.size() - 1);
 
 					deliverMessages(consensusIds, regenciesIds, leadersIds, cDecs, requests);
+					tomLayer.getLeaseManager().executed(lastDecision.getConsensusId());
 
 					// ******* EDUARDO BEGIN ***********//
 					if (controller.hasUpdates()) {
@@ -304,23 +351,30 @@ public final class DeliveryThread extends Thread {
 
 						// set the consensus associated to the last decision as the last executed
 						logger.debug("Setting last executed consensus to " + lastDecision.getConsensusId());
+						decidedLock.lock();
 						tomLayer.setLastExec(lastDecision.getConsensusId());
 						// define that end of this execution
-						tomLayer.setInExec(-1);
+						tomLayer.advanceInExec();
 						// ******* EDUARDO END **************//
 
 						lastReconfig = -2;
+
+						// release pipelined decisions that were held back by the reconfiguration
+						Decision next;
+						while (lastReconfig == -2
+								&& (next = outOfOrderDecisions.remove(tomLayer.getLastExec() + 1)) != null) {
+							deliverInOrder(next);
+						}
+						decidedLock.unlock();
 					}
 
-					// define the last stable consensus... the stable consensus can
-					// be removed from the leaderManager and the executionManager
-					// TODO: Is this part necessary? If it is, can we put it
-					// inside setLastExec
+					// only the last few executed consensuses are kept in memory (the leader
+					// change needs the last one); the decisions of older ones are moved by
+					// the executionManager to its off-heap decision history
 					int cid = lastDecision.getConsensusId();
-					if (cid >= controller.getStaticConf().getCheckpointPeriod()) {
-						int stableConsensus = cid - controller.getStaticConf().getCheckpointPeriod();
-						// How to avoid memory problems? (make sure sufficient memory is available)
-						tomLayer.execManager.removeConsensus(stableConsensus);
+					int window = controller.getStaticConf().getConsensusWindow();
+					if (cid >= window) {
+						tomLayer.execManager.removeConsensus(cid - window);
 					}
 				}
 			} catch (Exception e) {
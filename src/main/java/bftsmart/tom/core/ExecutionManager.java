@@ -22,6 +22,7 @@ import java.util.*;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.consensus.Decision;
+import bftsmart.consensus.DecisionHistory;
 import bftsmart.consensus.messages.MessageFactory;
 import bftsmart.consensus.messages.ConsensusMessage;
 import bftsmart.consensus.roles.Acceptor;
@@ -50,8 +51,9 @@ public final class ExecutionManager {
     //private int[] acceptors; // Process ID's of all replicas, including this one
     //private int[] otherAcceptors; // Process ID's of all replicas, except this one
     //******* EDUARDO END **************//
-    private Map<Integer, Consensus> consensuses = new TreeMap<Integer, Consensus>(); // Consensuses
+    private TreeMap<Integer, Consensus> consensuses = new TreeMap<Integer, Consensus>(); // Consensuses
     private ReentrantLock consensusesLock = new ReentrantLock(); //lock for consensuses table
+    private DecisionHistory history; // decisions of the consensuses already removed from the table
     // Paxos messages that were out of context (that didn't belong to the consensus that was/is is progress
     private Map<Integer, List<ConsensusMessage>> outOfContext = new HashMap<Integer, List<ConsensusMessage>>();
     // Proposes that were out of context (that belonged to future consensuses, and not the one running at the time)
@@ -64,6 +66,7 @@ public final class ExecutionManager {
     private ReentrantLock stoppedMsgsLock = new ReentrantLock(); //lock for stopped messages
     private TOMLayer tomLayer; // TOM layer associated with this execution manager
     private int paxosHighMark; // Paxos high mark for consensus instances
+    private int pipelineWindow; // Number of consensus instances that can be executed concurrently
 
     private HashMap<Integer, List<Integer>> toForward = new HashMap<Integer, List<Integer>>();
     private HashMap<Integer, List<Integer>> forwarded = new HashMap<Integer, List<Integer>>();
@@ -75,8 +78,6 @@ public final class ExecutionManager {
     private int revivalHighMark; // Paxos high mark for consensus instances when this replica CID equals 0
     private int timeoutHighMark; // Paxos high mark for a timed-out replica
 
-    private int lastRemovedCID = 0; // Addition to fix memory leak
-
     /******************************************************************/
 
     // This is the new way of storing info about the leader,
@@ -100,12 +101,16 @@ public final class ExecutionManager {
         //this.me = me;
 
         this.paxosHighMark = this.controller.getStaticConf().getPaxosHighMark();
+        this.pipelineWindow = this.controller.getStaticConf().getPipelineWindow();
         /** THIS IS JOAO'S CODE, TO HANDLE THE STATE TRANSFER */
         this.revivalHighMark = this.controller.getStaticConf().getRevivalHighMark();
         this.timeoutHighMark = this.controller.getStaticConf().getTimeoutHighMark();
         /******************************************************************/
         //******* EDUARDO END **************//
 
+        this.history = new DecisionHistory(this.controller.getStaticConf().getDecisionHistorySize(),
+                this.controller.getStaticConf().getCheckpointPeriod());
+
         // Get initial leader
         if (controller.getCurrentViewAcceptors().length > 0)
             currentLeader = controller.getCurrentViewAcceptors()[0];
@@ -253,9 +258,8 @@ public final class ExecutionManager {
                 stoppedMsgsLock.unlock();
             } else {
                 if (isRetrievingState ||
-                        msg.getNumber() > (lastConsId + 1) ||
-                        (inExec != -1 && inExec < msg.getNumber()) ||
-                        (inExec == -1 && msg.getType() != MessageFactory.PROPOSE)) { //not propose message for the next consensus
+                        msg.getNumber() > (lastConsId + pipelineWindow) || //beyond the pipelining window
+                        (msg.getType() != MessageFactory.PROPOSE && !isStarted(msg.getNumber(), lastConsId, inExec))) { //not propose message for a consensus that was not started
                     logger.debug("Message for consensus " +
                             msg.getNumber() + " is out of context, adding it to out of context set");
 
@@ -341,6 +345,28 @@ public final class ExecutionManager {
         return canProcessTheMessage;
     }
 
+    /**
+     * Checks if a consensus instance is already running in this replica. The
+     * instance following the last executed one is running if it is the one in execution,
+     * while the ones after it (if pipelining is enabled) are running once a value was proposed
+     * to them.
+     *
+     * @param cid ID of the consensus
+     * @param lastConsId ID of the last executed consensus
+     * @param inExec ID of the consensus in execution
+     * @return true if the consensus is running, false otherwise
+     */
+    private boolean isStarted(int cid, int lastConsId, int inExec) {
+        if (inExec == cid) {
+            return true;
+        }
+        if (cid <= lastConsId + 1) {
+            return false;
+        }
+        Epoch epoch = getConsensus(cid).getLastEpoch();
+        return epoch != null && epoch.propValue != null;
+    }
+
     /**
      * Informs if there are messages till to be processed associated the specified consensus
      * @param cid The ID for the consensus in question
@@ -381,22 +407,32 @@ public final class ExecutionManager {
     }
 
     /**
-     * Removes a consensus from this manager
+     * Removes a consensus from this manager, along with any older one still
+     * in it. The decisions of the removed consensuses are moved to the
+     * decision history.
      * @param id ID of the consensus to be removed
      * @return The consensus that was removed
      */
     public Consensus removeConsensus(int id) {
         consensusesLock.lock();
         /******* BEGIN CONSENSUS CRITICAL SECTION *******/
-        Consensus consensus = consensuses.remove(id);
+        Consensus consensus = consensuses.get(id);
 
-        // Addition to fix memory leak
-        for (int i = lastRemovedCID; i < id; i++) consensuses.remove(i);
-        lastRemovedCID = id;
+        // older consensuses may have been re-created by late messages
+        Map<Integer, Consensus> removed = consensuses.headMap(id, true);
+        Consensus[] old = removed.values().toArray(new Consensus[removed.size()]);
+        removed.clear();
 
         /******* END CONSENSUS CRITICAL SECTION *******/
         consensusesLock.unlock();
 
+        for (Consensus c : old) {
+            Epoch epoch = c.getDecisionEpoch();
+            if (c.isDecided() && epoch != null && epoch.propValue != null) {
+                history.add(c.getId(), epoch.getTimestamp(), epoch.propValue, epoch.getProof());
+            }
+        }
+
         outOfContextLock.lock();
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
         outOfContextProposes.remove(id);
@@ -421,6 +457,16 @@ public final class ExecutionManager {
         return consensus;
     }
 
+    /**
+     * Returns the decision of a consensus already removed from this manager
+     *
+     * @param cid ID of the consensus
+     * @return The decision, or null if it is no longer kept
+     */
+    public DecisionHistory.Entry getPastDecision(int cid) {
+        return history.get(cid);
+    }
+
     /** THIS IS JOAO'S CODE, FOR HANDLING THE STATE TRANSFER */
     public void removeOutOfContexts(int id) {
 
@@ -446,6 +492,20 @@ public final class ExecutionManager {
         outOfContextLock.unlock();
     }
 
+    /**
+     * Returns the specified consensus, if this manager has it
+     *
+     * @param cid ID of the consensus to be returned
+     * @return The consensus specified, or null if it was not created or was already removed
+     */
+    public Consensus findConsensus(int cid) {
+        consensusesLock.lock();
+        Consensus consensus = consensuses.get(cid);
+        consensusesLock.unlock();
+
+        return consensus;
+    }
+
     /********************************************************/
     /**
      * Returns the specified consensus
@@ -0,0 +1,169 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.metrics.Metrics;
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * Executes unordered (read-only) requests in a pool of threads, instead of in
+ * the thread that received them from the client connection. Each client has
+ * its own queue and the threads serve the clients with queued requests in
+ * round-robin, so a client issuing many reads does not delay the reads of the
+ * others. The number of queued requests is bounded, both in total and per
+ * client; requests beyond these bounds are dropped, and the clients retry
+ * them.
+ */
+public class ReadOnlyExecutionPool {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final BiConsumer<TOMMessage, MessageContext> handler;
+    private final int maxQueued;
+    private final int maxPerClient;
+    private final Thread[] threads;
+
+    private final HashMap<Integer, ArrayDeque<Task>> queues = new HashMap<>();
+    private final ArrayDeque<ArrayDeque<Task>> ready = new ArrayDeque<>(); // queues with requests, in round-robin order
+    private int queued = 0;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor
+     *
+     * @param numThreads Number of threads that execute requests
+     * @param maxQueued Maximum number of requests waiting for a thread
+     * @param maxPerClient Maximum number of requests of a client waiting for a thread, or 0 for no limit
+     * @param handler Executes a request and sends its reply
+     */
+    public ReadOnlyExecutionPool(int numThreads, int maxQueued, int maxPerClient, BiConsumer<TOMMessage, MessageContext> handler) {
+        this.handler = handler;
+        this.maxQueued = Math.max(1, maxQueued);
+        this.maxPerClient = maxPerClient;
+        this.threads = new Thread[Math.max(1, numThreads)];
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(this::work, "Read-Only Executor " + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        Metrics.registerGauge("readOnlyQueue", this::size);
+
+        logger.info("Executing unordered requests with {} threads", threads.length);
+    }
+
+    /**
+     * Queues an unordered request for execution
+     *
+     * @param request The request
+     * @param msgCtx Its context
+     * @return true if the request was queued, false if it was dropped
+     */
+    public synchronized boolean execute(TOMMessage request, MessageContext msgCtx) {
+        if (!running) return false;
+
+        ArrayDeque<Task> queue = queues.get(request.getSender());
+        if (queued >= maxQueued || (maxPerClient > 0 && queue != null && queue.size() >= maxPerClient)) {
+            logger.debug("Dropping unordered request {} from client {}, too many requests queued",
+                    request.getSequence(), request.getSender());
+            return false;
+        }
+
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queues.put(request.getSender(), queue);
+        }
+        if (queue.isEmpty()) {
+            ready.addLast(queue);
+        }
+        queue.addLast(new Task(request, msgCtx));
+        queued++;
+
+        notify();
+        return true;
+    }
+
+    private synchronized Task next() throws InterruptedException {
+        while (ready.isEmpty()) {
+            if (!running) return null;
+            wait();
+        }
+
+        ArrayDeque<Task> queue = ready.pollFirst();
+        Task task = queue.pollFirst();
+        queued--;
+
+        if (!queue.isEmpty()) {
+            ready.addLast(queue);
+        } else {
+            queues.remove(task.request.getSender());
+        }
+        return task;
+    }
+
+    private void work() {
+        while (running) {
+            Task task;
+            try {
+                task = next();
+            } catch (InterruptedException ex) {
+                break;
+            }
+            if (task == null) break;
+
+            try {
+                handler.accept(task.request, task.msgCtx);
+            } catch (RuntimeException ex) {
+                logger.error("Failed to execute unordered request " + task.request, ex);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return queued;
+    }
+
+    /**
+     * Stops the threads, discarding the requests still queued
+     */
+    public synchronized void shutdown() {
+        running = false;
+        queues.clear();
+        ready.clear();
+        queued = 0;
+        notifyAll();
+    }
+
+    private static final class Task {
+
+        private final TOMMessage request;
+        private final MessageContext msgCtx;
+
+        Task(TOMMessage request, MessageContext msgCtx) {
+            this.request = request;
+            this.msgCtx = msgCtx;
+        }
+    }
+}
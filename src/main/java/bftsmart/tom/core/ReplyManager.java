@@ -5,96 +5,136 @@
 package bftsmart.tom.core;
 
 import bftsmart.communication.ServerCommunicationSystem;
+import bftsmart.communication.client.CommunicationSystemServerSide;
+import bftsmart.metrics.Metrics;
 import bftsmart.tom.core.messages.TOMMessage;
-import io.netty.channel.Channel;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
+ * Sends the replies to the clients through a pool of threads. The replies to
+ * a client are always sent by the same thread, so they leave in the order in
+ * which they were produced without any locking. Each thread writes all the
+ * replies it has pending and then flushes each client connection once, so the
+ * replies to a client from one decided batch go out in a single write.
  *
  * @author joao
  */
 public class ReplyManager {
         
-    private LinkedList<ReplyThread> threads;
-    private int iteration;
+    private final ReplyThread[] threads;
     
     public ReplyManager(int numThreads, ServerCommunicationSystem cs) {
         
-        this.threads = new LinkedList();
-        this.iteration = 0;
+        this.threads = new ReplyThread[numThreads];
         
         for (int i = 0; i < numThreads; i++) {
-            this.threads.add(new ReplyThread(cs));
+            this.threads[i] = new ReplyThread(cs);
         }
         
         for (ReplyThread t : threads)
             t.start();
+
+        Metrics.registerGauge("replyQueues", () -> {
+            long size = 0;
+            for (ReplyThread t : threads) size += t.getQueueSize();
+            return size;
+        });
     }
     
+    private ReplyThread threadFor(TOMMessage msg) {
+        return threads[Math.floorMod(msg.getSender(), threads.length)];
+    }
+
     public void send (TOMMessage msg) {
         
-        iteration++;
-        threads.get((iteration % threads.size())).send(msg);
+        threadFor(msg).send(new TOMMessage[] {msg});
+
+    }
+
+    /**
+     * Sends the replies of a decided batch. The replies handled by each thread
+     * are queued together, so they are flushed together.
+     *
+     * @param replies The replies to send
+     */
+    public void send (TOMMessage[] replies) {
 
+        if (threads.length == 1) {
+            threads[0].send(replies);
+            return;
+        }
+
+        List<List<TOMMessage>> perThread = new ArrayList<>(threads.length);
+        for (int i = 0; i < threads.length; i++) perThread.add(null);
+
+        for (TOMMessage msg : replies) {
+            int i = Math.floorMod(msg.getSender(), threads.length);
+            if (perThread.get(i) == null) perThread.set(i, new ArrayList<>());
+            perThread.get(i).add(msg);
+        }
+
+        for (int i = 0; i < threads.length; i++) {
+            List<TOMMessage> list = perThread.get(i);
+            if (list != null) threads[i].send(list.toArray(new TOMMessage[list.size()]));
+        }
     }
 }
 class ReplyThread extends Thread {
         
-    private LinkedBlockingQueue<TOMMessage> replies;
-    private ServerCommunicationSystem cs = null;
-    
-    private final Lock queueLock = new ReentrantLock();
-    private final Condition notEmptyQueue = queueLock.newCondition();
-    
-    private Map<Integer, Channel> channels;
+    private final LinkedBlockingQueue<TOMMessage[]> replies;
+    private final CommunicationSystemServerSide clientsConn;
     
     ReplyThread(ServerCommunicationSystem cs) {
-        this.cs = cs;
-        this.replies = new LinkedBlockingQueue<TOMMessage>();
-        this.channels = new HashMap<>();
+        super("Reply thread");
+        this.clientsConn = cs.getClientsConn();
+        this.replies = new LinkedBlockingQueue<TOMMessage[]>();
     }
     
-    void send(TOMMessage msg) {
+    int getQueueSize() {
+        return replies.size();
+    }
+
+    void send(TOMMessage[] msgs) {
         
-        try {
-            queueLock.lock();
-            replies.put(msg);
-            notEmptyQueue.signalAll();
-            queueLock.unlock();
-        } catch (InterruptedException ex) {
-            Logger.getLogger(ReplyThread.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        replies.add(msgs);
     }
     
     public void run() {
 
+        List<TOMMessage[]> list = new ArrayList<>();
+        LinkedHashSet<Integer> clients = new LinkedHashSet<>();
 
         while (true) {
 
             try {
                 
-                LinkedList<TOMMessage> list = new LinkedList<>();
-                
-                queueLock.lock();
-                while (replies.isEmpty()) notEmptyQueue.await(10, TimeUnit.MILLISECONDS);
+                list.add(replies.take());
                 replies.drainTo(list);
-                queueLock.unlock();
                 
-                for (TOMMessage msg : list) {
+                for (TOMMessage[] msgs : list) {
+                    for (TOMMessage msg : msgs) {
                     
-                    cs.getClientsConn().send(new int[] {msg.getSender()}, msg.reply, false);             
+                        clientsConn.write(new int[] {msg.getSender()}, msg.reply);
+                        clients.add(msg.getSender());
+                    }
                 }
+
+                int[] targets = new int[clients.size()];
+                int i = 0;
+                for (int client : clients) targets[i++] = client;
+                clientsConn.flush(targets);
+
+                for (TOMMessage[] msgs : list) {
+                    for (TOMMessage msg : msgs) Metrics.recordSince(Metrics.Stage.REPLY, msg.executedTime);
+                }
+
+                list.clear();
+                clients.clear();
             } catch (InterruptedException ex) {
                 LoggerFactory.getLogger(this.getClass()).error("Could not retrieve reply from queue",ex);
             }
@@ -102,4 +142,4 @@ class ReplyThread extends Thread {
         }
 
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,370 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.communication.ServerCommunicationSystem;
+import bftsmart.consensus.Consensus;
+import bftsmart.consensus.Epoch;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.RequestFetchMessage;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.Scheduler;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Resolves the batches of digests proposed when digest proposals are enabled
+ * (see BatchBuilder.makeDigestBatch). Digests are resolved against the
+ * requests pending in the clients manager. A PROPOSE or FWD_DECISION that
+ * refers to requests this replica did not receive is set aside while they are
+ * fetched from the replica that sent it and, if it does not answer in time,
+ * from all the other replicas. Once every request is available, the message
+ * is processed again by the acceptor. The values installed by the
+ * synchronization phase of a leader change are resolved the same way, before
+ * this replica writes them. If the requests of a decided value cannot be
+ * fetched after MAX_DECIDED_RETRIES attempts, the state up to its consensus
+ * is requested instead.
+ */
+public final class RequestFetcher implements BatchReader.RequestLookup {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final int MAX_DECIDED_RETRIES = 10;
+
+    private final TOMLayer tomLayer;
+    private final ServerCommunicationSystem communication;
+    private final ServerViewController controller;
+    private final long retryDelay;
+
+    // values waiting for missing requests, by consensus
+    private final HashMap<Integer, Fetch> fetches = new HashMap<>();
+    // requests fetched from other replicas, while the message that needs them is processed
+    private final HashMap<ByteBuffer, TOMMessage> fetched = new HashMap<>();
+
+    public RequestFetcher(TOMLayer tomLayer, ServerCommunicationSystem communication, ServerViewController controller) {
+        this.tomLayer = tomLayer;
+        this.communication = communication;
+        this.controller = controller;
+        this.retryDelay = Math.max(100, controller.getStaticConf().getRequestTimeout() / 10);
+    }
+
+    @Override
+    public TOMMessage lookup(int sender, int sequence, byte[] digest) {
+        TOMMessage request;
+        synchronized (this) {
+            request = fetched.get(ByteBuffer.wrap(digest));
+        }
+        if (request != null && request.getSender() == sender && request.getSequence() == sequence) {
+            return request;
+        }
+        return tomLayer.clientsManager.getPending(sender, sequence, digest);
+    }
+
+    /**
+     * Checks if every request referred to by the batch of digests carried by a
+     * message is available. If not, the message is kept and the missing
+     * requests are fetched.
+     *
+     * @param msg PROPOSE or FWD_DECISION message
+     * @return true if the message can be processed now, false if it will be
+     * processed once the missing requests arrive
+     */
+    public boolean resolve(ConsensusMessage msg) {
+        return resolve(msg.getNumber(), msg.getEpoch(), msg.getValue(), msg.getSender(), false,
+                () -> tomLayer.acceptor.processMessage(msg));
+    }
+
+    /**
+     * Checks if every request referred to by a value installed in an epoch by
+     * the synchronization phase is available. If not, the missing requests are
+     * fetched from all the other replicas.
+     *
+     * @param cid The consensus of the value
+     * @param epoch The epoch in which the value was installed
+     * @param value The batch of digests
+     * @param decided true if the value is already decided, in which case it
+     * is not forgotten when a new regency is installed, and the state is
+     * requested if the missing requests cannot be fetched
+     * @param resolved Invoked once the missing requests arrive, while they can
+     * be looked up
+     * @return true if the value can be used now, false if 'resolved' will be
+     * invoked once the missing requests arrive
+     */
+    public boolean resolve(int cid, int epoch, byte[] value, boolean decided, Runnable resolved) {
+        return resolve(cid, epoch, value, controller.getStaticConf().getProcessId(), decided, resolved);
+    }
+
+    private boolean resolve(int cid, int epoch, byte[] value, int source, boolean decided, Runnable resolved) {
+        BatchReader.Digest[] digests;
+        try {
+            digests = new BatchReader(value, false, this).readDigests();
+        } catch (BufferUnderflowException | NegativeArraySizeException ex) {
+            return true; // a malformed batch is rejected when the value is checked
+        }
+
+        List<BatchReader.Digest> missing = new ArrayList<>();
+        for (BatchReader.Digest d : digests) {
+            if (lookup(d.sender, d.sequence, d.digest) == null) {
+                missing.add(d);
+            }
+        }
+        if (missing.isEmpty()) {
+            return true;
+        }
+
+        Fetch fetch = new Fetch(cid, epoch, decided, resolved, missing.toArray(new BatchReader.Digest[missing.size()]));
+        synchronized (this) {
+            Fetch previous = fetches.put(fetch.cid, fetch);
+            if (previous != null && previous.retry != null) {
+                previous.retry.cancel();
+            }
+
+            // forget the messages of consensuses that were decided in the meantime
+            int lastExec = tomLayer.getLastExec();
+            for (Iterator<Fetch> it = fetches.values().iterator(); it.hasNext(); ) {
+                Fetch f = it.next();
+                if (f.cid <= lastExec) {
+                    if (f.retry != null) f.retry.cancel();
+                    it.remove();
+                }
+            }
+        }
+
+        logger.debug("Fetching {} of the {} requests of consensus {} from replica {}",
+                missing.size(), digests.length, fetch.cid, source);
+
+        int me = controller.getStaticConf().getProcessId();
+        communication.send(source != me ? new int[] { source } : controller.getCurrentViewOtherAcceptors(),
+                fetch.query(me));
+        fetch.retry = Scheduler.schedule(() -> retry(fetch), retryDelay);
+        return false;
+    }
+
+    private void retry(Fetch fetch) {
+        RequestFetchMessage query;
+        synchronized (this) {
+            if (fetches.get(fetch.cid) != fetch) {
+                return;
+            }
+            if (fetch.cid <= tomLayer.getLastExec()) {
+                fetches.remove(fetch.cid);
+                return;
+            }
+            if (fetch.decided && ++fetch.retries > MAX_DECIDED_RETRIES) {
+                fetches.remove(fetch.cid);
+                query = null;
+            } else {
+                query = fetch.query(controller.getStaticConf().getProcessId());
+            }
+        }
+
+        if (query == null) {
+            logger.warn("Could not fetch the requests of decided consensus {}, requesting the state", fetch.cid);
+            tomLayer.getStateManager().requestDecidedState(fetch.cid);
+            return;
+        }
+
+        logger.debug("Fetching the missing requests of consensus {} from all replicas", fetch.cid);
+
+        communication.send(controller.getCurrentViewOtherAcceptors(), query);
+        fetch.retry = Scheduler.schedule(() -> retry(fetch), retryDelay);
+    }
+
+    /**
+     * Called when a RequestFetchMessage is received
+     *
+     * @param msg The message
+     */
+    public void deliver(RequestFetchMessage msg) {
+        if (msg.getType() == RequestFetchMessage.QUERY) {
+            queryReceived(msg);
+        } else {
+            replyReceived(msg);
+        }
+    }
+
+    private void queryReceived(RequestFetchMessage query) {
+        TOMMessage[] proposed = proposedRequests(query.getCID(), query.getEpoch());
+        List<TOMMessage> found = new ArrayList<>();
+
+        for (int i = 0; i < query.getSenders().length; i++) {
+            TOMMessage request = lookup(query.getSenders()[i], query.getSequences()[i], query.getDigests()[i]);
+
+            for (int j = 0; request == null && proposed != null && j < proposed.length; j++) {
+                if (proposed[j].getSender() == query.getSenders()[i] && proposed[j].getSequence() == query.getSequences()[i]
+                        && Arrays.equals(TOMUtil.computeRequestDigest(proposed[j]), query.getDigests()[i])) {
+                    request = proposed[j];
+                }
+            }
+            if (request != null) {
+                found.add(request);
+            }
+        }
+
+        logger.debug("Sending {} of the {} requests of consensus {} asked by replica {}",
+                found.size(), query.getSenders().length, query.getCID(), query.getSender());
+
+        if (!found.isEmpty()) {
+            communication.send(new int[] { query.getSender() }, new RequestFetchMessage(controller.getStaticConf().getProcessId(),
+                    query.getCID(), query.getEpoch(), found.toArray(new TOMMessage[found.size()])));
+        }
+    }
+
+    // the requests this replica has for a value proposed in a consensus it did not remove yet
+    private TOMMessage[] proposedRequests(int cid, int timestamp) {
+        Consensus consensus = tomLayer.execManager.findConsensus(cid);
+        if (consensus == null) {
+            return null;
+        }
+
+        consensus.lock.lock();
+        try {
+            Epoch epoch = consensus.getEpoch(timestamp, false, controller);
+            if (epoch != null && epoch.deserializedPropValue != null) {
+                return epoch.deserializedPropValue;
+            }
+            epoch = consensus.getDecisionEpoch();
+            return epoch != null ? epoch.deserializedPropValue : null;
+        } finally {
+            consensus.lock.unlock();
+        }
+    }
+
+    private void replyReceived(RequestFetchMessage reply) {
+        Fetch fetch;
+        synchronized (this) {
+            fetch = fetches.get(reply.getCID());
+            if (fetch == null || fetch.epoch != reply.getEpoch()) {
+                return;
+            }
+            for (TOMMessage request : reply.getRequests()) {
+                fetch.add(request);
+            }
+            if (fetch.remaining > 0) {
+                return;
+            }
+
+            fetches.remove(fetch.cid);
+            if (fetch.retry != null) {
+                fetch.retry.cancel();
+            }
+            for (int i = 0; i < fetch.missing.length; i++) {
+                fetched.put(ByteBuffer.wrap(fetch.missing[i].digest), fetch.requests[i]);
+            }
+        }
+
+        logger.debug("Fetched all missing requests of consensus {}", fetch.cid);
+
+        try {
+            if (fetch.cid > tomLayer.getLastExec()) {
+                fetch.resolved.run();
+            }
+        } finally {
+            synchronized (this) {
+                for (BatchReader.Digest d : fetch.missing) {
+                    fetched.remove(ByteBuffer.wrap(d.digest));
+                }
+            }
+        }
+    }
+
+    /**
+     * Clears all the values waiting for requests
+     */
+    public synchronized void clear() {
+        for (Fetch fetch : fetches.values()) {
+            if (fetch.retry != null) fetch.retry.cancel();
+        }
+        fetches.clear();
+        fetched.clear();
+    }
+
+    /**
+     * Clears the values waiting for requests that are not decided yet, when a
+     * new regency is installed. Those values are synchronized again by it.
+     */
+    public synchronized void clearUndecided() {
+        for (Iterator<Fetch> it = fetches.values().iterator(); it.hasNext(); ) {
+            Fetch f = it.next();
+            if (!f.decided) {
+                if (f.retry != null) f.retry.cancel();
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Fetch {
+
+        private final int cid;
+        private final int epoch;
+        private final boolean decided;
+        private final Runnable resolved;
+        private final BatchReader.Digest[] missing;
+        private final TOMMessage[] requests;
+        private int remaining;
+        private int retries;
+        private volatile Scheduler.Timeout retry;
+
+        Fetch(int cid, int epoch, boolean decided, Runnable resolved, BatchReader.Digest[] missing) {
+            this.cid = cid;
+            this.epoch = epoch;
+            this.decided = decided;
+            this.resolved = resolved;
+            this.missing = missing;
+            this.requests = new TOMMessage[missing.length];
+            this.remaining = missing.length;
+        }
+
+        // keeps a fetched request if it is one of the missing ones
+        void add(TOMMessage request) {
+            for (int i = 0; i < missing.length; i++) {
+                if (requests[i] == null && missing[i].sender == request.getSender()
+                        && missing[i].sequence == request.getSequence()
+                        && Arrays.equals(TOMUtil.computeRequestDigest(request), missing[i].digest)) {
+                    requests[i] = request;
+                    remaining--;
+                    return;
+                }
+            }
+        }
+
+        RequestFetchMessage query(int me) {
+            int[] senders = new int[remaining];
+            int[] sequences = new int[remaining];
+            byte[][] digests = new byte[remaining][];
+            for (int i = 0, j = 0; i < missing.length; i++) {
+                if (requests[i] == null) {
+                    senders[j] = missing[i].sender;
+                    sequences[j] = missing[i].sequence;
+                    digests[j++] = missing[i].digest;
+                }
+            }
+            return new RequestFetchMessage(me, cid, epoch, senders, sequences, digests);
+        }
+    }
+}
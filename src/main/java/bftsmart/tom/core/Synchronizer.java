@@ -23,6 +23,7 @@ import bftsmart.tom.leaderchange.LCMessage;
 import bftsmart.tom.leaderchange.CertifiedDecision;
 import bftsmart.tom.util.BatchBuilder;
 import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.Scheduler;
 import bftsmart.tom.util.TOMUtil;
 
 import java.io.ByteArrayInputStream;
@@ -74,6 +75,7 @@ public class Synchronizer {
     private final StateManager stateManager;
     private final Acceptor acceptor;
     private final MessageDigest md;
+    private final int pipelineWindow;
             
     // Attributes to temporarely store synchronization info
     // if state transfer is required for synchronization
@@ -82,8 +84,12 @@ public class Synchronizer {
     private HashSet<SignedObject> tempSignedCollects = null;
     private byte[] tempPropose = null;
     private int tempBatchSize = -1;
+    private byte[] tempEmptyPropose = null;
     private boolean tempIAmLeader = false;
 
+    // evaluates the STOP messages again once the lease granted to the leader expires
+    private Scheduler.Timeout deferredSynchronization = null;
+
     
     public Synchronizer(TOMLayer tom) {
         
@@ -97,6 +103,7 @@ public class Synchronizer {
         this.stateManager = this.tom.stateManager;
         this.acceptor = this.tom.acceptor;
         this.md = this.tom.md;
+        this.pipelineWindow = this.controller.getStaticConf().getPipelineWindow();
         
         this.outOfContextLC = new HashSet<>();
 	this.lcManager = new LCManager(this.tom,this.controller, this.md);
@@ -255,10 +262,26 @@ public class Synchronizer {
 
             signedCollect = (SignedObject) ois.readObject();
 
+            List<SignedObject> pipelined = new LinkedList<>();
+            if (pipelineWindow > 1) { // content of the cids started after it
+
+                int count = ois.readInt();
+                if (count < 0 || count >= pipelineWindow) {
+                    logger.warn("STOPDATA from replica " + msg.getSender() + " carries " + count + " pipelined collects, ignoring them");
+                    count = 0;
+                }
+                for (int i = 0; i < count; i++) {
+                    pipelined.add((SignedObject) ois.readObject());
+                }
+            }
+
             ois.close();
             bis.close();
 
             lcManager.addCollect(regency, signedCollect);
+            for (SignedObject so : pipelined) {
+                lcManager.addCollect(regency, so);
+            }
 
             int bizantineQuorum = (controller.getCurrentViewN() + controller.getCurrentViewF()) / 2;
             int cftQuorum = (controller.getCurrentViewN()) / 2;
@@ -289,6 +312,7 @@ public class Synchronizer {
         HashSet<SignedObject> signedCollects = null;
         byte[] propose = null;
         int batchSize = -1;
+        byte[] emptyPropose = null;
 
         ByteArrayInputStream bis;
         ObjectInputStream ois;
@@ -302,15 +326,17 @@ public class Synchronizer {
             signedCollects = (HashSet<SignedObject>) ois.readObject();
             propose = (byte[]) ois.readObject();
             batchSize = ois.readInt();
+            if (pipelineWindow > 1) emptyPropose = (byte[]) ois.readObject();
 
             lcManager.setCollects(regency, signedCollects);
             
             currentCID = lastHighestCID.getCID() + 1;
 
-            // Is the predicate "sound" true? Is the certificate for LastCID valid?
-            if (lcManager.sound(lcManager.selectCollects(regency, currentCID)) && (!controller.getStaticConf().isBFT() || lcManager.hasValidProof(lastHighestCID))) {
+            // Is the predicate "sound" true (also for the pipelined cids)? Is the certificate for LastCID valid?
+            if (isSound(signedCollects, currentCID, getHighestOpenCID(signedCollects, currentCID, regency), regency)
+                    && (!controller.getStaticConf().isBFT() || lcManager.hasValidProof(lastHighestCID))) {
 
-                finalise(regency, lastHighestCID, signedCollects, propose, batchSize, false);
+                finalise(regency, lastHighestCID, signedCollects, propose, batchSize, emptyPropose, false);
             }
 
             ois.close();
@@ -452,6 +478,20 @@ public class Synchronizer {
         
         // Ask to start the synchronizations phase if enough messages have been received already
         if (condition && lcManager.getNextReg() == lcManager.getLastReg()) {
+
+            long promised = tom.getLeaseManager().suspectLeader();
+            if (promised > 0) {
+                // the leader holds a lease granted by this replica, join the others once it expires
+                logger.info("Postponing STOP message for regency {} by {} ms, the lease granted to the leader is still valid",
+                        nextReg, promised);
+                if (deferredSynchronization == null) {
+                    deferredSynchronization = Scheduler.schedule(() -> {
+                        deferredSynchronization = null;
+                        startSynchronization(nextReg);
+                    }, promised);
+                }
+                return;
+            }
             
             logger.debug("Initialize synch phase");
             requestsTimer.Enabled(false);
@@ -524,6 +564,9 @@ public class Synchronizer {
 
             int regency = lcManager.getLastReg();
 
+            // the values of the previous regency still waiting for requests are synchronized again
+            tom.getRequestFetcher().clearUndecided();
+
             // avoid memory leaks
             lcManager.removeStops(nextReg);
             lcManager.clearCurrentRequestTimedOut();
@@ -647,6 +690,14 @@ public class Synchronizer {
 
                     }
 
+                    if (pipelineWindow > 1) { // content of the cids started after it
+                        List<SignedObject> pipelined = collectPipelined(in > -1 ? in : last + 1, last, regency);
+                        out.writeInt(pipelined.size());
+                        for (SignedObject so : pipelined) {
+                            out.writeObject(so);
+                        }
+                    }
+
                     out.flush();
                     bos.flush();
 
@@ -780,6 +831,12 @@ public class Synchronizer {
 
                 lcManager.addCollect(regency, signedCollect);
 
+                if (pipelineWindow > 1) { // content of the cids started after it
+                    for (SignedObject so : collectPipelined(in > -1 ? in : last + 1, last, regency)) {
+                        lcManager.addCollect(regency, so);
+                    }
+                }
+
                 // the replica might have received STOPDATAs that were out of context at the time they were received, but now can be processed
                 Set<LCMessage> stopdatas = getOutOfContextLC(TOMUtil.STOPDATA, regency);
 
@@ -919,19 +976,26 @@ public class Synchronizer {
         HashSet<SignedObject> signedCollects = null;
         byte[] propose = null;
         int batchSize = -1;
+        byte[] emptyPropose = null;
+
+        HashSet<SignedObject> collects = lcManager.getCollects(regency);
+        int highestCID = getHighestOpenCID(collects, currentCID, regency);
 
         // normalize the collects and apply to them the predicate "sound"
-        if (lcManager.sound(lcManager.selectCollects(regency, currentCID))) {
+        if (isSound(collects, currentCID, highestCID, regency)) {
 
             logger.debug("Sound predicate is true");
 
-            signedCollects = lcManager.getCollects(regency); // all original collects that the replica has received
+            signedCollects = collects; // all original collects that the replica has received
 
             Decision dec = new Decision(-1); // the only purpose of this object is to obtain the batchsize,
                                                 // using code inside of createPropose()
 
             propose = tom.createPropose(dec);
             batchSize = dec.batchSize;
+
+            // the pipelined cids that no value is bound to are closed with no requests
+            if (highestCID > currentCID) emptyPropose = tom.createEmptyPropose();
             
             try { // serialization of the CATCH-UP message
                 bos = new ByteArrayOutputStream();
@@ -943,6 +1007,7 @@ public class Synchronizer {
                 out.writeObject(signedCollects);
                 out.writeObject(propose);
                 out.writeInt(batchSize);
+                if (pipelineWindow > 1) out.writeObject(emptyPropose);
 
                 out.flush();
                 bos.flush();
@@ -957,7 +1022,7 @@ public class Synchronizer {
                 communication.send(this.controller.getCurrentViewOtherAcceptors(),
                         new LCMessage(this.controller.getStaticConf().getProcessId(), TOMUtil.SYNC, regency, payload));
 
-                finalise(regency, lastHighestCID, signedCollects, propose, batchSize, true);
+                finalise(regency, lastHighestCID, signedCollects, propose, batchSize, emptyPropose, true);
 
             } catch (IOException ex) {
                 logger.error("Could not serialize message", ex);
@@ -987,18 +1052,17 @@ public class Synchronizer {
         e.deserializedPropValue = tom.checkProposedValue(tempLastHighestCID.getDecision(), false);
 
         finalise(tempRegency, tempLastHighestCID,
-                tempSignedCollects, tempPropose, tempBatchSize, tempIAmLeader);
+                tempSignedCollects, tempPropose, tempBatchSize, tempEmptyPropose, tempIAmLeader);
 
     }
 
     // this method is called on all replicas, and serves to verify and apply the
     // information sent in the catch-up message
     private void finalise(int regency, CertifiedDecision lastHighestCID,
-            HashSet<SignedObject> signedCollects, byte[] propose, int batchSize, boolean iAmLeader) {
+            HashSet<SignedObject> signedCollects, byte[] propose, int batchSize, byte[] emptyPropose, boolean iAmLeader) {
 
         int currentCID = lastHighestCID.getCID() + 1;
         logger.debug("Final stage of LC protocol");
-        int me = this.controller.getStaticConf().getProcessId();
         Consensus cons = null;
         Epoch e = null;
 
@@ -1011,6 +1075,7 @@ public class Synchronizer {
             tempSignedCollects = signedCollects;
             tempPropose = propose;
             tempBatchSize = batchSize;
+            tempEmptyPropose = emptyPropose;
             tempIAmLeader = iAmLeader;
 
             execManager.getStoppedMsgs().add(acceptor.getFactory().createPropose(currentCID, 0, propose));
@@ -1080,7 +1145,29 @@ public class Synchronizer {
             if (tom.getLastExec() + 1 == lastHighestCID.getCID()) {
                 
                 logger.info("I'm still at the CID before the most recent one!!! (" + lastHighestCID.getCID() + ")");
-                cons.decided(e, true);
+
+                // the value is already decided, but it is only delivered once the requests
+                // this replica does not have are fetched (the decisions that follow it wait
+                // in the delivery thread); if they cannot be fetched, the state is requested
+                boolean deliver = true;
+                if (e.deserializedPropValue == null && controller.getStaticConf().useDigestProposals()) {
+                    Consensus decidedCons = cons;
+                    Epoch decided = e;
+                    int cid = lastHighestCID.getCID();
+                    byte[] value = lastHighestCID.getDecision();
+                    deliver = tom.getRequestFetcher().resolve(cid, e.getTimestamp(), value, true, () -> {
+                        decided.deserializedPropValue = tom.checkProposedValue(value, false);
+                        if (decided.deserializedPropValue != null) {
+                            tom.decided(decidedCons.getDecision());
+                        } else {
+                            stateManager.requestDecidedState(cid);
+                        }
+                    });
+                    if (deliver) {
+                        e.deserializedPropValue = tom.checkProposedValue(value, false);
+                    }
+                }
+                cons.decided(e, deliver);
             }
             else {
                 cons.decided(e, false);
@@ -1116,101 +1203,232 @@ public class Synchronizer {
             // stop the re-transmission of the STOP message for all regencies up to this one
             removeSTOPretransmissions(regency);
             
-            cons = execManager.getConsensus(currentCID);
-
-            e = cons.getLastEpoch();
-
-            int ets = cons.getEts();
+            e = installValue(currentCID, regency, tmpval);
 
-            //Update current consensus with latest ETS. This may be necessary
-            //if I 'jumped' to a consensus instance ahead of the one I was executing
-                   
-            //int currentETS = lcManager.getETS(currentCID, selectedColls);
-            //if (currentETS > ets) {
-            if (regency > ets) {
-                
-                //System.out.println("(Synchronizer.finalise) Updating consensus' ETS after SYNC (from " + ets + " to " + currentETS +")");
-                logger.debug("Updating consensus' ETS after SYNC (from " + ets + " to " + regency +")");
+            // the cids after currentCID that were left open in the pipeline are synchronized
+            // along with it: each one gets the value bound to it, or a value with no requests.
+            // The values whose requests have to be fetched first are written later
+            int highestCID = getHighestOpenCID(signedCollects, currentCID, regency);
+            List<Epoch> pipelined = new LinkedList<>();
 
-                /*do {
-                    cons.incEts();
-                } while (cons.getEts() != currentETS);*/
-                
-                cons.setETS(regency);
-                
-                //cons.createEpoch(currentETS, controller);
-                cons.createEpoch(regency, controller);
-                
-                e = cons.getLastEpoch();
-            }
+            for (int cid = currentCID + 1; cid <= highestCID; cid++) {
 
-            // Make sure the epoch is created
-            /*if (e == null || e.getTimestamp() != ets) {
-                e = cons.createEpoch(ets, controller);
-            } else {
-                e.clear();
-            }*/
-            if (e == null || e.getTimestamp() != regency) {
-                e = cons.createEpoch(regency, controller);
-            } else {
-                e.clear();
-            }
-            
-            /********* LEADER CHANGE CODE ********/
-            cons.removeWritten(tmpval);
-            cons.addWritten(tmpval);
-            /*************************************/
-            
-            byte[] hash = tom.computeHash(tmpval);
-            e.propValueHash = hash;
-            e.propValue = tmpval;
+                selectedColls = lcManager.selectCollects(signedCollects, cid, regency);
+                byte[] value = lcManager.getBindValue(selectedColls);
 
-            e.deserializedPropValue = tom.checkProposedValue(tmpval, false);
+                if (value == null && lcManager.unbound(selectedColls)) value = emptyPropose;
 
-            if (cons.getDecision().firstMessageProposed == null) {
-                if (e.deserializedPropValue != null
-                        && e.deserializedPropValue.length > 0) {
-                    cons.getDecision().firstMessageProposed = e.deserializedPropValue[0];
+                if (value != null) {
+                    Epoch p = installValue(cid, regency, value);
+                    if (p != null) pipelined.add(p);
                 } else {
-                    cons.getDecision().firstMessageProposed = new TOMMessage(); // to avoid null pointer
+                    logger.warn("Could not find a value for pipelined CID " + cid + " in regency " + regency);
                 }
             }
-            if (this.controller.getStaticConf().isBFT()) {
-                e.setWrite(me, hash);
-            } else {
-                e.setAccept(me, hash);
-
-                /********* LEADER CHANGE CODE ********/
-                logger.debug("[CFT Mode] Setting consensus " + currentCID + " QuorumWrite tiemstamp to " + e.getConsensus().getEts() + " and value " + Arrays.toString(hash));
- 	        e.getConsensus().setQuorumWrites(hash);
-                /*************************************/
-
-            }
 
             // resume normal operation
             execManager.restart();
             //leaderChanged = true;
-            tom.setInExec(currentCID);
+            tom.restartPipeline(currentCID, highestCID);
             if (iAmLeader) {
                 logger.debug("Waking up proposer thread");
                 tom.imAmTheLeader();
             } // waik up the thread that propose values in normal operation
 
             // send a WRITE/ACCEPT message to the other replicas
-            if (this.controller.getStaticConf().isBFT()) {
-                logger.info("Sending WRITE message for CID " + currentCID + ", timestamp " + e.getTimestamp() + ", value " + Arrays.toString(e.propValueHash));
-                communication.send(this.controller.getCurrentViewOtherAcceptors(),
-                        acceptor.getFactory().createWrite(currentCID, e.getTimestamp(), e.propValueHash));
-                e.writeSent();
-            } else {
-                logger.info("Sending ACCEPT message for CID " + currentCID + ", timestamp " + e.getTimestamp() + ", value " + Arrays.toString(e.propValueHash));
-                communication.send(this.controller.getCurrentViewOtherAcceptors(),
-                        acceptor.getFactory().createAccept(currentCID, e.getTimestamp(), e.propValueHash));
-                e.acceptSent();
+            if (e != null) sendInstalledValue(e);
+            for (Epoch p : pipelined) {
+                sendInstalledValue(p);
             }
         } else {
             logger.warn("Sync phase failed for regency" + regency);
         }
     }
 
+    // Creates the collects of the cids after 'first' (up to the pipelining window) for which
+    // this replica has written some value, so that they are synchronized along with 'first'
+    private List<SignedObject> collectPipelined(int first, int last, int regency) {
+
+        List<SignedObject> collects = new LinkedList<>();
+
+        for (int cid = first + 1; cid <= last + pipelineWindow; cid++) {
+
+            Consensus cons = execManager.findConsensus(cid);
+            if (cons == null || cons.getWriteSet().isEmpty()) continue;
+
+            cons.setETS(regency); // make the consensus advance to the next epoch
+            cons.createEpoch(regency, controller);
+            logger.debug("Incrementing ets of pipelined consensus " + cid + " to " + regency);
+
+            TimestampValuePair quorumWrites = cons.getQuorumWrites() != null
+                    ? cons.getQuorumWrites() : new TimestampValuePair(0, new byte[0]);
+
+            collects.add(tom.sign(new CollectData(this.controller.getStaticConf().getProcessId(),
+                    cid, regency, quorumWrites, cons.getWriteSet())));
+        }
+
+        return collects;
+    }
+
+    // Gets the highest cid of the pipelining window that starts at currentCID for which some
+    // replica reported a written value. All cids up to it are synchronized, so that the new
+    // leader does not leave any gap behind the instances it proposes
+    private int getHighestOpenCID(HashSet<SignedObject> signedCollects, int currentCID, int regency) {
+
+        if (signedCollects == null) return currentCID;
+
+        for (int cid = currentCID + pipelineWindow - 1; cid > currentCID; cid--) {
+            for (CollectData c : lcManager.selectCollects(signedCollects, cid, regency)) {
+                if (!c.getWriteSet().isEmpty()) return cid;
+            }
+        }
+        return currentCID;
+    }
+
+    // Applies the predicate "sound" to the collects of every cid from currentCID to highestCID
+    private boolean isSound(HashSet<SignedObject> signedCollects, int currentCID, int highestCID, int regency) {
+
+        for (int cid = currentCID; cid <= highestCID; cid++) {
+            if (!lcManager.sound(lcManager.selectCollects(signedCollects, cid, regency))) return false;
+        }
+        return true;
+    }
+
+    // Installs the value chosen for a cid in the epoch of the new regency, as if it was
+    // proposed by the new leader, and writes it. If this replica does not have all the
+    // requests of the value, they are fetched first and null is returned; the value is
+    // then written and sent once they arrive
+    private Epoch installValue(int cid, int regency, byte[] value) {
+
+        Consensus cons = execManager.getConsensus(cid);
+
+        Epoch e = cons.getLastEpoch();
+
+        int ets = cons.getEts();
+
+        //Update current consensus with latest ETS. This may be necessary
+        //if I 'jumped' to a consensus instance ahead of the one I was executing
+               
+        //int currentETS = lcManager.getETS(currentCID, selectedColls);
+        //if (currentETS > ets) {
+        if (regency > ets) {
+            
+            //System.out.println("(Synchronizer.finalise) Updating consensus' ETS after SYNC (from " + ets + " to " + currentETS +")");
+            logger.debug("Updating consensus' ETS after SYNC (from " + ets + " to " + regency +")");
+
+            /*do {
+                cons.incEts();
+            } while (cons.getEts() != currentETS);*/
+            
+            cons.setETS(regency);
+            
+            //cons.createEpoch(currentETS, controller);
+            cons.createEpoch(regency, controller);
+            
+            e = cons.getLastEpoch();
+        }
+
+        // Make sure the epoch is created
+        /*if (e == null || e.getTimestamp() != ets) {
+            e = cons.createEpoch(ets, controller);
+        } else {
+            e.clear();
+        }*/
+        if (e == null || e.getTimestamp() != regency) {
+            e = cons.createEpoch(regency, controller);
+        } else {
+            e.clear();
+        }
+
+        if (this.controller.getStaticConf().useDigestProposals()) {
+            Epoch installed = e;
+            if (!tom.getRequestFetcher().resolve(cid, regency, value, false, () -> writeFetchedValue(installed, value))) {
+                logger.info("Fetching the requests of the value of CID " + cid + " before writing it");
+                e.propValue = null; // nothing is accepted in this epoch until the value is written
+                e.propValueHash = null;
+                e.deserializedPropValue = null;
+                return null;
+            }
+        }
+
+        writeValue(e, value);
+        return e;
+    }
+
+    // Writes the value installed in an epoch once the requests it lacked were fetched,
+    // unless the consensus moved on in the meantime, and takes into account the WRITE
+    // and ACCEPT messages the other replicas sent for it while they were fetched
+    private void writeFetchedValue(Epoch e, byte[] value) {
+
+        Consensus cons = e.getConsensus();
+        cons.lock.lock();
+        try {
+            if (cons.isDecided() || cons.getEts() != e.getTimestamp() || e.propValue != null) return;
+
+            logger.debug("Fetched the requests of the value of CID " + cons.getId());
+            writeValue(e, value);
+            sendInstalledValue(e);
+            acceptor.installedValueWritten(e);
+            execManager.processOutOfContext(cons);
+        } finally {
+            cons.lock.unlock();
+        }
+    }
+
+    // Writes the value installed in an epoch, whose requests are all available
+    private void writeValue(Epoch e, byte[] value) {
+
+        int me = this.controller.getStaticConf().getProcessId();
+        Consensus cons = e.getConsensus();
+        int cid = cons.getId();
+        
+        /********* LEADER CHANGE CODE ********/
+        cons.removeWritten(value);
+        cons.addWritten(value);
+        /*************************************/
+        
+        byte[] hash = tom.computeHash(value);
+        e.propValueHash = hash;
+        e.propValue = value;
+
+        e.deserializedPropValue = tom.checkProposedValue(value, false);
+
+        if (cons.getDecision().firstMessageProposed == null) {
+            if (e.deserializedPropValue != null
+                    && e.deserializedPropValue.length > 0) {
+                cons.getDecision().firstMessageProposed = e.deserializedPropValue[0];
+            } else {
+                cons.getDecision().firstMessageProposed = new TOMMessage(); // to avoid null pointer
+            }
+        }
+        if (this.controller.getStaticConf().isBFT()) {
+            e.setWrite(me, hash);
+        } else {
+            e.setAccept(me, hash);
+
+            /********* LEADER CHANGE CODE ********/
+            logger.debug("[CFT Mode] Setting consensus " + cid + " QuorumWrite tiemstamp to " + e.getConsensus().getEts() + " and value " + Arrays.toString(hash));
+            e.getConsensus().setQuorumWrites(hash);
+            /*************************************/
+
+        }
+    }
+
+    // Sends a WRITE/ACCEPT message with the value installed in an epoch to the other replicas
+    private void sendInstalledValue(Epoch e) {
+
+        int cid = e.getConsensus().getId();
+
+        if (this.controller.getStaticConf().isBFT()) {
+            logger.info("Sending WRITE message for CID " + cid + ", timestamp " + e.getTimestamp() + ", value " + Arrays.toString(e.propValueHash));
+            communication.send(this.controller.getCurrentViewOtherAcceptors(),
+                    acceptor.getFactory().createWrite(cid, e.getTimestamp(), e.propValueHash));
+            e.writeSent();
+        } else {
+            logger.info("Sending ACCEPT message for CID " + cid + ", timestamp " + e.getTimestamp() + ", value " + Arrays.toString(e.propValueHash));
+            communication.send(this.controller.getCurrentViewOtherAcceptors(),
+                    acceptor.getFactory().createAccept(cid, e.getTimestamp(), e.propValueHash));
+            e.acceptSent();
+        }
+    }
 }
@@ -24,12 +24,14 @@ import bftsmart.consensus.Consensus;
 import bftsmart.consensus.Decision;
 import bftsmart.consensus.Epoch;
 import bftsmart.consensus.roles.Acceptor;
+import bftsmart.metrics.Metrics;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.statemanagement.StateManager;
 import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.core.messages.ForwardedMessage;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.leaderchange.LeaseManager;
 import bftsmart.tom.leaderchange.RequestsTimer;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.RequestVerifier;
@@ -37,6 +39,7 @@ import bftsmart.tom.server.defaultservices.DefaultRecoverable;
 import bftsmart.tom.server.defaultservices.DefaultSingleRecoverable;
 import bftsmart.tom.util.BatchBuilder;
 import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.Scheduler;
 import bftsmart.tom.util.TOMUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,8 +47,6 @@ import org.slf4j.LoggerFactory;
 import java.io.Serializable;
 import java.security.*;
 import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -77,6 +78,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
      * Manage timers for pending requests
      */
     public RequestsTimer requestsTimer;
+    private Scheduler.Timeout batchTimer;
 
     private long lastRequest = -1;
 
@@ -84,11 +86,18 @@ public final class TOMLayer extends Thread implements RequestReceiver {
      * Store requests received but still not ordered
      */
     public ClientsManager clientsManager;
+    private final RequestFetcher requestFetcher; // Resolves proposed digests into requests
+    private final LeaseManager leaseManager; // Leases of the leader for LEASE_READ requests
     /**
      * The id of the consensus being executed (or -1 if there is none)
      */
     private int inExecution = -1;
     private int lastExecuted = -1;
+    /**
+     * The highest consensus id known to have been started (used for pipelining)
+     */
+    private int highestInFlight = -1;
+    private final int pipelineWindow;
 
     public MessageDigest md;
     private Signature engine;
@@ -138,6 +147,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         this.acceptor = a;
         this.communication = cs;
         this.controller = controller;
+        this.pipelineWindow = controller.getStaticConf().getPipelineWindow();
 
         /*Tulio Ribeiro*/
         this.privateKey = this.controller.getStaticConf().getPrivateKey();
@@ -175,6 +185,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
         // I have a verifier, now create clients manager
         this.clientsManager = new ClientsManager(this.controller, requestsTimer, verifier1, cs);
+        this.requestFetcher = new RequestFetcher(this, cs, this.controller);
 
 
         // If recoverer should use lastReplies of clients to recover, it needs reference to clientsManager
@@ -187,21 +198,18 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 
         this.syncher = new Synchronizer(this); // create synchronizer
+        this.leaseManager = new LeaseManager(this, cs, this.controller);
 
         if (controller.getStaticConf().getBatchTimeout() > -1) {
 
             //timeout for batch
-            Timer batchTimer = new Timer();
-            batchTimer.scheduleAtFixedRate(new TimerTask() {
-                @Override
-                public void run() {
+            batchTimer = Scheduler.scheduleAtFixedRate(() -> {
 
-                    if (clientsManager.havePendingRequests() &&
-                            (System.currentTimeMillis() - lastRequest) >= controller.getStaticConf().getBatchTimeout()) {
+                if (clientsManager.havePendingRequests() &&
+                        (System.currentTimeMillis() - lastRequest) >= controller.getStaticConf().getBatchTimeout()) {
 
-                        logger.debug("Signaling proposer thread!!");
-                        haveMessages();
-                    }
+                    logger.debug("Signaling proposer thread!!");
+                    haveMessages();
                 }
 
             }, 0, controller.getStaticConf().getBatchTimeout());
@@ -295,12 +303,109 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         proposeLock.lock();
         logger.debug("Modifying inExec from " + this.inExecution + " to " + inEx);
         this.inExecution = inEx;
+        if (inEx > highestInFlight) {
+            highestInFlight = inEx;
+        }
         if (inEx == -1 && !isRetrievingState()) {
             canPropose.signalAll();
         }
         proposeLock.unlock();
     }
 
+    /**
+     * Registers that a consensus instance was started, either because this replica
+     * proposed it or because it received its PROPOSE. If it is the instance following
+     * the last executed one, it also becomes the one in execution.
+     *
+     * @param cid ID of the consensus that was started
+     */
+    public void consensusStarted(int cid) {
+        proposeLock.lock();
+        if (cid > highestInFlight) {
+            highestInFlight = cid;
+        }
+        if (cid == lastExecuted + 1) {
+            logger.debug("Modifying inExec from " + this.inExecution + " to " + cid);
+            this.inExecution = cid;
+        }
+        proposeLock.unlock();
+    }
+
+    /**
+     * Resumes consensus execution after a leader change. The given consensus becomes the
+     * one in execution, and the ones up to highestCID (which were synchronized along with
+     * it) become the only ones in flight, so that instances left open by the deposed
+     * leader after them are proposed again.
+     *
+     * @param inEx ID of the consensus being executed at the moment
+     * @param highestCID ID of the last consensus synchronized by the leader change
+     */
+    public void restartPipeline(int inEx, int highestCID) {
+        proposeLock.lock();
+        logger.debug("Modifying inExec from " + this.inExecution + " to " + inEx + ", last started to " + highestCID);
+        this.inExecution = inEx;
+        this.highestInFlight = highestCID;
+        proposeLock.unlock();
+    }
+
+    /**
+     * Invoked after a decision is delivered in order. The next consensus becomes the one
+     * in execution if it was already started within the pipelining window, otherwise no
+     * consensus is in execution. Either way, the proposer is notified.
+     */
+    public void advanceInExec() {
+        proposeLock.lock();
+        int next = lastExecuted + 1;
+        this.inExecution = (next <= highestInFlight) ? next : -1;
+        logger.debug("Modifying inExec to " + this.inExecution);
+        if (!isRetrievingState()) {
+            canPropose.signalAll();
+        }
+        proposeLock.unlock();
+    }
+
+    /**
+     * Gets the ID of the next consensus this replica may propose as a leader
+     *
+     * @return ID of the next consensus to be proposed
+     */
+    private int getNextProposal() {
+        int last = Math.max(lastExecuted, inExecution);
+        if (highestInFlight > last) {
+            last = highestInFlight;
+        }
+        return last + 1;
+    }
+
+    /**
+     * Checks if the leader may start one more consensus instance without
+     * exceeding the pipelining window
+     *
+     * @return true if a new consensus can be started
+     */
+    private boolean canStartConsensus() {
+        if (pipelineWindow == 1) {
+            return getInExec() == -1;
+        }
+        return !isRetrievingState() && !dt.isReconfigurationPending()
+                && getNextProposal() <= getLastExec() + pipelineWindow;
+    }
+
+    /**
+     * Gets the ID of the last consensus started by this replica, either as the
+     * leader or because it received its PROPOSE
+     *
+     * @return ID of the last consensus started
+     */
+    public int getLastStarted() {
+        proposeLock.lock();
+        try {
+            return getNextProposal() - 1;
+        } finally {
+            proposeLock.unlock();
+        }
+    }
+
     /**
      * This method blocks until the PaW algorithm is finished
      */
@@ -343,6 +448,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		case ORDERED_REQUEST:
 		case UNORDERED_HASHED_REQUEST:
 		case UNORDERED_REQUEST:
+		case LEASE_READ:
 			// These messages should be processed
 			break;
         }
@@ -350,7 +456,8 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
         // check if this request is valid and add it to the client' pending requests list
         boolean readOnly = (msg.getReqType() == TOMMessageType.UNORDERED_REQUEST
-                || msg.getReqType() == TOMMessageType.UNORDERED_HASHED_REQUEST);
+                || msg.getReqType() == TOMMessageType.UNORDERED_HASHED_REQUEST
+                || msg.getReqType() == TOMMessageType.LEASE_READ);
         if (readOnly) {
             logger.debug("Received read-only TOMMessage from client " + msg.getSender() + " with sequence number " + msg.getSequence() + " for session " + msg.getSession());
 
@@ -360,7 +467,11 @@ public final class TOMLayer extends Thread implements RequestReceiver {
                 logger.warn("Please enable the read-only optimization in system.config to support execution of unordered requests");
                 return;
             }
-            dt.deliverUnordered(msg, syncher.getLCManager().getLastReg());
+            if (msg.getReqType() == TOMMessageType.LEASE_READ) {
+                leaseManager.readReceived(msg);
+            } else {
+                dt.deliverUnordered(msg, syncher.getLCManager().getLastReg());
+            }
         } else {
             logger.debug("Received TOMMessage from client " + msg.getSender() + " with sequence number " + msg.getSequence() + " for session " + msg.getSession());
 
@@ -413,11 +524,36 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         }
         dec.batchSize = numberOfMessages;
 
+        if (Metrics.isEnabled()) {
+            long now = System.nanoTime();
+            for (TOMMessage request : pendingRequests) {
+                Metrics.record(Metrics.Stage.BATCH, now - request.receptionTime);
+            }
+        }
+
         logger.debug("Creating a PROPOSE with " + numberOfMessages + " msgs");
 
+        if (controller.getStaticConf().useDigestProposals()) {
+            return bb.makeDigestBatch(pendingRequests, numberOfNonces, System.currentTimeMillis());
+        }
         return bb.makeBatch(pendingRequests, numberOfNonces, System.currentTimeMillis(), controller.getStaticConf().getUseSignatures() == 1);
     }
 
+    /**
+     * Creates a value without requests. A new leader uses it to close the consensus
+     * instances that the deposed leader left open in the pipelining window.
+     *
+     * @return the serialized empty batch
+     */
+    public byte[] createEmptyPropose() {
+        int numberOfNonces = this.controller.getStaticConf().getNumberOfNonces();
+
+        if (controller.getStaticConf().useDigestProposals()) {
+            return bb.makeDigestBatch(new RequestList(), numberOfNonces, System.currentTimeMillis());
+        }
+        return bb.makeBatch(new RequestList(), numberOfNonces, System.currentTimeMillis(), controller.getStaticConf().getUseSignatures() == 1);
+    }
+
     /**
      * This is the main code for this thread. It basically waits until this
      * replica becomes the leader, and when so, proposes a value to the other
@@ -442,10 +578,11 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
             if (!doWork) break;
 
-            // blocks until the current consensus finishes
+            // blocks until the current consensus finishes (or, when pipelining,
+            // until there is room in the window for another consensus)
             proposeLock.lock();
 
-            if (getInExec() != -1) { //there is some consensus running
+            if (!canStartConsensus()) { //there are too many consensus running
                 logger.debug("Waiting for consensus " + getInExec() + " termination.");
                 canPropose.awaitUninterruptibly();
             }
@@ -474,11 +611,11 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
             if ((execManager.getCurrentLeader() == this.controller.getStaticConf().getProcessId()) && //I'm the leader
                     (clientsManager.havePendingRequests()) && //there are messages to be ordered
-                    (getInExec() == -1)) { //there is no consensus in execution
+                    canStartConsensus()) { //there is no consensus in execution (or the window is not full)
 
                 // Sets the current consensus
-                int execId = getLastExec() + 1;
-                setInExec(execId);
+                int execId = (pipelineWindow == 1) ? getLastExec() + 1 : getNextProposal();
+                consensusStarted(execId);
 
                 Decision dec = execManager.getConsensus(execId).getDecision();
 
@@ -540,7 +677,8 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             logger.debug("Checking proposed value");
 
             BatchReader batchReader = new BatchReader(proposedValue,
-                    this.controller.getStaticConf().getUseSignatures() == 1);
+                    this.controller.getStaticConf().getUseSignatures() == 1,
+                    this.controller.getStaticConf().useDigestProposals() ? requestFetcher : null);
 
             TOMMessage[] requests;
 
@@ -548,6 +686,11 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             //TODO: verify Timestamps and Nonces
             requests = batchReader.deserialiseRequests(this.controller);
 
+            if (requests == null) {
+                logger.warn("Some of the requests proposed are not available in this replica");
+                return null;
+            }
+
             if (addToClientManager) {
 
                 //use parallelization to validate the request
@@ -621,6 +764,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
         proposeLock.lock();
         this.inExecution = -1;
+        this.highestInFlight = -1;
         //ot.addUpdate();
         canPropose.signalAll();
         proposeLock.unlock();
@@ -639,6 +783,13 @@ public final class TOMLayer extends Thread implements RequestReceiver {
                 execManager.processOutOfContextPropose(execManager.getConsensus(nextConsensus));
             }
         }
+
+        // when pipelining, proposes for the following instances inside the window can also be processed
+        for (int nextConsensus = getLastExec() + 2; nextConsensus <= getLastExec() + pipelineWindow; nextConsensus++) {
+            if (execManager.receivedOutOfContextPropose(nextConsensus)) {
+                execManager.processOutOfContextPropose(execManager.getConsensus(nextConsensus));
+            }
+        }
     }
 
     public StateManager getStateManager() {
@@ -649,6 +800,14 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         return syncher;
     }
 
+    public RequestFetcher getRequestFetcher() {
+        return requestFetcher;
+    }
+
+    public LeaseManager getLeaseManager() {
+        return leaseManager;
+    }
+
     private void haveMessages() {
         messagesLock.lock();
         haveMessages.signal();
@@ -666,6 +825,9 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         setNoExec();
 
         if (this.requestsTimer != null) this.requestsTimer.shutdown();
+        if (this.batchTimer != null) this.batchTimer.cancel();
+        if (this.leaseManager != null) this.leaseManager.shutdown();
+        if (this.requestFetcher != null) this.requestFetcher.clear();
         if (this.clientsManager != null) {
             this.clientsManager.clear();
             this.clientsManager.getPendingRequests().clear();
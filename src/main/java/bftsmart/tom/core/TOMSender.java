@@ -105,6 +105,10 @@ public abstract class TOMSender implements ReplyReceiver, Closeable, AutoCloseab
 						reqType));
 	}
 
+	public void sendMessageToTargets(TOMMessage sm, int[] targets) {
+		cs.send(useSignatures, targets, sm);
+	}
+
 	public void sendMessageToTargets(byte[] m, int reqId, int operationId, int[] targets, TOMMessageType type) {
 		if(this.getViewManager().getStaticConf().isTheTTP()) {
 			type = TOMMessageType.ASK_STATUS;
@@ -0,0 +1,183 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core.messages;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import bftsmart.communication.SystemMessage;
+
+/**
+ * Message used to fetch the requests of a batch of digests (see
+ * BatchBuilder.makeDigestBatch) that a replica did not receive from the
+ * clients. A query carries the sender, sequence number and digest of each
+ * missing request; the reply carries the requests the other replica has.
+ */
+public final class RequestFetchMessage extends SystemMessage {
+
+    public static final int QUERY = 0;
+    public static final int REPLY = 1;
+
+    private int type;
+    private int cid;
+    private int epoch;
+
+    private int[] senders;
+    private int[] sequences;
+    private byte[][] digests;
+
+    private TOMMessage[] requests;
+
+    public RequestFetchMessage() {
+    }
+
+    /**
+     * Creates a query for the given requests
+     *
+     * @param senderId Replica that sends the query
+     * @param cid Consensus whose value refers to the requests
+     * @param epoch Epoch in which the value was proposed
+     * @param senders Client of each request
+     * @param sequences Sequence number of each request
+     * @param digests Digest of each request
+     */
+    public RequestFetchMessage(int senderId, int cid, int epoch, int[] senders, int[] sequences, byte[][] digests) {
+        super(senderId);
+        this.type = QUERY;
+        this.cid = cid;
+        this.epoch = epoch;
+        this.senders = senders;
+        this.sequences = sequences;
+        this.digests = digests;
+    }
+
+    /**
+     * Creates a reply with the given requests
+     *
+     * @param senderId Replica that sends the reply
+     * @param cid Consensus whose value refers to the requests
+     * @param epoch Epoch in which the value was proposed
+     * @param requests Requests found by the replica
+     */
+    public RequestFetchMessage(int senderId, int cid, int epoch, TOMMessage[] requests) {
+        super(senderId);
+        this.type = REPLY;
+        this.cid = cid;
+        this.epoch = epoch;
+        this.requests = requests;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getCID() {
+        return cid;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int[] getSenders() {
+        return senders;
+    }
+
+    public int[] getSequences() {
+        return sequences;
+    }
+
+    public byte[][] getDigests() {
+        return digests;
+    }
+
+    public TOMMessage[] getRequests() {
+        return requests;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        super.writeExternal(out);
+
+        out.writeInt(type);
+        out.writeInt(cid);
+        out.writeInt(epoch);
+
+        if (type == QUERY) {
+            out.writeInt(senders.length);
+            for (int i = 0; i < senders.length; i++) {
+                out.writeInt(senders[i]);
+                out.writeInt(sequences[i]);
+                out.writeInt(digests[i].length);
+                out.write(digests[i]);
+            }
+        } else {
+            out.writeInt(requests.length);
+            for (TOMMessage request : requests) {
+                out.writeInt(request.serializedMessage.length);
+                out.write(request.serializedMessage);
+                out.writeBoolean(request.serializedMessageSignature != null);
+
+                if (request.serializedMessageSignature != null) {
+                    out.writeInt(request.serializedMessageSignature.length);
+                    out.write(request.serializedMessageSignature);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        super.readExternal(in);
+
+        type = in.readInt();
+        cid = in.readInt();
+        epoch = in.readInt();
+
+        int size = in.readInt();
+
+        if (type == QUERY) {
+            senders = new int[size];
+            sequences = new int[size];
+            digests = new byte[size][];
+            for (int i = 0; i < size; i++) {
+                senders[i] = in.readInt();
+                sequences[i] = in.readInt();
+                digests[i] = new byte[in.readInt()];
+                in.readFully(digests[i]);
+            }
+        } else {
+            requests = new TOMMessage[size];
+            for (int i = 0; i < size; i++) {
+                byte[] serReq = new byte[in.readInt()];
+                in.readFully(serReq);
+
+                requests[i] = TOMMessage.bytesToMessage(serReq);
+                if (requests[i] == null) {
+                    throw new IOException("Invalid fetched request");
+                }
+                requests[i].serializedMessage = serReq;
+
+                if (in.readBoolean()) {
+                    byte[] serReqSign = new byte[in.readInt()];
+                    in.readFully(serReqSign);
+                    requests[i].serializedMessageSignature = serReqSign;
+                }
+            }
+        }
+    }
+}
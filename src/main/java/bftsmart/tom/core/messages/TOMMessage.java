@@ -71,6 +71,7 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 	public transient byte[] serializedMessage = null;
 	public transient byte[] serializedMessageSignature = null;
 	public transient byte[] serializedMessageMAC = null;
+	public transient byte[] serializedMessageDigest = null; // digest of serializedMessage (see TOMUtil.computeRequestDigest)
 
 	//for benchmarking purposes
 	public transient long consensusStartTime = 0; //time the consensus is created
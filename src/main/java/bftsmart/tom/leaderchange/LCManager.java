@@ -26,6 +26,8 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -683,7 +685,7 @@ public class LCManager {
 
         if (c == null) return null;
 
-        return normalizeCollects(getSignedCollects(c), cid, regency);
+        return normalizeCollects(getSignedCollects(c, cid), cid, regency);
         
     }
 
@@ -698,14 +700,17 @@ public class LCManager {
 
         if (signedObjects == null) return null;
 
-        return normalizeCollects(getSignedCollects(signedObjects), cid, regency);
+        return normalizeCollects(getSignedCollects(signedObjects, cid), cid, regency);
 
     }
 
-    // Filters the correctly signed collects
-    private HashSet<CollectData> getSignedCollects(HashSet<SignedObject> signedCollects) {
+    // Filters the correctly signed collects, keeping the collect each replica sent for the given CID.
+    // When pipelining, a replica sends one collect for each consensus instance it was running, so
+    // replicas are mapped to null if they sent no collect for this CID, or different ones for it
+    private HashMap<Integer, CollectData> getSignedCollects(HashSet<SignedObject> signedCollects, int cid) {
 
-        HashSet<CollectData> colls = new HashSet<CollectData>();
+        HashMap<Integer, CollectData> colls = new HashMap<>();
+        HashSet<Integer> equivocating = new HashSet<>();
 
         for (SignedObject so : signedCollects) {
 
@@ -714,13 +719,28 @@ public class LCManager {
                 c = (CollectData) so.getObject();
                 int sender = c.getPid();
                 if (tomLayer.verifySignature(so, sender)) {
-                    colls.add(c);
+
+                    CollectData other = colls.get(sender);
+
+                    if (c.getCid() != cid) {
+                        if (!colls.containsKey(sender)) colls.put(sender, null);
+                    } else if (other == null) {
+                        colls.put(sender, c);
+                    } else if (!(Objects.equals(other.getQuorumWrites(), c.getQuorumWrites())
+                            && Objects.equals(other.getWriteSet(), c.getWriteSet()))) {
+                        equivocating.add(sender);
+                    }
                 }
             } catch (IOException | ClassNotFoundException ex) {
                 logger.error("Error processing collect data", ex);
             }
         }
 
+        for (int pid : equivocating) {
+            logger.warn("Replica " + pid + " sent different collects for CID " + cid);
+            colls.put(pid, null);
+        }
+
         return colls;
 
     }
@@ -728,18 +748,18 @@ public class LCManager {
     // Normalizes the set of collects. A set of collects is considered normalized if or when
     // all collects are related to the same CID. This is important because not all replicas
     // may be executing the same CID when tere is a leader change
-    private HashSet<CollectData> normalizeCollects(HashSet<CollectData> collects, int cid, int regency) {
+    private HashSet<CollectData> normalizeCollects(HashMap<Integer, CollectData> collects, int cid, int regency) {
 
         HashSet<CollectData> result = new HashSet<CollectData>();
 
         // if there are collects refering to other consensus instances, lets assume that they are still at timestamp zero of the consensus we want
-        for (CollectData c : collects) {
+        for (Map.Entry<Integer, CollectData> entry : collects.entrySet()) {
 
-            if (c.getCid() == cid) {
-                result.add(c);
+            if (entry.getValue() != null) {
+                result.add(entry.getValue());
             }
             else {
-                result.add(new CollectData(c.getPid(), cid, regency, new TimestampValuePair(0, new byte[0]), new HashSet<TimestampValuePair>()));
+                result.add(new CollectData(entry.getKey(), cid, regency, new TimestampValuePair(0, new byte[0]), new HashSet<TimestampValuePair>()));
             }
 
         }
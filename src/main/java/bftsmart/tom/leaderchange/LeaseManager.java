@@ -0,0 +1,312 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.leaderchange;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.communication.ServerCommunicationSystem;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.TOMLayer;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.util.Scheduler;
+
+/**
+ * Manages the leases that allow the leader of a regency to answer LEASE_READ
+ * requests alone.
+ *
+ * While it is the leader, a replica periodically asks the others for a lease.
+ * A replica grants it by promising not to send a STOP message for the current
+ * regency during the lease duration, counted from the moment it received the
+ * request. It stops granting leases once it wants to replace the leader, or
+ * once it received a STOP for the current regency. Once a quorum granted the lease, the leader holds it until the
+ * lease duration minus the clock drift bound has elapsed since it sent the
+ * request. A new regency cannot be installed without the STOPs of the
+ * replicas that granted a valid lease, so no other replica can be leader
+ * while the lease holds.
+ *
+ * A read is executed once the leader executed the last consensus reported in
+ * the grants and every consensus it started, which includes any write that
+ * completed before the read was received.
+ */
+public class LeaseManager {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final TOMLayer tomLayer;
+    private final ServerCommunicationSystem communication;
+    private final ServerViewController controller;
+    private final int me;
+    private final long duration; // in nanoseconds
+    private final long drift; // in nanoseconds
+
+    // Lease held by this replica as a leader
+    private int leaseRegency = -1;
+    private int leaseView = -1;
+    private long leaseExpiry;
+    private int leaseCID = -1;
+
+    // Lease requested by this replica in its last round
+    private int round = 0;
+    private int roundRegency = -1;
+    private int roundView = -1;
+    private long roundStart;
+    private int roundCID = -1;
+    private final HashSet<Integer> roundGrants = new HashSet<>();
+
+    // Lease granted by this replica to the leader
+    private int promisedRegency = -1;
+    private long promisedUntil;
+    private int suspectedRegency = -1; // regency whose leader this replica wants to replace
+
+    // Reads waiting for the execution of a consensus
+    private int lastExecuted = -1;
+    private final TreeMap<Integer, List<TOMMessage>> pendingReads = new TreeMap<>();
+
+    private final Scheduler.Timeout renewTask;
+
+    public LeaseManager(TOMLayer tomLayer, ServerCommunicationSystem communication, ServerViewController controller) {
+        this.tomLayer = tomLayer;
+        this.communication = communication;
+        this.controller = controller;
+        this.me = controller.getStaticConf().getProcessId();
+        this.duration = TimeUnit.MILLISECONDS.toNanos(controller.getStaticConf().getLeaderLease());
+        this.drift = TimeUnit.MILLISECONDS.toNanos(controller.getStaticConf().getLeaseClockDrift());
+
+        if (duration > drift) {
+            long period = Math.max(10, controller.getStaticConf().getLeaderLease() / 3);
+            this.renewTask = Scheduler.scheduleAtFixedRate(this::renew, period, period);
+        } else {
+            if (duration > 0) {
+                logger.warn("Leader leases are disabled, the lease duration must be longer than the clock drift bound");
+            }
+            this.renewTask = null;
+        }
+    }
+
+    /**
+     * Indicates if leader leases are enabled
+     *
+     * @return true if the leader requests leases
+     */
+    public boolean isEnabled() {
+        return renewTask != null;
+    }
+
+    /**
+     * Sends a new round of lease requests if this replica is the leader
+     */
+    private void renew() {
+        LCManager lcManager = tomLayer.getSynchronizer().getLCManager();
+        int regency = lcManager.getLastReg();
+        if (lcManager.getNextReg() != regency || tomLayer.execManager.getCurrentLeader() != me) {
+            return;
+        }
+
+        LeaseMessage request;
+        synchronized (this) {
+            if (suspectedRegency == regency) {
+                return;
+            }
+            round++;
+            roundRegency = regency;
+            roundView = controller.getCurrentViewId();
+            roundStart = System.nanoTime();
+            roundCID = -1;
+            roundGrants.clear();
+
+            // the leader is also bound by its own lease
+            promise(regency, roundStart);
+            granted(me, tomLayer.getLastExec());
+
+            request = new LeaseMessage(me, LeaseMessage.REQUEST, regency, round, -1);
+        }
+        communication.send(controller.getCurrentViewOtherAcceptors(), request);
+    }
+
+    /**
+     * Processes a lease request or grant received from another replica
+     *
+     * @param msg The message received
+     */
+    public void deliver(LeaseMessage msg) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        LCManager lcManager = tomLayer.getSynchronizer().getLCManager();
+        int regency = lcManager.getLastReg();
+        if (msg.getRegency() != regency || lcManager.getNextReg() != regency) {
+            logger.debug("Ignoring lease message from {} for regency {}, my regency is {}", msg.getSender(),
+                    msg.getRegency(), regency);
+            return;
+        }
+
+        if (msg.getType() == LeaseMessage.REQUEST) {
+            if (msg.getSender() != tomLayer.execManager.getCurrentLeader()) {
+                logger.debug("Ignoring lease request from {}, it is not the leader", msg.getSender());
+                return;
+            }
+            synchronized (this) {
+                if (suspectedRegency == regency || lcManager.getStopsSize(regency + 1) > 0) {
+                    logger.debug("Not granting a lease to {}, regency {} is being replaced", msg.getSender(), regency);
+                    return;
+                }
+                promise(regency, System.nanoTime());
+            }
+            communication.send(new int[]{msg.getSender()},
+                    new LeaseMessage(me, LeaseMessage.GRANT, regency, msg.getRound(), tomLayer.getLastExec()));
+        } else {
+            synchronized (this) {
+                if (msg.getRound() == round && regency == roundRegency) {
+                    granted(msg.getSender(), msg.getCID());
+                }
+            }
+        }
+    }
+
+    private void promise(int regency, long now) {
+        if (regency != promisedRegency || now + duration - promisedUntil > 0) {
+            promisedRegency = regency;
+            promisedUntil = now + duration;
+        }
+    }
+
+    private void granted(int sender, int cid) {
+        roundGrants.add(sender);
+        roundCID = Math.max(roundCID, cid);
+
+        if (roundGrants.size() >= controller.getQuorum()) {
+            long expiry = roundStart + duration - drift;
+            if (leaseRegency != roundRegency || leaseView != roundView) {
+                logger.info("Holding the leader lease for regency {}", roundRegency);
+                leaseRegency = roundRegency;
+                leaseView = roundView;
+                leaseExpiry = expiry;
+                leaseCID = roundCID;
+            } else {
+                if (expiry - leaseExpiry > 0) {
+                    leaseExpiry = expiry;
+                }
+                leaseCID = Math.max(leaseCID, roundCID);
+            }
+        }
+    }
+
+    private boolean hasLease() {
+        LCManager lcManager = tomLayer.getSynchronizer().getLCManager();
+        int regency = lcManager.getLastReg();
+        return leaseRegency == regency && lcManager.getNextReg() == regency
+                && leaseView == controller.getCurrentViewId()
+                && tomLayer.execManager.getCurrentLeader() == me
+                && System.nanoTime() - leaseExpiry < 0;
+    }
+
+    /**
+     * Records that this replica wants to replace the leader of the current
+     * regency, so that it grants it no further leases, and gets how long it
+     * must still wait before sending a STOP message, so that the lease it
+     * already granted remains valid.
+     *
+     * @return Time to wait in milliseconds, or 0 if there is no lease to honour
+     */
+    public synchronized long suspectLeader() {
+        int regency = tomLayer.getSynchronizer().getLCManager().getLastReg();
+        suspectedRegency = regency;
+        if (!isEnabled() || promisedRegency != regency) {
+            return 0;
+        }
+        long remaining = promisedUntil - System.nanoTime();
+        return remaining > 0 ? TimeUnit.NANOSECONDS.toMillis(remaining) + 1 : 0;
+    }
+
+    /**
+     * Executes a LEASE_READ request if this replica holds the leader lease,
+     * possibly after the execution of the consensus it depends on. Otherwise
+     * the client is told which replica is the leader, in the replyServer field
+     * of an empty reply, and falls back to a quorum read.
+     *
+     * @param request The request received from the client
+     */
+    public void readReceived(TOMMessage request) {
+        int regency;
+        synchronized (this) {
+            if (!hasLease()) {
+                int leader = tomLayer.execManager.getCurrentLeader();
+                logger.debug("Redirecting lease read {} to replica {}, this replica does not hold the leader lease",
+                        request, leader);
+                TOMMessage redirect = new TOMMessage(me, request.getSession(), request.getSequence(),
+                        request.getOperationId(), new byte[0], controller.getCurrentViewId(), TOMMessageType.LEASE_READ);
+                redirect.setReplyServer(leader);
+                communication.send(new int[]{request.getSender()}, redirect);
+                return;
+            }
+            regency = leaseRegency;
+
+            int required = Math.max(leaseCID, tomLayer.getLastStarted());
+            if (required > Math.max(lastExecuted, tomLayer.getLastExec())) {
+                logger.debug("Lease read {} waits for the execution of consensus {}", request, required);
+                pendingReads.computeIfAbsent(required, k -> new LinkedList<>()).add(request);
+                return;
+            }
+        }
+        tomLayer.getDeliveryThread().deliverUnordered(request, regency);
+    }
+
+    /**
+     * Invoked by the delivery thread after the decision of a consensus was
+     * executed, to execute the reads that were waiting for it.
+     *
+     * @param cid Consensus that was executed
+     */
+    public void executed(int cid) {
+        List<TOMMessage> ready;
+        synchronized (this) {
+            lastExecuted = cid;
+            if (pendingReads.isEmpty()) {
+                return;
+            }
+            SortedMap<Integer, List<TOMMessage>> released = pendingReads.headMap(cid, true);
+            ready = new ArrayList<>();
+            for (List<TOMMessage> reads : released.values()) {
+                ready.addAll(reads);
+            }
+            released.clear();
+        }
+        int regency = tomLayer.getSynchronizer().getLCManager().getLastReg();
+        for (TOMMessage request : ready) {
+            tomLayer.getDeliveryThread().deliverUnordered(request, regency);
+        }
+    }
+
+    public void shutdown() {
+        if (renewTask != null) {
+            renewTask.cancel();
+        }
+        synchronized (this) {
+            pendingReads.clear();
+        }
+    }
+}
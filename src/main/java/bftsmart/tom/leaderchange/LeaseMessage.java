@@ -0,0 +1,96 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.leaderchange;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import bftsmart.communication.SystemMessage;
+
+/**
+ * Message used to grant leases to the leader of a regency (see LeaseManager).
+ * The leader sends a REQUEST to the other replicas, which answer with a GRANT
+ * carrying the last consensus they executed.
+ */
+public class LeaseMessage extends SystemMessage {
+
+    public static final int REQUEST = 0;
+    public static final int GRANT = 1;
+
+    private int type;
+    private int regency;
+    private int round;
+    private int cid;
+
+    /**
+     * Empty constructor
+     */
+    public LeaseMessage() {
+    }
+
+    /**
+     * Constructor
+     * @param from replica that creates this message
+     * @param type type of the message (REQUEST or GRANT)
+     * @param regency regency of the leader the lease is granted to
+     * @param round round of lease requests of the leader
+     * @param cid last consensus executed by the replica that grants the lease
+     */
+    public LeaseMessage(int from, int type, int regency, int round, int cid) {
+        super(from);
+        this.type = type;
+        this.regency = regency;
+        this.round = round;
+        this.cid = cid;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getRegency() {
+        return regency;
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    public int getCID() {
+        return cid;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        super.writeExternal(out);
+
+        out.writeInt(type);
+        out.writeInt(regency);
+        out.writeInt(round);
+        out.writeInt(cid);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        super.readExternal(in);
+
+        type = in.readInt();
+        regency = in.readInt();
+        round = in.readInt();
+        cid = in.readInt();
+    }
+}
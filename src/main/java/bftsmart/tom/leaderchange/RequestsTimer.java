@@ -16,11 +16,11 @@ limitations under the License.
 package bftsmart.tom.leaderchange;
 
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.ListIterator;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.HashMap;
 import java.util.Set;
@@ -29,6 +29,7 @@ import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.Scheduler;
 import bftsmart.tom.util.TOMUtil;
 
 import org.slf4j.Logger;
@@ -37,25 +38,32 @@ import org.slf4j.LoggerFactory;
 /**
  * This thread serves as a manager for all timers of pending requests.
  *
+ * The watched requests are kept in buckets by reception time, each bucket
+ * covering a fixed interval (a fraction of the request timeout) and keeping
+ * its requests in insertion order. Watching and unwatching a request are
+ * amortized O(1), and a timeout only visits the buckets that hold expired
+ * requests plus the first one that does not.
  */
 public class RequestsTimer {
     
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    private Timer timer = new Timer("request timer");
-    private RequestTimerTask rtTask = null;
+    private Scheduler.Timeout rtTask = null;
     private TOMLayer tomLayer; // TOM layer
     private long timeout;
     private long shortTimeout;
-    private TreeSet<TOMMessage> watched = new TreeSet<TOMMessage>();
+    private final long bucketWidth;
+    private final HashMap<TOMMessage, Long> watched = new HashMap<>(); // request -> its bucket
+    private final TreeMap<Long, LinkedHashSet<TOMMessage>> buckets = new TreeMap<>();
     private ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
     
     private boolean enabled = true;
+    private volatile boolean shutdown = false;
     
     private ServerCommunicationSystem communication; // Communication system between replicas
     private ServerViewController controller; // Reconfiguration manager
     
-    private HashMap <Integer, Timer> stopTimers = new HashMap<>();
+    private HashMap <Integer, Scheduler.Timeout> stopTimers = new HashMap<>();
     
     //private Storage st1 = new Storage(100000);
     //private Storage st2 = new Storage(10000);
@@ -71,6 +79,7 @@ public class RequestsTimer {
         
         this.timeout = this.controller.getStaticConf().getRequestTimeout();
         this.shortTimeout = -1;
+        this.bucketWidth = Math.max(1, timeout / 16);
     }
 
     public void setShortTimeout(long shortTimeout) {
@@ -78,11 +87,10 @@ public class RequestsTimer {
     }
     
     public void startTimer() {
-        if (rtTask == null) {
+        if (rtTask == null && !shutdown) {
             long t = (shortTimeout > -1 ? shortTimeout : timeout);
             //shortTimeout = -1;
-            rtTask = new RequestTimerTask();
-            if (controller.getCurrentViewN() > 1) timer.schedule(rtTask, t);
+            if (controller.getCurrentViewN() > 1) rtTask = Scheduler.schedule(new RequestTimerTask(), t);
         }
     }
     
@@ -109,7 +117,11 @@ public class RequestsTimer {
     public void watch(TOMMessage request) {
         //long startInstant = System.nanoTime();
         rwLock.writeLock().lock();
-        watched.add(request);
+        if (!watched.containsKey(request)) {
+            long bucket = request.receptionTimestamp / bucketWidth;
+            watched.put(request, bucket);
+            buckets.computeIfAbsent(bucket, k -> new LinkedHashSet<>()).add(request);
+        }
         if (watched.size() >= 1 && enabled) startTimer();
         rwLock.writeLock().unlock();
     }
@@ -121,7 +133,13 @@ public class RequestsTimer {
     public void unwatch(TOMMessage request) {
         //long startInstant = System.nanoTime();
         rwLock.writeLock().lock();
-        if (watched.remove(request) && watched.isEmpty()) stopTimer();
+        Long bucket = watched.remove(request);
+        if (bucket != null) {
+            LinkedHashSet<TOMMessage> requests = buckets.get(bucket);
+            requests.remove(request);
+            if (requests.isEmpty()) buckets.remove(bucket);
+            if (watched.isEmpty()) stopTimer();
+        }
         rwLock.writeLock().unlock();
     }
 
@@ -129,16 +147,12 @@ public class RequestsTimer {
      * Cancels all timers for all messages
      */
     public void clearAll() {
-        TOMMessage[] requests = new TOMMessage[watched.size()];
         rwLock.writeLock().lock();
         
-        watched.toArray(requests);
-
-        for (TOMMessage request : requests) {
-            if (request != null && watched.remove(request) && watched.isEmpty() && rtTask != null) {
-                rtTask.cancel();
-                rtTask = null;
-            }
+        if (!watched.isEmpty()) {
+            watched.clear();
+            buckets.clear();
+            stopTimer();
         }
         rwLock.writeLock().unlock();
     }
@@ -155,10 +169,21 @@ public class RequestsTimer {
         
             rwLock.readLock().lock();
         
-            for (Iterator<TOMMessage> i = watched.iterator(); i.hasNext();) {
-                TOMMessage request = i.next();
-                if ((System.currentTimeMillis() - request.receptionTimestamp ) > t) {
-                    pendingRequests.add(request);
+            // requests received before this instant have timed out
+            long limit = System.currentTimeMillis() - t;
+
+            for (Map.Entry<Long, LinkedHashSet<TOMMessage>> bucket : buckets.entrySet()) {
+                long start = bucket.getKey() * bucketWidth;
+                if (start >= limit) break;
+
+                if (start + bucketWidth <= limit) {
+                    pendingRequests.addAll(bucket.getValue());
+                } else {
+                    for (TOMMessage request : bucket.getValue()) {
+                        if (request.receptionTimestamp < limit) {
+                            pendingRequests.add(request);
+                        }
+                    }
                 }
             }
             
@@ -185,22 +210,27 @@ public class RequestsTimer {
             }
 
             if (!pendingRequests.isEmpty()) {
-                logger.info("Attempting to start leader change for requests {}", pendingRequests);
-                //Logger.debug = true;
-                //tomLayer.requestTimeout(pendingRequests);
-                //if (reconfManager.getStaticConf().getProcessId() == 4) Logger.debug = true;
-                tomLayer.getSynchronizer().triggerTimeout(pendingRequests);
+                long promised = tomLayer.getLeaseManager().suspectLeader();
+                if (promised > 0) {
+                    // the leader holds a lease granted by this replica
+                    logger.info("Postponing leader change for {} ms, the lease granted to the leader is still valid", promised);
+                    if (!shutdown) rtTask = Scheduler.schedule(new RequestTimerTask(), promised);
+                } else {
+                    logger.info("Attempting to start leader change for requests {}", pendingRequests);
+                    //Logger.debug = true;
+                    //tomLayer.requestTimeout(pendingRequests);
+                    //if (reconfManager.getStaticConf().getProcessId() == 4) Logger.debug = true;
+                    tomLayer.getSynchronizer().triggerTimeout(pendingRequests);
+                }
             }
-            else {
-                rtTask = new RequestTimerTask();
-                timer.schedule(rtTask, t);
+            else if (!shutdown) {
+                rtTask = Scheduler.schedule(new RequestTimerTask(), t);
             }
         } else {
             
             logger.debug("Timeout triggered with no expired requests");
             
-            rtTask = new RequestTimerTask();
-            timer.schedule(rtTask, t);
+            if (!shutdown) rtTask = Scheduler.schedule(new RequestTimerTask(), t);
         }
         
     }
@@ -209,10 +239,9 @@ public class RequestsTimer {
         
         stopSTOP(regency);
         
-        SendStopTask stopTask = new SendStopTask(stop);
-        Timer stopTimer = new Timer("Stop message");
-        
-        stopTimer.schedule(stopTask, timeout);
+        if (shutdown) return;
+
+        Scheduler.Timeout stopTimer = Scheduler.schedule(new SendStopTask(stop), timeout);
         
        stopTimers.put(regency, stopTimer);
 
@@ -227,25 +256,26 @@ public class RequestsTimer {
     
     public void stopSTOP(int regency){
         
-        Timer stopTimer = stopTimers.remove(regency);
+        Scheduler.Timeout stopTimer = stopTimers.remove(regency);
         if (stopTimer != null) stopTimer.cancel();
 
     }
     
     public Set<Integer> getTimers() {
         
-        return ((HashMap <Integer,Timer>) stopTimers.clone()).keySet();
+        return ((HashMap <Integer,Scheduler.Timeout>) stopTimers.clone()).keySet();
         
     }
     
     public void shutdown() {
-        timer.cancel();
+        shutdown = true;
+        stopTimer();
         stopAllSTOPs();
         LoggerFactory.getLogger(this.getClass()).info("RequestsTimer stopped.");
 
     }
     
-    class RequestTimerTask extends TimerTask {
+    class RequestTimerTask implements Runnable {
 
         @Override
         /**
@@ -262,7 +292,7 @@ public class RequestsTimer {
         }
     }
     
-    class SendStopTask extends TimerTask {
+    class SendStopTask implements Runnable {
         
         private LCMessage stop;
         
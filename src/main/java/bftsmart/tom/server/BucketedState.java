@@ -0,0 +1,47 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server;
+
+/**
+ * Optional extension for Recoverable applications whose serialized state is
+ * made of buckets (e.g., ranges of keys), such that a bucket whose contents
+ * did not change is serialized into the same bytes. When the state is
+ * transferred in chunks, the buckets are used as chunks, and are the leaves of
+ * the Merkle tree that replicas agree on. A recovering replica then fetches
+ * only the buckets whose hash differs from the ones in its own state.
+ *
+ * DefaultRecoverable and DefaultSingleRecoverable applications only need to
+ * implement getBucketLimits(), since they already provide getSnapshot().
+ */
+public interface BucketedState {
+
+    /**
+     * Returns a serialized snapshot of the application state. It is invoked
+     * on a recovering replica while it waits for the state, to find the
+     * buckets it already has.
+     * @return A serialized snapshot of the application state
+     */
+    public byte[] getSnapshot();
+
+    /**
+     * Splits a serialized snapshot into buckets
+     * @param snapshot A snapshot returned by getSnapshot()
+     * @return The end offset of each bucket in the snapshot, in increasing
+     * order. The last one must be the size of the snapshot, and buckets must
+     * not be empty
+     */
+    public int[] getBucketLimits(byte[] snapshot);
+}
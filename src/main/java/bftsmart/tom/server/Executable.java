@@ -40,6 +40,19 @@ public interface Executable {
      * @return the reply for the request issued by the client
      */
     public byte[] executeUnordered(byte[] command, MessageContext msgCtx);
+
+    /**
+     * Indicates if executeUnordered() may be invoked by several threads at
+     * the same time. If so, the unordered requests are executed concurrently
+     * by all the threads of the read-only pool (see the parameter
+     * system.optimizations.readonly_threads); otherwise, the pool executes
+     * them one at a time. The execution of ordered requests is not affected.
+     *
+     * @return true if executeUnordered() is thread-safe
+     */
+    public default boolean isUnorderedThreadSafe() {
+        return false;
+    }
     
     default TOMMessage getTOMMessage(int processID, int viewID, byte[] command, MessageContext msgCtx, byte[] result) {
         
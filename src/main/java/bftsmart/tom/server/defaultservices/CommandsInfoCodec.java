@@ -0,0 +1,244 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import bftsmart.communication.SystemMessageCodec;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+
+/**
+ * Compact binary encoding of CommandsInfo used by the write-ahead log of
+ * DiskStateLog, in place of Java serialization.
+ *
+ * All the requests of a consensus share the same proof and first request,
+ * so these are written once per batch and referenced by index from each
+ * message context.
+ *
+ * Layout: commands, proofs, first requests, message contexts. Arrays are
+ * prefixed by their length (-1 for null) and proofs are encoded with
+ * SystemMessageCodec.
+ */
+public final class CommandsInfoCodec {
+
+    private CommandsInfoCodec() {
+    }
+
+    /**
+     * Encodes a batch of commands and their contexts
+     * 
+     * @param info The batch to encode
+     * @return The encoded batch
+     * @throws IOException If a proof cannot be encoded
+     */
+    public static byte[] encode(CommandsInfo info) throws IOException {
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(estimateSize(info));
+        DataOutputStream out = new DataOutputStream(bos);
+
+        if (info.commands == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(info.commands.length);
+            for (byte[] command : info.commands) {
+                writeBytes(command, out);
+            }
+        }
+
+        Map<Object, Integer> proofs = new IdentityHashMap<>();
+        Map<Object, Integer> firsts = new IdentityHashMap<>();
+        List<Set<ConsensusMessage>> proofList = new ArrayList<>();
+        List<TOMMessage> firstList = new ArrayList<>();
+
+        if (info.msgCtx != null) {
+            for (MessageContext ctx : info.msgCtx) {
+                if (ctx.getProof() != null && !proofs.containsKey(ctx.getProof())) {
+                    proofs.put(ctx.getProof(), proofList.size());
+                    proofList.add(ctx.getProof());
+                }
+                if (ctx.getFirstInBatch() != null && !firsts.containsKey(ctx.getFirstInBatch())) {
+                    firsts.put(ctx.getFirstInBatch(), firstList.size());
+                    firstList.add(ctx.getFirstInBatch());
+                }
+            }
+        }
+
+        out.writeInt(proofList.size());
+        for (Set<ConsensusMessage> proof : proofList) {
+            out.writeInt(proof.size());
+            for (ConsensusMessage cm : proof) {
+                writeBytes(SystemMessageCodec.encode(cm), out);
+            }
+        }
+
+        out.writeInt(firstList.size());
+        for (TOMMessage first : firstList) {
+            writeBytes(TOMMessage.messageToBytes(first), out);
+        }
+
+        if (info.msgCtx == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(info.msgCtx.length);
+            for (MessageContext ctx : info.msgCtx) {
+                out.writeInt(ctx.getSender());
+                out.writeInt(ctx.getViewID());
+                out.writeByte(ctx.getType() == null ? -1 : ctx.getType().ordinal());
+                out.writeInt(ctx.getSession());
+                out.writeInt(ctx.getSequence());
+                out.writeInt(ctx.getOperationId());
+                out.writeInt(ctx.getReplyServer());
+                writeBytes(ctx.getSignature(), out);
+                out.writeLong(ctx.getTimestamp());
+                out.writeInt(ctx.getNumOfNonces());
+                out.writeLong(ctx.getSeed());
+                out.writeInt(ctx.getRegency());
+                out.writeInt(ctx.getLeader());
+                out.writeInt(ctx.getConsensusId());
+                out.writeInt(ctx.getProof() == null ? -1 : proofs.get(ctx.getProof()));
+                out.writeInt(ctx.getFirstInBatch() == null ? -1 : firsts.get(ctx.getFirstInBatch()));
+                out.writeBoolean(ctx.isNoOp());
+            }
+        }
+
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Decodes a batch previously encoded with encode(). The buffer position
+     * is advanced past the batch.
+     * 
+     * @param in Buffer holding the encoded batch
+     * @return The decoded batch
+     * @throws IOException If the buffer does not hold a valid batch
+     */
+    public static CommandsInfo decode(ByteBuffer in) throws IOException {
+
+        try {
+            CommandsInfo info = new CommandsInfo();
+
+            int size = in.getInt();
+            if (size >= 0) {
+                info.commands = new byte[size][];
+                for (int i = 0; i < size; i++) {
+                    info.commands[i] = readBytes(in);
+                }
+            }
+
+            List<Set<ConsensusMessage>> proofList = new ArrayList<>();
+            size = in.getInt();
+            for (int i = 0; i < size; i++) {
+                int count = in.getInt();
+                Set<ConsensusMessage> proof = new HashSet<>();
+                for (int j = 0; j < count; j++) {
+                    proof.add((ConsensusMessage) SystemMessageCodec.decode(readBytes(in)));
+                }
+                proofList.add(proof);
+            }
+
+            List<TOMMessage> firstList = new ArrayList<>();
+            size = in.getInt();
+            for (int i = 0; i < size; i++) {
+                firstList.add(TOMMessage.bytesToMessage(readBytes(in)));
+            }
+
+            size = in.getInt();
+            if (size >= 0) {
+                info.msgCtx = new MessageContext[size];
+                for (int i = 0; i < size; i++) {
+                    int sender = in.getInt();
+                    int viewID = in.getInt();
+                    byte type = in.get();
+                    int session = in.getInt();
+                    int sequence = in.getInt();
+                    int operationId = in.getInt();
+                    int replyServer = in.getInt();
+                    byte[] signature = readBytes(in);
+                    long timestamp = in.getLong();
+                    int numOfNonces = in.getInt();
+                    long seed = in.getLong();
+                    int regency = in.getInt();
+                    int leader = in.getInt();
+                    int consensusId = in.getInt();
+                    int proof = in.getInt();
+                    int first = in.getInt();
+                    boolean noOp = in.get() != 0;
+
+                    info.msgCtx[i] = new MessageContext(sender, viewID,
+                            type < 0 ? null : TOMMessageType.getMessageType(type),
+                            session, sequence, operationId, replyServer, signature,
+                            timestamp, numOfNonces, seed, regency, leader, consensusId,
+                            proof < 0 ? null : proofList.get(proof),
+                            first < 0 ? null : firstList.get(first), noOp);
+                }
+            }
+
+            return info;
+
+        } catch (BufferUnderflowException | ClassNotFoundException | ClassCastException | IndexOutOfBoundsException e) {
+            throw new IOException("Invalid batch encoding", e);
+        }
+    }
+
+    private static int estimateSize(CommandsInfo info) {
+        int size = 64;
+        if (info.commands != null) {
+            for (byte[] command : info.commands) {
+                size += Integer.BYTES + (command == null ? 0 : command.length);
+            }
+        }
+        if (info.msgCtx != null) {
+            size += info.msgCtx.length * 64;
+        }
+        return size;
+    }
+
+    private static void writeBytes(byte[] bytes, DataOutputStream out) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IOException("Invalid length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+}
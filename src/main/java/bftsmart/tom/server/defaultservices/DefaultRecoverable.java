@@ -22,6 +22,10 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.clientsmanagement.ClientsManager;
@@ -61,6 +65,8 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     private StateLog log;
     private StateManager stateManager;
     private ClientsManager clientsManager;
+    private ExecutorService checkpointer; // only used for asynchronous checkpoints
+    private volatile Future<?> pendingCheckpoint;
 
     /**
      * Constructor
@@ -92,6 +98,10 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
         if (checkpointIndex == -1) {
 
+            // the commands are logged before being executed, so that the log
+            // can write them to disk while the application executes them
+            saveCommands(commands, msgCtxs);
+
             if (!noop) {
 
                 stateLock.lock();
@@ -99,8 +109,6 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                 stateLock.unlock();
             }
 
-            saveCommands(commands, msgCtxs);
-
             if (!noop && controller.getStaticConf().useReadOnlyRequests()) {
                 saveReplies(commands, msgCtxs, replies, cid);
             }
@@ -130,6 +138,11 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
             // execute the first half
             cid = msgCtxs[checkpointIndex].getConsensusId();
 
+            if (checkpointer != null) {
+                // the checkpoint only replaces these commands in the log once it is stored
+                saveCommands(firstHalf, firstHalfMsgCtx);
+            }
+
             if (!noop) {
                 stateLock.lock();
                 firstHalfReplies = appExecuteBatch(firstHalf, firstHalfMsgCtx, true);
@@ -141,7 +154,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
             logger.info("Performing checkpoint for consensus " + cid);
             stateLock.lock();
 
-            byte[] snapshot = getSnapshot();
+            StateSnapshot snapshot = forkSnapshot();
             TreeMap<Integer, TOMMessage> lastReplies = controller.getStaticConf().useReadOnlyRequests() ?
                     clientsManager.getLastReplyOfEachClient() : new TreeMap<>();
 
@@ -158,14 +171,14 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 //	        	System.out.println("----THERE IS A SECOND HALF----");
                 cid = msgCtxs[msgCtxs.length - 1].getConsensusId();
 
+                logger.debug("Storing message batch in the state log for consensus " + cid);
+                saveCommands(secondHalf, secondHalfMsgCtx);
+
                 if (!noop) {
                     stateLock.lock();
                     secondHalfReplies = appExecuteBatch(secondHalf, secondHalfMsgCtx, true);
                     stateLock.unlock();
                 }
-
-                logger.debug("Storing message batch in the state log for consensus " + cid);
-                saveCommands(secondHalf, secondHalfMsgCtx);
                 saveReplies(secondHalf, secondHalfMsgCtx, secondHalfReplies, cid);
 
                 System.arraycopy(secondHalfReplies, 0, replies, firstHalfReplies.length, secondHalfReplies.length);
@@ -173,6 +186,9 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
         }
 
+        // the replies are only released once the commands are durable
+        getLog().sync();
+
         if (cids != null && cids.length > 0) {
             getStateManager().setLastCID(cids[cids.length - 1]);
         }
@@ -193,15 +209,24 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         return log;
     }
 
-    private void saveState(byte[] snapshot, int lastCID) {
+    private void saveState(StateSnapshot snapshot, int lastCID) {
 
         StateLog thisLog = getLog();
 
+        if (checkpointer != null) {
+            // only one checkpoint is stored at a time
+            waitForCheckpoint();
+            pendingCheckpoint = checkpointer.submit(() -> saveState(thisLog, snapshot, lastCID));
+            return;
+        }
+
+        byte[] state = snapshot.serialize();
+
         logLock.lock();
 
         logger.debug("(TOMLayer.saveState) Saving state of CID " + lastCID);
 
-        thisLog.newCheckpoint(snapshot, computeHash(snapshot), lastCID);
+        thisLog.newCheckpoint(state, computeHash(state), lastCID);
         thisLog.setLastCID(lastCID);
         thisLog.setLastCheckpointCID(lastCID);
 
@@ -209,6 +234,45 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         logger.debug("(TOMLayer.saveState) Finished saving state of CID " + lastCID);
     }
 
+    /**
+     * Stores a checkpoint in the background. The batches executed in the
+     * meantime were already added to the log, so only the last CID of the
+     * checkpoint is updated.
+     */
+    private void saveState(StateLog thisLog, StateSnapshot snapshot, int lastCID) {
+
+        logger.debug("(DefaultRecoverable.saveState) Saving state of CID " + lastCID + " asynchronously");
+
+        byte[] state = snapshot.serialize();
+        byte[] hash = computeHash(state);
+        thisLog.prepareCheckpoint(state, hash, lastCID);
+
+        logLock.lock();
+        try {
+            thisLog.newCheckpoint(state, hash, lastCID);
+            thisLog.setLastCheckpointCID(lastCID);
+        } finally {
+            logLock.unlock();
+        }
+        logger.debug("(DefaultRecoverable.saveState) Finished saving state of CID " + lastCID);
+    }
+
+    /**
+     * Blocks until the checkpoint being stored in the background, if any,
+     * is in the log
+     */
+    private void waitForCheckpoint() {
+        Future<?> checkpoint = pendingCheckpoint;
+        if (checkpoint == null) return;
+        try {
+            checkpoint.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Failed to save checkpoint", e.getCause());
+        }
+    }
+
 
     private void saveReplies(byte[][] commands, MessageContext[] msgCtxs, byte[][] results,  int lastCID) {
         TOMMessage[] executedRequests = new TOMMessage[msgCtxs.length];
@@ -297,6 +361,9 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
             DefaultApplicationState state = (DefaultApplicationState) recvState;
 
+            // a checkpoint finishing afterwards would replace the received state
+            waitForCheckpoint();
+
             int lastCheckpointCID = state.getLastCheckpointCID();
             lastCID = state.getLastCID();
 
@@ -307,7 +374,9 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
             if (state.getSerializedState() != null) {
                 logger.info("The state is not null. Will install it");
                 initLog();
-                log.update(state);
+                if (!(state instanceof DiskApplicationState)) { // a state recovered from the disk is already there
+                    log.update(state);
+                }
                 installSnapshot(state.getSerializedState());
 
                 // Sets the reply store
@@ -328,11 +397,11 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                 try {
 
                     logger.debug("Processing and verifying batched requests for cid " + cid);
-                    if (state.getMessageBatch(cid) == null) {
+                    CommandsInfo cmdInfo = state.getMessageBatch(cid); 
+                    if (cmdInfo == null) {
                         logger.warn("Consensus " + cid + " is null!");
                     }
 
-                    CommandsInfo cmdInfo = state.getMessageBatch(cid); 
                     byte[][] commands = cmdInfo.commands; // take a batch
                     MessageContext[] msgCtx = cmdInfo.msgCtx;
                     
@@ -436,13 +505,20 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     private void initLog() {
         if (log == null) {
             checkpointPeriod = config.getCheckpointPeriod();
+            if (config.isAsyncCheckpoint() && checkpointer == null) {
+                checkpointer = Executors.newSingleThreadExecutor((r) -> {
+                    Thread t = new Thread(r, "Checkpointer");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
             byte[] state = getSnapshot();
             if (config.isToLog() && config.logToDisk()) {
                 int replicaId = config.getProcessId();
                 boolean isToLog = config.isToLog();
                 boolean syncLog = config.isToWriteSyncLog();
                 boolean syncCkp = config.isToWriteSyncCkp();
-                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp, config.getLogSegmentSize());
 
                 ApplicationState storedState = ((DiskStateLog) log).loadDurableState();
                 if (storedState.getLastCID() > 0) {
@@ -508,6 +584,21 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
      * @return A serialized snapshot of the application state
      */
     public abstract byte[] getSnapshot();
+
+    /**
+     * Returns a view of the application state at this point, to be serialized
+     * into a checkpoint. It is invoked while no requests are being executed,
+     * but when checkpoints are asynchronous it is serialized while the next
+     * requests execute. The default implementation serializes the state
+     * immediately with getSnapshot(); applications that can fork their state
+     * cheaply (e.g., with copy-on-write structures) should override it.
+     *
+     * @return A view of the application state
+     */
+    public StateSnapshot forkSnapshot() {
+        byte[] snapshot = getSnapshot();
+        return () -> snapshot;
+    }
     
     /**
      * Execute a batch of ordered requests
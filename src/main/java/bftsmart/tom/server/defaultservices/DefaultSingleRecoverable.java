@@ -110,6 +110,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
 	            saveState(snapshot, cid);
 	        } else {
 	            saveCommands(commands.toArray(new byte[0][]), msgContexts.toArray(new MessageContext[0]));
+	            getLog().sync();
 	        }
 			getStateManager().setLastCID(cid);
 	        commands = new ArrayList<>();
@@ -206,7 +207,9 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
             
             logLock.lock();
             initLog();
-            log.update(state);
+            if (!(state instanceof DiskApplicationState)) { // a state recovered from the disk is already there
+                log.update(state);
+            }
             logLock.unlock();
             
             int lastCheckpointCID = state.getLastCheckpointCID();
@@ -278,7 +281,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
                 boolean isToLog = config.isToLog();
                 boolean syncLog = config.isToWriteSyncLog();
                 boolean syncCkp = config.isToWriteSyncCkp();
-                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp, config.getLogSegmentSize());
 
                 ApplicationState storedState = ((DiskStateLog) log).loadDurableState();
                 if (storedState.getLastCID() > 0) {
@@ -308,7 +311,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
             	boolean isToLog = config.isToLog();
             	boolean syncLog = config.isToWriteSyncLog();
             	boolean syncCkp = config.isToWriteSyncCkp();
-            	log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+            	log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp, config.getLogSegmentSize());
             } else
             	log = new StateLog(controller.getStaticConf().getProcessId(), checkpointPeriod, state, computeHash(state));
     	}
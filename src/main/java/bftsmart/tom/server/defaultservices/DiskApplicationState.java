@@ -0,0 +1,68 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.IOException;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * State recovered from the disk after a restart. Instead of holding all the
+ * batches logged after the checkpoint, they are decoded from the log when
+ * requested, as the replica replays them in order.
+ */
+public class DiskApplicationState extends DefaultApplicationState {
+
+    private static final long serialVersionUID = -4870331796232245914L;
+
+    private transient WalReader reader;
+
+    /**
+     * Constructs the state recovered from the disk
+     * @param reader Reader of the batches received since the last checkpoint
+     * @param lastCheckpointCID Consensus ID of the last checkpoint
+     * @param lastCID Consensus ID of the last batch in the log
+     * @param state State associated with the last checkpoint
+     * @param stateHash Hash of the state associated with the last checkpoint
+     * @param pid ID of this replica
+     */
+    public DiskApplicationState(WalReader reader, int lastCheckpointCID, int lastCID, byte[] state, byte[] stateHash, int pid) {
+        super(null, lastCheckpointCID, lastCID, state, stateHash, pid);
+        this.reader = reader;
+    }
+
+    @Override
+    public CommandsInfo getMessageBatch(int cid) {
+        if (reader != null && cid > getLastCheckpointCID() && cid <= lastCID) {
+            try {
+                return reader.read(cid);
+            } catch (IOException e) {
+                LoggerFactory.getLogger(this.getClass()).error("Failed to read batch of consensus " + cid + " from the log", e);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public CommandsInfo[] getMessageBatches() {
+        if (reader == null) return null;
+        CommandsInfo[] batches = new CommandsInfo[lastCID - getLastCheckpointCID()];
+        for (int i = 0; i < batches.length; i++) {
+            batches[i] = getMessageBatch(getLastCheckpointCID() + 1 + i);
+        }
+        return batches;
+    }
+}
@@ -15,15 +15,17 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -38,50 +40,60 @@ public class DiskStateLog extends StateLog {
 	private static final int INT_BYTE_SIZE = 4;
 	private static final int EOF = 0;
 
-	private RandomAccessFile log;
+	public final static long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private WriteAheadLog log;
+	private long lastLSN;
+	private IOException failure;
 	private boolean syncLog;
-	private String logPath;
+	private long segmentSize;
 	private String lastCkpPath;
+	private String preparedCkpPath;
+	private int preparedCkpCID;
 	private boolean syncCkp;
 	private boolean isToLog;
 	private ReentrantLock checkpointLock = new ReentrantLock();
 	private Map<Integer, Long> logPointers;
+	private List<File> recoveredSegments; // segments left by a previous execution
 	
 	public DiskStateLog(int id, byte[] initialState, byte[] initialHash,
 			boolean isToLog, boolean syncLog, boolean syncCkp) {
+		this(id, initialState, initialHash, isToLog, syncLog, syncCkp, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public DiskStateLog(int id, byte[] initialState, byte[] initialHash,
+			boolean isToLog, boolean syncLog, boolean syncCkp, long segmentSize) {
 		super(id, initialState, initialHash);
 		this.id = id;
 		this.isToLog = isToLog;
 		this.syncLog = syncLog;
 		this.syncCkp = syncCkp;
+		this.segmentSize = segmentSize;
 		this.logPointers = new HashMap<>();
                 
                 File directory = new File(DEFAULT_DIR);
                 if (!directory.exists()) directory.mkdir();
+
+		// listed before the log is opened, so that none of the segments it creates is included
+		this.recoveredSegments = new ArrayList<>(Arrays.asList(
+				new FileRecoverer(id, DEFAULT_DIR).getFiles(WriteAheadLog.EXTENSION)));
 	}
 
 	private void createLogFile() {
-		logPath = DEFAULT_DIR + String.valueOf(id) + "."
-				+ System.currentTimeMillis() + ".log";
-		try {
-			log = new RandomAccessFile(logPath, (syncLog ? "rwd" : "rw"));
-			// PreAllocation
-			/*
-			 * log.setLength(TEN_MB); log.seek(0);
-			 */
-		} catch (FileNotFoundException e) {
-			logger.error("Failed to create log file",e);
-		}
+		log = new WriteAheadLog(id, DEFAULT_DIR, segmentSize, syncLog);
+		lastLSN = 0;
 	}
 
 	/**
 	 * Adds a message batch to the log. This batches should be added to the log
 	 * in the same order in which they are delivered to the application. Only
 	 * the 'k' batches received after the last checkpoint are supposed to be
-	 * kept
+	 * kept. The batch is written asynchronously, use sync() to wait until it
+	 * is durable.
 	 * 
 	 * @param commands The batch of messages to be kept.
          * @param consensusId
+	 * @throws UncheckedIOException If the log failed, now or before
 	 */
         @Override
 	public void addMessageBatch(byte[][] commands, MessageContext[] msgCtx, int consensusId) {
@@ -95,36 +107,96 @@ public class DiskStateLog extends StateLog {
 	}
 
 	private void writeCommandToDisk(CommandsInfo commandsInfo, int consensusId) {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		checkFailure();
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(commandsInfo);
-			oos.flush();
-
-			byte[] batchBytes = bos.toByteArray();
-
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
-			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
-													// the EOF mark
+			lastLSN = log.append(consensusId, commandsInfo);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			logger.error("Failed to write command to disk",e);
+			fail(e);
 	    }
 	}
 
+	/**
+	 * Blocks until all the batches added to the log are durable. The batches
+	 * written by the log thread in the meantime are forced to disk at once.
+	 *
+	 * @throws UncheckedIOException If the log failed, now or before. The
+	 * failure is permanent, so the replies of the batches must not be released
+	 */
+	@Override
+	public void sync() {
+		if (log != null) {
+			checkFailure();
+			try {
+				log.awaitDurable(lastLSN);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+	}
+
+	private void checkFailure() {
+		if (failure != null)
+			throw new UncheckedIOException("The log failed before", failure);
+	}
+
+	private void fail(IOException e) {
+		logger.error("Failed to write command to disk", e);
+		failure = e;
+		throw new UncheckedIOException(e);
+	}
+
+	/**
+	 * Writes the checkpoint file ahead of newCheckpoint(), so that only the
+	 * rename and the truncation of the log are left for it.
+	 */
+	@Override
+	public void prepareCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
+		String ckpPath = writeCheckpoint(state, stateHash, consensusId);
+		checkpointLock.lock();
+		try {
+			if (preparedCkpPath != null)
+				new File(preparedCkpPath).delete();
+			preparedCkpPath = ckpPath;
+			preparedCkpCID = consensusId;
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
         @Override
 	public void newCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
+		try {
+			checkpointLock.lock();
+			String ckpPath;
+			if (preparedCkpPath != null && preparedCkpCID == consensusId) {
+				ckpPath = preparedCkpPath;
+			} else {
+				if (preparedCkpPath != null)
+					new File(preparedCkpPath).delete();
+				ckpPath = writeCheckpoint(state, stateHash, consensusId);
+			}
+			preparedCkpPath = null;
+			if (ckpPath == null)
+				return;
+
+			// the log is only truncated once the new checkpoint is in place. The
+			// batches of the log that precede the checkpoint are skipped
+			// when recovering, in case of a crash in between
+			String previousCkpPath = lastCkpPath;
+			renameCkp(ckpPath);
+			if (previousCkpPath != null)
+				new File(previousCkpPath).delete();
+			if (isToLog)
+				truncateLog(consensusId);
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	private String writeCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
 		String ckpPath = DEFAULT_DIR + String.valueOf(id) + "."
 				+ System.currentTimeMillis() + ".tmp";
 		try {
-			checkpointLock.lock();
 			RandomAccessFile ckp = new RandomAccessFile(ckpPath,
 					(syncCkp ? "rwd" : "rw"));
 
@@ -141,23 +213,14 @@ public class DiskStateLog extends StateLog {
 			
 			ckp.write(ckpState);
 			ckp.close();
+			return ckpPath;
 
-			if (isToLog)
-				deleteLogFile();
-			deleteLastCkp();
-			renameCkp(ckpPath);
-			if (isToLog)
-				createLogFile();
-			
 		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
 			logger.error("Failed to open checkpoint file",e);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			logger.error("Failed to write checkpoint to disk",e);
-		} finally {
-			checkpointLock.unlock();
 		}
+		return null;
 	}
 
 	private void renameCkp(String ckpPath) {
@@ -166,19 +229,28 @@ public class DiskStateLog extends StateLog {
 		lastCkpPath = finalCkpPath;
 	}
 
-	private void deleteLastCkp() {
-		if (lastCkpPath != null)
-			new File(lastCkpPath).delete();
+	/**
+	 * Drops the segments of the log with batches up to the checkpoint. The
+	 * batches logged after it, while an asynchronous checkpoint was being
+	 * taken, are kept. The segments of the live log are only deleted by its
+	 * writer thread.
+	 */
+	private void truncateLog(int consensusId) {
+		if (log != null)
+			log.truncate(consensusId);
+		// the segments recovered from a previous execution precede the checkpoint
+		for (File segment : recoveredSegments)
+			segment.delete();
+		recoveredSegments.clear();
 	}
 
 	private void deleteLogFile() {
-		try {
-			if(log != null)
-				log.close();
-			new File(logPath).delete();
-		} catch (IOException e) {
-			logger.error("Failed to delete log file",e);
-		}
+		if (log != null)
+			log.close();
+		log = null;
+		recoveredSegments.clear();
+		for (File segment : new FileRecoverer(id, DEFAULT_DIR).getFiles(WriteAheadLog.EXTENSION))
+			segment.delete();
 	}
 
 	/**
@@ -206,7 +278,8 @@ public class DiskStateLog extends StateLog {
 
 //			if (size > 0 && sendState) {
 			if (size > 0) {
-				CommandsInfo[] recoveredBatches = fr.getLogState(size, logPath);
+				sync();
+				CommandsInfo[] recoveredBatches = fr.getWalState(lastCheckpointCID + 1, cid);
 
 				batches = new CommandsInfo[size];
 
@@ -246,12 +319,9 @@ public class DiskStateLog extends StateLog {
 		// save the file pointer to retrieve log information later
 		if((cid % checkpointPeriod) % checkpointPortion == checkpointPortion -1) {
 			int ckpReplicaIndex = (((cid % checkpointPeriod) + 1) / checkpointPortion) -1;
-			try {
-				logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getFilePointer());
-				logPointers.put(ckpReplicaIndex, log.getFilePointer());
-			} catch (IOException e) {
-				logger.error("Failed to get file pointer",e);
-			}
+			long pointer = (log != null ? log.getAppendedLSN() : 0);
+			logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + pointer);
+			logPointers.put(ckpReplicaIndex, pointer);
 		}
 	}
 
@@ -267,23 +337,30 @@ public class DiskStateLog extends StateLog {
 	public void update(DefaultApplicationState transState) {
 		newCheckpoint(transState.getState(), transState.getStateHash(), transState.getLastCheckpointCID());
 		setLastCheckpointCID(transState.getLastCheckpointCID());
+		// the batches logged so far are not related to the received state
+		if (isToLog) {
+			checkpointLock.lock();
+			try {
+				deleteLogFile();
+			} finally {
+				checkpointLock.unlock();
+			}
+		}
 	}
 	
 	protected ApplicationState loadDurableState() {
 		FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
 		lastCkpPath = fr.getLatestFile(".ckp");
-		logPath = fr.getLatestFile(".log");
 		byte[] checkpoint = null;
 		if(lastCkpPath != null)
 			checkpoint = fr.getCkpState(lastCkpPath);
-		CommandsInfo[] log = null;
-		if(logPath !=null)
-			log = fr.getLogState(0, logPath);
 		int ckpLastConsensusId = fr.getCkpLastConsensusId();
+		// the batches are read from the log as they are replayed
+		WalReader log = fr.openWal(ckpLastConsensusId + 1);
 		int logLastConsensusId = fr.getLogLastConsensusId();
 		logger.info("log last consensus id: " + logLastConsensusId);
-		ApplicationState state = new DefaultApplicationState(log, ckpLastConsensusId,
-				logLastConsensusId, checkpoint, fr.getCkpStateHash(), this.id);
+		ApplicationState state = new DiskApplicationState(log, ckpLastConsensusId,
+				Math.max(logLastConsensusId, ckpLastConsensusId), checkpoint, fr.getCkpStateHash(), this.id);
 		if(logLastConsensusId > ckpLastConsensusId) {
 			super.setLastCID(logLastConsensusId);
 		} else
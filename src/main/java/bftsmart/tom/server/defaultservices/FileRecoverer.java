@@ -21,10 +21,12 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -104,6 +106,110 @@ public class FileRecoverer {
 		return null;
 	}
 
+	/**
+	 * Finds where a portion of the log is stored in its file, so that the
+	 * batches can be sent to other replicas without being deserialized.
+	 * @param pointer the position of the first batch in the file
+	 * @param number the number of batches in the portion
+	 * @return the start and end positions of the batches, or null if the
+	 * log does not have all of them
+	 */
+	public long[] getLogRange(long pointer, int number, String logPath) {
+		RandomAccessFile log = null;
+
+		if ((log = openLogFile(logPath)) != null) {
+			try {
+				long logLength = log.length();
+				long position = pointer;
+				for (int i = 0; i < number; i++) {
+					if (position + 4 > logLength) return null;
+					log.seek(position);
+					int size = log.readInt();
+					if (size <= 0 || position + 4 + size > logLength) return null;
+					position += 4 + size;
+				}
+				return new long[] { pointer, position };
+			} catch (IOException e) {
+				logger.error("Failed to read log file", e);
+			} finally {
+				try {
+					log.close();
+				} catch (IOException e) {
+					logger.error("Failed to close log file", e);
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Deserializes a sequence of batches copied from a log file, as found by
+	 * getLogRange.
+	 * @param records the batches, each preceded by its size
+	 * @return the batches in the sequence
+	 */
+	public static CommandsInfo[] readLogRecords(byte[] records) throws IOException, ClassNotFoundException {
+		ArrayList<CommandsInfo> state = new ArrayList<CommandsInfo>();
+		ByteBuffer buffer = ByteBuffer.wrap(records);
+		while (buffer.remaining() >= 4) {
+			int size = buffer.getInt();
+			if (size <= 0 || size > buffer.remaining()) {
+				throw new IOException("Invalid batch size " + size);
+			}
+			ObjectInputStream ois = new ObjectInputStream(
+					new ByteArrayInputStream(records, buffer.position(), size));
+			state.add((CommandsInfo) ois.readObject());
+			buffer.position(buffer.position() + size);
+		}
+		if (buffer.hasRemaining()) {
+			throw new IOException("Truncated log records");
+		}
+		return state.toArray(new CommandsInfo[state.size()]);
+	}
+
+	/**
+	 * Maps the segments of the write-ahead log (see WriteAheadLog) to read
+	 * the batches of consecutive consensus instances starting at firstCid.
+	 * @param firstCid the first consensus ID to be read
+	 * @return a reader for the batches, or null if the segments cannot be read
+	 */
+	public WalReader openWal(int firstCid) {
+		logger.info("GETTING LOG FROM CID " + firstCid);
+		try {
+			WalReader reader = new WalReader(getFiles(WriteAheadLog.EXTENSION), firstCid);
+			if (reader.getLastCID() >= firstCid) logLastConsensusId = reader.getLastCID();
+			return reader;
+		} catch (IOException e) {
+			logger.error("Failed to recover log state", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the batches of consecutive consensus instances from the segments
+	 * of the write-ahead log.
+	 * @param firstCid the first consensus ID to be read
+	 * @param lastCid the last consensus ID to be read
+	 * @return the batches from firstCid until lastCid or the last batch in the log
+	 */
+	public CommandsInfo[] getWalState(int firstCid, int lastCid) {
+		WalReader reader = openWal(firstCid);
+		if (reader == null) return null;
+
+		int last = Math.min(lastCid, reader.getLastCID());
+		CommandsInfo[] state = new CommandsInfo[Math.max(0, last - firstCid + 1)];
+		try {
+			for (int i = 0; i < state.length; i++) {
+				state[i] = reader.read(firstCid + i);
+			}
+		} catch (IOException e) {
+			logger.error("Failed to recover log state", e);
+			return null;
+		}
+		return state;
+	}
+
 	public byte[] getCkpState(String ckpPath) {
 		RandomAccessFile ckp = null;
 
@@ -424,6 +530,20 @@ public class FileRecoverer {
 		return latestFile;
 	}
 
+	/**
+	 * Lists the files of this replica with the given extention, from the
+	 * oldest to the newest.
+	 * @param extention the file extention
+	 * @return the files of this replica with the given extention
+	 */
+	public File[] getFiles(String extention) {
+		File directory = new File(defaultDir);
+		File[] files = directory.isDirectory() ? directory.listFiles(new FileListFilter(replicaId, extention)) : null;
+		if (files == null) return new File[0];
+		Arrays.sort(files, Comparator.comparingLong((File f) -> Long.parseLong(f.getName().split("\\.")[1])));
+		return files;
+	}
+
 	private class FileListFilter implements FilenameFilter {
 
 		private int id;
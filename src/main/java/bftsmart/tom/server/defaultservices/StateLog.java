@@ -20,6 +20,7 @@ import bftsmart.tom.core.messages.TOMMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.TreeMap;
 
 /**
@@ -93,7 +94,21 @@ public class StateLog {
     }
     
     /**
-     * Sets the state associated with the last checkpoint, and updates the consensus ID associated with it
+     * Prepares a checkpoint before it is installed with newCheckpoint(). This
+     * is invoked by asynchronous checkpoints outside of the log lock, so that
+     * the slow part of storing the state does not delay the batches being
+     * logged. Nothing to prepare in the in-memory log.
+     * @param state State associated with the checkpoint
+     * @param stateHash
+     * @param lastConsensusId
+     */
+    public void prepareCheckpoint(byte[] state, byte[] stateHash, int lastConsensusId) {
+    }
+
+    /**
+     * Sets the state associated with the last checkpoint, and updates the consensus ID associated with it.
+     * The batches from consensus instances after lastConsensusId are kept in the log, since they are not
+     * reflected in the state (this happens when the checkpoint was taken asynchronously).
      * @param state State associated with the last checkpoint
      * @param stateHash
      * @param lastConsensusId
@@ -101,11 +116,12 @@ public class StateLog {
     public void newCheckpoint(byte[] state, byte[] stateHash, int lastConsensusId) {
 
     	if(messageBatches != null) {
-    		for (int i = 0; i < this.messageBatches.length; i++)
-                messageBatches[i] = null;
+            int drop = Math.max(0, Math.min(position, lastConsensusId - lastCheckpointCID));
+            System.arraycopy(messageBatches, drop, messageBatches, 0, position - drop);
+            position -= drop;
+            Arrays.fill(messageBatches, position, messageBatches.length, null);
     	}
 
-        position = 0;
         this.state = state;
         this.stateHash = stateHash;
                        
@@ -164,19 +180,28 @@ public class StateLog {
     /**
      * Adds a message batch to the log. This batches should be added to the log
      * in the same order in which they are delivered to the application. Only
-     * the 'k' batches received after the last checkpoint are supposed to be kept
+     * the 'k' batches received after the last checkpoint are supposed to be kept,
+     * but the log grows while an asynchronous checkpoint is being taken
      * @param commands The batch of messages to be kept.
      * @param msgCtx The message contexts related to the commands
      * @param lastConsensusId
      */
     public void addMessageBatch(byte[][] commands, MessageContext[] msgCtx, int lastConsensusId) {
-        if (position < messageBatches.length) {
-            messageBatches[position] = new CommandsInfo(commands, msgCtx);
-            position++;
+        if (position == messageBatches.length) {
+            messageBatches = Arrays.copyOf(messageBatches, Math.max(1, 2 * position));
         }
+        messageBatches[position] = new CommandsInfo(commands, msgCtx);
+        position++;
         setLastCID(lastConsensusId);
     }
 
+    /**
+     * Blocks until all the batches added to the log are durable. Nothing to
+     * wait for in the in-memory log.
+     */
+    public void sync() {
+    }
+
     public TreeMap<Integer, TOMMessage> getLastReplies() {
         return lastReplies;
     }
@@ -276,6 +301,9 @@ public class StateLog {
 
         position = 0;
         if (transState.getMessageBatches() != null) {
+            if (transState.getMessageBatches().length > messageBatches.length) {
+                messageBatches = new CommandsInfo[transState.getMessageBatches().length];
+            }
             for (int i = 0; i < transState.getMessageBatches().length; i++, position = i) {
                 this.messageBatches[i] = transState.getMessageBatches()[i];
             }
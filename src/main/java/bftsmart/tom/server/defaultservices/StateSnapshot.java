@@ -0,0 +1,32 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+/**
+ * A point-in-time view of the application state, obtained with
+ * DefaultRecoverable.forkSnapshot(). When checkpoints are asynchronous, it
+ * is serialized by a background thread while the application keeps executing
+ * requests, so it must not be affected by the requests executed after it was
+ * forked (e.g., a copy-on-write view of the state).
+ */
+public interface StateSnapshot {
+
+    /**
+     * Serializes the forked state
+     * @return The serialized state, as it would be returned by getSnapshot()
+     */
+    byte[] serialize();
+}
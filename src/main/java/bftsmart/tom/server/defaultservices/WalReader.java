@@ -0,0 +1,196 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the batches stored in the segments of a WriteAheadLog.
+ *
+ * The segments are memory mapped and scanned once when the reader is
+ * created, to validate the checksum of each record and to find the last
+ * consecutive consensus ID. Only one record out of INDEX_INTERVAL is kept
+ * in a sparse CID to offset index, and batches are only decoded when
+ * requested, so replaying a large log does not require holding all of it
+ * in memory. Consecutive reads are served without going through the index.
+ *
+ * The segments remain mapped (and readable) even if their files are
+ * deleted afterwards, e.g., by a new checkpoint.
+ */
+public class WalReader {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public static final int INDEX_INTERVAL = 64;
+
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final List<int[]> validRegions = new ArrayList<>(); // [start, end) of the records to read in each segment
+    private final TreeMap<Integer, Long> index = new TreeMap<>(); // CID -> segment << 32 | offset
+
+    private final int firstCid;
+    private int lastCid;
+
+    // position of the next record to be read sequentially
+    private int nextCid;
+    private int segment;
+    private int offset;
+
+    /**
+     * Maps and scans the segments of a log.
+     *
+     * @param files The segments, from the oldest to the newest
+     * @param firstCid The first consensus ID to be read. Older records are
+     * ignored (they are covered by the checkpoint)
+     * @throws IOException If a segment cannot be mapped
+     */
+    public WalReader(File[] files, int firstCid) throws IOException {
+
+        this.firstCid = firstCid;
+        this.lastCid = firstCid - 1;
+
+        for (File file : files) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                scan(file, buffer);
+            }
+        }
+
+        nextCid = lastCid + 1;
+    }
+
+    /**
+     * Scans the records of a segment that follow the last consensus ID
+     * found so far. The rest of the segment is skipped at the first record
+     * that is corrupted or that does not follow the previous one.
+     */
+    private void scan(File file, MappedByteBuffer buffer) {
+
+        int segmentIndex = segments.size();
+        int start = -1;
+        int position = 0;
+        CRC32 crc = new CRC32();
+
+        while (position + WriteAheadLog.HEADER_SIZE <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            int checksum = buffer.getInt(position + Integer.BYTES);
+            int cid = buffer.getInt(position + 2 * Integer.BYTES);
+            if (length <= 0 || length > buffer.limit() - position - WriteAheadLog.HEADER_SIZE) {
+                break; // end of the records in this segment
+            }
+
+            ByteBuffer record = buffer.duplicate();
+            record.limit(position + WriteAheadLog.HEADER_SIZE + length).position(position + 2 * Integer.BYTES);
+            crc.reset();
+            crc.update(record);
+            if ((int) crc.getValue() != checksum) {
+                logger.warn("Found corrupted record for CID " + cid + " in " + file.getName());
+                break;
+            }
+
+            if (cid > lastCid + 1) {
+                logger.warn("Missing CID " + (lastCid + 1) + " in " + file.getName() + ", found " + cid);
+                break;
+            }
+            if (cid <= lastCid && start >= 0) {
+                break;
+            }
+            if (cid == lastCid + 1) {
+                if (start < 0) start = position;
+                if ((cid - firstCid) % INDEX_INTERVAL == 0) {
+                    index.put(cid, ((long) segmentIndex << 32) | position);
+                }
+                lastCid = cid;
+            }
+            position += WriteAheadLog.HEADER_SIZE + length;
+        }
+
+        if (start >= 0) {
+            segments.add(buffer);
+            validRegions.add(new int[] {start, position});
+        }
+    }
+
+    /**
+     * Returns the first consensus ID that can be read
+     * @return The first consensus ID that can be read
+     */
+    public int getFirstCID() {
+        return firstCid;
+    }
+
+    /**
+     * Returns the last consecutive consensus ID found in the log, or
+     * getFirstCID() - 1 if the log has no batches to read
+     * @return The last consecutive consensus ID found in the log
+     */
+    public int getLastCID() {
+        return lastCid;
+    }
+
+    /**
+     * Decodes the batch of a consensus. Reading the batches in increasing
+     * order of consensus ID is cheaper than reading them out of order.
+     *
+     * @param cid The consensus ID
+     * @return The batch, or null if the log does not have it
+     * @throws IOException If the batch cannot be decoded
+     */
+    public synchronized CommandsInfo read(int cid) throws IOException {
+
+        if (cid < firstCid || cid > lastCid) return null;
+
+        if (cid < nextCid || cid - nextCid > INDEX_INTERVAL) {
+            Map.Entry<Integer, Long> entry = index.floorEntry(cid);
+            nextCid = entry.getKey();
+            segment = (int) (entry.getValue() >>> 32);
+            offset = (int) entry.getValue().longValue();
+        }
+
+        while (nextCid < cid) {
+            skip();
+        }
+
+        ByteBuffer record = segments.get(segment).duplicate();
+        int length = record.getInt(offset);
+        record.limit(offset + WriteAheadLog.HEADER_SIZE + length).position(offset + WriteAheadLog.HEADER_SIZE);
+        CommandsInfo batch = CommandsInfoCodec.decode(record);
+
+        skip();
+        return batch;
+    }
+
+    private void skip() {
+        offset += WriteAheadLog.HEADER_SIZE + segments.get(segment).getInt(offset);
+        nextCid++;
+        if (offset >= validRegions.get(segment)[1] && segment + 1 < segments.size()) {
+            segment++;
+            offset = validRegions.get(segment)[0];
+        }
+    }
+}
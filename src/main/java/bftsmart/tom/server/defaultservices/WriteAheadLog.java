@@ -0,0 +1,416 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead log of the batches delivered since the last checkpoint.
+ *
+ * Batches are appended by the delivery thread and written by a dedicated
+ * thread, which writes every batch queued since its last write at once and
+ * then forces them to disk with a single force() (group commit). The
+ * caller gets a log sequence number (the number of bytes appended so far)
+ * and waits for it with awaitDurable() before releasing the replies.
+ *
+ * The log is split in segment files named [replica id].[timestamp].wal,
+ * which are preallocated with zeros so that forcing them does not have to
+ * update the file size. The next segment is preallocated by another thread
+ * while the current one is written, as [replica id].spare, and renamed when
+ * needed; if it is not ready by then, the writer does not wait for it and
+ * the segment grows as records are written. Each record has the format:
+ *
+ * LENGTH(int) + CRC32(int) + CID(int) + BATCH(LENGTH bytes)
+ *
+ * The checksum covers the CID and the batch, so a record that was not
+ * completely written is detected when the log is read. A zero length marks
+ * the end of the records in a segment.
+ *
+ * After a checkpoint, truncate() deletes the segments that only have
+ * batches covered by it. The batches appended since then remain.
+ */
+public class WriteAheadLog {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public static final String EXTENSION = ".wal";
+    public static final int HEADER_SIZE = 3 * Integer.BYTES;
+
+    private static final int ZEROS_SIZE = 1024 * 1024;
+
+    private final int id;
+    private final String directory;
+    private final long segmentSize;
+    private final boolean sync;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+
+    private List<Object> queue = new ArrayList<>(); // records and truncations, in order
+    private long appendedLSN;
+    private long durableLSN;
+    private IOException failure;
+    private boolean closed;
+
+    private final List<File> segments = new ArrayList<>();
+    private final List<Integer> segmentLastCids = new ArrayList<>();
+    private FileChannel segment;
+    private long position;
+    private long lastTimestamp;
+
+    private final Thread writer;
+    private final ExecutorService preallocator;
+    private Future<File> spare;
+
+    /**
+     * Creates a new log. The first segment is only created when the first
+     * batch is written.
+     *
+     * @param id The replica ID
+     * @param directory The directory where the segments are created
+     * @param segmentSize The size to which each segment is preallocated
+     * @param sync true if the batches have to be forced to disk before
+     * being considered durable
+     */
+    public WriteAheadLog(int id, String directory, long segmentSize, boolean sync) {
+        this.id = id;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+
+        preallocator = Executors.newSingleThreadExecutor((r) -> {
+            Thread t = new Thread(r, "WAL preallocator " + id);
+            t.setDaemon(true);
+            return t;
+        });
+        spare = preallocator.submit(this::preallocate);
+
+        writer = new Thread(this::run, "WAL writer " + id);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Encodes a record with a batch and queues it to be written.
+     *
+     * @param consensusId The consensus in which the batch was decided
+     * @param commandsInfo The batch
+     * @return The log sequence number to wait for with awaitDurable()
+     * @throws IOException If the batch cannot be encoded or the log was
+     * closed or failed
+     */
+    public long append(int consensusId, CommandsInfo commandsInfo) throws IOException {
+
+        byte[] batch = CommandsInfoCodec.encode(commandsInfo);
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + batch.length);
+        record.putInt(batch.length);
+        record.putInt(0); // checksum, filled in below
+        record.putInt(consensusId);
+        record.put(batch);
+
+        record.position(2 * Integer.BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        record.flip();
+
+        lock.lock();
+        try {
+            if (failure != null) throw failure;
+            if (closed) throw new IOException("Log is closed");
+
+            queue.add(record);
+            appendedLSN += record.remaining();
+            notEmpty.signal();
+
+            return appendedLSN;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until every record up to the given log sequence number was
+     * written (and forced to disk, if the log is synchronous).
+     *
+     * @param lsn The log sequence number returned by append()
+     * @throws IOException If the log failed before writing the records
+     */
+    public void awaitDurable(long lsn) throws IOException {
+        lock.lock();
+        try {
+            while (durableLSN < lsn && failure == null) {
+                durable.awaitUninterruptibly();
+            }
+            if (durableLSN < lsn) throw failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the log sequence number of the last record appended
+     * @return The log sequence number of the last record appended
+     */
+    public long getAppendedLSN() {
+        lock.lock();
+        try {
+            return appendedLSN;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending records, stops the writer thread and closes the
+     * current segment.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deletes the segments created by this log whose batches are all from
+     * consensus instances up to the given one, once the records appended so
+     * far are written.
+     *
+     * @param consensusId The consensus of the last checkpoint
+     */
+    public void truncate(int consensusId) {
+        lock.lock();
+        try {
+            if (closed) return;
+            queue.add(consensusId);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the segments currently used by this log
+     * @return The segments currently used by this log
+     */
+    public List<File> getSegments() {
+        synchronized (segments) {
+            return new ArrayList<>(segments);
+        }
+    }
+
+    private void run() {
+
+        List<Object> records = new ArrayList<>();
+
+        while (true) {
+
+            long lsn;
+
+            lock.lock();
+            try {
+                while (queue.isEmpty() && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (queue.isEmpty()) break;
+
+                List<Object> swap = queue;
+                queue = records;
+                records = swap;
+                lsn = appendedLSN;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                write(records);
+
+                lock.lock();
+                try {
+                    durableLSN = lsn;
+                    durable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            } catch (IOException e) {
+                logger.error("Failed to write batches to the log", e);
+
+                lock.lock();
+                try {
+                    failure = e;
+                    closed = true;
+                    durable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                break;
+            }
+
+            records.clear();
+        }
+
+        try {
+            if (segment != null) segment.close();
+        } catch (IOException e) {
+            logger.error("Failed to close log segment", e);
+        }
+
+        preallocator.shutdown();
+        try {
+            spare.get().delete();
+        } catch (ExecutionException e) {
+            // nothing was preallocated
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(List<Object> records) throws IOException {
+
+        boolean written = false;
+
+        for (Object o : records) {
+            if (o instanceof Integer) {
+                if (written && sync) segment.force(false);
+                written = false;
+                deleteSegments((Integer) o);
+                continue;
+            }
+
+            ByteBuffer record = (ByteBuffer) o;
+            int cid = record.getInt(record.position() + 2 * Integer.BYTES);
+            if (segment == null || (position > 0 && position + record.remaining() > segmentSize)) {
+                nextSegment();
+            }
+            while (record.hasRemaining()) {
+                position += segment.write(record, position);
+            }
+            segmentLastCids.set(segmentLastCids.size() - 1, cid);
+            written = true;
+        }
+
+        if (written && sync) segment.force(false);
+    }
+
+    private void deleteSegments(int consensusId) throws IOException {
+
+        int last = segments.size() - 1;
+        if (segment != null && segmentLastCids.get(last) <= consensusId) {
+            segment.close();
+            segment = null;
+        }
+
+        for (int i = last; i >= 0; i--) {
+            if (segmentLastCids.get(i) <= consensusId && (segment == null || i < last)) {
+                File file;
+                synchronized (segments) {
+                    file = segments.remove(i);
+                }
+                segmentLastCids.remove(i);
+                file.delete();
+                logger.debug("Deleted log segment " + file.getName());
+            }
+        }
+    }
+
+    private void nextSegment() throws IOException {
+
+        if (segment != null) {
+            if (sync) segment.force(false);
+            segment.close();
+        }
+
+        long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp + 1);
+        File file = new File(directory + id + "." + timestamp + EXTENSION);
+        while (file.exists()) {
+            file = new File(directory + id + "." + (++timestamp) + EXTENSION);
+        }
+        lastTimestamp = timestamp;
+
+        boolean preallocated = false;
+        if (spare.isDone()) {
+            try {
+                Files.move(spare.get().toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                preallocated = true;
+            } catch (ExecutionException e) {
+                logger.warn("Failed to preallocate log segment", e.getCause());
+            } catch (IOException e) {
+                logger.warn("Failed to rename preallocated log segment", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            spare = preallocator.submit(this::preallocate);
+        }
+
+        synchronized (segments) {
+            segments.add(file);
+        }
+        segmentLastCids.add(-1);
+        segment = FileChannel.open(file.toPath(), preallocated ? StandardOpenOption.WRITE : StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE, StandardOpenOption.READ);
+        position = 0;
+
+        logger.debug("Created log segment " + file.getName() + (preallocated ? "" : " (not preallocated)"));
+    }
+
+    private File preallocate() throws IOException {
+
+        File file = new File(directory + id + ".spare");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(ZEROS_SIZE, segmentSize));
+            long written = 0;
+            while (written < segmentSize) {
+                zeros.clear();
+                if (segmentSize - written < zeros.capacity()) zeros.limit((int) (segmentSize - written));
+                written += channel.write(zeros, written);
+            }
+            if (sync) channel.force(true);
+        }
+        return file;
+    }
+}
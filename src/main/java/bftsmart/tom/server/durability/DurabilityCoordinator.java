@@ -15,6 +15,7 @@ limitations under the License.
  */
 package bftsmart.tom.server.durability;
 
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -25,6 +26,7 @@ import bftsmart.statemanagement.ApplicationState;
 import bftsmart.statemanagement.StateManager;
 import bftsmart.statemanagement.durability.CSTRequest;
 import bftsmart.statemanagement.durability.CSTState;
+import bftsmart.statemanagement.durability.CSTStateTransfer;
 import bftsmart.statemanagement.durability.DurableStateManager;
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.ReplicaContext;
@@ -352,6 +354,18 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 		return ret;
 	}
 
+	/**
+	 * Gathers the part of the state requested by a recovering replica as
+	 * regions of the checkpoint and log files, to be sent without copying
+	 * them into memory.
+	 * @param cstRequest the request of the recovering replica
+	 * @return the part of the state to send
+	 * @throws IOException if the checkpoint or log files cannot be opened
+	 */
+	public CSTStateTransfer getStateTransfer(CSTRequest cstRequest) throws IOException {
+		return log.getStateTransfer(cstRequest);
+	}
+
 	@Override
 	public void setReplicaContext(ReplicaContext replicaContext) {
 		this.config = replicaContext.getStaticConfiguration();
@@ -22,7 +22,10 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
@@ -30,6 +33,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import bftsmart.statemanagement.durability.CSTRequest;
 import bftsmart.statemanagement.durability.CSTRequestF1;
 import bftsmart.statemanagement.durability.CSTState;
+import bftsmart.statemanagement.durability.CSTStateTransfer;
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
 import bftsmart.tom.server.defaultservices.FileRecoverer;
@@ -257,6 +261,87 @@ public class DurableStateLog extends StateLog {
 		return null;
 	}
 	
+	/**
+	 * Gathers the part of the state this replica sends in the collaborative
+	 * state transfer, as in getState, but keeping the checkpoint and the log
+	 * portions as regions of their files so that they are sent without being
+	 * read into memory (see CSTStateTransfer).
+	 * @param cstRequest the request of the recovering replica
+	 * @return the part of the state to send, or null if the request is not supported
+	 * @throws IOException if the checkpoint or log files cannot be opened
+	 */
+	public CSTStateTransfer getStateTransfer(CSTRequest cstRequest) throws IOException {
+		if (!(cstRequest instanceof CSTRequestF1)) return null;
+
+		CSTRequestF1 requestF1 = (CSTRequestF1) cstRequest;
+		int lastCheckpointCID = getLastCheckpointCID();
+		int lastCID = getLastCID();
+
+		if (id == requestF1.getCheckpointReplica()) {
+			// This replica is expected to send the checkpoint plus the hashes of lower and upper log portions
+			CommandsInfo[] logLower = fr.getLogState(requestF1.getLogLowerSize(), logPath);
+			CommandsInfo[] logUpper = fr.getLogState(logPointers.get(requestF1.getLogUpper()), 0, requestF1.getLogUpperSize(), logPath);
+			byte[] logLowerHash = TOMUtil.computeHash(TOMUtil.getBytes(logLower));
+			byte[] logUpperHash = TOMUtil.computeHash(TOMUtil.getBytes(logUpper));
+			CSTStateTransfer transfer = new CSTStateTransfer(new CSTState(null, null, null, logLowerHash,
+					null, logUpperHash, lastCheckpointCID, lastCID, this.id));
+			checkpointLock.lock();
+			try {
+				if (lastCkpPath == null) throw new IOException("There is no checkpoint to send");
+				FileChannel ckp = FileChannel.open(Paths.get(lastCkpPath), StandardOpenOption.READ);
+				ByteBuffer size = ByteBuffer.allocate(INT_BYTE_SIZE);
+				ckp.read(size, 0);
+				size.flip();
+				transfer.setSection(CSTStateTransfer.CHECKPOINT, ckp, INT_BYTE_SIZE, size.getInt());
+				logger.info("Sending checkpoint: " + size.getInt(0));
+			} finally {
+				checkpointLock.unlock();
+			}
+			return transfer;
+		} else if (id == requestF1.getLogLower()) {
+			// This replica is expected to send the lower part of the log
+			Long pointer = logPointers.get(requestF1.getCheckpointReplica());
+			logger.info("Sending lower log: " + requestF1.getLogLowerSize() + " from " + pointer);
+			CSTStateTransfer transfer = new CSTStateTransfer(new CSTState(null, null, null, null,
+					null, null, lastCheckpointCID, lastCID, this.id));
+			if (pointer != null) {
+				addLogSection(transfer, CSTStateTransfer.LOG_LOWER, pointer, requestF1.getLogLowerSize());
+			}
+			return transfer;
+		} else {
+			// This replica is expected to send the upper part of the log plus the hash for its checkpoint
+			logger.info("Sending upper log: " + requestF1.getLogUpperSize());
+			checkpointLock.lock();
+			try {
+				fr.recoverCkpHash(lastCkpPath);
+			} finally {
+				checkpointLock.unlock();
+			}
+			int lastCIDInState = lastCheckpointCID + requestF1.getLogUpperSize();
+			CSTStateTransfer transfer = new CSTStateTransfer(new CSTState(null, fr.getCkpStateHash(), null, null,
+					null, null, lastCheckpointCID, lastCIDInState, this.id));
+			addLogSection(transfer, CSTStateTransfer.LOG_UPPER, 0, requestF1.getLogUpperSize());
+			return transfer;
+		}
+	}
+
+	private void addLogSection(CSTStateTransfer transfer, int section, long pointer, int number) throws IOException {
+		checkpointLock.lock();
+		try {
+			// the log is replaced at each checkpoint, so it is opened before
+			// a checkpoint can delete it
+			long[] range = fr.getLogRange(pointer, number, logPath);
+			if (range == null) {
+				logger.error("Log does not have the " + number + " batches requested from " + pointer);
+				return;
+			}
+			FileChannel channel = FileChannel.open(Paths.get(logPath), StandardOpenOption.READ);
+			transfer.setSection(section, channel, range[0], range[1] - range[0]);
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
 	public void transferApplicationState(SocketChannel sChannel, int cid) {
 		fr.transferCkpState(sChannel, lastCkpPath);
 		
@@ -0,0 +1,40 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.tom.server.parallel;
+
+import bftsmart.tom.MessageContext;
+
+/**
+ * Tells which parts of the application state are accessed by a command, so that
+ * ParallelExecutor can run commands that do not conflict at the same time.
+ *
+ * Two commands conflict if they share a partition. The classification must be
+ * deterministic (i.e., only depend on the command and its context), and commands
+ * in different partitions must commute, otherwise replicas may diverge.
+ */
+@FunctionalInterface
+public interface ConflictClassifier {
+
+    /**
+     * Classifies a command.
+     *
+     * @param command the command issued by the client
+     * @param msgCtx information related with the command (may be null when replaying the log)
+     * @return the partitions (e.g., hashes of keys) accessed by the command, or null if the
+     *         command conflicts with every other command
+     */
+    public int[] classify(byte[] command, MessageContext msgCtx);
+}
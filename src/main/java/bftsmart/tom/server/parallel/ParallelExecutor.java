@@ -0,0 +1,269 @@
+/**
+ Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package bftsmart.tom.server.parallel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.tom.MessageContext;
+
+/**
+ * Executes a batch of ordered commands in a pool of worker threads. Commands that
+ * conflict (according to a ConflictClassifier) are executed in the order in which
+ * they were decided, while the others may execute concurrently. Hence, as long as
+ * commands in different partitions commute, the state and the replies are the same
+ * as in a sequential execution.
+ *
+ * It is meant to be used from appExecuteBatch() of a DefaultRecoverable (or from
+ * executeBatch() of any BatchExecutable). ServiceReplica delivers the requests of all
+ * the consensus instances decided in the meantime in a single batch, so commands from
+ * consecutive consensus instances also run in parallel. The method returns only after
+ * all commands are executed, so snapshots taken between batches are consistent.
+ * The application state must support concurrent access to different partitions.
+ */
+public class ParallelExecutor {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final int numWorkers;
+    private final ConflictClassifier classifier;
+    private final ExecutorService workers;
+
+    /**
+     * Constructor
+     *
+     * @param numWorkers Number of threads that execute commands
+     * @param classifier Tells which commands conflict
+     */
+    public ParallelExecutor(int numWorkers, ConflictClassifier classifier) {
+        this.numWorkers = Math.max(1, numWorkers);
+        this.classifier = classifier;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(this.numWorkers, r -> {
+            Thread t = new Thread(r, "Parallel Executor " + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+
+        logger.info("Executing commands with {} worker threads", this.numWorkers);
+    }
+
+    /**
+     * Executes a batch of commands.
+     *
+     * @param commands The batch of commands
+     * @param msgCtx The context associated to each command (may be null)
+     * @param executor Executes a single command and returns its reply
+     * @return The replies, in the same order of the commands
+     */
+    public byte[][] executeBatch(byte[][] commands, MessageContext[] msgCtx,
+                                 BiFunction<byte[], MessageContext, byte[]> executor) {
+        byte[][] replies = new byte[commands.length][];
+
+        if (commands.length == 1 || numWorkers == 1) {
+            for (int i = 0; i < commands.length; i++) {
+                replies[i] = executor.apply(commands[i], context(msgCtx, i));
+            }
+            return replies;
+        }
+
+        Task[] tasks = buildDependencies(commands, msgCtx, classify(commands, msgCtx));
+
+        // find the commands without dependencies before starting, since running
+        // commands also submit the successors whose dependencies are satisfied
+        ArrayList<Task> roots = new ArrayList<>();
+        for (Task task : tasks) {
+            if (task.pending.get() == 0) {
+                roots.add(task);
+            }
+        }
+
+        CountDownLatch done = new CountDownLatch(commands.length);
+        AtomicReference<RuntimeException> error = new AtomicReference<>();
+        for (Task task : roots) {
+            submit(task, commands, msgCtx, replies, executor, done, error);
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return replies;
+    }
+
+    /**
+     * Classifies the commands of a batch. This may involve parsing the commands, so it is
+     * also done by the workers.
+     */
+    private int[][] classify(byte[][] commands, MessageContext[] msgCtx) {
+        int[][] partitions = new int[commands.length][];
+        int chunks = Math.min(numWorkers, commands.length);
+        int chunkSize = (commands.length + chunks - 1) / chunks;
+
+        CountDownLatch done = new CountDownLatch(chunks);
+        AtomicReference<RuntimeException> error = new AtomicReference<>();
+        for (int c = 0; c < chunks; c++) {
+            int from = c * chunkSize;
+            int to = Math.min(commands.length, from + chunkSize);
+            workers.execute(() -> {
+                try {
+                    for (int i = from; i < to; i++) {
+                        partitions[i] = classifier.classify(commands[i], context(msgCtx, i));
+                    }
+                } catch (RuntimeException e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while classifying commands", e);
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return partitions;
+    }
+
+    /**
+     * Each command depends on the last previous command of each of its partitions. A command
+     * that conflicts with everything depends on the last command of every partition, and every
+     * following command depends on it (directly or through its partition).
+     */
+    private Task[] buildDependencies(byte[][] commands, MessageContext[] msgCtx, int[][] partitions) {
+        Task[] tasks = new Task[commands.length];
+        HashMap<Integer, Task> lastInPartition = new HashMap<>();
+        Task lastGlobal = null;
+
+        for (int i = 0; i < commands.length; i++) {
+            Task task = new Task(i);
+            tasks[i] = task;
+
+            if (partitions[i] == null) {
+                if (lastInPartition.isEmpty()) {
+                    task.dependsOn(lastGlobal);
+                } else {
+                    for (Task last : lastInPartition.values()) {
+                        task.dependsOn(last);
+                    }
+                    lastInPartition.clear();
+                }
+                lastGlobal = task;
+            } else {
+                for (int partition : partitions[i]) {
+                    Task last = lastInPartition.put(partition, task);
+                    task.dependsOn(last != null ? last : lastGlobal);
+                }
+            }
+        }
+        return tasks;
+    }
+
+    private void submit(Task task, byte[][] commands, MessageContext[] msgCtx, byte[][] replies,
+                        BiFunction<byte[], MessageContext, byte[]> executor, CountDownLatch done,
+                        AtomicReference<RuntimeException> error) {
+        workers.execute(() -> {
+            Task next = task;
+            while (next != null) {
+                Task current = next;
+                next = null;
+                try {
+                    replies[current.index] = executor.apply(commands[current.index], context(msgCtx, current.index));
+                } catch (RuntimeException e) {
+                    logger.error("Failed to execute command " + current.index + " of the batch", e);
+                    error.compareAndSet(null, e);
+                } finally {
+                    // keep the first ready successor in this thread and hand the others to the pool
+                    for (int s = 0; s < current.numSuccessors; s++) {
+                        Task successor = current.successors[s];
+                        if (successor.pending.decrementAndGet() == 0) {
+                            if (next == null) {
+                                next = successor;
+                            } else {
+                                submit(successor, commands, msgCtx, replies, executor, done, error);
+                            }
+                        }
+                    }
+                    done.countDown();
+                }
+            }
+        });
+    }
+
+    private static MessageContext context(MessageContext[] msgCtx, int index) {
+        return msgCtx != null ? msgCtx[index] : null;
+    }
+
+    /**
+     * Shuts down the worker threads.
+     */
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private static class Task {
+        private final int index;
+        private final AtomicInteger pending = new AtomicInteger();
+        private Task[] successors;
+        private int numSuccessors;
+
+        Task(int index) {
+            this.index = index;
+        }
+
+        void dependsOn(Task predecessor) {
+            if (predecessor == null || predecessor == this
+                    || (predecessor.numSuccessors > 0 && predecessor.successors[predecessor.numSuccessors - 1] == this)) {
+                return; // no dependency, or already added through another partition
+            }
+            if (predecessor.successors == null) {
+                predecessor.successors = new Task[2];
+            } else if (predecessor.numSuccessors == predecessor.successors.length) {
+                predecessor.successors = Arrays.copyOf(predecessor.successors, predecessor.numSuccessors * 2);
+            }
+            predecessor.successors[predecessor.numSuccessors++] = this;
+            pending.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+/**
+ * Token bucket that bounds the rate at which bytes are sent. The threads
+ * sharing a limiter share its rate; a thread that sends more than the tokens
+ * available sleeps until the bucket refills, without holding the limiter. The
+ * bucket holds at most one second worth of tokens.
+ */
+public class BandwidthLimiter {
+
+    private final long bytesPerSecond;
+    private long tokens;
+    private long lastRefill;
+
+    /**
+     * @param bytesPerSecond Maximum rate of the limiter, or 0 for no limit
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public boolean isLimited() {
+        return bytesPerSecond > 0;
+    }
+
+    /**
+     * Takes tokens for the given number of bytes, waiting until the rate of
+     * the limiter allows them to be sent
+     *
+     * @param bytes Number of bytes about to be sent
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) return;
+
+        long wait = take(bytes);
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+        }
+    }
+
+    /**
+     * Takes the tokens, leaving the bucket in debt if there are not enough of
+     * them. The threads that take tokens while it is in debt wait longer.
+     *
+     * @return How long to wait before sending, in nanoseconds
+     */
+    private synchronized long take(long bytes) {
+        long now = System.nanoTime();
+        tokens = (long) Math.min(bytesPerSecond, tokens + (now - lastRefill) * (bytesPerSecond / 1e9));
+        lastRefill = now;
+        tokens -= bytes;
+
+        return tokens < 0 ? -tokens * 1000000000L / bytesPerSecond : 0;
+    }
+}
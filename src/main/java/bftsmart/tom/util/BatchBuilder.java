@@ -151,4 +151,50 @@ public final class BatchBuilder {
 				useSignatures, messages, signatures);
 
 	}
+
+	/**
+	 * Builds a batch that carries, instead of each request, its sender, its sequence
+	 * number and the digest of its serialized form. The other replicas resolve the
+	 * digests against the requests they received from the clients.
+	 *
+	 * Batch format: TIMESTAMP(long) + N_NONCES(int) + SEED(long) +
+	 *               N_MESSAGES(int) + N_MESSAGES*[SENDER(int),SEQUENCE(int),DIGESTSIZE(int),DIGEST(byte)]
+	 */
+	public byte[] makeDigestBatch(List<TOMMessage> msgs, int numNounces, long timestamp) {
+
+		long seed = rnd.nextLong();
+		byte[][] digests = new byte[msgs.size()][];
+		int size = 20 + (numNounces > 0 ? 8 : 0);
+
+		int i = 0;
+		for (TOMMessage msg : msgs) {
+			logger.debug("Adding digest of request from client " + msg.getSender() + " with sequence number " + msg.getSequence() + " to PROPOSE");
+			digests[i] = TOMUtil.computeRequestDigest(msg);
+			size += 3 * Integer.BYTES + digests[i].length;
+			i++;
+		}
+
+		ByteBuffer proposalBuffer = ByteBuffer.allocate(size);
+
+		proposalBuffer.putLong(timestamp);
+
+		proposalBuffer.putInt(numNounces);
+
+		if (numNounces > 0) {
+			proposalBuffer.putLong(seed);
+		}
+
+		proposalBuffer.putInt(msgs.size());
+
+		i = 0;
+		for (TOMMessage msg : msgs) {
+			proposalBuffer.putInt(msg.getSender());
+			proposalBuffer.putInt(msg.getSequence());
+			proposalBuffer.putInt(digests[i].length);
+			proposalBuffer.put(digests[i]);
+			i++;
+		}
+
+		return proposalBuffer.array();
+	}
 }
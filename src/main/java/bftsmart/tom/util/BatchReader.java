@@ -28,18 +28,89 @@ import org.slf4j.LoggerFactory;
  * Batch format: N_MESSAGES(int) + N_MESSAGES*[MSGSIZE(int),MSG(byte)] +
  *               TIMESTAMP(long) + N_NONCES(int) + NONCES(byte[])
  *
+ * Batches of digests (see BatchBuilder.makeDigestBatch) are read when a
+ * {@link RequestLookup} is given, which supplies the requests themselves.
  */
 public final class BatchReader {
 
+    /**
+     * Supplies the requests referred to by a batch of digests
+     */
+    public interface RequestLookup {
+
+        /**
+         * @param sender Client that sent the request
+         * @param sequence Sequence number of the request
+         * @param digest Digest of the serialized request
+         * @return The request, or null if it is not available
+         */
+        TOMMessage lookup(int sender, int sequence, byte[] digest);
+    }
+
+    /**
+     * Entry of a batch of digests
+     */
+    public static final class Digest {
+
+        public final int sender;
+        public final int sequence;
+        public final byte[] digest;
+
+        Digest(int sender, int sequence, byte[] digest) {
+            this.sender = sender;
+            this.sequence = sequence;
+            this.digest = digest;
+        }
+    }
+
     private ByteBuffer proposalBuffer;
     private boolean useSignatures;
+    private RequestLookup lookup;
 
     /** wrap buffer */
     public BatchReader(byte[] batch, boolean useSignatures) {
+        this(batch, useSignatures, null);
+    }
+
+    /** wrap a batch of digests, or a batch of requests if lookup is null */
+    public BatchReader(byte[] batch, boolean useSignatures, RequestLookup lookup) {
         proposalBuffer = ByteBuffer.wrap(batch);
         this.useSignatures = useSignatures;
+        this.lookup = lookup;
+    }
+
+    /**
+     * Reads the entries of a batch of digests
+     *
+     * @return The sender, sequence number and digest of each request in the batch
+     */
+    public Digest[] readDigests() {
+        proposalBuffer.getLong(); // timestamp
+        if (proposalBuffer.getInt() > 0) {
+            proposalBuffer.getLong(); // seed
+        }
+
+        Digest[] digests = new Digest[proposalBuffer.getInt()];
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = readDigest();
+        }
+        return digests;
+    }
+
+    private Digest readDigest() {
+        int sender = proposalBuffer.getInt();
+        int sequence = proposalBuffer.getInt();
+        byte[] digest = new byte[proposalBuffer.getInt()];
+        proposalBuffer.get(digest);
+        return new Digest(sender, sequence, digest);
     }
 
+    /**
+     * Reads the requests of the batch
+     *
+     * @param controller the view controller
+     * @return The requests, or null if some request of a batch of digests is not available
+     */
     public TOMMessage[] deserialiseRequests(ServerViewController controller) {
 
         //obtain the timestamps to be delivered to the application
@@ -61,21 +132,38 @@ public final class BatchReader {
         TOMMessage[] requests = new TOMMessage[numberOfMessages];
 
         for (int i = 0; i < numberOfMessages; i++) {
-            //read the message and its signature from the batch
-            int messageSize = proposalBuffer.getInt();
-
-            byte[] message = new byte[messageSize];
-            proposalBuffer.get(message);
 
+            byte[] message;
             byte[] signature = null;
+            byte[] digest = null;
+
+            if (lookup != null) {
+                //find the request with the digest in the batch
+                Digest d = readDigest();
+                TOMMessage request = lookup.lookup(d.sender, d.sequence, d.digest);
+                if (request == null) {
+                    return null;
+                }
+                message = request.serializedMessage;
+                digest = d.digest;
+                if (useSignatures) {
+                    signature = request.serializedMessageSignature;
+                }
+            } else {
+                //read the message and its signature from the batch
+                int messageSize = proposalBuffer.getInt();
+
+                message = new byte[messageSize];
+                proposalBuffer.get(message);
             
-            if (useSignatures) {
+                if (useSignatures) {
                 
-                int sigSize = proposalBuffer.getInt();
+                    int sigSize = proposalBuffer.getInt();
 
-                if (sigSize > 0) {
-                    signature = new byte[sigSize];
-                    proposalBuffer.get(signature);
+                    if (sigSize > 0) {
+                        signature = new byte[sigSize];
+                        proposalBuffer.get(signature);
+                    }
                 }
             }
             
@@ -91,6 +179,8 @@ public final class BatchReader {
 
                 tm.serializedMessage = message;
                 tm.serializedMessageSignature = signature;
+                tm.serializedMessageDigest = digest;
+                tm.signed = signature != null; // the client signature is verified by the ClientsManager
                 tm.numOfNonces = numberOfNonces;
                 tm.seed = seed;
                 tm.timestamp = timestamp;
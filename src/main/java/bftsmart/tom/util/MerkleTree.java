@@ -0,0 +1,91 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Binary hash tree over a sequence of leaf hashes. Each inner node is the
+ * hash of the concatenation of its two children; a node without a sibling is
+ * promoted to the next level unchanged. The hash algorithm is the one
+ * configured in TOMUtil.
+ */
+public final class MerkleTree {
+
+    private MerkleTree() {
+    }
+
+    /**
+     * Hashes a leaf of the tree
+     *
+     * @param data The contents of the leaf
+     * @param offset Where the contents start in the array
+     * @param length Size of the contents
+     * @return The hash of the leaf
+     */
+    public static byte[] leaf(byte[] data, int offset, int length) {
+        MessageDigest md = newDigest();
+        md.update(data, offset, length);
+        return md.digest();
+    }
+
+    /**
+     * Computes the root of the tree with the given leaves
+     *
+     * @param leaves The hashes of the leaves, in order
+     * @return The root hash, or the hash of nothing if there are no leaves
+     */
+    public static byte[] root(byte[][] leaves) {
+        MessageDigest md = newDigest();
+        if (leaves.length == 0) {
+            return md.digest();
+        }
+
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < next.length; i++) {
+                if (2 * i + 1 < level.length) {
+                    md.update(level[2 * i]);
+                    md.update(level[2 * i + 1]);
+                    next[i] = md.digest();
+                } else {
+                    next[i] = level[2 * i];
+                }
+            }
+            level = next;
+        }
+        return level[0];
+    }
+
+    /**
+     * Retrieves the size of the hashes of the tree
+     *
+     * @return The size in bytes of a leaf or root hash
+     */
+    public static int getHashLength() {
+        return newDigest().getDigestLength();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return TOMUtil.getHashEngine();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Hash algorithm not available", e);
+        }
+    }
+}
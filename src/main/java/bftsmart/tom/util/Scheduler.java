@@ -0,0 +1,149 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Schedules the timeouts of the library (request timeouts, STOP
+ * retransmissions, reply retries, state transfer timeouts, ...) on a single
+ * hashed timer wheel shared by the whole JVM, instead of a java.util.Timer
+ * thread per timeout. Scheduling and cancelling are O(1) and the wheel has a
+ * resolution of 10 milliseconds.
+ *
+ * The tasks run on the thread of the wheel, one at a time, so they must not
+ * block; tasks that may block should hand their work to another thread.
+ */
+public final class Scheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(Scheduler.class);
+
+    private static final HashedWheelTimer wheel = new HashedWheelTimer(
+            new DefaultThreadFactory("bftsmart-scheduler", true), 10, TimeUnit.MILLISECONDS, 512);
+
+    /**
+     * A scheduled task, which can be cancelled until it runs
+     */
+    public interface Timeout {
+
+        /**
+         * Cancels the task. A periodic task is not run again.
+         *
+         * @return false if the task had already run or been cancelled
+         */
+        boolean cancel();
+
+        boolean isCancelled();
+    }
+
+    private Scheduler() {
+    }
+
+    /**
+     * Runs a task once after a delay
+     *
+     * @param task The task to run
+     * @param delay Delay in milliseconds
+     * @return The handle to cancel the task
+     */
+    public static Timeout schedule(Runnable task, long delay) {
+        io.netty.util.Timeout timeout = wheel.newTimeout(t -> run(task), Math.max(0, delay), TimeUnit.MILLISECONDS);
+        return new Timeout() {
+            @Override
+            public boolean cancel() {
+                return timeout.cancel();
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return timeout.isCancelled();
+            }
+        };
+    }
+
+    /**
+     * Runs a task periodically. Each run is scheduled relative to the
+     * first one, so the rate does not drift when a run is late.
+     *
+     * @param task The task to run
+     * @param initialDelay Delay of the first run in milliseconds
+     * @param period Time between runs in milliseconds
+     * @return The handle to stop the task
+     */
+    public static Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+        if (period <= 0) throw new IllegalArgumentException("Period must be positive: " + period);
+        Periodic periodic = new Periodic(task, TimeUnit.MILLISECONDS.toNanos(period));
+        periodic.start(Math.max(0, initialDelay));
+        return periodic;
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            logger.error("Scheduled task failed", e);
+        }
+    }
+
+    private static final class Periodic implements Timeout, TimerTask {
+
+        private final Runnable task;
+        private final long period;
+        private long next;
+        private volatile io.netty.util.Timeout current;
+        private volatile boolean cancelled;
+
+        Periodic(Runnable task, long period) {
+            this.task = task;
+            this.period = period;
+        }
+
+        void start(long initialDelay) {
+            next = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(initialDelay);
+            current = wheel.newTimeout(this, initialDelay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run(io.netty.util.Timeout timeout) {
+            if (cancelled) return;
+            Scheduler.run(task);
+            next += period;
+            if (!cancelled) {
+                current = wheel.newTimeout(this, Math.max(0, next - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public boolean cancel() {
+            if (cancelled) return false;
+            cancelled = true;
+            current.cancel();
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
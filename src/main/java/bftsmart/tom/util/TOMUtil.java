@@ -242,6 +242,22 @@ public class TOMUtil {
         return result;
     }
     
+    /**
+     * Computes the digest of the serialized form of a request. The digest is
+     * kept in the request, so it is computed only once.
+     *
+     * @param request The request
+     * @return The digest of the request
+     */
+    public static byte[] computeRequestDigest(TOMMessage request) {
+        byte[] digest = request.serializedMessageDigest;
+        if (digest == null) {
+            digest = computeHash(request.serializedMessage);
+            request.serializedMessageDigest = digest;
+        }
+        return digest;
+    }
+
     public static Signature getSigEngine() throws NoSuchAlgorithmException {
         
         return Signature.getInstance(TOMUtil.sigAlgorithm, Security.getProvider(TOMUtil.sigAlgorithmProvider));